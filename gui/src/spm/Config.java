@@ -34,6 +34,21 @@ public final class Config {
                                               Config.CMD_NAME +
                                               ".log.xml";
     
+    /** Directory holding the program's data. */
+    public final static String SPM_HOME = System.getProperty("user.home") + File.separator + ".spm";
+    
+    /** Directory holding extracted packages (see {@code spm.format.ExtractionCache}). */
+    public final static String EXTRACTION_CACHE_DIR = SPM_HOME + File.separator + "cache";
+    
+    /** Directory holding the files shared between packages (see {@code spm.util.BlobStore}). */
+    public final static String BLOB_STORE_DIR = SPM_HOME + File.separator + "blobs";
+    
+    /** Log of the database of installed packages (see {@code spm.format.PackageDatabase}). */
+    public final static String DATABASE_FILE = SPM_HOME + File.separator + "installed.db";
+    
+    /** Directory of the local package repository, where {@code spm-get} downloads packages to. */
+    public final static String REPOSITORY_DIR = SPM_HOME;
+    
     /** name of the program. */
     public static final String CMD_NAME = "spm-gui";
     
@@ -0,0 +1,731 @@
+package spm;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import spm.format.*;
+import spm.util.BlobStore;
+
+/**
+ * Runs the package engine from the command line, without a GUI.
+ * Progress is written to standard output as one event per line, with tab separated fields:
+ * <pre>
+ * read    PACKAGE ok
+ * read    PACKAGE failed  MESSAGE
+ * start   STEP
+ * output  STEP    out|err LINE
+ * finish  STEP    STATE   EXIT-VALUE  MILLISECONDS
+ * done    SUCCEEDED       TOTAL       MILLISECONDS
+ * </pre>
+ * where {@code STATE} is one of the {@code SPMStep.State}s and the last field of a line is the rest of it.
+ * Licenses are accepted without being shown.
+ * The database of installed packages and the repository index are queried the same way:
+ * <pre>
+ * installed PACKAGE VERSION PATHS
+ * owner     PATH    PACKAGE VERSION
+ * indexed   COUNT   INDEX-FILE
+ * found     PACKAGE VERSION SIZE    DIGEST  PATH
+ * match     PACKAGE PATH
+ * error     MESSAGE
+ * </pre>
+ * where {@code PATHS} is the number of paths the package installed, and {@code PACKAGE} is empty for a path no
+ * installed package owns.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class Headless {
+
+    /** Exit value when every package succeeded. */
+    public static final int EXIT_SUCCESS = 0;
+
+    /** Exit value when a package could not be read or one of its steps failed. */
+    public static final int EXIT_FAILURE = 1;
+
+    /** Exit value when the command line is not valid. */
+    public static final int EXIT_USAGE = 2;
+
+    /**
+     * What to do with the packages.
+     *
+     */
+    public enum Action {
+
+        /** Build and install the packages, in parallel where possible. */
+        INSTALL,
+
+        /** Un-install then re-install each package in turn. */
+        UPDATE,
+
+        /** Un-install each package in turn. */
+        UNINSTALL
+
+    }
+
+    private final PrintStream out;
+
+    // number of packages and how many of them succeeded
+    private int packageCount = 0;
+    private int succeededCount = 0;
+
+    private Headless(final PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Runs the given action on each of the given packages, writing progress to {@code out}.
+     *
+     * @param action what to do with the packages.
+     * @param files the package files.
+     * @param out stream to write progress to.
+     * @return the exit value of the program.
+     */
+    public static int run(final Action action, final List<File> files, final PrintStream out) {
+
+        if (action == null || files.isEmpty())
+            return EXIT_USAGE;
+
+        Headless headless = new Headless(out);
+
+        long start = System.nanoTime();
+        boolean succeededFlag;
+
+        try {
+
+            if (action == Action.INSTALL) {
+                succeededFlag = headless.install(files);
+            } else {
+                succeededFlag = headless.runEach(action, files);
+            }
+
+        } catch (InterruptedException ex) {
+
+            Thread.currentThread().interrupt();
+            succeededFlag = false;
+
+        }
+
+        headless.print("done", 
+                       Integer.toString(headless.succeededCount), 
+                       Integer.toString(headless.packageCount), 
+                       Long.toString((System.nanoTime() - start) / 1000000));
+        out.flush();
+
+        return succeededFlag ? EXIT_SUCCESS : EXIT_FAILURE;
+
+    }
+
+    /**
+     * Lists the installed packages recorded in the given database, writing one line for each to {@code out}.
+     *
+     * @param database the database of installed packages.
+     * @param out stream to write the packages to.
+     * @return the exit value of the program.
+     */
+    public static int list(final PackageDatabase database, final PrintStream out) {
+
+        Headless headless = new Headless(out);
+
+        try {
+
+            for (PackageDatabase.Entry entry : database.getInstalled()) {
+
+                headless.print("installed", 
+                               entry.getName(), 
+                               entry.getVersion(), 
+                               Integer.toString(entry.getPaths().size()));
+
+            }
+
+        } catch (IOException ex) {
+
+            headless.print("error", ex.getMessage());
+            out.flush();
+
+            return EXIT_FAILURE;
+
+        }
+
+        out.flush();
+
+        return EXIT_SUCCESS;
+
+    }
+
+    /**
+     * Writes which installed package owns each of the given paths to {@code out}.
+     *
+     * @param database the database of installed packages.
+     * @param paths the paths to look up.
+     * @param out stream to write the owners to.
+     * @return the exit value of the program ({@code EXIT_FAILURE} if a path has no owner).
+     */
+    public static int owners(final PackageDatabase database, final List<String> paths, final PrintStream out) {
+
+        Headless headless = new Headless(out);
+
+        boolean ownedFlag = true;
+
+        try {
+
+            for (String path : paths) {
+
+                PackageDatabase.Entry owner = database.getOwner(path);
+
+                if (owner == null) {
+
+                    headless.print("owner", path, "", "");
+                    ownedFlag = false;
+
+                } else {
+                    headless.print("owner", path, owner.getName(), owner.getVersion());
+                }
+
+            }
+
+        } catch (IOException ex) {
+
+            headless.print("error", ex.getMessage());
+            ownedFlag = false;
+
+        }
+
+        out.flush();
+
+        return ownedFlag ? EXIT_SUCCESS : EXIT_FAILURE;
+
+    }
+
+    /**
+     * Indexes the packages in the given repository directory (see {@code RepositoryIndex.build()}).
+     *
+     * @param repository root directory of the repository.
+     * @param out stream to write the result to.
+     * @return the exit value of the program.
+     */
+    public static int index(final File repository, final PrintStream out) {
+
+        Headless headless = new Headless(out);
+
+        try {
+
+            int count = RepositoryIndex.build(repository);
+
+            headless.print("indexed", 
+                           Integer.toString(count), 
+                           new File(repository, RepositoryIndex.INDEX_NAME).getPath());
+
+        } catch (IOException ex) {
+
+            headless.print("error", ex.getMessage());
+            out.flush();
+
+            return EXIT_FAILURE;
+
+        }
+
+        out.flush();
+
+        return EXIT_SUCCESS;
+
+    }
+
+    /**
+     * Removes the files which have not been used for a while from the given blob store (see
+     * {@code BlobStore.gc()}).
+     *
+     * @param blobStore the blob store.
+     * @param out stream to write the result to.
+     * @return the exit value of the program.
+     */
+    public static int gcBlobs(final BlobStore blobStore, final PrintStream out) {
+
+        Headless headless = new Headless(out);
+
+        try {
+
+            long freed = blobStore.gc();
+
+            headless.print("collected", Long.toString(freed), blobStore.getDirectory().getPath());
+
+        } catch (IOException ex) {
+
+            headless.print("error", ex.getMessage());
+            out.flush();
+
+            return EXIT_FAILURE;
+
+        }
+
+        out.flush();
+
+        return EXIT_SUCCESS;
+
+    }
+
+    /**
+     * Writes the packages in the index of the given repository which names start with any of the given prefixes
+     * to {@code out}.
+     *
+     * @param repository root directory of the repository.
+     * @param prefixes the starts of the names to search for.
+     * @param out stream to write the packages to.
+     * @return the exit value of the program ({@code EXIT_FAILURE} if nothing was found).
+     */
+    public static int search(final File repository, final List<String> prefixes, final PrintStream out) {
+
+        Headless headless = new Headless(out);
+
+        boolean foundFlag = false;
+
+        try {
+
+            RepositoryIndex index = new RepositoryIndex(new File(repository, RepositoryIndex.INDEX_NAME));
+
+            try {
+
+                for (String prefix : prefixes) {
+
+                    for (RepositoryIndex.Entry entry : index.findPrefix(prefix, Integer.MAX_VALUE)) {
+
+                        headless.print("found", 
+                                       entry.getName(), 
+                                       entry.getVersion(), 
+                                       Long.toString(entry.getSize()), 
+                                       entry.getDigest(), 
+                                       entry.getPath());
+                        foundFlag = true;
+
+                    }
+
+                }
+
+            } finally {
+                index.close();
+            }
+
+        } catch (IOException ex) {
+
+            headless.print("error", ex.getMessage());
+            foundFlag = false;
+
+        }
+
+        out.flush();
+
+        return foundFlag ? EXIT_SUCCESS : EXIT_FAILURE;
+
+    }
+
+    /**
+     * Writes the packages in the given repository which match any of the given texts to {@code out}, updating
+     * the repository's search index first (see {@code SearchIndex}). A text can be limited to one field by
+     * starting it with the name of the field and a colon, as in {@code license:GPL}.
+     *
+     * @param repository root directory of the repository.
+     * @param texts the texts to search for.
+     * @param out stream to write the packages to.
+     * @return the exit value of the program ({@code EXIT_FAILURE} if nothing was found).
+     */
+    public static int searchText(final File repository, final List<String> texts, final PrintStream out) {
+
+        Headless headless = new Headless(out);
+
+        boolean foundFlag = false;
+
+        try {
+
+            File indexFile = new File(repository, SearchIndex.INDEX_NAME);
+
+            SearchIndex index = SearchIndex.read(indexFile);
+            if (index.update(repository) > 0)
+                index.write(indexFile);
+
+            for (String text : texts) {
+
+                List<SearchIndex.Document> documents = null;
+
+                // search the given field only
+                int colon = text.indexOf(':');
+                if (colon > 0) {
+
+                    for (SearchIndex.Field field : SearchIndex.Field.values()) {
+
+                        if (field.name().equalsIgnoreCase(text.substring(0, colon)))
+                            documents = index.search(field, text.substring(colon + 1));
+
+                    }
+
+                }
+
+                if (documents == null)
+                    documents = index.search(text);
+
+                for (SearchIndex.Document document : documents) {
+
+                    headless.print("match", document.getName(), document.getPath());
+                    foundFlag = true;
+
+                }
+
+            }
+
+        } catch (IOException ex) {
+
+            headless.print("error", ex.getMessage());
+            foundFlag = false;
+
+        }
+
+        out.flush();
+
+        return foundFlag ? EXIT_SUCCESS : EXIT_FAILURE;
+
+    }
+
+    /**
+     * Downloads the latest version of each of the named packages from the repository at the given location to the
+     * given directory, several at a time (see {@code PackageDownloader}). The index of the repository is
+     * downloaded first.
+     *
+     * @param location location of the root of the repository.
+     * @param dir directory to download the packages to.
+     * @param names the names of the packages to download.
+     * @param out stream to write the result of each download to.
+     * @return the exit value of the program ({@code EXIT_FAILURE} if any package failed).
+     */
+    public static int get(final URL location, final File dir, final List<String> names, final PrintStream out) {
+
+        Headless headless = new Headless(out);
+
+        PackageDownloader downloader = new PackageDownloader(location, dir);
+
+        boolean failedFlag = false;
+
+        try {
+
+            RepositoryIndex index = new RepositoryIndex(downloader.downloadIndex());
+
+            try {
+
+                // start every download before waiting for any of them
+                ArrayList<String> started = new ArrayList<String>();
+                ArrayList<Future<File>> downloads = new ArrayList<Future<File>>();
+
+                for (String name : names) {
+
+                    List<RepositoryIndex.Entry> entries = index.find(name);
+
+                    if (entries.isEmpty()) {
+
+                        headless.print("error", name, "No such package in the repository.");
+                        failedFlag = true;
+
+                        continue;
+
+                    }
+
+                    started.add(name);
+                    downloads.add(downloader.download(entries.get(entries.size() - 1)));
+
+                }
+
+                for (int i = 0; i < downloads.size(); i++) {
+
+                    try {
+                        headless.print("downloaded", started.get(i), downloads.get(i).get().getPath());
+                    } catch (ExecutionException ex) {
+
+                        headless.print("error", started.get(i), ex.getCause().getMessage());
+                        failedFlag = true;
+
+                    }
+
+                }
+
+            } finally {
+                index.close();
+            }
+
+        } catch (IOException | InterruptedException ex) {
+
+            headless.print("error", ex.getMessage());
+            failedFlag = true;
+
+        } finally {
+            downloader.shutdown();
+        }
+
+        out.flush();
+
+        return failedFlag ? EXIT_FAILURE : EXIT_SUCCESS;
+
+    }
+
+    /**
+     * Installs the latest version of each of the named packages from the repository at the given location in turn,
+     * extracting each package as it downloads to the given directory (see {@code SPMPackage.stream()}).
+     *
+     * @param location location of the root of the repository.
+     * @param dir directory to download the packages to.
+     * @param names the names of the packages to install.
+     * @param out stream to write progress to.
+     * @return the exit value of the program.
+     */
+    public static int install(final URL location, final File dir, final List<String> names, final PrintStream out) {
+
+        Headless headless = new Headless(out);
+
+        PackageDownloader downloader = new PackageDownloader(location, dir);
+
+        long start = System.nanoTime();
+        boolean failedFlag = false;
+
+        try {
+
+            RepositoryIndex index = new RepositoryIndex(downloader.downloadIndex());
+
+            try {
+
+                for (String name : names) {
+
+                    headless.packageCount++;
+
+                    List<RepositoryIndex.Entry> entries = index.find(name);
+
+                    if (entries.isEmpty()) {
+
+                        headless.print("read", name, "failed", "No such package in the repository.");
+                        failedFlag = true;
+
+                        continue;
+
+                    }
+
+                    RepositoryIndex.Entry entry = entries.get(entries.size() - 1);
+                    File file = downloader.getFile(entry);
+
+                    try {
+
+                        SPMPackage packageArchive = new SPMPackage();
+                        packageArchive.stream(downloader.openStream(entry), file);
+
+                        headless.print("read", file.getPath(), "ok");
+
+                        if (headless.wait(packageArchive.getInstallExecutor())) {
+                            headless.succeededCount++;
+                        } else {
+                            failedFlag = true;
+                        }
+
+                    } catch (IOException | InvalidPackageException | SPMDigestException ex) {
+
+                        headless.print("read", file.getPath(), "failed", ex.getMessage());
+                        failedFlag = true;
+
+                    }
+
+                }
+
+            } finally {
+                index.close();
+            }
+
+        } catch (IOException ex) {
+
+            headless.print("error", ex.getMessage());
+            failedFlag = true;
+
+        }
+
+        headless.print("done", 
+                       Integer.toString(headless.succeededCount), 
+                       Integer.toString(headless.packageCount), 
+                       Long.toString((System.nanoTime() - start) / 1000000));
+        out.flush();
+
+        return failedFlag ? EXIT_FAILURE : EXIT_SUCCESS;
+
+    }
+
+    // installs the packages together
+    private boolean install(final List<File> files) throws InterruptedException {
+
+        SPMScheduler scheduler = new SPMScheduler();
+        for (File file : files)
+            scheduler.add(file);
+
+        SPMExecutor executor = scheduler.start();
+
+        Map<File, Exception> failures = scheduler.getFailures();
+        for (File file : files) {
+
+            if (failures.containsKey(file)) {
+                print("read", file.getPath(), "failed", failures.get(file).getMessage());
+            } else {
+                print("read", file.getPath(), "ok");
+            }
+
+        }
+
+        boolean failedFlag = !wait(executor) || !failures.isEmpty();
+
+        packageCount = files.size();
+        succeededCount = scheduler.getInstalledCount();
+
+        return !failedFlag;
+
+    }
+
+    // runs the action on each package in turn
+    private boolean runEach(final Action action, final List<File> files) {
+
+        boolean failedFlag = false;
+
+        for (File file : files) {
+
+            packageCount++;
+
+            try {
+
+                SPMPackage packageArchive = new SPMPackage();
+                packageArchive.read(file);
+
+                print("read", file.getPath(), "ok");
+
+                SPMExecutor executor;
+                if (action == Action.UPDATE) {
+                    executor = packageArchive.getUpdateExecutor();
+                } else {
+                    executor = packageArchive.getUninstallExecutor();
+                }
+
+                if (wait(executor)) {
+                    succeededCount++;
+                } else {
+                    failedFlag = true;
+                }
+
+            } catch (IOException | InvalidPackageException | SPMDigestException ex) {
+
+                print("read", file.getPath(), "failed", ex.getMessage());
+                failedFlag = true;
+
+            }
+
+        }
+
+        return !failedFlag;
+
+    }
+
+    // reports the progress of the executor until it is done, returning whether it succeeded
+    private boolean wait(final SPMExecutor executor) {
+
+        executor.addStepListener(new SPMExecutor.StepListener() {
+
+            @Override
+            public void stepStarted(final SPMExecutor executor, final SPMStep step) {
+                print("start", step.getName());
+            }
+
+            @Override
+            public void stepFinished(final SPMExecutor executor, final SPMStep step) {
+
+                long elapsedTime = step.getElapsedTime();
+
+                print("finish", 
+                      step.getName(), 
+                      step.getState().toString(), 
+                      Integer.toString(getExitValue(step)), 
+                      Long.toString(elapsedTime < 0 ? -1 : elapsedTime / 1000000));
+                out.flush();
+
+            }
+
+        });
+
+        executor.addOutputListener(new SPMExecutor.OutputListener() {
+
+            @Override
+            public void lineRead(final SPMExecutor executor, 
+                                 final SPMStep step, 
+                                 final String line, 
+                                 boolean errorFlag) {
+
+                print("output", step.getName(), errorFlag ? "err" : "out", line);
+
+            }
+
+        });
+
+        boolean failedFlag = executor.failed();
+
+        try {
+            executor.getOutput();
+        } catch (IOException ex) {
+
+            print("output", "", "err", ex.getMessage());
+            failedFlag = true;
+
+        }
+
+        return !failedFlag;
+
+    }
+
+    // returns the exit value of a finished step
+    private static int getExitValue(final SPMStep step) {
+
+        try {
+            return step.getExitValue().get();
+        } catch (InterruptedException | ExecutionException ex) {
+            return -1;
+        }
+
+    }
+
+    // writes an event as a line of tab separated fields
+    private void print(final String... fields) {
+
+        StringBuilder line = new StringBuilder();
+
+        for (int i = 0; i < fields.length; i++) {
+
+            if (i > 0)
+                line.append('\t');
+
+            line.append(fields[i] == null ? "" : fields[i]);
+
+        }
+
+        line.append('\n');
+
+        synchronized (out) {
+            out.print(line.toString());
+        }
+
+    }
+
+}
+
+// EOF
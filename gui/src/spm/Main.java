@@ -16,13 +16,22 @@ package spm;
  */
 
 import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.*;
 import java.awt.EventQueue;
 import javax.swing.UIManager;
 
+import spm.format.ExtractionCache;
+import spm.format.PackageDatabase;
+import spm.format.SPMPackage;
 import spm.gui.PrimaryFrame;
 import spm.logging.SPMLogger;
+import spm.util.BlobStore;
 
 /**
  * Entry point of the program.
@@ -36,11 +45,23 @@ public final class Main {
     // TODO add logo to window frames
     // TODO create makefile for installation
     
-    // initialises the program
+    // initialises the package engine
     private static void init() {
         
-        SPMLogger.init();
-                
+        // share extracted packages between runs
+        SPMPackage.setDefaultExtractionCache(new ExtractionCache(new File(Config.EXTRACTION_CACHE_DIR)));
+        
+        // record installed packages (the database is read when first used)
+        SPMPackage.setDefaultDatabase(new PackageDatabase(new File(Config.DATABASE_FILE)));
+        
+        // share identical files between packages (unused files are only removed when asked to)
+        SPMPackage.setDefaultBlobStore(new BlobStore(new File(Config.BLOB_STORE_DIR)));
+        
+    }
+    
+    // initialises the GUI
+    private static void initGUI() {
+        
         try {
             // set system look and feel
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -62,14 +83,72 @@ public final class Main {
         msg.append('\n');
         
         msg.append("Options: ");
+        msg.append('\n');
         msg.append("    --help OR -h");
+        msg.append('\n');
         msg.append("        Show this usage information.");
+        msg.append('\n');
         msg.append("    --install OR -i");
+        msg.append('\n');
         msg.append("        Open and install the given packages.");
+        msg.append('\n');
         msg.append("    --update OR -u");
+        msg.append('\n');
         msg.append("        Open and update the given packages.");
+        msg.append('\n');
         msg.append("    --uninstall OR --remove OR -r");
+        msg.append('\n');
         msg.append("        Open and remove the given packages.");
+        msg.append('\n');
+        msg.append("    " + HEADLESS_OPTION);
+        msg.append('\n');
+        msg.append("        Install, update or remove the given packages without the GUI, accepting their");
+        msg.append('\n');
+        msg.append("        licenses and writing progress to standard output (exits with 0 on success,");
+        msg.append('\n');
+        msg.append("        1 if a package failed and 2 on a usage error).");
+        msg.append('\n');
+        msg.append("    " + LIST_OPTION);
+        msg.append('\n');
+        msg.append("        List the installed packages.");
+        msg.append('\n');
+        msg.append("    " + OWNER_OPTION + " <path>");
+        msg.append('\n');
+        msg.append("        Show which installed package owns the given path (can be given several times).");
+        msg.append('\n');
+        msg.append("    " + GC_BLOBS_OPTION);
+        msg.append('\n');
+        msg.append("        Remove the files no package has used for a while from the blob store.");
+        msg.append('\n');
+        msg.append("    " + REPOSITORY_OPTION + " <directory>");
+        msg.append('\n');
+        msg.append("        Use the package repository in the given directory (by default ");
+        msg.append(Config.REPOSITORY_DIR);
+        msg.append(").");
+        msg.append('\n');
+        msg.append("    " + INDEX_OPTION);
+        msg.append('\n');
+        msg.append("        Index the packages in the repository.");
+        msg.append('\n');
+        msg.append("    " + SEARCH_OPTION + " <name>");
+        msg.append('\n');
+        msg.append("        Search the repository index for packages which names start with the given name.");
+        msg.append('\n');
+        msg.append("    " + SEARCH_TEXT_OPTION + " [name:|license:|files:]<text>");
+        msg.append('\n');
+        msg.append("        Search the names, licenses and file names of the packages in the repository.");
+        msg.append('\n');
+        msg.append("    " + REPOSITORY_URL_OPTION + " <url>");
+        msg.append('\n');
+        msg.append("        Download packages from the remote repository at the given location.");
+        msg.append('\n');
+        msg.append("    " + GET_OPTION + " <name>");
+        msg.append('\n');
+        msg.append("        Download the latest version of the named package to the repository directory, resuming");
+        msg.append('\n');
+        msg.append("        an interrupted download (can be given several times). With --install, each package");
+        msg.append('\n');
+        msg.append("        is installed, and extracted as it downloads.");
         
         msg.append('\n');
         
@@ -79,7 +158,39 @@ public final class Main {
         
     }
     
+    // runs without the GUI
+    private static final String HEADLESS_OPTION = "--headless";
+    
+    // query the database of installed packages
+    private static final String LIST_OPTION = "--list-installed";
+    private static final String OWNER_OPTION = "--owner";
+    
+    // remove unused files from the blob store
+    private static final String GC_BLOBS_OPTION = "--gc-blobs";
+    
+    // index and search a package repository
+    private static final String REPOSITORY_OPTION = "--repository";
+    private static final String INDEX_OPTION = "--index-repository";
+    private static final String SEARCH_OPTION = "--search";
+    private static final String SEARCH_TEXT_OPTION = "--search-text";
+    
+    // download packages from a remote repository
+    private static final String REPOSITORY_URL_OPTION = "--repository-url";
+    private static final String GET_OPTION = "--get";
+    
     // command line options
+    private static boolean headlessFlag = false;
+    private static boolean queryFlag = false;
+    private static boolean listFlag = false;
+    private static final ArrayList<String> ownerPaths = new ArrayList<String>();
+    private static boolean gcBlobsFlag = false;
+    private static File repository = new File(Config.REPOSITORY_DIR);
+    private static boolean indexFlag = false;
+    private static final ArrayList<String> searchNames = new ArrayList<String>();
+    private static final ArrayList<String> searchTexts = new ArrayList<String>();
+    private static URL repositoryURL = null;
+    private static final ArrayList<String> getNames = new ArrayList<String>();
+    private static boolean usageErrorFlag = false;
     private static boolean installFlag = false;
     private static boolean updateFlag = false;
     private static boolean uninstallFlag = false;
@@ -91,12 +202,12 @@ public final class Main {
         ArrayList<File> packageFiles = new ArrayList<File>();
         
         // parse arguments
-        for (int i = 1; i < args.length; i++) {
+        for (int i = 0; i < args.length; i++) {
             
             // parse argument
             try {
             
-                if (args[i].charAt(0) == '-') { // handle command line option
+                if (args[i].startsWith("-")) { // handle command line option
 
                     if (args[i].equals("--help") || args[i].equals("-h")) {
 
@@ -105,7 +216,8 @@ public final class Main {
                     } else if (args[i].equals("--install") || args[i].equals("-i")) {
 
                         if (installFlag) {
-                            throw new Exception("Ignoring multiple install flags.");
+                            usageErrorFlag = true;
+                            throw new Exception("Multiple install flags.");
                         }
 
                         installFlag = true;
@@ -113,7 +225,8 @@ public final class Main {
                     } else if (args[i].equals("--update") || args[i].equals("-u")) {
 
                         if (updateFlag) {
-                            throw new Exception("Ignoring multiple update flags.");
+                            usageErrorFlag = true;
+                            throw new Exception("Multiple update flags.");
                         }
 
                         updateFlag = true;
@@ -123,11 +236,92 @@ public final class Main {
                                args[i].equals("-r")) {
 
                         if (uninstallFlag) {
-                            throw new Exception("Ignoring multiple un-install flags.");
+                            usageErrorFlag = true;
+                            throw new Exception("Multiple un-install flags.");
                         }
 
                         uninstallFlag = true;
 
+                    } else if (args[i].equals(HEADLESS_OPTION)) {
+
+                        headlessFlag = true;
+
+                    } else if (args[i].equals(LIST_OPTION)) {
+
+                        listFlag = true;
+
+                    } else if (args[i].equals(OWNER_OPTION)) {
+
+                        if (i + 1 >= args.length) {
+                            usageErrorFlag = true;
+                            throw new Exception("Missing path after " + OWNER_OPTION + ".");
+                        }
+
+                        ownerPaths.add(args[++i]);
+
+                    } else if (args[i].equals(GC_BLOBS_OPTION)) {
+
+                        gcBlobsFlag = true;
+
+                    } else if (args[i].equals(REPOSITORY_OPTION)) {
+
+                        if (i + 1 >= args.length) {
+                            usageErrorFlag = true;
+                            throw new Exception("Missing directory after " + REPOSITORY_OPTION + ".");
+                        }
+
+                        repository = new File(args[++i]);
+
+                    } else if (args[i].equals(INDEX_OPTION)) {
+
+                        indexFlag = true;
+
+                    } else if (args[i].equals(SEARCH_OPTION)) {
+
+                        if (i + 1 >= args.length) {
+                            usageErrorFlag = true;
+                            throw new Exception("Missing name after " + SEARCH_OPTION + ".");
+                        }
+
+                        searchNames.add(args[++i]);
+
+                    } else if (args[i].equals(SEARCH_TEXT_OPTION)) {
+
+                        if (i + 1 >= args.length) {
+                            usageErrorFlag = true;
+                            throw new Exception("Missing text after " + SEARCH_TEXT_OPTION + ".");
+                        }
+
+                        searchTexts.add(args[++i]);
+
+                    } else if (args[i].equals(REPOSITORY_URL_OPTION)) {
+
+                        if (i + 1 >= args.length) {
+                            usageErrorFlag = true;
+                            throw new Exception("Missing location after " + REPOSITORY_URL_OPTION + ".");
+                        }
+
+                        try {
+                            repositoryURL = new URL(args[++i]);
+                        } catch (MalformedURLException ex) {
+                            usageErrorFlag = true;
+                            throw new Exception("Invalid repository location \"" + args[i] + "\".");
+                        }
+
+                    } else if (args[i].equals(GET_OPTION)) {
+
+                        if (i + 1 >= args.length) {
+                            usageErrorFlag = true;
+                            throw new Exception("Missing name after " + GET_OPTION + ".");
+                        }
+
+                        getNames.add(args[++i]);
+
+                    } else {
+
+                        usageErrorFlag = true;
+                        throw new Exception("Unknown option \"" + args[i] + "\".");
+
                     }
 
                 } else { // handle input package
@@ -145,7 +339,11 @@ public final class Main {
                 msg.append(ex.getMessage());
                 msg.append('\n');
                 
-                logger.log(Level.INFO, msg.toString(), ex);
+                if (headlessFlag || queryFlag) {
+                    System.err.print(msg.toString());
+                } else {
+                    logger.log(Level.INFO, msg.toString(), ex);
+                }
                 
             }
             
@@ -163,18 +361,142 @@ public final class Main {
         
     }
     
+    // runs the given action on the given packages without the GUI, returning the exit value of the program
+    private static int runHeadless() {
+        
+        Headless.Action action = null;
+        int actionCount = 0;
+        
+        if (installFlag) {
+            action = Headless.Action.INSTALL;
+            actionCount++;
+        }
+        if (updateFlag) {
+            action = Headless.Action.UPDATE;
+            actionCount++;
+        }
+        if (uninstallFlag) {
+            action = Headless.Action.UNINSTALL;
+            actionCount++;
+        }
+        
+        List<File> packageFiles = new ArrayList<File>(Arrays.asList(packages));
+        packageFiles.removeAll(Collections.singleton((File) null));
+        
+        if (usageErrorFlag || actionCount != 1 || packageFiles.isEmpty()) {
+            
+            StringBuilder msg = new StringBuilder();
+            
+            msg.append(Config.CMD_NAME);
+            msg.append(": error: ");
+            msg.append(HEADLESS_OPTION);
+            msg.append(" needs exactly one of --install, --update or --uninstall, and at least one package.");
+            msg.append('\n');
+            
+            System.err.print(msg.toString());
+            
+            return Headless.EXIT_USAGE;
+            
+        }
+        
+        // progress is flushed after each step rather than each line of output
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false);
+        
+        return Headless.run(action, packageFiles, out);
+        
+    }
+    
+    // answers queries of the database of installed packages and the repository, returning the exit value of the
+    // program
+    private static int runQuery() {
+        
+        if (usageErrorFlag)
+            return Headless.EXIT_USAGE;
+        
+        if (!getNames.isEmpty() && repositoryURL == null) {
+            
+            System.err.println(Config.CMD_NAME + ": error: " + GET_OPTION + " needs " + REPOSITORY_URL_OPTION + ".");
+            
+            return Headless.EXIT_USAGE;
+            
+        }
+        
+        PackageDatabase database = SPMPackage.getDefaultDatabase();
+        
+        int exitValue = Headless.EXIT_SUCCESS;
+        
+        if (listFlag)
+            exitValue = Math.max(exitValue, Headless.list(database, System.out));
+        
+        if (!ownerPaths.isEmpty())
+            exitValue = Math.max(exitValue, Headless.owners(database, ownerPaths, System.out));
+        
+        if (gcBlobsFlag)
+            exitValue = Math.max(exitValue, Headless.gcBlobs(SPMPackage.getDefaultBlobStore(), System.out));
+        
+        // packages are downloaded before the repository is indexed and searched
+        if (!getNames.isEmpty() && installFlag) {
+            exitValue = Math.max(exitValue, Headless.install(repositoryURL, repository, getNames, System.out));
+        } else if (!getNames.isEmpty()) {
+            exitValue = Math.max(exitValue, Headless.get(repositoryURL, repository, getNames, System.out));
+        }
+        
+        // the index is built before it is searched
+        if (indexFlag)
+            exitValue = Math.max(exitValue, Headless.index(repository, System.out));
+        
+        if (!searchNames.isEmpty())
+            exitValue = Math.max(exitValue, Headless.search(repository, searchNames, System.out));
+        
+        if (!searchTexts.isEmpty())
+            exitValue = Math.max(exitValue, Headless.searchText(repository, searchTexts, System.out));
+        
+        return exitValue;
+        
+    }
+    
     /**
      * Entry point of the program.
      * 
      * @param args the command line arguments
      */
     public static void main(final String[] args) {
+
+        List<String> argList = Arrays.asList(args);
+
+        // answer requests for help before anything else is set up
+        if (argList.contains("--help") || argList.contains("-h"))
+            usage();
+
+        // the GUI and its logging are only set up when it is used
+        headlessFlag = argList.contains(HEADLESS_OPTION);
+        queryFlag = argList.contains(LIST_OPTION) || 
+                    argList.contains(OWNER_OPTION) || 
+                    argList.contains(GC_BLOBS_OPTION) || 
+                    argList.contains(INDEX_OPTION) || 
+                    argList.contains(SEARCH_OPTION) || 
+                    argList.contains(SEARCH_TEXT_OPTION) || 
+                    argList.contains(GET_OPTION);
+        
+        if (headlessFlag || queryFlag) {
+            SPMLogger.initHeadless();
+        } else {
+            SPMLogger.init();
+        }
         
         init();
         
         // handle command line parameters
         handleCmdl(args);
         
+        if (queryFlag)
+            System.exit(runQuery());
+        
+        if (headlessFlag)
+            System.exit(runHeadless());
+        
+        initGUI();
+        
         // start GUI
         for (File packageFile : packages) {
             
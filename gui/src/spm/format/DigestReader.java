@@ -0,0 +1,399 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import spm.util.Hash;
+import spm.util.HashAlgorithm;
+
+/**
+ * Reads the entries of a digest file one at a time, straight from its bytes.
+ * Lines are in the format of the {@code sha1sum} utility ({@code hash *filename}) or its tagged format
+ * ({@code SHA256 (filename) = hash}). Hashes are decoded without creating intermediate strings, so only the
+ * filename and hash of each entry are allocated.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class DigestReader implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // initial size of the buffer used when reading from a stream (grown to fit longer lines)
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final HashAlgorithm[] ALGORITHMS = HashAlgorithm.values();
+
+    // stream the digest file is read from (null when reading from a buffer)
+    private final InputStream input;
+
+    // bytes of the digest file, from position up to limit
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+
+    // whether the end of the stream has been reached
+    private boolean endFlag;
+
+    // number of the last line read
+    private int lineNumber = 0;
+
+    // scratch space for decoding filenames
+    private char[] chars = new char[256];
+    private byte[] bytes = null;
+
+    // current entry
+    private String filename = null;
+    private Hash hash = null;
+
+    /**
+     * Creates a new instance of {@code DigestReader} which reads from a stream.
+     *
+     * @param input stream to read the digest file from.
+     */
+    public DigestReader(final InputStream input) {
+
+        this.input = input;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.position = 0;
+        this.limit = 0;
+        this.endFlag = false;
+
+    }
+
+    /**
+     * Creates a new instance of {@code DigestReader} which reads the remaining contents of a buffer.
+     * The position of {@code buffer} is not changed.
+     *
+     * @param buffer buffer holding the digest file.
+     */
+    public DigestReader(final ByteBuffer buffer) {
+
+        this.input = null;
+        this.buffer = buffer;
+        this.position = buffer.position();
+        this.limit = buffer.limit();
+        this.endFlag = true;
+
+    }
+
+    /**
+     * Creates a new instance of {@code DigestReader} which reads part of an array.
+     *
+     * @param bytes array holding the digest file.
+     * @param offset offset of the digest file in {@code bytes}.
+     * @param length length of the digest file.
+     */
+    public DigestReader(final byte[] bytes, int offset, int length) {
+        this(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Moves to the next entry of the digest file, skipping blank lines.
+     *
+     * @return whether there was another entry.
+     * @throws IOException upon failure to read from the stream.
+     * @throws SPMDigestException if the line is not in a valid format.
+     */
+    public boolean next() throws IOException, SPMDigestException {
+
+        filename = null;
+        hash = null;
+
+        int scan = position;
+
+        while (true) {
+
+            // find the end of the line
+            while (scan < limit && buffer.get(scan) != '\n')
+                scan++;
+
+            if (scan == limit && !endFlag) {
+
+                int offset = fill();
+                scan -= offset;
+
+                continue;
+
+            }
+
+            if (scan == position && scan == limit)
+                return false; // end of file
+
+            int start = position;
+            int end = scan;
+
+            position = scan < limit ? scan + 1 : limit;
+            lineNumber++;
+
+            if (end > start && buffer.get(end - 1) == '\r')
+                end--;
+
+            if (end > start) {
+
+                readLine(start, end);
+                return true;
+
+            }
+
+            scan = position;
+
+        }
+
+    }
+
+    // reads more of the stream into the buffer and returns how far the unread bytes were moved back
+    private int fill() throws IOException {
+
+        int offset = position;
+        byte[] array = buffer.array();
+
+        // move unread bytes to the start, growing the buffer if a line does not fit
+        if (offset == 0 && limit == array.length) {
+
+            byte[] grown = new byte[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, limit);
+
+            buffer = ByteBuffer.wrap(grown);
+            array = grown;
+
+        } else if (offset > 0) {
+            System.arraycopy(array, offset, array, 0, limit - offset);
+        }
+
+        position = 0;
+        limit -= offset;
+
+        int num = input.read(array, limit, array.length - limit);
+        if (num == -1)
+            endFlag = true;
+        else
+            limit += num;
+
+        return offset;
+
+    }
+
+    // parses a single digest line (without its line terminator)
+    private void readLine(int start, int end) throws SPMDigestException {
+
+        int space = start;
+        while (space < end && buffer.get(space) != ' ')
+            space++;
+
+        HashAlgorithm algorithm = null;
+        int hashStart;
+        int hashEnd;
+        int nameStart;
+        int nameEnd;
+
+        if (space + 1 < end && buffer.get(space + 1) == '(')
+            algorithm = forName(start, space);
+
+        if (algorithm != null) { // "ALGORITHM (filename) = hash"
+
+            hashStart = end - algorithm.getHexSize();
+            hashEnd = end;
+            nameStart = space + 2;
+            nameEnd = hashStart - 4;
+
+            if (nameEnd < nameStart || buffer.get(nameEnd) != ')' || buffer.get(nameEnd + 1) != ' ' ||
+                buffer.get(nameEnd + 2) != '=' || buffer.get(nameEnd + 3) != ' ') {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("Expected \"");
+                msg.append(algorithm.getName());
+                msg.append(" (filename) = hash\" on line ");
+                msg.append(lineNumber);
+                msg.append(" but instead found \"");
+                msg.append(decode(start, end));
+                msg.append("\"!");
+
+                throw new SPMDigestException(msg.toString());
+
+            }
+
+        } else { // "hash *filename"
+
+            algorithm = HashAlgorithm.forHexSize(space - start);
+
+            if (algorithm == null || space == end) {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("Expected a hexadecimal hash and filename on line ");
+                msg.append(lineNumber);
+                msg.append(" but instead found \"");
+                msg.append(decode(start, end));
+                msg.append("\"!");
+
+                throw new SPMDigestException(msg.toString());
+
+            }
+
+            hashStart = start;
+            hashEnd = space;
+
+            // skip space and file type indicator
+            nameStart = space;
+            while (nameStart < end && (buffer.get(nameStart) == ' ' || buffer.get(nameStart) == '*'))
+                nameStart++;
+
+            nameEnd = end;
+
+        }
+
+        if (nameStart == nameEnd) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("Expected filename but found end of line ");
+            msg.append(lineNumber);
+            msg.append("!");
+
+            throw new SPMDigestException(msg.toString());
+
+        }
+
+        // names relative to the current directory (as given by sha1sum) are the names in the archive
+        if (nameEnd - nameStart > 2 && buffer.get(nameStart) == '.' && buffer.get(nameStart + 1) == '/')
+            nameStart += 2;
+
+        try {
+
+            hash = Hash.parse(algorithm, buffer, hashStart, hashEnd);
+
+        } catch (IllegalArgumentException ex) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("Invalid hash on line ");
+            msg.append(lineNumber);
+            msg.append(": ");
+            msg.append(ex.getMessage());
+
+            throw new SPMDigestException(msg.toString());
+
+        }
+
+        filename = decode(nameStart, nameEnd);
+
+    }
+
+    // returns the algorithm named by the given range of bytes, or null if there is none
+    private HashAlgorithm forName(int start, int end) {
+
+        for (HashAlgorithm algorithm : ALGORITHMS) {
+
+            String name = algorithm.getName();
+
+            if (name.length() != end - start)
+                continue;
+
+            boolean matchedFlag = true;
+            for (int i = 0; i < name.length() && matchedFlag; i++)
+                matchedFlag = Character.toUpperCase((char) buffer.get(start + i)) == name.charAt(i);
+
+            if (matchedFlag)
+                return algorithm;
+
+        }
+
+        return null;
+
+    }
+
+    // decodes a range of UTF-8 bytes, copying ASCII straight into a string
+    private String decode(int start, int end) {
+
+        int length = end - start;
+
+        if (chars.length < length)
+            chars = new char[Math.max(length, chars.length * 2)];
+
+        for (int i = 0; i < length; i++) {
+
+            byte b = buffer.get(start + i);
+
+            if (b < 0) { // not ASCII
+
+                if (buffer.hasArray())
+                    return new String(buffer.array(), buffer.arrayOffset() + start, length, UTF_8);
+
+                if (bytes == null || bytes.length < length)
+                    bytes = new byte[Math.max(length, 256)];
+
+                for (int j = 0; j < length; j++)
+                    bytes[j] = buffer.get(start + j);
+
+                return new String(bytes, 0, length, UTF_8);
+
+            }
+
+            chars[i] = (char) b;
+
+        }
+
+        return new String(chars, 0, length);
+
+    }
+
+    /**
+     * Returns the filename of the current entry.
+     *
+     * @return the filename, or {@code null} if there is no current entry.
+     */
+    public String getFileName() {
+        return filename;
+    }
+
+    /**
+     * Returns the hash of the current entry.
+     *
+     * @return the hash, or {@code null} if there is no current entry.
+     */
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the number of the line of the current entry.
+     *
+     * @return the line number (starting at 1).
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Closes the stream the digest file is read from, if any.
+     *
+     * @throws IOException upon failure to close the stream.
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (input != null)
+            input.close();
+
+    }
+
+}
+
+// EOF
@@ -0,0 +1,199 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+
+import spm.util.Hash;
+import spm.util.HashAlgorithm;
+
+/**
+ * Writes the entries of a digest file one at a time, encoding them straight into bytes.
+ * SHA1 entries are in the format of the {@code sha1sum} utility ({@code hash *filename}), and entries of other
+ * algorithms in its tagged format ({@code SHA256 (filename) = hash}). Filenames are encoded as UTF-8 and lines
+ * end with the platform's line separator.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class DigestWriter implements Closeable, Flushable {
+
+    private static final byte[] HEX_TABLE = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // stream the digest file is written to
+    private final OutputStream output;
+
+    // bytes not yet written to the stream (grown to fit longer lines)
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int count = 0;
+
+    /**
+     * Creates a new instance of {@code DigestWriter}.
+     *
+     * @param output stream to write the digest file to.
+     */
+    public DigestWriter(final OutputStream output) {
+
+        this.output = output;
+
+    }
+
+    /**
+     * Writes an entry of the digest file.
+     *
+     * @param filename name of the file.
+     * @param hash hash of the file.
+     * @throws IOException upon failure to write to the stream.
+     */
+    public void write(final String filename, final Hash hash) throws IOException {
+
+        HashAlgorithm algorithm = hash.getAlgorithm();
+
+        // make room for the longest the line could be, so the bytes can be added without further checks
+        reserve(algorithm.getName().length() + 6 + filename.length() * 3 + algorithm.getHexSize() + 
+                LINE_SEPARATOR.length);
+
+        if (algorithm == HashAlgorithm.SHA1) { // as sha1sum
+
+            writeHex(hash.getDigest());
+            writeByte(' ');
+            writeByte('*');
+            writeName(filename);
+
+        } else { // tagged with the algorithm
+
+            writeName(algorithm.getName());
+            writeByte(' ');
+            writeByte('(');
+            writeName(filename);
+            writeByte(')');
+            writeByte(' ');
+            writeByte('=');
+            writeByte(' ');
+            writeHex(hash.getDigest());
+
+        }
+
+        for (byte b : LINE_SEPARATOR)
+            writeByte(b);
+
+    }
+
+    // makes sure there is room for the given number of bytes in the buffer
+    private void reserve(int length) throws IOException {
+
+        if (count + length > buffer.length) {
+
+            flushBuffer();
+
+            if (length > buffer.length)
+                buffer = new byte[length];
+
+        }
+
+    }
+
+    // adds a byte to the buffer
+    private void writeByte(int b) {
+        buffer[count++] = (byte) b;
+    }
+
+    // adds a digest as hexadecimal digits
+    private void writeHex(final byte[] digest) {
+
+        for (byte b : digest) {
+            writeByte(HEX_TABLE[(b & 0xf0) >> 4]);
+            writeByte(HEX_TABLE[b & 0xf]);
+        }
+
+    }
+
+    // adds a string encoded as UTF-8 (at most three bytes per char)
+    private void writeName(final String name) {
+
+        for (int i = 0; i < name.length(); i++) {
+
+            char ch = name.charAt(i);
+
+            if (ch < 0x80) {
+                writeByte(ch);
+            } else if (ch < 0x800) {
+                writeByte(0xc0 | (ch >> 6));
+                writeByte(0x80 | (ch & 0x3f));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < name.length() &&
+                       Character.isLowSurrogate(name.charAt(i + 1))) {
+
+                int codePoint = Character.toCodePoint(ch, name.charAt(++i));
+
+                writeByte(0xf0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                writeByte(0x80 | (codePoint & 0x3f));
+
+            } else if (Character.isSurrogate(ch)) {
+                writeByte('?'); // unpaired surrogate, as String.getBytes() does
+            } else {
+                writeByte(0xe0 | (ch >> 12));
+                writeByte(0x80 | ((ch >> 6) & 0x3f));
+                writeByte(0x80 | (ch & 0x3f));
+            }
+
+        }
+
+    }
+
+    // writes the buffer out to the stream
+    private void flushBuffer() throws IOException {
+
+        output.write(buffer, 0, count);
+        count = 0;
+
+    }
+
+    /**
+     * Writes any buffered entries to the stream and flushes it.
+     *
+     * @throws IOException upon failure to write to the stream.
+     */
+    @Override
+    public void flush() throws IOException {
+
+        flushBuffer();
+        output.flush();
+
+    }
+
+    /**
+     * Writes any buffered entries to the stream and closes it.
+     *
+     * @throws IOException upon failure to write to or close the stream.
+     */
+    @Override
+    public void close() throws IOException {
+
+        flush();
+        output.close();
+
+    }
+
+}
+
+// EOF
@@ -0,0 +1,454 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spm.util.BlobStore;
+
+/**
+ * An on-disk cache of extracted packages, shared between runs of the program.
+ * Each entry is a directory named by a key which identifies the package's contents (the hash of its digest
+ * file), so the same package is only extracted once however many times it is built, installed or updated.
+ * Entries are extracted to a staging directory and then renamed into place, so an entry is either complete or
+ * absent, even if several processes extract the same package at once. When the cache grows larger than its
+ * maximum size the least recently used entries are removed.
+ * An entry must not be changed once it is published. Its files are sealed (see {@code BlobStore.seal()}) before it
+ * is published, so that its files can be hard linked into the directories scripts are run in: a run which changes
+ * a linked file in place (rather than replacing it) leaves the file unsealed, and the entry should then be
+ * removed rather than used again.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class ExtractionCache {
+
+    private final static Logger logger = Logger.getLogger(ExtractionCache.class.getName());
+
+    /** Default maximum size of the cache (2 GiB). */
+    public static final long DEFAULT_MAX_SIZE = 2L * 1024 * 1024 * 1024;
+
+    // layout of the cache directory
+    private static final String STAGING_PREFIX = "staging-";
+    private static final String ROOT_NAME = "root";
+    private static final String SIZE_NAME = "size";
+
+    // staging directories older than this were left by a process that did not finish
+    private static final long STALE_STAGING_AGE = 60 * 60 * 1000;
+
+    // directory holding the entries
+    private final File dir;
+
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a new instance of {@code ExtractionCache}.
+     *
+     * @param dir directory holding the cache (created when first needed).
+     */
+    public ExtractionCache(final File dir) {
+
+        this.dir = dir.getAbsoluteFile();
+
+    }
+
+    /**
+     * Returns the directory holding the cache.
+     *
+     * @return the cache directory.
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Sets the size above which the least recently used entries are removed.
+     *
+     * @param maxSize maximum size of the cache in bytes.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the size above which the least recently used entries are removed.
+     *
+     * @return maximum size of the cache in bytes.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns whether the cache holds an entry for the given key, without counting it as a use of the entry.
+     *
+     * @param key key of the entry.
+     * @return whether there is an entry for {@code key}.
+     */
+    public boolean contains(final String key) {
+        return new File(entryFor(key), ROOT_NAME).isDirectory();
+    }
+
+    /**
+     * Returns the directory of the cached entry for the given key, extracting it first if it is not cached.
+     *
+     * @param key key of the entry (a hexadecimal hash of the package's contents).
+     * @param extraction extracts the package when it is not cached.
+     * @return the directory the package is extracted to, whose files are sealed and shared with other runs.
+     * @throws InvalidPackageException if the package is not valid.
+     * @throws IOException upon failure to extract the package or to publish the entry.
+     */
+    public File extract(final String key, final Extraction extraction) throws InvalidPackageException, IOException {
+
+        File entry = entryFor(key);
+        File root = new File(entry, ROOT_NAME);
+
+        if (root.isDirectory()) {
+
+            hits.incrementAndGet();
+            entry.setLastModified(System.currentTimeMillis());
+
+            return root;
+
+        }
+
+        misses.incrementAndGet();
+
+        dir.mkdirs();
+        File staging = Files.createTempDirectory(dir.toPath(), STAGING_PREFIX).toFile();
+
+        try {
+
+            long size = extraction.extractTo(new File(staging, ROOT_NAME));
+
+            seal(new File(staging, ROOT_NAME));
+
+            Writer sizeWriter = new OutputStreamWriter(new FileOutputStream(new File(staging, SIZE_NAME)), "UTF-8");
+            sizeWriter.write(Long.toString(size));
+            sizeWriter.close();
+
+            // publish the entry
+            try {
+                Files.move(staging.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileSystemException ex) {
+
+                if (!root.isDirectory())
+                    throw ex;
+
+                // another process published the same package first
+                delete(staging);
+
+            }
+
+        } catch (IOException | InvalidPackageException | RuntimeException ex) {
+
+            delete(staging);
+            throw ex;
+
+        }
+
+        entry.setLastModified(System.currentTimeMillis());
+
+        evict(entry);
+
+        return root;
+
+    }
+
+    // returns the directory of the entry for the given key
+    private File entryFor(final String key) {
+
+        for (int i = 0; i < key.length(); i++) {
+
+            char ch = key.charAt(i);
+
+            if (!(ch >= '0' && ch <= '9' || ch >= 'a' && ch <= 'f')) {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("The cache key \"");
+                msg.append(key);
+                msg.append("\" is not a lower case hexadecimal hash!");
+
+                throw new IllegalArgumentException(msg.toString());
+
+            }
+
+        }
+
+        return new File(dir, key);
+
+    }
+
+    // removes the least recently used entries (other than the given one) until the cache is small enough
+    private void evict(final File keep) throws IOException {
+
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        ArrayList<File> entries = new ArrayList<File>();
+        final HashMap<File, Long> lastUsed = new HashMap<File, Long>();
+        long totalSize = 0;
+
+        for (File file : files) {
+
+            if (file.getName().startsWith(STAGING_PREFIX)) {
+
+                if (file.lastModified() < System.currentTimeMillis() - STALE_STAGING_AGE)
+                    delete(file);
+
+                continue;
+
+            }
+
+            entries.add(file);
+            lastUsed.put(file, file.lastModified());
+            totalSize += readSize(file);
+
+        }
+
+        if (totalSize <= maxSize)
+            return;
+
+        Collections.sort(entries, new Comparator<File>() {
+
+            @Override
+            public int compare(final File a, final File b) {
+                return lastUsed.get(a).compareTo(lastUsed.get(b));
+            }
+
+        });
+
+        for (File entry : entries) {
+
+            if (totalSize <= maxSize)
+                break;
+
+            if (entry.equals(keep))
+                continue;
+
+            long size = readSize(entry);
+
+            if (!remove(entry))
+                continue;
+
+            totalSize -= size;
+            evictions.incrementAndGet();
+
+        }
+
+    }
+
+    /**
+     * Removes the entry for the given key, if it is cached.
+     *
+     * @param key key of the entry.
+     * @throws IOException upon failure to delete the entry.
+     */
+    public void remove(final String key) throws IOException {
+        remove(entryFor(key));
+    }
+
+    // takes an entry out of the cache in one step and deletes it, returning whether it was removed
+    private boolean remove(final File entry) throws IOException {
+
+        File removed = Files.createTempDirectory(dir.toPath(), STAGING_PREFIX).toFile();
+        try {
+            Files.move(entry.toPath(), new File(removed, entry.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+
+            logger.log(Level.FINE, "Cannot remove " + entry.getPath(), ex);
+
+            removed.delete();
+
+            return false;
+
+        }
+
+        delete(removed);
+
+        return true;
+
+    }
+
+    // seals every regular file of an extracted directory
+    private static void seal(final File root) throws IOException {
+
+        if (!root.exists())
+            return;
+
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(final Path path, final BasicFileAttributes attributes) 
+                    throws IOException {
+
+                if (attributes.isRegularFile())
+                    BlobStore.seal(path);
+
+                return FileVisitResult.CONTINUE;
+
+            }
+
+        });
+
+    }
+
+    // returns the size of the extracted files of an entry
+    private static long readSize(final File entry) {
+
+        try {
+
+            byte[] bytes = Files.readAllBytes(new File(entry, SIZE_NAME).toPath());
+
+            return Long.parseLong(new String(bytes, "UTF-8").trim());
+
+        } catch (IOException | NumberFormatException ex) { // not a complete entry
+            return 0;
+        }
+
+    }
+
+    // deletes a directory and its contents, making read-only directories writable first
+    private static void delete(final File file) throws IOException {
+
+        if (!file.exists())
+            return;
+
+        Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(final Path path, final BasicFileAttributes attributes) {
+
+                path.toFile().setWritable(true, true);
+
+                return FileVisitResult.CONTINUE;
+
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path path, final BasicFileAttributes attributes) 
+                    throws IOException {
+
+                Files.delete(path);
+
+                return FileVisitResult.CONTINUE;
+
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path path, final IOException ex) throws IOException {
+
+                if (ex != null)
+                    throw ex;
+
+                Files.delete(path);
+
+                return FileVisitResult.CONTINUE;
+
+            }
+
+        });
+
+    }
+
+    /**
+     * Removes every entry from the cache.
+     *
+     * @throws IOException upon failure to delete an entry.
+     */
+    public void clear() throws IOException {
+
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+            delete(file);
+
+    }
+
+    /**
+     * Returns the number of extractions that were served from the cache.
+     *
+     * @return the number of hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of extractions that were not cached.
+     *
+     * @return the number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries removed to keep the cache under its maximum size.
+     *
+     * @return the number of evictions.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the fraction of extractions that were served from the cache.
+     *
+     * @return the hit rate, from 0 to 1.
+     */
+    public double getHitRate() {
+
+        long total = getHits() + getMisses();
+
+        return total == 0 ? 0 : (double) getHits() / total;
+
+    }
+
+    /**
+     * Extracts a package into a new cache entry.
+     *
+     */
+    public interface Extraction {
+
+        /**
+         * Extracts the package to the given directory.
+         *
+         * @param root directory to extract to (does not exist yet).
+         * @return the number of bytes extracted.
+         * @throws InvalidPackageException if the package is not valid.
+         * @throws IOException upon failure to extract the package.
+         */
+        long extractTo(File root) throws InvalidPackageException, IOException;
+
+    }
+
+}
+
+// EOF
@@ -0,0 +1,1017 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A database of the installed packages, recording the version, digest and installed paths of each package, with
+ * an index of which package owns each path. Paths are normalised (see {@code normalizePath()}) both when they are
+ * recorded and when they are looked up, and a path is owned by the package which owns it or its closest parent.
+ * The whole database is held in memory, so finding the owner of a path takes constant time and listing the
+ * installed packages is linear in their number. Changes are appended to a log file, one checksummed record per
+ * change, which is read back when the database is first used. A record that was only partly written when the
+ * program stopped is dropped. Once most of the log describes packages that have since been removed or replaced,
+ * it is compacted by rewriting it with only the installed packages.
+ * The log may be shared by several processes. Each takes an exclusive lock on a lock file next to the log while
+ * it reads, appends to or compacts the log, and reads what the others have appended (or re-reads a log they have
+ * compacted) before changing it.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class PackageDatabase {
+
+    private final static Logger logger = Logger.getLogger(PackageDatabase.class.getName());
+
+    // identifies a database log ("SPMD") and the version of its format
+    private static final int MAGIC = 0x53504d44;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    // kinds of record in the log
+    private static final byte ADD_RECORD = 1;
+    private static final byte REMOVE_RECORD = 2;
+
+    // size of the length and checksum in front of each record
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    // the log is compacted once it holds more than this many bytes (and more than half of it) that are not needed
+    private static final long COMPACT_THRESHOLD = 1024 * 1024;
+
+    // suffix of the lock file next to the log
+    private static final String LOCK_SUFFIX = ".lock";
+
+    // the lock of each log taken by this process, as a process cannot hold two file locks on the same file
+    private static final HashMap<File, ReentrantLock> processLocks = new HashMap<File, ReentrantLock>();
+
+    // the log file, and the file locked while the log is read or written
+    private final File file;
+    private final File lockFile;
+
+    // lock of the log within this process, the lock held on the lock file, and how many times it is held
+    private final ReentrantLock processLock;
+    private FileLock fileLock = null;
+    private int lockCount = 0;
+
+    // installed packages by name, then by version
+    private final LinkedHashMap<String, LinkedHashMap<String, Entry>> packages =
+            new LinkedHashMap<String, LinkedHashMap<String, Entry>>();
+
+    // package which owns each installed path
+    private final HashMap<String, Entry> owners = new HashMap<String, Entry>();
+
+    // channel the log is appended to once it has been read, and what identifies the file it was read from
+    private FileChannel log = null;
+    private Object logKey = null;
+
+    // size of the log, and how much of it describes the installed packages
+    private long logSize = 0;
+    private long liveSize = 0;
+
+    /**
+     * Creates a new instance of {@code PackageDatabase}.
+     * The log file is only read when the database is first used.
+     *
+     * @param file the log file of the database (created when first needed).
+     */
+    public PackageDatabase(final File file) {
+
+        this.file = file.getAbsoluteFile();
+        this.lockFile = new File(this.file.getPath() + LOCK_SUFFIX);
+
+        synchronized (processLocks) {
+
+            ReentrantLock lock = processLocks.get(this.file);
+            if (lock == null) {
+
+                lock = new ReentrantLock();
+                processLocks.put(this.file, lock);
+
+            }
+
+            processLock = lock;
+
+        }
+
+    }
+
+    /**
+     * Returns the log file of the database.
+     *
+     * @return the log file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Records that the given version of a package has been installed, replacing any record of the same version.
+     *
+     * @param name name of the package.
+     * @param version version of the package (can be {@code null}).
+     * @param digest key identifying the contents of the package (can be {@code null}).
+     * @param paths paths the package installed (recorded normalised).
+     * @throws IOException upon failure to read or write the log.
+     */
+    public synchronized void add(final String name,
+                                 final String version,
+                                 final String digest,
+                                 final Collection<String> paths) throws IOException {
+
+        // paths are kept sorted, which lets the log store only how each differs from the previous one
+        TreeSet<String> sortedPaths = new TreeSet<String>();
+        for (String path : paths)
+            sortedPaths.add(normalizePath(path));
+
+        Entry entry = new Entry(name, version, digest, new ArrayList<String>(sortedPaths));
+
+        lock();
+        try {
+
+            update();
+
+            entry.size = append(encode(entry));
+
+            put(entry);
+
+            compactIfNeeded();
+
+        } finally {
+            unlock();
+        }
+
+    }
+
+    /**
+     * Records that the given version of a package has been removed.
+     *
+     * @param name name of the package.
+     * @param version version of the package (can be {@code null}).
+     * @return whether the version of the package was installed.
+     * @throws IOException upon failure to read or write the log.
+     */
+    public synchronized boolean remove(final String name, final String version) throws IOException {
+
+        lock();
+        try {
+
+            update();
+
+            if (get(name, version) == null)
+                return false;
+
+            appendRemove(name, version);
+
+            remove(get(name, version));
+
+            compactIfNeeded();
+
+            return true;
+
+        } finally {
+            unlock();
+        }
+
+    }
+
+    /**
+     * Records that every version of a package has been removed.
+     *
+     * @param name name of the package.
+     * @return whether any version of the package was installed.
+     * @throws IOException upon failure to read or write the log.
+     */
+    public synchronized boolean remove(final String name) throws IOException {
+
+        List<Entry> versions = getInstalled(name);
+
+        for (Entry entry : versions)
+            remove(name, entry.getVersion());
+
+        return !versions.isEmpty();
+
+    }
+
+    /**
+     * Returns the record of the given version of a package.
+     *
+     * @param name name of the package.
+     * @param version version of the package (can be {@code null}).
+     * @return the record of the package, or {@code null} if that version is not installed.
+     * @throws IOException upon failure to read the log.
+     */
+    public synchronized Entry get(final String name, final String version) throws IOException {
+
+        open();
+
+        Map<String, Entry> versions = packages.get(name);
+
+        return versions == null ? null : versions.get(toField(version));
+
+    }
+
+    /**
+     * Returns the records of the installed versions of a package.
+     *
+     * @param name name of the package.
+     * @return the installed versions of the package, in the order they were installed (empty if there are none).
+     * @throws IOException upon failure to read the log.
+     */
+    public synchronized List<Entry> getInstalled(final String name) throws IOException {
+
+        open();
+
+        Map<String, Entry> versions = packages.get(name);
+
+        if (versions == null)
+            return Collections.emptyList();
+
+        return new ArrayList<Entry>(versions.values());
+
+    }
+
+    /**
+     * Returns the records of all installed packages.
+     *
+     * @return the installed packages, in the order they were first installed.
+     * @throws IOException upon failure to read the log.
+     */
+    public synchronized List<Entry> getInstalled() throws IOException {
+
+        open();
+
+        ArrayList<Entry> installed = new ArrayList<Entry>();
+
+        for (Map<String, Entry> versions : packages.values())
+            installed.addAll(versions.values());
+
+        return installed;
+
+    }
+
+    /**
+     * Returns the package which owns the given path, or else the closest of its parent directories.
+     * When several packages installed the same path, the one installed last owns it.
+     *
+     * @param path a path, in any form which normalises to an installed path or to a path inside one.
+     * @return the package which owns {@code path}, or {@code null} if no installed package does.
+     * @throws IOException upon failure to read the log.
+     */
+    public synchronized Entry getOwner(final String path) throws IOException {
+
+        open();
+
+        String ownedPath = normalizePath(path);
+
+        while (true) {
+
+            Entry owner = owners.get(ownedPath);
+
+            if (owner != null || ownedPath.equals("/"))
+                return owner;
+
+            ownedPath = ownedPath.substring(0, Math.max(1, ownedPath.lastIndexOf('/')));
+
+        }
+
+    }
+
+    /**
+     * Returns the form in which paths are recorded and looked up: absolute, without empty, {@code .} or {@code ..}
+     * components and without a trailing slash. For example {@code usr/lib/}, {@code /usr//lib} and
+     * {@code /usr/share/../lib} are all {@code /usr/lib}.
+     *
+     * @param path a path, relative paths being taken from the root directory.
+     * @return the normalised path.
+     */
+    static String normalizePath(final String path) {
+
+        ArrayList<String> names = new ArrayList<String>();
+
+        for (String name : path.split("/")) {
+
+            if (name.length() == 0 || name.equals(".")) {
+                continue;
+            } else if (name.equals("..")) {
+
+                if (!names.isEmpty())
+                    names.remove(names.size() - 1);
+
+            } else {
+                names.add(name);
+            }
+
+        }
+
+        StringBuilder normalized = new StringBuilder();
+
+        for (String name : names) {
+
+            normalized.append('/');
+            normalized.append(name);
+
+        }
+
+        return normalized.length() == 0 ? "/" : normalized.toString();
+
+    }
+
+    /**
+     * Returns the number of paths which are owned by an installed package.
+     *
+     * @return the number of owned paths.
+     * @throws IOException upon failure to read the log.
+     */
+    public synchronized int getPathCount() throws IOException {
+
+        open();
+
+        return owners.size();
+
+    }
+
+    /**
+     * Returns the size of the log file.
+     *
+     * @return the size of the log in bytes.
+     * @throws IOException upon failure to read the log.
+     */
+    public synchronized long getLogSize() throws IOException {
+
+        open();
+
+        return logSize;
+
+    }
+
+    /**
+     * Rewrites the log with only the records of the installed packages.
+     *
+     * @throws IOException upon failure to read or write the log.
+     */
+    public synchronized void compact() throws IOException {
+
+        lock();
+        try {
+
+            update();
+
+            rewrite();
+
+        } finally {
+            unlock();
+        }
+
+    }
+
+    // rewrites the log with only the records of the installed packages, holding the lock
+    private void rewrite() throws IOException {
+
+        File dir = file.getParentFile();
+        Path temp = Files.createTempFile(dir.toPath(), file.getName(), null);
+
+        try {
+
+            FileOutputStream fileOutput = new FileOutputStream(temp.toFile());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+
+            long size = HEADER_SIZE;
+            try {
+
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+
+                for (Entry entry : getInstalled()) {
+
+                    byte[] payload = encode(entry);
+
+                    output.writeInt(payload.length);
+                    output.writeInt(checksum(payload));
+                    output.write(payload);
+
+                    entry.size = RECORD_HEADER_SIZE + payload.length;
+                    size += entry.size;
+
+                }
+
+                output.flush();
+                fileOutput.getFD().sync();
+
+            } finally {
+                output.close();
+            }
+
+            log.close();
+            log = null;
+
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            logSize = size;
+            liveSize = size - HEADER_SIZE;
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        log = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        log.position(log.size());
+
+        logKey = getFileKey();
+
+    }
+
+    /**
+     * Closes the log file. The database is read again when it is next used.
+     *
+     * @throws IOException upon failure to close the log.
+     */
+    public synchronized void close() throws IOException {
+
+        if (log != null) {
+
+            log.close();
+            log = null;
+
+        }
+
+        packages.clear();
+        owners.clear();
+
+    }
+
+    // reads the log the first time the database is used
+    private void open() throws IOException {
+
+        if (log != null)
+            return;
+
+        lock();
+        try {
+            load();
+        } finally {
+            unlock();
+        }
+
+    }
+
+    // reads what other processes have written to the log since it was read, holding the lock
+    private void update() throws IOException {
+
+        if (log == null) {
+
+            load();
+
+            return;
+
+        }
+
+        Object key;
+        long size;
+        try {
+
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+            key = attributes.fileKey();
+            size = attributes.size();
+
+        } catch (NoSuchFileException ex) {
+
+            key = null;
+            size = -1;
+
+        }
+
+        if (size < logSize || logKey != null && !logKey.equals(key)) { // compacted (or removed) by another process
+
+            log.close();
+            log = null;
+
+            load();
+
+        } else if (size > logSize) { // appended to by another process
+
+            long validSize = read(logSize);
+
+            if (log.size() > validSize)
+                log.truncate(validSize);
+
+            log.position(validSize);
+
+            logSize = validSize;
+
+        }
+
+    }
+
+    // takes the lock on the log, waiting for other processes to release it (the lock can be taken again while held)
+    private void lock() throws IOException {
+
+        if (lockCount > 0) {
+
+            lockCount++;
+
+            return;
+
+        }
+
+        processLock.lock();
+
+        try {
+
+            File dir = file.getParentFile();
+            if (dir != null)
+                dir.mkdirs();
+
+            FileChannel channel = FileChannel.open(lockFile.toPath(), 
+                                                   StandardOpenOption.CREATE, 
+                                                   StandardOpenOption.WRITE);
+
+            try {
+                fileLock = channel.lock();
+            } catch (IOException | RuntimeException ex) {
+
+                channel.close();
+                throw ex;
+
+            }
+
+        } catch (IOException | RuntimeException ex) {
+
+            processLock.unlock();
+            throw ex;
+
+        }
+
+        lockCount = 1;
+
+    }
+
+    // releases the lock on the log once it has been released as many times as it was taken
+    private void unlock() throws IOException {
+
+        if (--lockCount > 0)
+            return;
+
+        try {
+            fileLock.channel().close(); // releases the lock
+        } finally {
+
+            fileLock = null;
+            processLock.unlock();
+
+        }
+
+    }
+
+    // returns what identifies the log file, so that it can be told when another process replaces it
+    private Object getFileKey() throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    // reads the whole log, holding the lock
+    private void load() throws IOException {
+
+        packages.clear();
+        owners.clear();
+        logSize = 0;
+        liveSize = 0;
+
+        long validSize = file.exists() ? read(0) : 0;
+
+        log = FileChannel.open(file.toPath(),
+                               StandardOpenOption.CREATE,
+                               StandardOpenOption.READ,
+                               StandardOpenOption.WRITE);
+
+        try {
+
+            if (validSize == 0) { // new log
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putInt(FORMAT_VERSION);
+                ((Buffer) header).flip();
+
+                log.truncate(0);
+
+                long offset = 0;
+                while (header.hasRemaining())
+                    offset += log.write(header, offset);
+
+                validSize = HEADER_SIZE;
+
+            } else if (log.size() > validSize) { // drop what is left of a record which was not finished
+
+                log.truncate(validSize);
+
+            }
+
+            log.position(validSize);
+
+            logKey = getFileKey();
+
+        } catch (IOException | RuntimeException ex) {
+
+            log.close();
+            log = null;
+
+            throw ex;
+
+        }
+
+        logSize = validSize;
+
+    }
+
+    // reads the records in the log from the given position (the start of the log, or the end of a record already
+    // read), returning the size of the part of the log which was read
+    private long read(long start) throws IOException {
+
+        FileInputStream fileInput = new FileInputStream(file);
+        fileInput.getChannel().position(start);
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(fileInput));
+
+        try {
+
+            long length = file.length();
+
+            if (length < HEADER_SIZE)
+                return 0;
+
+            if (start == 0 && (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION)) {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("\"");
+                msg.append(file);
+                msg.append("\" is not a package database!");
+
+                throw new IOException(msg.toString());
+
+            }
+
+            long position = Math.max(start, HEADER_SIZE);
+            while (position + RECORD_HEADER_SIZE <= length) {
+
+                int size = input.readInt();
+                int checksum = input.readInt();
+
+                if (size < 0 || position + RECORD_HEADER_SIZE + size > length)
+                    break;
+
+                byte[] buffer = new byte[size];
+                input.readFully(buffer);
+
+                if (checksum(buffer) != checksum)
+                    break;
+
+                apply(buffer, RECORD_HEADER_SIZE + size);
+
+                position += RECORD_HEADER_SIZE + size;
+
+            }
+
+            if (position < length) {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("Dropping ");
+                msg.append(length - position);
+                msg.append(" bytes of unfinished records from \"");
+                msg.append(file);
+                msg.append("\".");
+
+                logger.log(Level.WARNING, msg.toString());
+
+            }
+
+            return position;
+
+        } finally {
+            input.close();
+        }
+
+    }
+
+    // applies a record read from the log
+    private void apply(final byte[] buffer, long size) throws IOException {
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer));
+
+        byte type = input.readByte();
+
+        if (type == ADD_RECORD) {
+
+            Entry entry = readEntry(input);
+            entry.size = size;
+
+            put(entry);
+
+        } else if (type == REMOVE_RECORD) {
+
+            String name = input.readUTF();
+            String version = input.readUTF();
+
+            Map<String, Entry> versions = packages.get(name);
+            if (versions != null && versions.containsKey(version))
+                remove(versions.get(version));
+
+        } else {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("Unknown record type ");
+            msg.append(type);
+            msg.append(" in \"");
+            msg.append(file);
+            msg.append("\"!");
+
+            throw new IOException(msg.toString());
+
+        }
+
+    }
+
+    // appends a record to the log, returning its size in the log
+    private long append(final byte[] payload) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(checksum(payload));
+        buffer.put(payload);
+        ((Buffer) buffer).flip();
+
+        while (buffer.hasRemaining())
+            log.write(buffer);
+
+        log.force(false);
+
+        logSize += RECORD_HEADER_SIZE + payload.length;
+
+        return RECORD_HEADER_SIZE + payload.length;
+
+    }
+
+    // appends a record of the removal of a version of a package
+    private void appendRemove(final String name, final String version) throws IOException {
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(payload);
+
+        output.writeByte(REMOVE_RECORD);
+        output.writeUTF(name);
+        output.writeUTF(toField(version));
+        output.close();
+
+        append(payload.toByteArray());
+
+    }
+
+    // adds an entry to the database, replacing the entry of the same version
+    private void put(final Entry entry) {
+
+        LinkedHashMap<String, Entry> versions = packages.get(entry.name);
+
+        if (versions != null && versions.containsKey(toField(entry.version)))
+            remove(versions.get(toField(entry.version)));
+
+        versions = packages.get(entry.name);
+        if (versions == null) {
+
+            versions = new LinkedHashMap<String, Entry>();
+            packages.put(entry.name, versions);
+
+        }
+
+        versions.put(toField(entry.version), entry);
+        liveSize += entry.size;
+
+        // records from older logs may not be normalised
+        for (String path : entry.paths)
+            owners.put(normalizePath(path), entry);
+
+    }
+
+    // removes an entry from the database
+    private void remove(final Entry entry) {
+
+        Map<String, Entry> versions = packages.get(entry.name);
+
+        versions.remove(toField(entry.version));
+        if (versions.isEmpty())
+            packages.remove(entry.name);
+
+        liveSize -= entry.size;
+
+        for (String path : entry.paths) {
+
+            String ownedPath = normalizePath(path);
+
+            if (owners.get(ownedPath) == entry)
+                owners.remove(ownedPath);
+
+        }
+
+    }
+
+    // compacts the log if most of it is no longer needed
+    private void compactIfNeeded() throws IOException {
+
+        long garbage = logSize - HEADER_SIZE - liveSize;
+
+        if (garbage > COMPACT_THRESHOLD && garbage > liveSize) {
+
+            try {
+                rewrite();
+            } catch (IOException ex) {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("Cannot compact the package database \"");
+                msg.append(file);
+                msg.append("\".");
+
+                logger.log(Level.WARNING, msg.toString(), ex);
+
+                if (log == null)
+                    throw ex;
+
+            }
+
+        }
+
+    }
+
+    // returns the record adding the given entry
+    private static byte[] encode(final Entry entry) throws IOException {
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(payload);
+
+        output.writeByte(ADD_RECORD);
+        writeEntry(output, entry);
+        output.close();
+
+        return payload.toByteArray();
+
+    }
+
+    // writes an entry, storing each path as the length of the prefix it shares with the previous path followed by
+    // the rest of the path
+    private static void writeEntry(final DataOutputStream output, final Entry entry) throws IOException {
+
+        output.writeUTF(entry.name);
+        output.writeUTF(toField(entry.version));
+        output.writeUTF(toField(entry.digest));
+        output.writeInt(entry.paths.size());
+
+        String previous = "";
+        for (String path : entry.paths) {
+
+            int prefix = 0;
+            int max = Math.min(Math.min(previous.length(), path.length()), Character.MAX_VALUE);
+            while (prefix < max && previous.charAt(prefix) == path.charAt(prefix))
+                prefix++;
+
+            output.writeChar(prefix);
+            output.writeUTF(path.substring(prefix));
+
+            previous = path;
+
+        }
+
+    }
+
+    // reads an entry written by writeEntry()
+    private static Entry readEntry(final DataInputStream input) throws IOException {
+
+        String name = input.readUTF();
+        String version = fromField(input.readUTF());
+        String digest = fromField(input.readUTF());
+
+        int count = input.readInt();
+        ArrayList<String> paths = new ArrayList<String>(count);
+
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+
+            int prefix = input.readChar();
+            String path = previous.substring(0, prefix) + input.readUTF();
+
+            paths.add(path);
+            previous = path;
+
+        }
+
+        return new Entry(name, version, digest, paths);
+
+    }
+
+    // absent values are stored as empty strings
+    private static String toField(final String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String fromField(final String field) {
+        return field.length() == 0 ? null : field;
+    }
+
+    // returns the checksum of a record
+    private static int checksum(final byte[] buffer) {
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer, 0, buffer.length);
+
+        return (int) crc.getValue();
+
+    }
+
+    /**
+     * Record of an installed version of a package.
+     *
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final String version;
+        private final String digest;
+        private final List<String> paths;
+
+        // size of the entry's record in the log
+        private long size = 0;
+
+        private Entry(final String name, final String version, final String digest, final List<String> paths) {
+
+            this.name = name;
+            this.version = version;
+            this.digest = digest;
+            this.paths = Collections.unmodifiableList(paths);
+
+        }
+
+        /**
+         * Returns the name of the package.
+         *
+         * @return the name of the package.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the installed version of the package.
+         *
+         * @return the version, or {@code null} if the package did not give one.
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns the key identifying the contents of the installed package.
+         *
+         * @return the digest key, or {@code null} if the package had no digest.
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Returns the paths the package installed.
+         *
+         * @return the installed paths, sorted.
+         */
+        public List<String> getPaths() {
+            return paths;
+        }
+
+    }
+
+}
+
+// EOF
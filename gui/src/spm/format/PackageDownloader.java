@@ -0,0 +1,853 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spm.util.HashAlgorithm;
+import spm.util.Hasher;
+
+/**
+ * Downloads packages from a repository, several at a time.
+ * Packages are located by their entries in the repository's index (see {@code RepositoryIndex}) and downloaded
+ * to a directory which mirrors the layout of the repository. Each package is written to a partial file and hashed
+ * as it arrives. A download which fails is resumed from the end of the partial file with an HTTP range request,
+ * and the package is only moved into place once its size and SHA-256 hash match the index. A package can also be
+ * read as a stream while it downloads (see {@code openStream()}).
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class PackageDownloader {
+
+    private final static Logger logger = Logger.getLogger(PackageDownloader.class.getName());
+
+    /** Default number of packages downloaded at once. */
+    public static final int DEFAULT_THREADS = 4;
+
+    /** Default number of times a failed download is resumed. */
+    public static final int DEFAULT_RETRIES = 3;
+
+    // suffix of the files packages are downloaded to before they are verified
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // timeouts of connecting to and reading from the repository
+    private static final int TIMEOUT = 30 * 1000;
+
+    private static final ThreadFactory daemonThreads = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "spm-downloader");
+            thread.setDaemon(true);
+
+            return thread;
+
+        }
+
+    };
+
+    // location of the root of the repository, ending with /
+    private final String repository;
+
+    // directory packages are downloaded to
+    private final File dir;
+
+    private int threads = DEFAULT_THREADS;
+    private int retries = DEFAULT_RETRIES;
+
+    // threads downloading packages (created when first needed)
+    private ExecutorService pool = null;
+
+    // downloads in progress, by the file they download to
+    private final ConcurrentHashMap<File, Future<File>> downloads = new ConcurrentHashMap<File, Future<File>>();
+
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong resumedCount = new AtomicLong();
+
+    /**
+     * Creates a new instance of {@code PackageDownloader}.
+     *
+     * @param repository location of the root of the repository.
+     * @param dir directory to download packages to.
+     */
+    public PackageDownloader(final URL repository, final File dir) {
+
+        String location = repository.toExternalForm();
+        this.repository = location.endsWith("/") ? location : location + "/";
+
+        this.dir = dir.getAbsoluteFile();
+
+    }
+
+    /**
+     * Returns the directory packages are downloaded to.
+     *
+     * @return the download directory.
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Sets the number of packages downloaded at once. Only has an effect before the first download is started.
+     *
+     * @param threads the number of packages downloaded at once.
+     */
+    public synchronized void setThreads(int threads) {
+
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one package must be downloaded at a time!");
+
+        this.threads = threads;
+
+    }
+
+    /**
+     * Returns the number of packages downloaded at once.
+     *
+     * @return the number of packages downloaded at once.
+     */
+    public synchronized int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of times a download which fails is resumed before giving up.
+     *
+     * @param retries the number of retries.
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Returns the number of times a download which fails is resumed before giving up.
+     *
+     * @return the number of retries.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Returns the number of bytes received from the repository.
+     *
+     * @return the number of bytes downloaded.
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    /**
+     * Returns the number of downloads which were resumed from a partial file.
+     *
+     * @return the number of resumed downloads.
+     */
+    public long getResumedCount() {
+        return resumedCount.get();
+    }
+
+    /**
+     * Returns the location of a file in the repository.
+     *
+     * @param path path of the file relative to the root of the repository, separated by {@code /}.
+     * @return the location of the file.
+     * @throws MalformedURLException if the path does not form a valid URL.
+     */
+    public URL getURL(final String path) throws MalformedURLException {
+
+        try {
+            return new URL(repository + new URI(null, null, path, null).getRawPath());
+        } catch (URISyntaxException ex) {
+            throw new MalformedURLException(ex.getMessage());
+        }
+
+    }
+
+    /**
+     * Returns the file the given package is downloaded to.
+     *
+     * @param entry the package.
+     * @return the file of the package in the download directory.
+     * @throws IllegalArgumentException if the path of the package leaves the root of the repository.
+     */
+    public File getFile(final RepositoryIndex.Entry entry) {
+
+        File file = dir;
+        for (String part : entry.getPath().split("/")) {
+
+            if (part.equals("..") || part.equals(".")) {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("The package path \"");
+                msg.append(entry.getPath());
+                msg.append("\" leaves the repository!");
+
+                throw new IllegalArgumentException(msg.toString());
+
+            }
+
+            if (part.length() > 0)
+                file = new File(file, part);
+
+        }
+
+        return file;
+
+    }
+
+    /**
+     * Downloads the index of the repository to {@code RepositoryIndex.INDEX_NAME} in the download directory.
+     *
+     * @return the downloaded index file.
+     * @throws IOException upon failure to download the index.
+     */
+    public File downloadIndex() throws IOException {
+
+        File file = new File(dir, RepositoryIndex.INDEX_NAME);
+
+        dir.mkdirs();
+        Path temp = Files.createTempFile(dir.toPath(), RepositoryIndex.INDEX_NAME, null);
+
+        try {
+
+            InputStream input = open(getURL(RepositoryIndex.INDEX_NAME), 0).input;
+
+            try {
+                Files.copy(input, temp, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                input.close();
+            }
+
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        return file;
+
+    }
+
+    /**
+     * Starts downloading the given package, unless it is already being downloaded.
+     *
+     * @param entry the package.
+     * @return the future file of the verified package (see {@code downloadNow()}).
+     */
+    public Future<File> download(final RepositoryIndex.Entry entry) {
+
+        final File file = getFile(entry);
+
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+
+            @Override
+            public File call() throws IOException, SPMDigestException {
+
+                try {
+                    return downloadNow(entry);
+                } finally {
+                    downloads.remove(file);
+                }
+
+            }
+
+        });
+
+        Future<File> running = downloads.putIfAbsent(file, task);
+        if (running != null)
+            return running;
+
+        getPool().execute(task);
+
+        return task;
+
+    }
+
+    /**
+     * Downloads the given package in this thread, resuming a previous download of it if there is one.
+     * A package which has already been downloaded and verified is not downloaded again.
+     *
+     * @param entry the package.
+     * @return the file of the verified package.
+     * @throws IOException upon failure to download the package after every retry.
+     * @throws SPMDigestException if the downloaded package does not match its size or digest in the index (the
+     *         partial file is deleted, so that the next attempt starts over).
+     */
+    public File downloadNow(final RepositoryIndex.Entry entry) throws IOException, SPMDigestException {
+
+        File file = getFile(entry);
+
+        if (file.isFile() && file.length() == entry.getSize() && matches(file, entry))
+            return file;
+
+        file.getParentFile().mkdirs();
+        File partial = new File(file.getPath() + PARTIAL_SUFFIX);
+
+        String digest = null;
+        for (int attempt = 0; digest == null; attempt++) {
+
+            try {
+                digest = transfer(entry, partial);
+            } catch (IOException ex) {
+
+                if (attempt >= retries)
+                    throw ex;
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("Resuming the download of \"");
+                msg.append(entry.getPath());
+                msg.append("\" after: ");
+                msg.append(ex.getMessage());
+
+                logger.log(Level.INFO, msg.toString());
+
+            }
+
+        }
+
+        return verify(entry, partial, digest);
+
+    }
+
+    /**
+     * Opens a stream of the given package which returns its contents as they are downloaded, so that the package
+     * can be read while it downloads. The contents are also saved to the package's file in the download
+     * directory, as by {@code downloadNow()}, and a download which fails is resumed without the stream noticing.
+     * The package is checked against the index when the end of the stream is read; if it does not match, the
+     * read fails with an {@code IOException} caused by an {@code SPMDigestException}.
+     * A partial download of the package is read back first and the rest is downloaded after it.
+     *
+     * @param entry the package.
+     * @return a stream of the contents of the package.
+     * @throws IOException upon failure to open the package's file.
+     */
+    public InputStream openStream(final RepositoryIndex.Entry entry) throws IOException {
+
+        File file = getFile(entry);
+
+        if (file.isFile() && file.length() == entry.getSize() && matches(file, entry))
+            return new FileInputStream(file);
+
+        return new DownloadInputStream(entry, file);
+
+    }
+
+    // moves a downloaded package into place if it matches its size and digest in the index
+    private File verify(final RepositoryIndex.Entry entry, 
+                        final File partial, 
+                        final String digest) throws IOException, SPMDigestException {
+
+        if (partial.length() != entry.getSize() || 
+            (entry.getDigest() != null && !entry.getDigest().equalsIgnoreCase(digest))) {
+
+            partial.delete();
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("The downloaded package \"");
+            msg.append(entry.getPath());
+            msg.append("\" does not match the repository index!");
+
+            throw new SPMDigestException(msg.toString());
+
+        }
+
+        File file = getFile(entry);
+
+        Files.move(partial.toPath(), file.toPath(), 
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return file;
+
+    }
+
+    /**
+     * Stops the threads downloading packages once the downloads which have been started are done.
+     *
+     */
+    public synchronized void shutdown() {
+
+        if (pool != null)
+            pool.shutdown();
+
+    }
+
+    // returns the threads downloading packages
+    private synchronized ExecutorService getPool() {
+
+        if (pool == null)
+            pool = Executors.newFixedThreadPool(threads, daemonThreads);
+
+        return pool;
+
+    }
+
+    // downloads the rest of a package to the partial file, returning the hash of the whole file
+    private String transfer(final RepositoryIndex.Entry entry, final File partial) throws IOException, 
+                                                                                          SPMDigestException {
+
+        long offset = partial.isFile() ? partial.length() : 0;
+        if (offset > entry.getSize())
+            offset = 0;
+
+        Hasher hasher = HashAlgorithm.SHA256.newHasher();
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        // hash what has already been downloaded
+        if (offset > 0) {
+
+            InputStream input = new FileInputStream(partial);
+
+            try {
+
+                int num;
+                while ((num = input.read(buffer)) != -1)
+                    hasher.update(buffer, 0, num);
+
+            } finally {
+                input.close();
+            }
+
+            if (offset == entry.getSize())
+                return hasher.hash().toString();
+
+        }
+
+        Connection connection = open(getURL(entry.getPath()), offset);
+
+        if (connection.offset != offset) { // starting over
+
+            offset = connection.offset;
+            hasher.reset();
+
+        } else if (offset > 0) {
+            resumedCount.incrementAndGet();
+        }
+
+        OutputStream output = new FileOutputStream(partial, offset > 0);
+
+        try {
+
+            long size = offset;
+
+            int num;
+            while ((num = connection.input.read(buffer)) != -1) {
+
+                size += num;
+
+                if (size > entry.getSize()) {
+
+                    output.close();
+                    partial.delete();
+
+                    StringBuilder msg = new StringBuilder();
+
+                    msg.append("The downloaded package \"");
+                    msg.append(entry.getPath());
+                    msg.append("\" is larger than the repository index says!");
+
+                    throw new SPMDigestException(msg.toString());
+
+                }
+
+                output.write(buffer, 0, num);
+                hasher.update(buffer, 0, num);
+                downloadedBytes.addAndGet(num);
+
+            }
+
+            // a connection which is dropped can look like the end of the file
+            if (size < entry.getSize()) {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("The download of \"");
+                msg.append(entry.getPath());
+                msg.append("\" ended after ");
+                msg.append(size);
+                msg.append(" of ");
+                msg.append(entry.getSize());
+                msg.append(" bytes!");
+
+                throw new EOFException(msg.toString());
+
+            }
+
+        } finally {
+
+            output.close();
+            connection.input.close();
+
+        }
+
+        return hasher.hash().toString();
+
+    }
+
+    // opens the file at the given location from the given offset, or from the start if the server cannot resume
+    private Connection open(final URL url, long offset) throws IOException {
+
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+
+        if (offset > 0)
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+
+        if (!(connection instanceof HttpURLConnection)) { // skip to the offset
+
+            InputStream input = connection.getInputStream();
+
+            long skipped = 0;
+            while (skipped < offset) {
+
+                long num = input.skip(offset - skipped);
+
+                if (num <= 0) {
+
+                    input.close();
+                    return new Connection(url.openStream(), 0);
+
+                }
+
+                skipped += num;
+
+            }
+
+            return new Connection(input, offset);
+
+        }
+
+        HttpURLConnection httpConnection = (HttpURLConnection) connection;
+        int code = httpConnection.getResponseCode();
+
+        if (code == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+            return new Connection(httpConnection.getInputStream(), offset);
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            return new Connection(httpConnection.getInputStream(), 0);
+        } else if (code == 416 && offset > 0) { // range not satisfiable, so the partial file is stale
+
+            httpConnection.disconnect();
+
+            return open(url, 0);
+
+        }
+
+        httpConnection.disconnect();
+
+        StringBuilder msg = new StringBuilder();
+
+        msg.append("Cannot download \"");
+        msg.append(url);
+        msg.append("\": HTTP ");
+        msg.append(code);
+        msg.append(" ");
+        msg.append(httpConnection.getResponseMessage());
+
+        throw new IOException(msg.toString());
+
+    }
+
+    /**
+     * An open download, and the offset in the file it starts at.
+     *
+     */
+    private static final class Connection {
+
+        final InputStream input;
+        final long offset;
+
+        Connection(final InputStream input, long offset) {
+
+            this.input = input;
+            this.offset = offset;
+
+        }
+
+    }
+
+    /**
+     * The contents of a package as they are downloaded, read back from a partial download first.
+     *
+     */
+    private final class DownloadInputStream extends InputStream {
+
+        private final RepositoryIndex.Entry entry;
+        private final File partial;
+
+        // hashes everything that is read
+        private final Hasher hasher = HashAlgorithm.SHA256.newHasher();
+
+        // bytes of the package which have been read, and bytes which were already saved to the partial file
+        private long position = 0;
+        private final long saved;
+
+        // reads back the partial file (null once it has been read)
+        private InputStream replay;
+
+        // the rest of the partial file
+        private final OutputStream output;
+
+        // the current download (null until it is opened, or after it fails)
+        private Connection connection = null;
+        private int attempts = 0;
+
+        private boolean endFlag = false;
+
+        DownloadInputStream(final RepositoryIndex.Entry entry, final File file) throws IOException {
+
+            this.entry = entry;
+
+            file.getParentFile().mkdirs();
+            partial = new File(file.getPath() + PARTIAL_SUFFIX);
+
+            if (partial.length() > entry.getSize())
+                partial.delete();
+
+            saved = partial.length();
+            replay = saved > 0 ? new BufferedInputStream(new FileInputStream(partial), BUFFER_SIZE) : null;
+            output = new FileOutputStream(partial, true);
+
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            byte[] b = new byte[1];
+
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+
+        }
+
+        @Override
+        public int read(final byte[] b, int offset, int length) throws IOException {
+
+            if (endFlag)
+                return -1;
+
+            if (length == 0)
+                return 0;
+
+            // read back what has already been downloaded
+            if (replay != null) {
+
+                int num = position < saved ? replay.read(b, offset, (int) Math.min(length, saved - position)) : -1;
+
+                if (num > 0) {
+
+                    hasher.update(b, offset, num);
+                    position += num;
+
+                    return num;
+
+                }
+
+                replay.close();
+                replay = null;
+
+            }
+
+            while (true) {
+
+                int num;
+                try {
+
+                    if (connection == null)
+                        connect();
+
+                    num = connection.input.read(b, offset, length);
+
+                    // a connection which is dropped can look like the end of the file
+                    if (num == -1 && position < entry.getSize()) {
+
+                        StringBuilder msg = new StringBuilder();
+
+                        msg.append("The download of \"");
+                        msg.append(entry.getPath());
+                        msg.append("\" ended after ");
+                        msg.append(position);
+                        msg.append(" of ");
+                        msg.append(entry.getSize());
+                        msg.append(" bytes!");
+
+                        throw new EOFException(msg.toString());
+
+                    }
+
+                } catch (IOException ex) {
+
+                    disconnect();
+
+                    if (attempts++ >= retries)
+                        throw ex;
+
+                    StringBuilder msg = new StringBuilder();
+
+                    msg.append("Resuming the download of \"");
+                    msg.append(entry.getPath());
+                    msg.append("\" after: ");
+                    msg.append(ex.getMessage());
+
+                    logger.log(Level.INFO, msg.toString());
+
+                    continue;
+
+                }
+
+                if (num == -1) {
+
+                    finish();
+
+                    return -1;
+
+                }
+
+                if (position + num > entry.getSize()) {
+
+                    close();
+                    partial.delete();
+
+                    StringBuilder msg = new StringBuilder();
+
+                    msg.append("The downloaded package \"");
+                    msg.append(entry.getPath());
+                    msg.append("\" is larger than the repository index says!");
+
+                    throw new IOException(msg.toString(), new SPMDigestException(msg.toString()));
+
+                }
+
+                output.write(b, offset, num);
+                hasher.update(b, offset, num);
+                position += num;
+                downloadedBytes.addAndGet(num);
+
+                return num;
+
+            }
+
+        }
+
+        // opens the download from the current position
+        private void connect() throws IOException {
+
+            connection = open(getURL(entry.getPath()), position);
+
+            // the server cannot resume, so skip what has already been read
+            long skip = position - connection.offset;
+            if (skip > 0) {
+
+                byte[] buffer = new byte[BUFFER_SIZE];
+
+                while (skip > 0) {
+
+                    int num = connection.input.read(buffer, 0, (int) Math.min(buffer.length, skip));
+                    if (num == -1)
+                        throw new EOFException("Unexpected end of download!");
+
+                    skip -= num;
+
+                }
+
+            } else if (position > 0) {
+                resumedCount.incrementAndGet();
+            }
+
+        }
+
+        private void disconnect() {
+
+            if (connection == null)
+                return;
+
+            try {
+                connection.input.close();
+            } catch (IOException ex) {
+                // the connection is dropped anyway
+            }
+
+            connection = null;
+
+        }
+
+        // checks the downloaded package and moves it into place
+        private void finish() throws IOException {
+
+            endFlag = true;
+
+            disconnect();
+            output.close();
+
+            try {
+                verify(entry, partial, hasher.hash().toString());
+            } catch (SPMDigestException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+
+        }
+
+        /**
+         * Stops the download, keeping what has been downloaded so far so that it can be resumed.
+         *
+         */
+        @Override
+        public void close() throws IOException {
+
+            if (replay != null) {
+
+                replay.close();
+                replay = null;
+
+            }
+
+            disconnect();
+            output.close();
+
+        }
+
+    }
+
+    // returns whether the given file matches the digest of the given package
+    private static boolean matches(final File file, final RepositoryIndex.Entry entry) throws IOException {
+
+        if (entry.getDigest() == null)
+            return true;
+
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+
+        try {
+            return HashAlgorithm.SHA256.hash(input).toString().equalsIgnoreCase(entry.getDigest());
+        } finally {
+            input.close();
+        }
+
+    }
+
+}
+
+// EOF
@@ -0,0 +1,372 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Index of the GZIP members of a multi-member SPM package.
+ * An indexed package is a series of independent GZIP members, each starting at a record boundary of the tar
+ * archive, followed by the index itself. The index is stored in the extra field of empty GZIP members (which
+ * decompress to nothing) so that the package remains an ordinary GZIP file to readers that do not know about it.
+ * The last member is a fixed-size footer giving the offset of the index.
+ *
+ * <p>The index maps the offset of each member in the package to the offset in the tar archive at which its
+ * contents start, and the name of each record to its offset in the tar archive.</p>
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class PackageIndex {
+
+    // identifies the index data and its version
+    private static final int MAGIC = 0x53504d49; // "SPMI"
+    private static final int VERSION = 1;
+
+    // IDs of the extra subfields holding the index data and the footer
+    private static final byte[] INDEX_ID = {'S', 'I'};
+    private static final byte[] FOOTER_ID = {'S', 'F'};
+
+    // most data that fits in a single extra subfield
+    private static final int MAX_SUBFIELD_SIZE = 0xffff - 4;
+
+    // size of the footer data: magic and offset of the index
+    private static final int FOOTER_DATA_SIZE = 12;
+
+    /** Size in bytes of the footer member at the end of an indexed package. */
+    public static final int FOOTER_SIZE = 10 + 2 + 4 + FOOTER_DATA_SIZE + 2 + 8;
+
+    // offsets of each member in the package and of its contents in the tar archive
+    private long[] memberOffsets = new long[16];
+    private long[] tarOffsets = new long[16];
+    private int memberCount = 0;
+
+    // offset in the package of the first index member (the end of the data members)
+    private long indexOffset = 0;
+
+    // offset in the tar archive of the first record of each name
+    private final HashMap<String, Long> entries = new HashMap<String, Long>();
+
+    /**
+     * Creates a new, empty instance of {@code PackageIndex}.
+     *
+     */
+    public PackageIndex() {
+
+    }
+
+    /**
+     * Adds a member to the end of the index.
+     *
+     * @param offset offset of the member in the package.
+     * @param tarOffset offset in the tar archive at which the contents of the member start.
+     */
+    public void addMember(long offset, long tarOffset) {
+
+        if (memberCount == memberOffsets.length) {
+            memberOffsets = Arrays.copyOf(memberOffsets, memberCount * 2);
+            tarOffsets = Arrays.copyOf(tarOffsets, memberCount * 2);
+        }
+
+        memberOffsets[memberCount] = offset;
+        tarOffsets[memberCount] = tarOffset;
+        memberCount++;
+
+    }
+
+    /**
+     * Adds a record to the index. Only the first record of each name is kept.
+     *
+     * @param filename name of the record.
+     * @param tarOffset offset of the record's header in the tar archive.
+     */
+    public void addEntry(final String filename, long tarOffset) {
+
+        if (!entries.containsKey(filename))
+            entries.put(filename, tarOffset);
+
+    }
+
+    /**
+     * Returns the number of data members in the package.
+     *
+     * @return the number of members.
+     */
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    /**
+     * Returns the offset of the given member in the package.
+     *
+     * @param i the member.
+     * @return the offset of the member in the package.
+     */
+    public long getMemberOffset(int i) {
+        return memberOffsets[i];
+    }
+
+    /**
+     * Returns the offsets of the first {@code getMemberCount()} members followed by the offset of the index,
+     * so that member {@code i} spans {@code [offsets[i], offsets[i + 1])}.
+     *
+     * @return the boundaries of the data members in the package.
+     */
+    public long[] getMemberBounds() {
+
+        long[] bounds = Arrays.copyOf(memberOffsets, memberCount + 1);
+        bounds[memberCount] = indexOffset;
+
+        return bounds;
+
+    }
+
+    /**
+     * Returns the offset in the tar archive at which the contents of the given member start.
+     *
+     * @param i the member.
+     * @return the offset in the tar archive.
+     */
+    public long getTarOffset(int i) {
+        return tarOffsets[i];
+    }
+
+    /**
+     * Returns the offset in the package of the index (the end of the data members).
+     *
+     * @return the offset of the index.
+     */
+    public long getIndexOffset() {
+        return indexOffset;
+    }
+
+    /**
+     * Returns the offset of the header of the first record named {@code filename} in the tar archive.
+     *
+     * @param filename the name of the record.
+     * @return the offset of the record, or {@code -1} if it is not in the index.
+     */
+    public long getEntryOffset(final String filename) {
+
+        Long offset = entries.get(filename);
+
+        if (offset == null)
+            return -1;
+
+        return offset;
+
+    }
+
+    /**
+     * Returns the member holding the given offset in the tar archive.
+     *
+     * @param tarOffset offset in the tar archive.
+     * @return the last member starting at or before {@code tarOffset}.
+     */
+    public int findMember(long tarOffset) {
+
+        int i = Arrays.binarySearch(tarOffsets, 0, memberCount, tarOffset);
+
+        if (i < 0)
+            i = -i - 2;
+
+        return Math.max(i, 0);
+
+    }
+
+    // writes an empty GZIP member holding the given data in an extra subfield
+    private static void writeMember(final OutputStream output, final byte[] id, final byte[] data, int offset,
+                                    int length) throws IOException {
+
+        // header with only the FEXTRA flag set
+        output.write(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff});
+
+        writeShort(output, length + 4);
+        output.write(id);
+        writeShort(output, length);
+        output.write(data, offset, length);
+
+        // a final, empty fixed huffman block followed by a zero CRC32 and size
+        output.write(new byte[] {3, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+
+    }
+
+    // writes a little-endian 16-bit integer
+    private static void writeShort(final OutputStream output, int value) throws IOException {
+
+        output.write(value & 0xff);
+        output.write((value >> 8) & 0xff);
+
+    }
+
+    /**
+     * Writes the index to the end of a package.
+     *
+     * @param output stream to write to.
+     * @param offset offset in the package at which the index is written (the end of the data members).
+     * @throws IOException upon failure to write to the output stream.
+     */
+    public void write(final OutputStream output, long offset) throws IOException {
+
+        indexOffset = offset;
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(buffer);
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+
+        data.writeInt(memberCount);
+        for (int i = 0; i < memberCount; i++) {
+            data.writeLong(memberOffsets[i]);
+            data.writeLong(tarOffsets[i]);
+        }
+
+        data.writeInt(entries.size());
+        for (String filename : entries.keySet()) {
+            data.writeUTF(filename);
+            data.writeLong(entries.get(filename));
+        }
+
+        data.close();
+
+        // split the index across as many members as needed
+        byte[] bytes = buffer.toByteArray();
+        for (int i = 0; i < bytes.length; i += MAX_SUBFIELD_SIZE)
+            writeMember(output, INDEX_ID, bytes, i, Math.min(MAX_SUBFIELD_SIZE, bytes.length - i));
+
+        // footer
+        ByteArrayOutputStream footer = new ByteArrayOutputStream(FOOTER_DATA_SIZE);
+        data = new DataOutputStream(footer);
+
+        data.writeInt(MAGIC);
+        data.writeLong(offset);
+
+        data.close();
+
+        writeMember(output, FOOTER_ID, footer.toByteArray(), 0, FOOTER_DATA_SIZE);
+
+    }
+
+    // reads the data of an index member at the given position, or returns null if it is not one
+    private static byte[] readMember(final RandomAccessFile file, long position, final byte[] id,
+                                     int expectedLength) throws IOException {
+
+        if (position + 16 > file.length())
+            return null;
+
+        file.seek(position);
+
+        byte[] header = new byte[16];
+        file.readFully(header);
+
+        // check magic, method, flags and the subfield ID
+        if (header[0] != 0x1f || header[1] != (byte) 0x8b || header[2] != 8 || header[3] != 4 ||
+            header[12] != id[0] || header[13] != id[1])
+            return null;
+
+        int length = (header[14] & 0xff) | ((header[15] & 0xff) << 8);
+        int extraLength = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+
+        if (extraLength != length + 4 || (expectedLength >= 0 && length != expectedLength))
+            return null;
+
+        byte[] data = new byte[length];
+        file.readFully(data);
+
+        return data;
+
+    }
+
+    /**
+     * Reads the index from the end of the given package.
+     *
+     * @param file the package file.
+     * @return the index of the package, or {@code null} if the package is not indexed.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws InvalidPackageException if the package has an index which is corrupted.
+     * @throws IOException upon failure to read from the file.
+     */
+    public static PackageIndex read(final File file) throws FileNotFoundException,
+                                                            InvalidPackageException,
+                                                            IOException {
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+
+            long length = input.length();
+            if (length < FOOTER_SIZE)
+                return null;
+
+            // find the index from the footer
+            byte[] footer = readMember(input, length - FOOTER_SIZE, FOOTER_ID, FOOTER_DATA_SIZE);
+            if (footer == null)
+                return null;
+
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(footer));
+            if (data.readInt() != MAGIC)
+                return null;
+
+            long indexOffset = data.readLong();
+            if (indexOffset < 0 || indexOffset > length - FOOTER_SIZE)
+                throw new InvalidPackageException("The package index is corrupted!");
+
+            // collect the index data from each of its members
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+            long position = indexOffset;
+            while (position < length - FOOTER_SIZE) {
+
+                byte[] bytes = readMember(input, position, INDEX_ID, -1);
+                if (bytes == null)
+                    throw new InvalidPackageException("The package index is corrupted!");
+
+                buffer.write(bytes);
+                position += 10 + 2 + 4 + bytes.length + 2 + 8;
+
+            }
+
+            PackageIndex index = new PackageIndex();
+            index.indexOffset = indexOffset;
+
+            data = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+
+            if (data.readInt() != MAGIC || data.readInt() != VERSION)
+                throw new InvalidPackageException("The package index is not supported!");
+
+            int count = data.readInt();
+            for (int i = 0; i < count; i++)
+                index.addMember(data.readLong(), data.readLong());
+
+            count = data.readInt();
+            for (int i = 0; i < count; i++)
+                index.addEntry(data.readUTF(), data.readLong());
+
+            return index;
+
+        } catch (EOFException ex) {
+            throw new InvalidPackageException("The package index is corrupted!");
+        } finally {
+            input.close();
+        }
+
+    }
+
+}
+
+// EOF
@@ -0,0 +1,621 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spm.util.HashAlgorithm;
+
+/**
+ * A read-only, memory mapped index of the packages in a repository, giving the name, version, size, digest and
+ * location of each package.
+ * The index is a file of variable length records sorted by package name (compared as UTF-8 bytes), preceded by a
+ * table of the offsets of the records. Opening an index only maps it, and looking up a name or a prefix of a name
+ * is a binary search of the table which compares the names in place, so it takes microseconds however many
+ * packages the repository holds.
+ *
+ * <p>The index of a repository is built from the packages in a directory, and kept at its root in the file named
+ * {@code INDEX_NAME}. Packages are located by their path relative to the root, using {@code /} as separator, so
+ * the same index serves a repository on disk and one on a web server.</p>
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class RepositoryIndex {
+
+    private final static Logger logger = Logger.getLogger(RepositoryIndex.class.getName());
+
+    /** Name of the index file at the root of a repository. */
+    public static final String INDEX_NAME = "repository.index";
+
+    /** Suffix of package files in a repository. */
+    public static final String PACKAGE_SUFFIX = ".spm";
+
+    // identifies the index and the version of its format
+    private static final int MAGIC = 0x53504d52; // "SPMR"
+    private static final int VERSION = 1;
+
+    // magic, version and number of records
+    private static final int HEADER_SIZE = 12;
+
+    // size of each entry of the offset table
+    private static final int OFFSET_SIZE = 4;
+
+    // most bytes in one of the strings of a record
+    private static final int MAX_STRING_SIZE = 0xffff;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // the index file and its mapping
+    private final RandomAccessFile file;
+    private final ByteBuffer buffer;
+
+    // number of records in the index
+    private final int count;
+
+    /**
+     * Opens the given index.
+     *
+     * @param file the index file.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws IOException if the file is not a repository index, or upon failure to map it.
+     */
+    public RepositoryIndex(final File file) throws FileNotFoundException, IOException {
+
+        this.file = new RandomAccessFile(file, "r");
+
+        try {
+
+            FileChannel channel = this.file.getChannel();
+            long length = channel.size();
+
+            if (length > Integer.MAX_VALUE)
+                throw new IOException(getInvalidMessage(file));
+
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            if (length < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+                throw new IOException(getInvalidMessage(file));
+
+            count = buffer.getInt(8);
+
+            if (count < 0 || HEADER_SIZE + (long) count * OFFSET_SIZE > length)
+                throw new IOException(getInvalidMessage(file));
+
+        } catch (IOException | RuntimeException ex) {
+
+            this.file.close();
+            throw ex;
+
+        }
+
+    }
+
+    // returns the message of the exception thrown when the given file is not an index
+    private static String getInvalidMessage(final File file) {
+
+        StringBuilder msg = new StringBuilder();
+
+        msg.append("\"");
+        msg.append(file);
+        msg.append("\" is not a valid repository index!");
+
+        return msg.toString();
+
+    }
+
+    /**
+     * Returns the number of packages in the index.
+     *
+     * @return the number of packages.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the package at the given position in the index, in order of name.
+     *
+     * @param i position of the package.
+     * @return the package.
+     */
+    public Entry get(int i) {
+
+        if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException(Integer.toString(i));
+
+        int offset = getOffset(i);
+
+        String name = getString(offset);
+        offset += 2 + getLength(offset);
+
+        String version = getString(offset);
+        offset += 2 + getLength(offset);
+
+        String digest = getString(offset);
+        offset += 2 + getLength(offset);
+
+        String path = getString(offset);
+        offset += 2 + getLength(offset);
+
+        long size = buffer.getLong(offset);
+
+        return new Entry(name, 
+                         version.length() == 0 ? null : version, 
+                         size, 
+                         digest.length() == 0 ? null : digest, 
+                         path);
+
+    }
+
+    /**
+     * Returns every version of the package of the given name.
+     *
+     * @param name name of the package.
+     * @return the versions of the package, in the order they were indexed (empty if there are none).
+     */
+    public List<Entry> find(final String name) {
+
+        byte[] key = name.getBytes(UTF8);
+
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+
+        for (int i = lowerBound(key); i < count && compare(i, key, false) == 0; i++)
+            entries.add(get(i));
+
+        return entries;
+
+    }
+
+    /**
+     * Returns the packages which names start with the given prefix, in order of name.
+     *
+     * @param prefix start of the names.
+     * @param limit most packages to return.
+     * @return the matching packages (empty if there are none).
+     */
+    public List<Entry> findPrefix(final String prefix, int limit) {
+
+        byte[] key = prefix.getBytes(UTF8);
+
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+
+        for (int i = lowerBound(key); i < count && entries.size() < limit && compare(i, key, true) == 0; i++)
+            entries.add(get(i));
+
+        return entries;
+
+    }
+
+    /**
+     * Closes the index file.
+     *
+     * @throws IOException upon failure to close the file.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    // returns the position of the first record which name is not less than the given key
+    private int lowerBound(final byte[] key) {
+
+        int low = 0;
+        int high = count;
+
+        while (low < high) {
+
+            int middle = (low + high) >>> 1;
+
+            if (compare(middle, key, false) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+
+        }
+
+        return low;
+
+    }
+
+    // compares the name of the given record to the given key, as a prefix of the name if prefixFlag is set
+    private int compare(int i, final byte[] key, boolean prefixFlag) {
+
+        int offset = getOffset(i);
+        int length = getLength(offset);
+        offset += 2;
+
+        int max = Math.min(length, key.length);
+        for (int j = 0; j < max; j++) {
+
+            int difference = (buffer.get(offset + j) & 0xff) - (key[j] & 0xff);
+
+            if (difference != 0)
+                return difference;
+
+        }
+
+        if (prefixFlag && length >= key.length)
+            return 0;
+
+        return length - key.length;
+
+    }
+
+    // returns the offset of the given record
+    private int getOffset(int i) {
+        return buffer.getInt(HEADER_SIZE + i * OFFSET_SIZE);
+    }
+
+    // returns the length of the string at the given offset
+    private int getLength(int offset) {
+        return buffer.getShort(offset) & 0xffff;
+    }
+
+    // decodes the string at the given offset
+    private String getString(int offset) {
+
+        byte[] bytes = new byte[getLength(offset)];
+
+        ByteBuffer string = buffer.duplicate();
+        ((Buffer) string).position(offset + 2);
+        string.get(bytes);
+
+        return new String(bytes, UTF8);
+
+    }
+
+    /**
+     * Writes an index of the given packages.
+     * The index is written next to {@code file} and then moved into place, so readers never see part of it.
+     *
+     * @param entries the packages to index.
+     * @param file the index file.
+     * @throws IOException upon failure to write the index, or if it would be larger than 2 GiB.
+     */
+    public static void write(final Collection<Entry> entries, final File file) throws IOException {
+
+        // sort the records by name, keeping the order of the versions of each package
+        ArrayList<Entry> sorted = new ArrayList<Entry>(entries);
+        final ArrayList<byte[]> keys = new ArrayList<byte[]>(sorted.size());
+        for (Entry entry : sorted)
+            keys.add(entry.name.getBytes(UTF8));
+
+        Integer[] positions = new Integer[sorted.size()];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = i;
+
+        Arrays.sort(positions, new Comparator<Integer>() {
+
+            @Override
+            public int compare(final Integer a, final Integer b) {
+
+                int difference = compareBytes(keys.get(a), keys.get(b));
+
+                return difference != 0 ? difference : a - b;
+
+            }
+
+        });
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        Path temp = Files.createTempFile(dir.toPath(), file.getName(), null);
+
+        try {
+
+            FileOutputStream fileOutput = new FileOutputStream(temp.toFile());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+
+            try {
+
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(positions.length);
+
+                // the records follow the table of their offsets
+                long offset = HEADER_SIZE + (long) positions.length * OFFSET_SIZE;
+                for (Integer position : positions) {
+
+                    if (offset > Integer.MAX_VALUE)
+                        throw new IOException("The repository index would be larger than 2 GiB!");
+
+                    output.writeInt((int) offset);
+                    offset += getRecordSize(sorted.get(position), keys.get(position));
+
+                }
+
+                if (offset > Integer.MAX_VALUE)
+                    throw new IOException("The repository index would be larger than 2 GiB!");
+
+                for (Integer position : positions) {
+
+                    Entry entry = sorted.get(position);
+
+                    writeString(output, keys.get(position));
+                    writeString(output, toBytes(entry.version));
+                    writeString(output, toBytes(entry.digest));
+                    writeString(output, toBytes(entry.path));
+                    output.writeLong(entry.size);
+
+                }
+
+                output.flush();
+                fileOutput.getFD().sync();
+
+            } finally {
+                output.close();
+            }
+
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+    }
+
+    // returns the size of the record of the given entry
+    private static long getRecordSize(final Entry entry, final byte[] name) {
+
+        return 2 + name.length + 
+               2 + toBytes(entry.version).length + 
+               2 + toBytes(entry.digest).length + 
+               2 + toBytes(entry.path).length + 
+               8;
+
+    }
+
+    // encodes a string of a record (absent strings are empty)
+    private static byte[] toBytes(final String string) {
+        return string == null ? new byte[0] : string.getBytes(UTF8);
+    }
+
+    // writes a string of a record, preceded by its length
+    private static void writeString(final DataOutputStream output, final byte[] bytes) throws IOException {
+
+        if (bytes.length > MAX_STRING_SIZE) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("Cannot index a string of ");
+            msg.append(bytes.length);
+            msg.append(" bytes!");
+
+            throw new IOException(msg.toString());
+
+        }
+
+        output.writeShort(bytes.length);
+        output.write(bytes);
+
+    }
+
+    // compares two arrays as unsigned bytes
+    private static int compareBytes(final byte[] a, final byte[] b) {
+
+        int max = Math.min(a.length, b.length);
+        for (int i = 0; i < max; i++) {
+
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+
+            if (difference != 0)
+                return difference;
+
+        }
+
+        return a.length - b.length;
+
+    }
+
+    /**
+     * Reads the metadata of every package under the given directory.
+     * Packages which cannot be read are logged and left out.
+     *
+     * @param root root directory of the repository.
+     * @return the packages in the repository.
+     * @throws IOException upon failure to list the directory.
+     */
+    public static List<Entry> scan(final File root) throws IOException {
+
+        final Path rootPath = root.toPath();
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(final Path path, final BasicFileAttributes attributes) {
+
+                String filename = path.getFileName().toString();
+
+                if (!attributes.isRegularFile() || !filename.endsWith(PACKAGE_SUFFIX))
+                    return FileVisitResult.CONTINUE;
+
+                StringBuilder relativePath = new StringBuilder();
+                for (Path part : rootPath.relativize(path)) {
+
+                    if (relativePath.length() > 0)
+                        relativePath.append('/');
+
+                    relativePath.append(part.toString());
+
+                }
+
+                try {
+                    entries.add(read(path.toFile(), relativePath.toString()));
+                } catch (IOException | InvalidPackageException | SPMDigestException ex) {
+
+                    StringBuilder msg = new StringBuilder();
+
+                    msg.append("Cannot index the package \"");
+                    msg.append(path);
+                    msg.append("\".");
+
+                    logger.log(Level.WARNING, msg.toString(), ex);
+
+                }
+
+                return FileVisitResult.CONTINUE;
+
+            }
+
+        });
+
+        return entries;
+
+    }
+
+    /**
+     * Reads the metadata of a package to index.
+     * The package is named after its file, without the {@code .spm} suffix, and its digest is the SHA-256 hash of
+     * the whole file.
+     *
+     * @param packageFile the package file.
+     * @param path location of the package relative to the root of the repository.
+     * @return the entry of the package.
+     * @throws IOException upon failure to read the package.
+     * @throws InvalidPackageException if the package is not valid.
+     * @throws SPMDigestException if the contents of the package do not match its digest file.
+     */
+    public static Entry read(final File packageFile, final String path) throws IOException, 
+                                                                                InvalidPackageException, 
+                                                                                SPMDigestException {
+
+        SPMPackage packageArchive = new SPMPackage();
+        packageArchive.read(packageFile);
+
+        String name = packageFile.getName();
+        if (name.endsWith(PACKAGE_SUFFIX))
+            name = name.substring(0, name.length() - PACKAGE_SUFFIX.length());
+
+        InputStream input = new FileInputStream(packageFile);
+        String digest;
+        try {
+            digest = HashAlgorithm.SHA256.hash(new BufferedInputStream(input)).toString();
+        } finally {
+            input.close();
+        }
+
+        return new Entry(name, packageArchive.getVersion(), packageFile.length(), digest, path);
+
+    }
+
+    /**
+     * Indexes the packages under the given directory, writing the index to {@code INDEX_NAME} in it.
+     *
+     * @param root root directory of the repository.
+     * @return the number of packages indexed.
+     * @throws IOException upon failure to list the directory or to write the index.
+     */
+    public static int build(final File root) throws IOException {
+
+        List<Entry> entries = scan(root);
+
+        write(entries, new File(root, INDEX_NAME));
+
+        return entries.size();
+
+    }
+
+    /**
+     * A package in a repository.
+     *
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final String version;
+        private final long size;
+        private final String digest;
+        private final String path;
+
+        /**
+         * Creates a new instance of {@code Entry}.
+         *
+         * @param name name of the package.
+         * @param version version of the package (can be {@code null}).
+         * @param size size of the package file in bytes.
+         * @param digest hexadecimal SHA-256 hash of the package file.
+         * @param path location of the package relative to the root of the repository.
+         */
+        public Entry(final String name, final String version, long size, final String digest, final String path) {
+
+            this.name = name;
+            this.version = version;
+            this.size = size;
+            this.digest = digest;
+            this.path = path;
+
+        }
+
+        /**
+         * Returns the name of the package.
+         *
+         * @return the name of the package.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the version of the package.
+         *
+         * @return the version, or {@code null} if the package does not give one.
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns the size of the package file.
+         *
+         * @return the size of the package in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the hash of the package file.
+         *
+         * @return the hexadecimal SHA-256 hash of the package file.
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Returns the location of the package relative to the root of the repository.
+         *
+         * @return the path of the package, separated by {@code /}.
+         */
+        public String getPath() {
+            return path;
+        }
+
+    }
+
+}
+
+// EOF
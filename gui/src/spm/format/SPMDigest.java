@@ -16,24 +16,38 @@ package spm.format;
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.*;
 
-import spm.util.SHA1;
+import spm.util.Hash;
+import spm.util.HashAlgorithm;
 import spm.format.tar.*;
 
 /**
- * Represents a list of file SHA1 digests used in a SPM package.
- * The format is the same as the sha1sum utility.
+ * Represents a list of file digests used in a SPM package.
+ * SHA1 digests are in the same format as the sha1sum utility. Digests of other algorithms are in the tagged
+ * format of {@code sha256sum --tag} ({@code SHA256 (filename) = hash}), which records the algorithm of each entry.
  *
  * @author Zachary Scott <cthug.zs@gmail.com>
  */
-public final class SPMDigest extends Hashtable<String, SHA1> {
+public final class SPMDigest extends Hashtable<String, Hash> {
     
     private final static Logger logger = Logger.getLogger(SPMDigest.class.getName());
     
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    // number of records below which a parallel update hashes them on one thread
+    private static final int PARALLEL_THRESHOLD = 64;
+    
+    // algorithm of the digests
+    private HashAlgorithm algorithm = HashAlgorithm.SHA1;
+    
     /**
-     * Creates a new instance of {@code SPMDigest}.
+     * Creates a new instance of {@code SPMDigest} of SHA1 digests.
      * 
      */
     public SPMDigest() {
@@ -41,7 +55,18 @@ public final class SPMDigest extends Hashtable<String, SHA1> {
     }
     
     /**
-     * Creates a new instance of {@code SPMDigest} and adds the digests of each file in {@code archive}.
+     * Creates a new instance of {@code SPMDigest} of digests calculated with the given algorithm.
+     * 
+     * @param algorithm the hash algorithm.
+     */
+    public SPMDigest(final HashAlgorithm algorithm) {
+        
+        this.algorithm = algorithm;
+        
+    }
+    
+    /**
+     * Creates a new instance of {@code SPMDigest} and adds the SHA1 digests of each file in {@code archive}.
      * 
      * @param archive spm package to be read.
      */
@@ -51,6 +76,29 @@ public final class SPMDigest extends Hashtable<String, SHA1> {
         
     }
     
+    /**
+     * Returns the algorithm of the digests.
+     * 
+     * @return the hash algorithm.
+     */
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+    
+    /**
+     * Sets the algorithm of the digests, removing any digests calculated with a different algorithm.
+     * 
+     * @param algorithm the hash algorithm.
+     */
+    public void setAlgorithm(final HashAlgorithm algorithm) {
+        
+        if (algorithm != this.algorithm)
+            clear();
+        
+        this.algorithm = algorithm;
+        
+    }
+    
     /**
      * Updates this {@code SPMDigest} with the digest values of the files in {@code archive}.
      * 
@@ -59,87 +107,190 @@ public final class SPMDigest extends Hashtable<String, SHA1> {
     public void update(final TarArchive archive) {
         
         for (TarRecord record : archive)
-            put(record.getHeader().getFileName(), SHA1.hash(record.getFileContents()));
+            put(record.getHeader().getFileName(), algorithm.hash(record.getFileContents()));
         
     }
     
     /**
-     * Reads a list of digests from the given {@code StringBuffer}.
+     * Updates this {@code SPMDigest} with the digest values of the files in {@code archive}, hashing them on
+     * several threads.
      * 
-     * @param buffer buffer to read digests from.
-     * @throws SPMDigestException if the format is not correct (same as {@code sha1sum} utility).
+     * @param archive spm package to be read.
+     * @param threads number of threads to hash with.
      */
-    public void read(final StringBuffer buffer) throws SPMDigestException {
+    public void update(final TarArchive archive, int threads) {
         
-        StringBuilder msg;
+        update(new Source() {
+            
+            @Override
+            public int size() {
+                return archive.size();
+            }
+            
+            @Override
+            public String getFileName(int i) {
+                return archive.get(i).getHeader().getFileName();
+            }
+            
+            @Override
+            public Hash hash(int i) {
+                return algorithm.hash(archive.get(i).getFileContents());
+            }
+            
+        }, threads);
         
-        char[] digest = new char[SHA1.DIGEST_HEX_SIZE];
+    }
+    
+    /**
+     * Updates this {@code SPMDigest} with the digest values of the files in the mapped {@code archive}, hashing
+     * them straight from the mapping on several threads.
+     * 
+     * @param archive mapped spm package to be read.
+     * @param threads number of threads to hash with.
+     * @throws IOException if a file is too large to be hashed from a single buffer.
+     */
+    public void update(final MappedTarArchive archive, int threads) throws IOException {
         
-        clear();
+        // the buffers are fetched up front as mapping them may fail
+        final ByteBuffer[] buffers = new ByteBuffer[archive.size()];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = archive.getFileBuffer(i);
         
-        // parse digest buffer
-        for (int i = 0; i < buffer.length(); i++) {
+        update(new Source() {
             
-            // read digest value
-            if (buffer.length() < SHA1.DIGEST_HEX_SIZE) {
-
-                msg = new StringBuilder();
-
-                msg.append("Expected ");
-                msg.append(SHA1.DIGEST_HEX_SIZE);
-                msg.append(" hexadecimal character SHA1 hash, but instead found ");
-                msg.append(buffer.length());
-                msg.append(" characters!");
-                
-                
-                throw new SPMDigestException(msg.toString());
-                        
+            @Override
+            public int size() {
+                return buffers.length;
             }
-            buffer.getChars(i, i + SHA1.DIGEST_HEX_SIZE, digest, 0);
-            i += SHA1.DIGEST_HEX_SIZE;
             
-            // read space and file type indicator
-            while (buffer.charAt(i) == ' ' || buffer.charAt(i) == '*')
-                i++;
+            @Override
+            public String getFileName(int i) {
+                return archive.getHeader(i).getFileName();
+            }
             
-            // read filename
-            StringBuilder filename;
-            if (buffer.length() > 0) {
-                
-                filename = new StringBuilder();
-                for (char ch; (ch = buffer.charAt(i)) != '\n' && ch != -1; i++)
-                    filename.append((char) ch);
-                
-            } else {
-                
-                throw new SPMDigestException("Expected filename but found end-of-file!");
-                
+            @Override
+            public Hash hash(int i) {
+                return algorithm.hash(buffers[i]);
             }
             
-            // add hash filename pair to SPMDigest
-            put(filename.toString(), new SHA1(new String(digest)));
+        }, threads);
+        
+    }
+    
+    // hashes the files of the given source on a pool of the given size
+    private void update(final Source source, int threads) {
+        
+        Hash[] hashes = new Hash[source.size()];
+        
+        if (threads <= 1 || hashes.length <= PARALLEL_THRESHOLD) {
+            
+            new HashTask(source, hashes, 0, hashes.length).compute();
+            
+        } else {
             
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            
+            try {
+                pool.invoke(new HashTask(source, hashes, 0, hashes.length));
+            } finally {
+                pool.shutdown();
+            }
+            
+        }
+        
+        // add the hashes in order so that the last file of each name is kept, as update(TarArchive) does
+        for (int i = 0; i < hashes.length; i++)
+            put(source.getFileName(i), hashes[i]);
+        
+    }
+    
+    /**
+     * Reads a list of digests from the given {@code StringBuffer}.
+     * The algorithm of this {@code SPMDigest} becomes that of the digests read.
+     * 
+     * @param buffer buffer to read digests from.
+     * @throws SPMDigestException if the format is not correct (same as {@code sha1sum} utility, optionally tagged).
+     */
+    public void read(final StringBuffer buffer) throws SPMDigestException {
+        read(buffer.toString().getBytes(UTF_8));
+    }
+    
+    /**
+     * Reads a list of digests from the given array.
+     * The algorithm of this {@code SPMDigest} becomes that of the digests read.
+     * 
+     * @param bytes contents of the digest file.
+     * @throws SPMDigestException if the format is not correct (same as {@code sha1sum} utility, optionally tagged).
+     */
+    public void read(final byte[] bytes) throws SPMDigestException {
+        read(ByteBuffer.wrap(bytes));
+    }
+    
+    /**
+     * Reads a list of digests from the remaining contents of the given buffer.
+     * The algorithm of this {@code SPMDigest} becomes that of the digests read.
+     * 
+     * @param buffer contents of the digest file.
+     * @throws SPMDigestException if the format is not correct (same as {@code sha1sum} utility, optionally tagged).
+     */
+    public void read(final ByteBuffer buffer) throws SPMDigestException {
+        
+        try {
+            read(new DigestReader(buffer));
+        } catch (IOException ex) { // nothing to read from but the buffer
+            throw new SPMDigestException(ex.getMessage());
         }
         
     }
     
     /**
      * Reads a list of digests from the given input stream.
+     * The algorithm of this {@code SPMDigest} becomes that of the digests read.
      * 
      * @param input input stream to read from.
      * @throws IOException upon failure to read from {@code input}.
      * @throws SPMDigestException if the format is not correct (same as {@code sha1sum} utility).
      */
     public void read(final InputStream input) throws IOException, SPMDigestException {
+        read(new DigestReader(input));
+    }
+    
+    // adds each entry of the given reader, which must all be of the same algorithm
+    private void read(final DigestReader reader) throws IOException, SPMDigestException {
         
-        StringBuffer digest = new StringBuffer();
+        clear();
         
-        // read digests stream
-        int ch;
-        while ((ch = input.read()) != -1)
-            digest.append((char) ch);
+        HashAlgorithm readAlgorithm = null;
         
-        read(digest);
+        while (reader.next()) {
+            
+            HashAlgorithm lineAlgorithm = reader.getHash().getAlgorithm();
+            
+            // every digest must be of the same algorithm
+            if (readAlgorithm == null) {
+                readAlgorithm = lineAlgorithm;
+            } else if (lineAlgorithm != readAlgorithm) {
+                
+                StringBuilder msg = new StringBuilder();
+                
+                msg.append("Expected only ");
+                msg.append(readAlgorithm.getName());
+                msg.append(" digests but found a ");
+                msg.append(lineAlgorithm.getName());
+                msg.append(" digest on line ");
+                msg.append(reader.getLineNumber());
+                msg.append("!");
+                
+                throw new SPMDigestException(msg.toString());
+                
+            }
+            
+            put(reader.getFileName(), reader.getHash());
+            
+        }
+        
+        if (readAlgorithm != null)
+            algorithm = readAlgorithm;
         
     }
     
@@ -153,7 +304,7 @@ public final class SPMDigest extends Hashtable<String, SHA1> {
      */
     public void read(final File file) throws FileNotFoundException, IOException, SPMDigestException {
         
-        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        InputStream input = new FileInputStream(file); // buffered by the reader
         
         read(input);
         
@@ -182,26 +333,37 @@ public final class SPMDigest extends Hashtable<String, SHA1> {
      */
     public void write(final OutputStream output) throws IOException {
         
-        String digest = toString();
+        DigestWriter writer = new DigestWriter(output);
+        
+        for (Map.Entry<String, Hash> entry : entrySet())
+            writer.write(entry.getKey(), entry.getValue());
+        
+        writer.flush();
+        
+    }
+    
+    /**
+     * Returns the contents of the digest file for this {@code SPMDigest}, encoded as UTF-8.
+     * 
+     * @return the digest file contents.
+     */
+    public byte[] toByteArray() {
+        
+        ByteArrayOutputStream output = new ByteArrayOutputStream(size() * 64);
         
-        // write digest file contents to output stream
         try {
             
-            output.write(digest.getBytes("UTF-8"));
-            
-        } catch (UnsupportedEncodingException ex) {
-            
-            StringBuilder msg = new StringBuilder();
+            write(output);
             
-            msg.append("Failed to write SPMDigest ");
-            msg.append(digest);
-            msg.append(" to output stream because UTF-8 character encoding is not supported!");
+        } catch (IOException ex) {
             
-            logger.log(Level.SEVERE, msg.toString(), ex);
+            logger.log(Level.SEVERE, "Failed to write SPMDigest to memory!", ex);
             System.exit(1);
             
         }
         
+        return output.toByteArray();
+        
     }
     
     /**
@@ -250,20 +412,35 @@ public final class SPMDigest extends Hashtable<String, SHA1> {
         for (Enumeration<String> e = keys(); e.hasMoreElements();) {
             
             String filename = e.nextElement();
-            SHA1 hash = digest.get(filename);
+            Hash hash = digest.get(filename);
             
-            if (hash != null) { // skip files without a SHA1 entry
+            if (hash != null) { // skip files without a digest entry
                 
-                if (hash.equals(get(filename))) {
+                if (hash.getAlgorithm() != get(filename).getAlgorithm()) {
                     
                     matchedFlag = false;
                     
                     msg.append("The file \"");
                     msg.append(filename);
-                    msg.append("\" is corrupted! The SHA1 hash is supposed to be ");
-                    msg.append(hash.toString());
-                    msg.append(" but was instead ");
+                    msg.append("\" cannot be checked as its ");
+                    msg.append(get(filename).getAlgorithm().getName());
+                    msg.append(" hash was compared with a ");
+                    msg.append(hash.getAlgorithm().getName());
+                    msg.append(" hash.");
+                    msg.append(System.getProperty("line.separator"));
+                    
+                } else if (!hash.equals(get(filename))) {
+                    
+                    matchedFlag = false;
+                    
+                    msg.append("The file \"");
+                    msg.append(filename);
+                    msg.append("\" is corrupted! The ");
+                    msg.append(hash.getAlgorithm().getName());
+                    msg.append(" hash is supposed to be ");
                     msg.append(get(filename).toString());
+                    msg.append(" but was instead ");
+                    msg.append(hash.toString());
                     msg.append(".");
                     msg.append(System.getProperty("line.separator"));
                     
@@ -291,7 +468,9 @@ public final class SPMDigest extends Hashtable<String, SHA1> {
      */
     public boolean check(final TarArchive archive) throws SPMDigestException {
         
-        SPMDigest digest = new SPMDigest(archive);
+        SPMDigest digest = new SPMDigest(algorithm);
+        digest.update(archive);
+        
         return check(digest);
         
     }
@@ -314,26 +493,68 @@ public final class SPMDigest extends Hashtable<String, SHA1> {
         
     }
     
-    @Override
-    public String toString() {
+    /**
+     * Files to be hashed by a parallel update.
+     * 
+     */
+    private interface Source {
         
-        StringBuilder string = new StringBuilder();
+        int size();
         
-        for (Enumeration<String> e = keys(); e.hasMoreElements();) {
-            
-            String filename = e.nextElement();
+        String getFileName(int i);
+        
+        Hash hash(int i);
+        
+    }
+    
+    /**
+     * Hashes a range of files, splitting it between threads while it is large enough.
+     * 
+     */
+    private static final class HashTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final Source source;
+        private final Hash[] hashes;
+        private final int start;
+        private final int end;
+        
+        HashTask(final Source source, final Hash[] hashes, int start, int end) {
             
-            string.append(get(filename));
-            string.append(" *");
-            string.append(filename);
-            string.append(System.getProperty("line.separator"));
+            this.source = source;
+            this.hashes = hashes;
+            this.start = start;
+            this.end = end;
             
         }
         
-        return string.toString();
+        @Override
+        protected void compute() {
+            
+            if (end - start <= PARALLEL_THRESHOLD) {
+                
+                for (int i = start; i < end; i++)
+                    hashes[i] = source.hash(i);
+                
+            } else {
+                
+                int middle = (start + end) >>> 1;
+                
+                invokeAll(new HashTask(source, hashes, start, middle), 
+                          new HashTask(source, hashes, middle, end));
+                
+            }
+            
+        }
         
     }
     
+    @Override
+    public String toString() {
+        return new String(toByteArray(), UTF_8);
+    }
+    
 }
 
 // EOF
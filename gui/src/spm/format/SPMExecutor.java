@@ -16,79 +16,638 @@ package spm.format;
  */
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Handle the execution of a {@code SPMPackage}'d files.
+ * The execution is a graph of {@code SPMStep}s, such as extracting the files a script needs and running the
+ * script. Each step starts as soon as the steps it depends on have succeeded, so independent steps overlap.
+ * The standard output and error streams of every process are drained concurrently as soon as it starts, so a
+ * process never blocks on a full pipe, and each line is passed to the listeners as it arrives.
+ * Completion, the exit value and the time taken are available as {@code Future}s for the whole execution and for
+ * each step. Only the most recent output is kept in memory, so processes may write any amount of it.
  * 
  * @author Zachary Scott <cthug.zs@gmail.com>
  */
 public final class SPMExecutor {
-
-    private final Process[] processes;
     
-    SPMExecutor(final Process[] processes) {
+    private final static Logger logger = Logger.getLogger(SPMExecutor.class.getName());
+    
+    // most characters of output kept for getOutput()
+    private static final int OUTPUT_LIMIT = 8 * 1024 * 1024;
+    
+    private static final ThreadFactory daemonThreads = new ThreadFactory() {
         
-        this.processes = processes;
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            
+            Thread thread = new Thread(runnable, "spm-executor");
+            thread.setDaemon(true);
+            
+            return thread;
+            
+        }
         
+    };
+    
+    // threads draining the output of processes and running steps
+    private static final ExecutorService drainers = Executors.newCachedThreadPool(daemonThreads);
+    
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    
+    private final List<SPMStep> steps;
+    
+    // most recent lines of output, and the number of characters in them
+    private final ArrayDeque<Line> output = new ArrayDeque<Line>();
+    private long outputSize = 0;
+    
+    private final ArrayList<OutputListener> listeners = new ArrayList<OutputListener>();
+    private final ArrayList<StepListener> stepListeners = new ArrayList<StepListener>();
+    
+    // first failure to run a step or read from a process
+    private IOException failure = null;
+    
+    // when the steps were started and how long they took
+    private final long startTime = System.nanoTime();
+    private volatile long elapsedTime = -1;
+    
+    private final Future<Integer> exitValue;
+    
+    // threads running the steps
+    private final ExecutorService runners;
+    
+    // task running each step, and the number of steps the listeners have not been told have finished
+    private final HashMap<SPMStep, StepTask> tasks = new HashMap<SPMStep, StepTask>();
+    private final CountDownLatch unreported;
+    
+    /**
+     * Creates a new instance of {@code SPMExecutor}, starting each of the given steps as soon as the steps it
+     * depends on have succeeded and the steps it is ordered after have finished.
+     * 
+     * @param steps steps to run, each after the steps it depends on or is ordered after.
+     */
+    SPMExecutor(final SPMStep... steps) {
+        this(0, steps);
     }
     
     /**
-     * Returns whether the processes of this {@code SPMExecutor} failed or not.
+     * Creates a new instance of {@code SPMExecutor}, starting each of the given steps as soon as the steps it
+     * depends on have succeeded and the steps it is ordered after have finished, with at most {@code threads}
+     * steps running at once.
      * 
-     * @return whether the processes of this {@code SPMExecutor} failed or not.
+     * @param threads most steps to run at once ({@code 0} for no limit).
+     * @param steps steps to run, each after the steps it depends on or is ordered after.
      */
-    public boolean failed() {
+    SPMExecutor(int threads, final SPMStep... steps) {
+        
+        this.steps = Collections.unmodifiableList(Arrays.asList(steps.clone()));
+        
+        unreported = new CountDownLatch(steps.length);
+        
+        // link each step to those which wait for it, checking they come before it
+        for (int i = 0; i < steps.length; i++) {
+            
+            SPMStep step = steps[i];
+            StepTask task = new StepTask(step, i);
+            
+            ArrayList<SPMStep> prerequisites = new ArrayList<SPMStep>(step.getDependencies());
+            prerequisites.addAll(step.getPredecessors());
+            
+            for (SPMStep prerequisite : prerequisites) {
+                
+                StepTask prerequisiteTask = tasks.get(prerequisite);
+                
+                if (prerequisiteTask == null) {
+                    
+                    StringBuilder msg = new StringBuilder();
+                    
+                    msg.append("The step \"");
+                    msg.append(step.getName());
+                    msg.append("\" waits for a step which does not come before it!");
+                    
+                    throw new IllegalArgumentException(msg.toString());
+                    
+                }
+                
+                prerequisiteTask.followers.add(task);
+                task.pending.incrementAndGet();
+                
+            }
+            
+            tasks.put(step, task);
+            
+        }
+        
+        // with a limit, ready steps which come first in the list run first, so earlier steps are not held up
+        if (threads > 0) {
+            runners = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+                                             new PriorityBlockingQueue<Runnable>(), daemonThreads);
+        } else {
+            runners = drainers;
+        }
+        
+        // start the steps which do not wait for any others (the rest are started as they become ready)
+        for (SPMStep step : steps)
+            step.setExitValue(tasks.get(step));
+        
+        for (SPMStep step : steps) {
+            
+            StepTask task = tasks.get(step);
+            
+            if (task.pending.get() == 0)
+                runners.execute(task);
+            
+        }
+        
+        exitValue = drainers.submit(new Callable<Integer>() {
+            
+            @Override
+            public Integer call() throws Exception {
+                
+                try {
+                    
+                    unreported.await();
+                    
+                    // the first step to fail gives the exit value
+                    int value = 0;
+                    for (SPMStep step : SPMExecutor.this.steps) {
+                        
+                        int stepValue = step.getExitValue().get();
+                        if (value == 0)
+                            value = stepValue;
+                        
+                    }
+                    
+                    return value;
+                    
+                } finally {
+                    
+                    elapsedTime = System.nanoTime() - startTime;
+                    
+                    if (runners != drainers)
+                        runners.shutdown();
+                    
+                }
+                
+            }
+            
+        });
+        
+    }
+    
+    /**
+     * Returns the steps run by this {@code SPMExecutor}, in the order they were given.
+     * 
+     * @return the steps of this {@code SPMExecutor}.
+     */
+    public List<SPMStep> getSteps() {
+        return steps;
+    }
+    
+    /**
+     * Adds a listener which is passed each line of output as it is read.
+     * Lines which were read before the listener was added, and are still kept, are passed to it first.
+     * Listeners are called from the threads reading the output, one line at a time.
+     * 
+     * @param listener the listener to add.
+     */
+    public synchronized void addOutputListener(final OutputListener listener) {
+        
+        for (Line line : output)
+            listener.lineRead(this, line.step, line.text, line.errorFlag);
+        
+        listeners.add(listener);
+        
+    }
+    
+    /**
+     * Removes a listener added by {@code addOutputListener}.
+     * 
+     * @param listener the listener to remove.
+     */
+    public synchronized void removeOutputListener(final OutputListener listener) {
+        listeners.remove(listener);
+    }
+    
+    // keeps a line of output and passes it to the listeners
+    private synchronized void lineRead(final SPMStep step, final String line, boolean errorFlag) {
+        
+        output.addLast(new Line(step, line, errorFlag));
+        outputSize += line.length() + LINE_SEPARATOR.length();
+        
+        while (outputSize > OUTPUT_LIMIT && output.size() > 1)
+            outputSize -= output.removeFirst().text.length() + LINE_SEPARATOR.length();
+        
+        for (OutputListener listener : listeners)
+            listener.lineRead(this, step, line, errorFlag);
         
-        boolean failedFlag = false;
+    }
+    
+    /**
+     * Adds a listener which is told when each step starts and finishes.
+     * Steps which started or finished before the listener was added are passed to it first.
+     * Listeners are called from the threads running the steps, one step at a time.
+     * 
+     * @param listener the listener to add.
+     */
+    public synchronized void addStepListener(final StepListener listener) {
+        
+        for (SPMStep step : steps) {
+            
+            if (step.getState() != SPMStep.State.WAITING && step.getState() != SPMStep.State.SKIPPED)
+                listener.stepStarted(this, step);
+            if (tasks.get(step).reportedFlag)
+                listener.stepFinished(this, step);
+            
+        }
+        
+        stepListeners.add(listener);
+        
+    }
+    
+    /**
+     * Removes a listener added by {@code addStepListener}.
+     * 
+     * @param listener the listener to remove.
+     */
+    public synchronized void removeStepListener(final StepListener listener) {
+        stepListeners.remove(listener);
+    }
+    
+    // marks a step as started and tells the listeners
+    private synchronized void started(final SPMStep step) {
+        
+        step.started();
+        
+        for (StepListener listener : stepListeners)
+            listener.stepStarted(this, step);
+        
+    }
+    
+    // tells the listeners a step has finished, once its exit value is available
+    private synchronized void finished(final StepTask task) {
+        
+        task.reportedFlag = true;
+        
+        for (StepListener listener : stepListeners)
+            listener.stepFinished(this, task.step);
+        
+    }
+    
+    private synchronized void fail(final IOException ex) {
+        
+        if (failure == null)
+            failure = ex;
+        
+    }
+    
+    /**
+     * Returns the exit value of the steps, which is available once they have all finished and their output has
+     * been read. The exit value is that of the first step which failed, or {@code 0} if none did.
+     * 
+     * @return the exit value of the steps.
+     */
+    public Future<Integer> getExitValue() {
+        return exitValue;
+    }
+    
+    /**
+     * Returns whether the steps have all finished and their output has been read.
+     * 
+     * @return whether the steps are done.
+     */
+    public boolean isDone() {
+        return exitValue.isDone();
+    }
+    
+    /**
+     * Returns the time the steps took, from the creation of this {@code SPMExecutor} until they were done.
+     * 
+     * @return the time the steps took in nanoseconds, or {@code -1} if they are not done.
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+    
+    // waits for the steps to finish, ignoring interrupts until they do, and returns their exit value
+    private int waitFor() {
         
-        for (int i = 0; !failedFlag && i < processes.length; i++) {
+        boolean interruptedFlag = false;
         
-            // wait for process to finish
+        try {
+            
             while (true) {
                 
                 try {
-                    processes[i].waitFor();
-                    break;
+                    return exitValue.get();
                 } catch (InterruptedException ex) {
+                    interruptedFlag = true;
+                } catch (ExecutionException ex) {
+                    
+                    logger.log(Level.WARNING, "Cannot wait for the steps to finish!", ex.getCause());
+                    
+                    return -1;
+                    
                 }
                 
             }
             
-            // get return value
-            failedFlag = failedFlag || processes[i].exitValue() != 0;
+        } finally {
+            
+            if (interruptedFlag)
+                Thread.currentThread().interrupt();
+            
+        }
         
+    }
+    
+    /**
+     * Returns whether the steps of this {@code SPMExecutor} failed or not, waiting for them to finish.
+     * 
+     * @return whether the steps of this {@code SPMExecutor} failed or not.
+     */
+    public boolean failed() {
+        return waitFor() != 0;
+    }
+    
+    /**
+     * Returns the output of this {@code SPMExecutor}'s processes, waiting for every step to finish.
+     * Lines appear in the order they were read, so the output of concurrent processes may be interleaved. Only the
+     * most recent output is kept if there is a lot of it.
+     * 
+     * @return the output of this {@code SPMExecutor}'s processes.
+     * @throws IOException upon failure to run a step or to read from a processes output stream.
+     */
+    public String getOutput() throws IOException {
+        
+        waitFor();
+        
+        synchronized (this) {
+            
+            if (failure != null)
+                throw failure;
+            
+            StringBuilder string = new StringBuilder((int) outputSize);
+            
+            for (Line line : output) {
+                
+                string.append(line.text);
+                string.append(LINE_SEPARATOR);
+                
+            }
+            
+            return string.toString();
+            
         }
         
-        return failedFlag;
+    }
+    
+    /**
+     * Runs a step, then starts the steps waiting for it which are no longer waiting for any others.
+     * 
+     */
+    private final class StepTask extends FutureTask<Integer> implements Comparable<StepTask> {
+        
+        final SPMStep step;
+        
+        // position of the step in the list
+        final int index;
+        
+        // whether the listeners have been told the step finished (guarded by the executor)
+        boolean reportedFlag = false;
+        
+        // steps waiting for this one, and the number of steps this one is waiting for
+        final ArrayList<StepTask> followers = new ArrayList<StepTask>();
+        final AtomicInteger pending = new AtomicInteger();
+        
+        StepTask(final SPMStep step, int index) {
+            
+            super(new Run(step));
+            
+            this.step = step;
+            this.index = index;
+            
+        }
+        
+        @Override
+        public int compareTo(final StepTask task) {
+            return index < task.index ? -1 : (index == task.index ? 0 : 1);
+        }
+        
+        @Override
+        protected void done() {
+            
+            finished(this);
+            
+            for (StepTask follower : followers) {
+                
+                if (follower.pending.decrementAndGet() == 0)
+                    runners.execute(follower);
+                
+            }
+            
+            unreported.countDown();
+            
+        }
         
     }
     
     /**
-     * Returns the output stream of this {@code SPMExecutor}'s processes.
+     * Runs a step once the steps it waits for have finished, draining the output of its process.
      * 
-     * @return the output stream of this {@code SPMExecutor}'s processes.
-     * @throws IOException upon failure to read from a processes output stream.
      */
-    public String getOutput() throws IOException {
+    private final class Run implements Callable<Integer> {
         
-        StringBuilder string = new StringBuilder();
+        private final SPMStep step;
         
-        // concatenate each process's output streams
-        for (Process process : processes) {
+        Run(final SPMStep step) {
+            this.step = step;
+        }
         
-            InputStream out = process.getInputStream();
-            InputStream err = process.getErrorStream();
-
-            // read output streams
-            int ch;
-            while ((ch = out.read()) != -1)
-                string.append((char) ch);
-            while ((ch = err.read()) != -1)
-                string.append((char) ch);
+        @Override
+        public Integer call() throws Exception {
+            
+            // the steps waited for have finished, so this does not block
+            for (SPMStep dependency : step.getDependencies()) {
+                
+                boolean succeededFlag;
+                try {
+                    succeededFlag = dependency.getExitValue().get() == 0;
+                } catch (ExecutionException ex) {
+                    succeededFlag = false;
+                }
+                
+                if (!succeededFlag) {
+                    
+                    step.skipped();
+                    
+                    return -1;
+                    
+                }
+                
+            }
+            
+            started(step);
+            
+            int value = -1;
+            try {
+                
+                Process process = step.getAction().start();
+                
+                if (process == null) {
+                    value = 0;
+                } else {
+                    
+                    Future<?> out = drainers.submit(new Drain(step, process.getInputStream(), false));
+                    Future<?> err = drainers.submit(new Drain(step, process.getErrorStream(), true));
+                    
+                    out.get();
+                    err.get();
+                    
+                    value = process.waitFor();
+                    
+                }
+                
+            } catch (InvalidPackageException ex) {
+                fail(new IOException(ex.getMessage(), ex));
+            } catch (IOException ex) {
+                fail(ex);
+            } catch (RuntimeException ex) { // reported as a failed step, so that the steps waiting for it are skipped
+                fail(new IOException(ex.toString(), ex));
+            } finally {
+                
+                step.finished(value);
+                
+                if (logger.isLoggable(Level.FINE)) {
+                    
+                    StringBuilder msg = new StringBuilder();
+                    
+                    msg.append("The step \"");
+                    msg.append(step.getName());
+                    msg.append("\" finished with exit value ");
+                    msg.append(value);
+                    msg.append(" in ");
+                    msg.append(step.getElapsedTime() / 1000000);
+                    msg.append(" ms.");
+                    
+                    logger.fine(msg.toString());
+                    
+                }
+                
+            }
+            
+            return value;
+            
+        }
+        
+    }
+    
+    /**
+     * A line of output.
+     * 
+     */
+    private static final class Line {
+        
+        final SPMStep step;
+        final String text;
+        final boolean errorFlag;
         
+        Line(final SPMStep step, final String text, boolean errorFlag) {
+            
+            this.step = step;
+            this.text = text;
+            this.errorFlag = errorFlag;
+            
         }
         
-        return string.toString();
+    }
+    
+    /**
+     * Reads one output stream of a process a line at a time until it ends.
+     * 
+     */
+    private final class Drain implements Runnable {
+        
+        private final SPMStep step;
+        private final InputStream input;
+        private final boolean errorFlag;
+        
+        Drain(final SPMStep step, final InputStream input, boolean errorFlag) {
+            
+            this.step = step;
+            this.input = input;
+            this.errorFlag = errorFlag;
+            
+        }
+        
+        @Override
+        public void run() {
+            
+            try {
+                
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+                
+                try {
+                    
+                    String line;
+                    while ((line = reader.readLine()) != null)
+                        lineRead(step, line, errorFlag);
+                    
+                } finally {
+                    reader.close();
+                }
+                
+            } catch (IOException ex) {
+                fail(ex);
+            }
+            
+        }
+        
+    }
+    
+    /**
+     * Receives the output of an {@code SPMExecutor}'s processes as it is read.
+     * 
+     */
+    public interface OutputListener {
+        
+        /**
+         * Called with each line of output.
+         * 
+         * @param executor the executor of the process which wrote the line.
+         * @param step the step running the process.
+         * @param line the line, without its line terminator.
+         * @param errorFlag whether the line was written to the standard error stream.
+         */
+        void lineRead(SPMExecutor executor, SPMStep step, String line, boolean errorFlag);
+        
+    }
+    
+    /**
+     * Is told when the steps of an {@code SPMExecutor} start and finish.
+     * 
+     */
+    public interface StepListener {
+        
+        /**
+         * Called when a step starts running.
+         * 
+         * @param executor the executor running the step.
+         * @param step the step.
+         */
+        void stepStarted(SPMExecutor executor, SPMStep step);
+        
+        /**
+         * Called when a step finishes, or is skipped (without having started), once its exit value is available.
+         * 
+         * @param executor the executor running the step.
+         * @param step the step.
+         */
+        void stepFinished(SPMExecutor executor, SPMStep step);
         
     }
     
@@ -16,12 +16,28 @@ package spm.format;
  */
 
 import java.io.*;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.*;
-import spm.gui.Util;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import spm.format.tar.*;
+import spm.util.BlobStore;
+import spm.util.HashAlgorithm;
+import spm.util.PipelineInputStream;
 
 /**
  * Wraps a {@code TarArchive} to represent a SPM package.
@@ -34,25 +50,86 @@ public final class SPMPackage {
     
     private static final String FILE_PREFIX = "src" + System.getProperty("file.separator");
     
+    // size of the buffers between the stages of a streamed package
+    private static final int PIPELINE_BUFFER_SIZE = PipelineInputStream.DEFAULT_BUFFER_SIZE;
+    
     private static final String LICENSE_NAME = "license";
     private static final String BUILD_NAME = "build";
     private static final String INSTALL_NAME = "install";
     private static final String UNINSTALL_NAME = "uninstall";
     private static final String DIGEST_NAME = "digest";
     
+    // suffix of the file listing what a script needs from the data directory
+    private static final String NEEDS_SUFFIX = ".needs";
+    private static final String DATA_PREFIX = "data/";
+    
+    // file listing the paths the install script writes to
+    private static final String TARGETS_NAME = "install.targets";
+    
+    // file holding the version of the package
+    private static final String VERSION_NAME = "version";
+    
     // location of this package
     private File file = null;
     
-    // the package archive
+    // the package archive (null until loaded if the package was streamed from a file)
     private SPMPackageContainer archive = new SPMPackageContainer();
     
+    // number of records in a streamed package, and their names in order
+    private int recordCount = 0;
+    private final ArrayList<String> fileNames = new ArrayList<String>();
+    
     // package file contents
     private byte[] license = null;
     private byte[] build = null;
     private byte[] install = null;
     private byte[] uninstall = null;
     
-    // SHA1 digests file
+    // needs files of each script, and the install targets and version files, of a streamed package
+    private final HashMap<String, byte[]> needs = new HashMap<String, byte[]>();
+    
+    // whether scripts are run with only the files they need extracted
+    private boolean lazyFlag = true;
+    
+    // whether the whole package has been extracted, otherwise which data files have been
+    private boolean extractedFlag = false;
+    private final HashSet<String> extractedNames = new HashSet<String>();
+    
+    // cache new packages extract to, if any
+    private static ExtractionCache defaultExtractionCache = null;
+    
+    // cache this package extracts to (null to extract to a temporary directory)
+    private ExtractionCache extractionCache = defaultExtractionCache;
+    
+    // key of a package read from a checked file in the extraction cache (null if it cannot be cached)
+    private String cacheKey = null;
+    
+    // store of file contents shared between packages, if any
+    private static BlobStore defaultBlobStore = null;
+    
+    // store this package's files are copied from when extracted (null to write every file)
+    private BlobStore blobStore = defaultBlobStore;
+    
+    // database of installed packages, if any
+    private static PackageDatabase defaultDatabase = null;
+    
+    // database this package is recorded in when installed (null to not record it)
+    private PackageDatabase database = defaultDatabase;
+    
+    // when the install script was last started by the file system's clock, in nanoseconds (files changed since then
+    // under the install targets, until it finished, were installed)
+    private volatile long installStart = 0;
+    
+    // change times which are whole seconds may have been truncated by the file system
+    private static final long SECOND = 1000000000L;
+    
+    private static final boolean UNIX_FLAG = 
+        FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    
+    // whether each name occurs only once in a package read from a checked file
+    private boolean uniqueNamesFlag = false;
+    
+    // digests file
     private SPMDigest digest = new SPMDigest();
     
     /**
@@ -145,183 +222,1330 @@ public final class SPMPackage {
             
         };
         
-        return readThread;
+        return readThread;
+        
+    }
+    
+    /**
+     * Creates a thread to read a package from the given file.
+     * 
+     * @param filename the name of the file to read.
+     * @return the thread that will read the file.
+     */
+    public Thread newReadThread(final String filename) {
+        return newReadThread(new File(filename));
+    }
+    
+    /**
+     * Reads a package from the given input stream.
+     * 
+     * @param input stream to be read.
+     * @throws IOException upon failure to read from the input stream.
+     * @throws InvalidPackageException if the read package is not valid or has become corrupted.
+     * @throws SPMDigestException if the SHA1 digests indicated an error in one of the files.
+     */
+    public void read(final InputStream input) throws IOException, InvalidPackageException, SPMDigestException {
+        
+        archive = new SPMPackageContainer();
+        archive.read(input);
+        
+        // get special package files
+        license = archive.getFileContents(LICENSE_NAME);
+        build = archive.getFileContents(BUILD_NAME);
+        install = archive.getFileContents(INSTALL_NAME);
+        uninstall = archive.getFileContents(UNINSTALL_NAME);
+        
+        // load digest file
+        byte[] digestBuffer = archive.getFileContents(DIGEST_NAME);
+        if (digestBuffer != null) {
+            
+            digest.read(digestBuffer);
+            
+            // check the digest
+            if (!digest.check(archive)) {
+                
+                StringBuilder msg = new StringBuilder();
+                
+                msg.append("The digest for the SPMPackage \"");
+                msg.append(file.getName());
+                msg.append("\" does not match those given in the package.");
+                
+                throw new InvalidPackageException(msg.toString());
+                
+            }
+            
+        } else { // digest file does not yet exist
+            archive.newFile(DIGEST_NAME);
+        }
+        
+    }
+    
+    /**
+     * Reads a package from the given {@code File}.
+     * 
+     * @param file the file to be read.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws IOException upon failure to read from the input stream.
+     * @throws InvalidPackageException if the read package is not valid or has become corrupted.
+     * @throws SPMDigestException if the SHA1 digests indicated an error in one of the files.
+     */
+    public void read(final File file) throws FileNotFoundException, 
+                                             IOException, 
+                                             InvalidPackageException, 
+                                             SPMDigestException {
+        
+        this.file = file;
+        
+        if (SPMPackageContainer.isCompressed(file)) {
+            
+            TarReader reader = SPMPackageContainer.newReader(file);
+            
+            read(reader);
+            
+            reader.close();
+            
+        } else { // index uncompressed packages in place
+            
+            MappedTarArchive mappedArchive = new MappedTarArchive(file);
+            
+            read(mappedArchive);
+            
+            mappedArchive.close();
+            
+        }
+        
+    }
+    
+    // reads the contents of one of the special files
+    private static byte[] readSpecialFile(final InputStream input, long size) throws InvalidPackageException, 
+                                                                                    IOException {
+        
+        if (size == 0)
+            return null;
+        
+        byte[] fileContents = new byte[(int) size];
+        
+        // read file contents
+        int i = 0;
+        while (i < fileContents.length) {
+            
+            int num = input.read(fileContents, i, fileContents.length - i);
+            if (num == -1)
+                throw new InvalidPackageException("Unexpected end of archive!");
+            
+            i += num;
+            
+        }
+        
+        return fileContents;
+        
+    }
+    
+    // streams the package from the given reader, keeping only the special files in memory
+    private void read(final TarReader reader) throws IOException, InvalidPackageException, SPMDigestException {
+        
+        Records records = new Records(reader, null);
+        
+        TarHeader header;
+        while ((header = reader.next()) != null)
+            records.add(header, reader.getInputStream());
+        
+        records.check();
+        
+    }
+    
+    /**
+     * Reads a package from the given stream in a single pass, extracting each of its files as it arrives.
+     * The stream is read and decompressed on threads of their own, each handing its bytes to the next through a
+     * bounded number of buffers, while the files are hashed and written to disk; so a package which is downloading
+     * (see {@code PackageDownloader.openStream()}) is extracted as fast as it downloads. The digest is checked
+     * once the whole stream has been read, and nothing is left extracted if the package is not valid.
+     * Only the special files are kept in memory, and the scripts are run from where the package was extracted.
+     * 
+     * @param input stream to be read, which is closed once it has been read.
+     * @param file the file the stream is being saved to, which names the package and is read again if the package
+     *        is modified, or {@code null}.
+     * @throws IOException upon failure to read from the input stream or to extract the package.
+     * @throws InvalidPackageException if the read package is not valid or has become corrupted.
+     * @throws SPMDigestException if the digests indicated an error in one of the files, or a download did not
+     *         match its repository index.
+     */
+    public synchronized void stream(final InputStream input, final File file) throws IOException, 
+                                                                                     InvalidPackageException, 
+                                                                                     SPMDigestException {
+        
+        this.file = file;
+        extractedFlag = false;
+        extractedNames.clear();
+        
+        InputStream download = new BufferedInputStream(new PipelineInputStream(input, "spm-download"));
+        InputStream decompressed = download;
+        if (SPMPackageContainer.isCompressed(download)) {
+            decompressed = new PipelineInputStream(new GZIPInputStream(download, PIPELINE_BUFFER_SIZE), 
+                                                   "spm-inflate");
+        }
+        
+        TarReader reader = new TarReader(decompressed);
+        
+        TarExtractor extractor = new TarExtractor(tempDir);
+        extractor.setDeleteOnExit(true);
+        
+        boolean succeededFlag = false;
+        
+        try {
+            
+            tempDir.deleteOnExit();
+            
+            Records records = new Records(reader, tempDir);
+            extractor.extract(reader, records);
+            
+            // read to the end of the stream, so that a download is checked as a whole
+            drain(decompressed);
+            drain(download);
+            
+            records.check();
+            
+            succeededFlag = true;
+            
+        } catch (IOException ex) {
+            
+            if (ex.getCause() instanceof SPMDigestException)
+                throw (SPMDigestException) ex.getCause();
+            
+            throw ex;
+            
+        } finally {
+            
+            decompressed.close();
+            download.close();
+            
+            if (!succeededFlag)
+                delete(tempDir);
+            
+        }
+        
+        extractedFlag = true;
+        
+    }
+    
+    // reads the rest of the given stream
+    private static void drain(final InputStream input) throws IOException {
+        
+        byte[] buffer = new byte[PIPELINE_BUFFER_SIZE];
+        while (input.read(buffer) != -1) {
+            // discard
+        }
+        
+    }
+    
+    // deletes the given file or directory tree
+    private static void delete(final File file) {
+        
+        File[] children = file.listFiles();
+        if (children != null) {
+            
+            for (File child : children)
+                delete(child);
+            
+        }
+        
+        file.delete();
+        
+    }
+    
+    // hard links the given files of an extracted tree (every file other than the excluded ones if null, and
+    // everything in the directories whose names end with a slash) into another directory, creating its directories,
+    // and returns whether every file was still sealed (if not, what was linked is left in place); files which cannot
+    // be linked (such as between file systems) are copied
+    private static boolean link(final File from, 
+                                final File to, 
+                                final Collection<String> includes, 
+                                final Collection<String> excludes) throws IOException {
+        
+        final Path fromPath = from.toPath();
+        final Path toPath = to.toPath();
+        final boolean[] sealedFlag = {true};
+        
+        final TarExtractor filter = new TarExtractor(to);
+        filter.setExcludes(excludes);
+        
+        Files.createDirectories(toPath);
+        
+        FileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attributes) 
+                    throws IOException {
+                
+                if (!filter.isIncluded(getName(dir) + "/"))
+                    return FileVisitResult.SKIP_SUBTREE;
+                
+                createDirectories(toPath, toPath.resolve(fromPath.relativize(dir)));
+                
+                return FileVisitResult.CONTINUE;
+                
+            }
+            
+            @Override
+            public FileVisitResult visitFile(final Path path, final BasicFileAttributes attributes) 
+                    throws IOException {
+                
+                if (!filter.isIncluded(getName(path)))
+                    return FileVisitResult.CONTINUE;
+                
+                if (attributes.isRegularFile() && !BlobStore.isSealed(path, -1)) {
+                    
+                    sealedFlag[0] = false;
+                    
+                    return FileVisitResult.TERMINATE;
+                    
+                }
+                
+                Path target = toPath.resolve(fromPath.relativize(path));
+                
+                createDirectories(toPath, target.getParent());
+                
+                // replaced rather than written through, as it may itself be linked
+                Files.deleteIfExists(target);
+                
+                try {
+                    Files.createLink(target, path);
+                } catch (UnsupportedOperationException | FileSystemException ex) {
+                    Files.copy(path, target, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                }
+                
+                target.toFile().deleteOnExit();
+                
+                return FileVisitResult.CONTINUE;
+                
+            }
+            
+            // returns the name of the record a file of the tree was extracted from
+            private String getName(final Path path) {
+                return fromPath.relativize(path).toString().replace(File.separatorChar, '/');
+            }
+            
+        };
+        
+        if (includes == null) {
+            
+            Files.walkFileTree(fromPath, visitor);
+            
+            return sealedFlag[0];
+            
+        }
+        
+        for (String filename : includes) {
+            
+            Path path = fromPath.resolve(filename);
+            
+            if (!filename.endsWith("/") && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                createDirectories(toPath, toPath.resolve(filename));
+            } else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                Files.walkFileTree(path, visitor);
+            }
+            
+            if (!sealedFlag[0])
+                return false;
+            
+        }
+        
+        return true;
+        
+    }
+    
+    // creates a directory below the given root and its parents, deleting those it creates on exit
+    private static void createDirectories(final Path root, final Path dir) throws IOException {
+        
+        if (dir.equals(root) || Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS))
+            return;
+        
+        createDirectories(root, dir.getParent());
+        
+        Files.createDirectory(dir);
+        dir.toFile().deleteOnExit();
+        
+    }
+    
+    // returns whether the given record is one of the special files which are kept in memory
+    private static boolean isSpecialFile(final String filename) {
+        
+        return filename.equals(LICENSE_NAME) || 
+               filename.equals(BUILD_NAME) || 
+               filename.equals(INSTALL_NAME) || 
+               filename.equals(UNINSTALL_NAME) || 
+               filename.equals(DIGEST_NAME) || 
+               isNeedsFile(filename);
+        
+    }
+    
+    /**
+     * Reads the special files and the hashes of the records of a streamed package, one record at a time.
+     * 
+     */
+    private final class Records implements TarExtractor.Listener {
+        
+        private final TarReader reader;
+        
+        // directory the records are extracted to (null if they are not)
+        private final File dir;
+        
+        // digest of each of the files as they are read, hashed as SHA1 until the digest file says otherwise
+        private SPMDigest fileDigest = new SPMDigest();
+        
+        // whether files were hashed before the digest file was found with another algorithm
+        private boolean rehashFlag = false;
+        
+        private byte[] digestBuffer = null;
+        
+        Records(final TarReader reader, final File dir) {
+            
+            this.reader = reader;
+            this.dir = dir;
+            
+            archive = null;
+            recordCount = 0;
+            fileNames.clear();
+            cacheKey = null;
+            uniqueNamesFlag = false;
+            
+            license = null;
+            build = null;
+            install = null;
+            uninstall = null;
+            needs.clear();
+            
+            reader.setHashing(HashAlgorithm.SHA1);
+            
+        }
+        
+        @Override
+        public void extracted(final TarHeader header, final File file) throws InvalidPackageException, IOException {
+            
+            // the contents of an extracted record have been read, so the special files are read back from disk
+            if (file == null || !file.isFile() || !isSpecialFile(header.getFileName())) {
+                add(header, reader.getInputStream());
+                return;
+            }
+            
+            InputStream input = new BufferedInputStream(new FileInputStream(file));
+            
+            try {
+                add(header, input);
+            } finally {
+                input.close();
+            }
+            
+        }
+        
+        // reads the given record, the contents of which are read from the given stream
+        void add(final TarHeader header, final InputStream input) throws InvalidPackageException, IOException {
+            
+            String filename = header.getFileName();
+            
+            // get special package files
+            byte[] fileContents = null;
+            if (isSpecialFile(filename))
+                fileContents = readSpecialFile(input, header.getFileSize());
+            
+            // the contents are hashed by the reader as they pass through
+            fileDigest.put(filename, reader.getHash());
+            fileNames.add(filename);
+            
+            // only the first file of each name is used
+            if (filename.equals(LICENSE_NAME) && license == null) {
+                license = fileContents;
+            } else if (filename.equals(BUILD_NAME) && build == null) {
+                build = fileContents;
+            } else if (filename.equals(INSTALL_NAME) && install == null) {
+                install = fileContents;
+            } else if (filename.equals(UNINSTALL_NAME) && uninstall == null) {
+                uninstall = fileContents;
+            } else if (isNeedsFile(filename) && !needs.containsKey(filename)) {
+                needs.put(filename, fileContents);
+            } else if (filename.equals(DIGEST_NAME) && digestBuffer == null) {
+                
+                digestBuffer = fileContents;
+                
+                // hash the rest of the files with the algorithm of the digest file
+                if (digestBuffer != null) {
+                    
+                    try {
+                        readDigest(digestBuffer);
+                    } catch (SPMDigestException ex) { // passed on by the extractor
+                        throw new IOException(ex.getMessage(), ex);
+                    }
+                    
+                    if (digest.getAlgorithm() != reader.getHashing()) {
+                        
+                        rehashFlag = recordCount > 0;
+                        
+                        fileDigest.setAlgorithm(digest.getAlgorithm());
+                        reader.setHashing(digest.getAlgorithm());
+                        
+                    }
+                    
+                }
+                
+            }
+            
+            recordCount++;
+            
+        }
+        
+        // checks the digest, hashing the files again if some were hashed with the wrong algorithm
+        void check() throws IOException, InvalidPackageException, SPMDigestException {
+            
+            if (digestBuffer == null)
+                return;
+            
+            if (rehashFlag)
+                fileDigest = dir == null ? hashFile(digest.getAlgorithm()) : hashFiles(dir, digest.getAlgorithm());
+            
+            checkDigest(fileDigest);
+            
+            cacheKey = getCacheKey(digestBuffer);
+            uniqueNamesFlag = fileDigest.size() == recordCount;
+            
+        }
+        
+    }
+    
+    // hashes each of the files of the package which have been extracted to the given directory
+    private SPMDigest hashFiles(final File dir, final HashAlgorithm algorithm) throws IOException {
+        
+        SPMDigest fileDigest = new SPMDigest(algorithm);
+        
+        for (String filename : fileNames) {
+            
+            File extracted = new File(dir, filename);
+            
+            if (!Files.isRegularFile(extracted.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                fileDigest.put(filename, algorithm.hash(new byte[0]));
+                continue;
+            }
+            
+            InputStream input = new BufferedInputStream(new FileInputStream(extracted));
+            
+            try {
+                fileDigest.put(filename, algorithm.hash(input));
+            } finally {
+                input.close();
+            }
+            
+        }
+        
+        return fileDigest;
+        
+    }
+    
+    // hashes each of the files in the package file with the given algorithm
+    private SPMDigest hashFile(final HashAlgorithm algorithm) throws IOException, InvalidPackageException {
+        
+        SPMDigest fileDigest = new SPMDigest(algorithm);
+        
+        TarReader reader = SPMPackageContainer.newReader(file);
+        reader.setHashing(algorithm);
+        
+        TarHeader header;
+        while ((header = reader.next()) != null)
+            fileDigest.put(header.getFileName(), reader.getHash());
+        
+        reader.close();
+        
+        return fileDigest;
+        
+    }
+    
+    // reads the special files of an uncompressed package straight from the mapped archive
+    private void read(final MappedTarArchive mappedArchive) throws IOException, 
+                                                                   InvalidPackageException, 
+                                                                   SPMDigestException {
+        
+        archive = null;
+        recordCount = mappedArchive.size();
+        cacheKey = null;
+        uniqueNamesFlag = false;
+        
+        fileNames.clear();
+        for (int i = 0; i < recordCount; i++)
+            fileNames.add(mappedArchive.getHeader(i).getFileName());
+        
+        // get special package files
+        license = mappedArchive.getFileContents(LICENSE_NAME);
+        build = mappedArchive.getFileContents(BUILD_NAME);
+        install = mappedArchive.getFileContents(INSTALL_NAME);
+        uninstall = mappedArchive.getFileContents(UNINSTALL_NAME);
+        
+        needs.clear();
+        for (String name : new String[] {BUILD_NAME, INSTALL_NAME, UNINSTALL_NAME}) {
+            
+            if (mappedArchive.getFileBuffer(name + NEEDS_SUFFIX) != null)
+                needs.put(name + NEEDS_SUFFIX, mappedArchive.getFileContents(name + NEEDS_SUFFIX));
+            
+        }
+        
+        for (String name : new String[] {TARGETS_NAME, VERSION_NAME}) {
+            
+            if (mappedArchive.getFileBuffer(name) != null)
+                needs.put(name, mappedArchive.getFileContents(name));
+            
+        }
+        
+        // check the digest
+        byte[] digestBuffer = mappedArchive.getFileContents(DIGEST_NAME);
+        if (digestBuffer != null) {
+            
+            readDigest(digestBuffer);
+            
+            SPMDigest fileDigest = new SPMDigest(digest.getAlgorithm());
+            fileDigest.update(mappedArchive, Runtime.getRuntime().availableProcessors());
+            
+            checkDigest(fileDigest);
+            
+            cacheKey = getCacheKey(digestBuffer);
+            uniqueNamesFlag = fileDigest.size() == recordCount;
+            
+        }
+        
+    }
+    
+    // returns the key of the package's files in the extraction cache, which are identified by its digest file
+    private static String getCacheKey(final byte[] digestBuffer) {
+        return HashAlgorithm.SHA256.hash(digestBuffer).toString();
+    }
+    
+    // reads the contents of the package's digest file
+    private void readDigest(final byte[] digestBuffer) throws IOException, SPMDigestException {
+        digest.read(digestBuffer);
+    }
+    
+    // checks the files of the package against the contents of its digest file
+    private void checkDigest(final SPMDigest fileDigest) throws InvalidPackageException, SPMDigestException {
+        
+        if (!digest.check(fileDigest)) {
+            
+            StringBuilder msg = new StringBuilder();
+            
+            msg.append("The digest for the SPMPackage \"");
+            msg.append(file.getName());
+            msg.append("\" does not match those given in the package.");
+            
+            throw new InvalidPackageException(msg.toString());
+            
+        }
+        
+    }
+    
+    /**
+     * Loads the entire contents of this package into memory so that it can be modified or written.
+     * Packages read from a {@code File} are streamed, keeping only the special files in memory, and are loaded
+     * automatically when needed.
+     * 
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws IOException upon failure to read from the input stream.
+     * @throws InvalidPackageException if the read package is not valid or has become corrupted.
+     * @throws SPMDigestException if the SHA1 digests indicated an error in one of the files.
+     */
+    public void load() throws FileNotFoundException, IOException, InvalidPackageException, SPMDigestException {
+        
+        if (archive != null)
+            return;
+        
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        
+        read(input);
+        
+        input.close();
+        
+    }
+    
+    // returns the package archive, loading it into memory if it has only been streamed
+    private SPMPackageContainer getArchive() {
+        
+        if (archive == null) {
+            
+            try {
+                load();
+            } catch (Exception ex) {
+                
+                StringBuilder msg = new StringBuilder();
+                
+                msg.append("Cannot load the package \"");
+                msg.append(file.getPath());
+                msg.append("\" into memory!");
+                
+                throw new IllegalStateException(msg.toString(), ex);
+                
+            }
+            
+        }
+        
+        return archive;
+        
+    }
+    
+    /**
+     * Reads a package from the file named {@code filename}.
+     * 
+     * @param filename the name of the file to be read.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws IOException upon failure to read from the input stream.
+     * @throws InvalidPackageException if the read package is not valid or has become corrupted.
+     * @throws SPMDigestException if the SHA1 digests indicated an error in one of the files.
+     */
+    public void read(final String filename) throws FileNotFoundException, 
+                                                   IOException, 
+                                                   InvalidPackageException, 
+                                                   SPMDigestException {
+        
+        setFile(filename);
+        read(new File(filename));
+        
+    }
+    
+    /**
+     * Writes this {@code SPMPackage} to the given output stream.
+     * 
+     * @param output the stream to write to.
+     * @throws IOException upon failure to write to the output stream.
+     * @throws InvalidPackageException if this package has become corrupted.
+     */
+    public void write(final OutputStream output) throws IOException, InvalidPackageException {
+        
+        SPMPackageContainer archive = getArchive();
+        
+        // update digest file (which cannot list itself)
+        digest.update(archive);
+        digest.remove(DIGEST_NAME);
+        
+        // write the digest file first so that readers know its algorithm before reaching the other files
+        TarRecord digestRecord = archive.getRecordByName(DIGEST_NAME);
+        if (digestRecord == null) {
+            archive.newFile(DIGEST_NAME);
+            digestRecord = archive.getRecordByName(DIGEST_NAME);
+        }
+        
+        archive.remove(digestRecord);
+        archive.add(0, digestRecord);
+        archive.setFileContents(DIGEST_NAME, digest.toByteArray());
+        
+        archive.write(output);
+        
+    }
+    
+    /**
+     * Writes this {@code SPMPackage} to the given output file.
+     * 
+     * @param file the file to write to.
+     * @throws IOException upon failure to write to the output file.
+     * @throws InvalidPackageException if this package has become corrupted.
+     */
+    public void write(final File file) throws IOException, InvalidPackageException {
+        
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+        
+        this.file = file;
+        write(output);
+        
+        output.close();
+        
+    }
+    
+    /**
+     * Writes this {@code SPMPackage} to the output file named {@code filename}.
+     * 
+     * @param filename name of the file to write to.
+     * @throws IOException upon failure to write to the output file.
+     * @throws InvalidPackageException if this package has become corrupted.
+     */
+    public void write(final String filename) throws IOException, InvalidPackageException {
+        setFile(filename);
+        write(new File(filename));
+    }
+    
+    // temporary directory for file extraction (package-private for tests)
+    final File tempDir = new File(System.getProperty("java.io.tmpdir") + 
+                                          File.separator + 
+                                          "spm-" + Integer.toHexString(hashCode()) +
+                                          File.separator);
+    
+    // executes the given file in the package and returns the Process representing it
+    private Process execute(final String filename) throws FileNotFoundException, 
+                                                         InvalidPackageException, 
+                                                         IOException {
+        
+        return start(filename, prepare(filename));
+        
+    }
+    
+    // extracts the given file in the package and the files it needs, and returns the directory to run it from
+    private synchronized File prepare(final String filename) throws FileNotFoundException, 
+                                                                    InvalidPackageException, 
+                                                                    IOException {
+        
+        List<String> neededFiles = lazyFlag ? getNeededFiles(filename) : null;
+        
+        File extractDir = tempDir;
+        
+        // extract package files
+        boolean cachedFlag = extractionCache != null && archive == null && cacheKey != null;
+        
+        if (neededFiles == null) {
+            
+            tempDir.deleteOnExit();
+            
+            if (!extractedFlag) {
+                
+                // the files extracted for earlier scripts are kept, as they may have changed them
+                if (cachedFlag) // shared with other runs
+                    extractCached(null, extractedNames);
+                else
+                    extract(tempDir, null, extractedNames, true);
+                
+                extractedFlag = true;
+                
+            }
+            
+        } else if (!extractedFlag) { // only the script and the data files it needs
+            
+            tempDir.deleteOnExit();
+            
+            writeScript(filename);
+            
+            neededFiles.removeAll(extractedNames);
+            if (!neededFiles.isEmpty()) {
+                
+                // a few files are not worth filling the cache with the whole package, but are linked from it if it
+                // is there already
+                if (cachedFlag && extractionCache.contains(cacheKey))
+                    extractCached(neededFiles, null);
+                else
+                    extract(tempDir, neededFiles, null, true);
+                
+                extractedNames.addAll(neededFiles);
+                
+            }
+            
+        }
+        
+        return extractDir;
+        
+    }
+    
+    // runs the given file in the package once it has been extracted to the given directory
+    private Process start(final String filename, final File extractDir) throws IOException {
+        
+        String longFilename = extractDir.getAbsolutePath() + File.separator + filename;
+        File dataDir = new File(extractDir, "data");
+        
+        if (filename.equals(INSTALL_NAME))
+            installStart = nextFileSystemTime();
+        
+        if (!dataDir.exists()) {
+            dataDir.mkdirs();
+            dataDir.deleteOnExit();
+        }
+        
+        // ensure that the file can be executed, replacing it by a copy of its own if it is linked from the blob store
+        // or the extraction cache, whose files are sealed
+        File scriptFile = new File(longFilename);
+        if (!scriptFile.canExecute()) {
+            
+            byte[] script = Files.readAllBytes(scriptFile.toPath());
+            
+            Files.delete(scriptFile.toPath());
+            Files.write(scriptFile.toPath(), script);
+            
+            scriptFile.setExecutable(true);
+            
+        }
+        
+        return Runtime.getRuntime().exec(longFilename, null, dataDir);
+        
+    }
+    
+    // extracts the given records of the package (every record if null) other than the excluded ones (if any), and
+    // returns the number of bytes extracted
+    private long extract(final File dir, 
+                         final Collection<String> includes, 
+                         final Collection<String> excludes, 
+                         boolean deleteFlag) throws InvalidPackageException, IOException {
+        
+        TarExtractor extractor = new TarExtractor(dir);
+        extractor.setDeleteOnExit(deleteFlag);
+        extractor.setIncludes(includes);
+        extractor.setExcludes(excludes);
+        
+        // the package on disk is read again, so what is extracted is checked against the digest once more
+        if (archive == null && cacheKey != null)
+            extractor.setCheckedHashes(digest);
+        
+        // the checked digest gives the hash of each file, as long as no name is shared by several files
+        if (blobStore != null && archive == null && cacheKey != null && uniqueNamesFlag)
+            extractor.setBlobStore(blobStore, digest);
+        
+        if (archive == null && SPMPackageContainer.isCompressed(file)) { // stream from the package on disk
+            
+            TarReader reader = SPMPackageContainer.newReader(file);
+            
+            extractor.extract(reader);
+            reader.close();
+            
+        } else if (archive == null) { // copy straight from the uncompressed package on disk
+            
+            MappedTarArchive mappedArchive = new MappedTarArchive(file);
+            
+            extractor.extract(mappedArchive);
+            mappedArchive.close();
+            
+        } else {
+            extractor.extract(archive);
+        }
+        
+        return extractor.getByteCount();
+        
+    }
+    
+    // links the given records of the package (every record if null) other than the excluded ones (if any) from the
+    // extraction cache into the temporary directory, filling the cache entry first if it is not there
+    private void extractCached(final Collection<String> includes, 
+                               final Collection<String> excludes) throws InvalidPackageException, IOException {
+        
+        // the entry is filled from the package on disk, which is checked against the digest as it is extracted
+        File cachedDir = extractionCache.extract(cacheKey, new ExtractionCache.Extraction() {
+            
+            @Override
+            public long extractTo(final File root) throws InvalidPackageException, IOException {
+                return extract(root, null, null, false);
+            }
+            
+        });
+        
+        if (!link(cachedDir, tempDir, includes, excludes)) { // a file of the entry was changed through a link to it
+            
+            StringBuilder msg = new StringBuilder();
+            
+            msg.append("Removing the changed entry \"");
+            msg.append(cachedDir.getParent());
+            msg.append("\" from the extraction cache.");
+            
+            logger.warning(msg.toString());
+            
+            extractionCache.remove(cacheKey);
+            
+            extract(tempDir, includes, excludes, true);
+            
+        }
+        
+    }
+    
+    // returns the contents of one of the scripts, which must exist
+    private byte[] getScript(final String filename) throws FileNotFoundException {
+        
+        byte[] script = null;
+        if (filename.equals(BUILD_NAME)) {
+            script = build;
+        } else if (filename.equals(INSTALL_NAME)) {
+            script = install;
+        } else if (filename.equals(UNINSTALL_NAME)) {
+            script = uninstall;
+        }
+        
+        if (script == null) {
+            
+            StringBuilder msg = new StringBuilder();
+            
+            msg.append("The package does not contain the \"");
+            msg.append(filename);
+            msg.append("\" file!");
+            
+            throw new FileNotFoundException(msg.toString());
+            
+        }
+        
+        return script;
+        
+    }
+    
+    // writes one of the scripts to the temporary directory from memory
+    private void writeScript(final String filename) throws FileNotFoundException, IOException {
+        
+        byte[] script = getScript(filename);
+        
+        tempDir.mkdirs();
+        
+        File scriptFile = new File(tempDir, filename);
+        scriptFile.deleteOnExit();
+        
+        // replaced rather than written through, as it may be linked from the blob store
+        Files.deleteIfExists(scriptFile.toPath());
+        
+        OutputStream output = new FileOutputStream(scriptFile);
+        
+        output.write(script);
+        
+        output.close();
+        
+    }
+    
+    // returns whether the given record lists what one of the scripts needs or writes to
+    private static boolean isNeedsFile(final String filename) {
+        
+        return filename.equals(BUILD_NAME + NEEDS_SUFFIX) || 
+               filename.equals(INSTALL_NAME + NEEDS_SUFFIX) || 
+               filename.equals(UNINSTALL_NAME + NEEDS_SUFFIX) || 
+               filename.equals(TARGETS_NAME) || 
+               filename.equals(VERSION_NAME);
+        
+    }
+    
+    // returns the lines of the given list file, or null if the package does not contain it
+    private List<String> getList(final String listName) {
+        
+        byte[] listFile;
+        if (archive != null) {
+            
+            if (archive.getRecordByName(listName) == null)
+                return null;
+            
+            listFile = archive.getFileContents(listName);
+            
+        } else {
+            
+            if (!needs.containsKey(listName))
+                return null;
+            
+            listFile = needs.get(listName);
+            
+        }
+        
+        // one path per line, skipping blank lines and comments
+        ArrayList<String> lines = new ArrayList<String>();
+        
+        if (listFile != null) {
+            
+            for (String line : getString(listFile).split("\n")) {
+                
+                line = line.trim();
+                
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+                
+                lines.add(line);
+                
+            }
+            
+        }
+        
+        return lines;
+        
+    }
+    
+    // returns the names of the records the given script needs, or null if it does not say
+    private List<String> getNeededFiles(final String filename) {
+        
+        List<String> lines = getList(filename + NEEDS_SUFFIX);
+        
+        if (lines == null)
+            return null;
+        
+        // one path within the data directory per line (directories end with a slash)
+        ArrayList<String> neededFiles = new ArrayList<String>();
+        
+        for (String line : lines) {
+            
+            while (line.startsWith("./") || line.startsWith("/"))
+                line = line.substring(line.indexOf('/') + 1);
+            
+            neededFiles.add(DATA_PREFIX + line);
+            
+        }
+        
+        return neededFiles;
+        
+    }
+    
+    /**
+     * Returns the paths the install script writes to, as listed in the package's {@code install.targets} file, one
+     * per line. Used to tell which packages can be installed at the same time.
+     * 
+     * @return the paths the install script writes to, or {@code null} if the package does not say (in which case
+     *         it may write anywhere).
+     */
+    public List<String> getInstallTargets() {
+        return getList(TARGETS_NAME);
+    }
+    
+    /**
+     * Returns the version of the package, as given by the first line of its {@code version} file.
+     * 
+     * @return the version of the package, or {@code null} if the package does not say.
+     */
+    public String getVersion() {
+        
+        List<String> lines = getList(VERSION_NAME);
+        
+        return lines == null || lines.isEmpty() ? null : lines.get(0);
+        
+    }
+    
+    // adds the steps which, once the given steps have succeeded, extract the given file in the package and then run
+    // it, returning the step which runs it
+    private SPMStep addSteps(final List<SPMStep> steps, 
+                             final String filename, 
+                             final SPMStep... dependencies) throws FileNotFoundException {
+        
+        getScript(filename); // fail now rather than when the step starts
+        
+        // passed from the extraction step to the step which depends on it
+        final File[] extractDir = new File[1];
+        
+        // name the steps after the package as well, if it has one
+        String stepName = file == null ? filename : getName() + ": " + filename;
+        
+        SPMStep extractStep = new SPMStep("extract " + stepName, new SPMStep.Action() {
+            
+            @Override
+            public Process start() throws InvalidPackageException, IOException {
+                
+                extractDir[0] = prepare(filename);
+                
+                return null;
+                
+            }
+            
+        }, dependencies); // the scripts run before may still be running in the directory extracted to
+        
+        SPMStep runStep = new SPMStep(stepName, new SPMStep.Action() {
+            
+            @Override
+            public Process start() throws IOException {
+                return SPMPackage.this.start(filename, extractDir[0]);
+            }
+            
+        }, extractStep);
+        
+        steps.add(extractStep);
+        steps.add(runStep);
+        
+        return runStep;
+        
+    }
+    
+    // adds the steps which build the package and then install it once the given steps have succeeded, returning the
+    // step which installs it (the step which records it in the database, if there is one, is added last)
+    SPMStep addInstallSteps(final List<SPMStep> steps, final SPMStep... dependencies) throws FileNotFoundException {
+        
+        // the install script is extracted once the package has built, so that nothing is extracted over what the build
+        // script is using or has changed, and the package is built once the given steps (which may run scripts in the
+        // same directory) have succeeded
+        SPMStep buildStep = addSteps(steps, BUILD_NAME, dependencies);
+        
+        SPMStep installStep = addSteps(steps, INSTALL_NAME, buildStep);
+        
+        // record the package once it has been installed
+        final PackageDatabase database = this.database;
+        if (database != null && file != null) {
+            
+            steps.add(new SPMStep("record " + getName(), new SPMStep.Action() {
+                
+                @Override
+                public Process start() throws IOException {
+                    
+                    // the install script has finished, so everything it changed has a change time up to now
+                    long installEnd = getFileSystemTime();
+                    
+                    List<String> targets = getInstallTargets();
+                    if (targets == null) {
+                        
+                        StringBuilder msg = new StringBuilder();
+                        
+                        msg.append("\"");
+                        msg.append(getName());
+                        msg.append("\" does not list its install targets, so the files it installed are not ");
+                        msg.append("recorded.");
+                        
+                        logger.info(msg.toString());
+                        
+                        targets = Collections.emptyList();
+                        
+                    }
+                    
+                    database.add(getName(), getVersion(), cacheKey, 
+                                 getInstalledPaths(targets, installStart, installEnd));
+                    
+                    return null;
+                    
+                }
+                
+            }, installStep));
+            
+        }
+        
+        return installStep;
         
     }
     
-    /**
-     * Creates a thread to read a package from the given file.
-     * 
-     * @param filename the name of the file to read.
-     * @return the thread that will read the file.
-     */
-    public Thread newReadThread(final String filename) {
-        return newReadThread(new File(filename));
-    }
-    
-    /**
-     * Reads a package from the given input stream.
-     * 
-     * @param input stream to be read.
-     * @throws IOException upon failure to read from the input stream.
-     * @throws InvalidPackageException if the read package is not valid or has become corrupted.
-     * @throws SPMDigestException if the SHA1 digests indicated an error in one of the files.
-     */
-    public void read(final InputStream input) throws IOException, InvalidPackageException, SPMDigestException {
+    // returns the given install targets, and the files and directories under them which were changed between the
+    // given times of the file system's clock
+    private static List<String> getInstalledPaths(final List<String> targets, 
+                                                  final long start, 
+                                                  final long end) throws IOException {
         
-        archive = new SPMPackageContainer();
-        archive.read(input);
-        
-        // get special package files
-        license = archive.getFileContents(LICENSE_NAME);
-        build = archive.getFileContents(BUILD_NAME);
-        install = archive.getFileContents(INSTALL_NAME);
-        uninstall = archive.getFileContents(UNINSTALL_NAME);
+        final ArrayList<String> paths = new ArrayList<String>();
         
-        // load digest file
-        byte[] digestBuffer = archive.getFileContents(DIGEST_NAME);
-        if (digestBuffer != null) {
+        for (String target : targets) {
             
-            digest.read(new StringBuffer(new String(digestBuffer, "UTF-8")));
+            final Path targetPath = Paths.get(PackageDatabase.normalizePath(target));
             
-            // check the SHA1 digest
-            if (!digest.check(archive)) {
+            paths.add(targetPath.toString());
+            
+            if (!Files.isDirectory(targetPath, LinkOption.NOFOLLOW_LINKS))
+                continue;
+            
+            Files.walkFileTree(targetPath, new SimpleFileVisitor<Path>() {
                 
-                StringBuilder msg = new StringBuilder();
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attributes) 
+                        throws IOException {
+                    
+                    if (!dir.equals(targetPath) && isChangedBetween(dir, attributes, start, end))
+                        paths.add(dir.toString());
+                    
+                    return FileVisitResult.CONTINUE;
+                    
+                }
                 
-                msg.append("The SHA1 digest for the SPMPackage \"");
-                msg.append(file.getName());
-                msg.append("\" does not match those given in the package.");
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) 
+                        throws IOException {
+                    
+                    if (isChangedBetween(file, attributes, start, end))
+                        paths.add(file.toString());
+                    
+                    return FileVisitResult.CONTINUE;
+                    
+                }
                 
-                throw new InvalidPackageException(msg.toString());
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                    
+                    logger.log(Level.FINE, "Cannot read " + file, ex);
+                    
+                    return FileVisitResult.CONTINUE;
+                    
+                }
                 
-            }
+            });
             
-        } else { // digest file does not yet exist
-            newFile(DIGEST_NAME);
         }
         
+        return paths;
+        
     }
     
-    /**
-     * Reads a package from the given {@code File}.
-     * 
-     * @param file the file to be read.
-     * @throws FileNotFoundException if the file could not be opened for reading.
-     * @throws IOException upon failure to read from the input stream.
-     * @throws InvalidPackageException if the read package is not valid or has become corrupted.
-     * @throws SPMDigestException if the SHA1 digests indicated an error in one of the files.
-     */
-    public void read(final File file) throws FileNotFoundException, 
-                                             IOException, 
-                                             InvalidPackageException, 
-                                             SPMDigestException {
+    // returns whether a file was last changed between the given times of the file system's clock
+    private static boolean isChangedBetween(final Path path, 
+                                            final BasicFileAttributes attributes, 
+                                            long start, 
+                                            long end) throws IOException {
         
-        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        long time = getChangeTime(path, attributes);
         
-        this.file = file;
-        read(input);
+        if (time % SECOND == 0) // possibly truncated
+            start -= start % SECOND;
         
-        input.close();
+        return time >= start && time <= end;
         
     }
     
-    /**
-     * Reads a package from the file named {@code filename}.
-     * 
-     * @param filename the name of the file to be read.
-     * @throws FileNotFoundException if the file could not be opened for reading.
-     * @throws IOException upon failure to read from the input stream.
-     * @throws InvalidPackageException if the read package is not valid or has become corrupted.
-     * @throws SPMDigestException if the SHA1 digests indicated an error in one of the files.
-     */
-    public void read(final String filename) throws FileNotFoundException, 
-                                                   IOException, 
-                                                   InvalidPackageException, 
-                                                   SPMDigestException {
+    // returns when a file was last changed in nanoseconds, using the inode change time where there is one, as
+    // copying a file can keep its modification time (and the inode change time cannot be set back)
+    private static long getChangeTime(final Path path, 
+                                      final BasicFileAttributes attributes) throws IOException {
         
-        setFile(filename);
-        read(new File(filename));
+        FileTime time = attributes.lastModifiedTime();
+        
+        if (UNIX_FLAG)
+            time = (FileTime) Files.getAttribute(path, "unix:ctime", LinkOption.NOFOLLOW_LINKS);
+        
+        return time.to(TimeUnit.NANOSECONDS);
         
     }
     
-    /**
-     * Writes this {@code SPMPackage} to the given output stream.
-     * 
-     * @param output the stream to write to.
-     * @throws IOException upon failure to write to the output stream.
-     * @throws InvalidPackageException if this package has become corrupted.
-     */
-    public void write(final OutputStream output) throws IOException, InvalidPackageException {
+    // returns the time of the file system's clock in nanoseconds, which change times are taken from and which may
+    // lag behind the system clock
+    private static long getFileSystemTime() throws IOException {
         
-        // update digest file
-        digest.update(archive);
-        archive.setFileContents(DIGEST_NAME, digest.toString().getBytes("UTF-8"));
+        Path marker = Files.createTempFile("spm-", ".time");
         
-        archive.write(output);
+        try {
+            return getChangeTime(marker, Files.readAttributes(marker, BasicFileAttributes.class));
+        } finally {
+            Files.delete(marker);
+        }
         
     }
     
-    /**
-     * Writes this {@code SPMPackage} to the given output file.
-     * 
-     * @param file the file to write to.
-     * @throws IOException upon failure to write to the output file.
-     * @throws InvalidPackageException if this package has become corrupted.
-     */
-    public void write(final File file) throws IOException, InvalidPackageException {
-        
-        OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+    // waits for the file system's clock to move on and returns its time, so that everything changed before has an
+    // earlier change time
+    private static long nextFileSystemTime() throws IOException {
         
-        this.file = file;
-        write(output);
+        long time = getFileSystemTime();
         
-        output.close();
+        try {
+            
+            long nextTime;
+            while ((nextTime = getFileSystemTime()) <= time)
+                Thread.sleep(1);
+            
+            return nextTime;
+            
+        } catch (InterruptedException ex) {
+            
+            Thread.currentThread().interrupt();
+            
+            throw new InterruptedIOException("Interrupted while waiting for the file system's clock.");
+            
+        }
         
     }
     
-    /**
-     * Writes this {@code SPMPackage} to the output file named {@code filename}.
-     * 
-     * @param filename name of the file to write to.
-     * @throws IOException upon failure to write to the output file.
-     * @throws InvalidPackageException if this package has become corrupted.
-     */
-    public void write(final String filename) throws IOException, InvalidPackageException {
-        setFile(filename);
-        write(new File(filename));
-    }
-    
-    // temporary directory for file extraction
-    private final File tempDir = new File(System.getProperty("java.io.tmpdir") + 
-                                          File.separator + 
-                                          "spm-" + Integer.toHexString(hashCode()) +
-                                          File.separator);
-    
-    // executes the given file in the package and returns the Process representing it
-    private Process execute(final String filename) throws FileNotFoundException, 
-                                                         InvalidPackageException, 
-                                                         IOException {
+    // adds the steps which un-install the package and then remove it from the database of installed packages,
+    // returning the last of them
+    private SPMStep addUninstallSteps(final List<SPMStep> steps) throws FileNotFoundException {
         
-        StringBuilder string = new StringBuilder();
+        SPMStep uninstallStep = addSteps(steps, UNINSTALL_NAME);
         
-        tempDir.deleteOnExit();
+        final PackageDatabase database = this.database;
+        if (database == null || file == null)
+            return uninstallStep;
         
-        // extract package files
-        if (!tempDir.exists()) {
-            archive.extract(tempDir, true);
-        }
-        
-        String longFilename = tempDir.getPath() + File.separator + filename;
-        File dataDir = new File(tempDir, "data");
+        SPMStep forgetStep = new SPMStep("forget " + getName(), new SPMStep.Action() {
+            
+            @Override
+            public Process start() throws IOException {
+                
+                database.remove(getName());
+                
+                return null;
+                
+            }
+            
+        }, uninstallStep);
         
-        // ensure that the file can be executed
-        new File(longFilename).setExecutable(true);
+        steps.add(forgetStep);
         
-        return Runtime.getRuntime().exec(longFilename, null, dataDir);
+        return forgetStep;
         
     }
     
+    // returns an executor running the given steps
+    private static SPMExecutor newExecutor(final List<SPMStep> steps) {
+        return new SPMExecutor(steps.toArray(new SPMStep[steps.size()]));
+    }
+    
     /**
      * Builds the package (but does not install it).
      * 
@@ -354,7 +1578,11 @@ public final class SPMPackage {
                                                  InvalidPackageException, 
                                                  IOException {
         
-        return new SPMExecutor(build());
+        ArrayList<SPMStep> steps = new ArrayList<SPMStep>();
+        
+        addSteps(steps, BUILD_NAME);
+        
+        return newExecutor(steps);
         
     }
     
@@ -365,7 +1593,10 @@ public final class SPMPackage {
      * @throws FileNotFoundException if the install file does not exist.
      * @throws InvalidPackageException if this {@code SPMPackage} has become corrupted.
      * @throws IOException if file cannot be executed.
+     * @deprecated the processes are started together, so the install file may run before the package has built;
+     *             use {@code getInstallExecutor()}.
      */
+    @Deprecated
     public Process[] install() throws FileNotFoundException, 
                                       InvalidPackageException, 
                                       IOException {
@@ -381,6 +1612,7 @@ public final class SPMPackage {
     
     /**
      * Returns the {@code SPMExecutor} for the installation file in this package.
+     * The installation file runs once the build file has succeeded, and is extracted while the build file runs.
      * 
      * @return the {@code SPMExecutor} for the installation file in this package.
      * @throws FileNotFoundException if the installation file does not exist.
@@ -391,7 +1623,11 @@ public final class SPMPackage {
                                                    InvalidPackageException, 
                                                    IOException {
         
-        return new SPMExecutor(install());
+        ArrayList<SPMStep> steps = new ArrayList<SPMStep>();
+        
+        addInstallSteps(steps);
+        
+        return newExecutor(steps);
         
     }
     
@@ -427,7 +1663,11 @@ public final class SPMPackage {
                                                   InvalidPackageException, 
                                                   IOException {
         
-        return new SPMExecutor(uninstall());
+        ArrayList<SPMStep> steps = new ArrayList<SPMStep>();
+        
+        addUninstallSteps(steps);
+        
+        return newExecutor(steps);
         
     }
     
@@ -438,7 +1678,10 @@ public final class SPMPackage {
      * @throws FileNotFoundException if the update file does not exist.
      * @throws InvalidPackageException if this {@code SPMPackage} has become corrupted.
      * @throws IOException if file cannot be executed.
+     * @deprecated the processes are started together, so they may run in any order; use
+     *             {@code getUpdateExecutor()}.
      */
+    @Deprecated
     public Process[] update() throws FileNotFoundException, 
                                      InvalidPackageException, 
                                      IOException {
@@ -454,6 +1697,7 @@ public final class SPMPackage {
     
     /**
      * Returns the {@code SPMExecutor} for updating this package.
+     * The package is built while the un-installation file runs, and installed once both have succeeded.
      * 
      * @return the {@code SPMExecutor} for the update files in this package.
      * @throws FileNotFoundException if the update files does not exist.
@@ -464,7 +1708,30 @@ public final class SPMPackage {
                                                InvalidPackageException, 
                                                IOException {
         
-        return new SPMExecutor(update());
+        ArrayList<SPMStep> steps = new ArrayList<SPMStep>();
+        
+        // the new version builds while the old one is removed, and is installed once both have succeeded
+        addInstallSteps(steps, addUninstallSteps(steps));
+        
+        return newExecutor(steps);
+        
+    }
+    
+    /**
+     * Returns the names of the files in the package, in the order they are stored.
+     * 
+     * @return the names of the files in the package.
+     */
+    public List<String> getFileNames() {
+        
+        if (archive == null)
+            return Collections.unmodifiableList(fileNames);
+        
+        ArrayList<String> names = new ArrayList<String>(archive.size());
+        for (TarRecord record : archive)
+            names.add(record.getHeader().getFileName());
+        
+        return names;
         
     }
     
@@ -474,7 +1741,167 @@ public final class SPMPackage {
      * @return whether or not this {@code SPMPackage} is empty or not (contains no files).
      */
     public boolean isEmpty() {
-        return archive.isEmpty();
+        
+        if (archive == null) {
+            return recordCount == 0;
+        } else {
+            return archive.isEmpty();
+        }
+        
+    }
+    
+    /**
+     * Sets the extraction cache used by packages created after this call.
+     * 
+     * @param cache the extraction cache, or {@code null} to extract packages to temporary directories.
+     */
+    public static void setDefaultExtractionCache(final ExtractionCache cache) {
+        defaultExtractionCache = cache;
+    }
+    
+    /**
+     * Returns the extraction cache used by newly created packages.
+     * 
+     * @return the extraction cache, or {@code null} if packages are extracted to temporary directories.
+     */
+    public static ExtractionCache getDefaultExtractionCache() {
+        return defaultExtractionCache;
+    }
+    
+    /**
+     * Sets the cache this package is extracted to when its scripts are run.
+     * Only packages read from a file, with a digest file, and not since modified are cached; others are extracted
+     * to a temporary directory. The scripts are run in a temporary copy of the cached files, never in the cache.
+     * 
+     * @param cache the extraction cache, or {@code null} to extract to a temporary directory.
+     */
+    public void setExtractionCache(final ExtractionCache cache) {
+        this.extractionCache = cache;
+    }
+    
+    /**
+     * Returns the cache this package is extracted to when its scripts are run.
+     * 
+     * @return the extraction cache, or {@code null} if the package is extracted to a temporary directory.
+     */
+    public ExtractionCache getExtractionCache() {
+        return extractionCache;
+    }
+    
+    /**
+     * Sets the blob store used by packages created after this call.
+     * 
+     * @param store the blob store, or {@code null} to write every extracted file.
+     */
+    public static void setDefaultBlobStore(final BlobStore store) {
+        defaultBlobStore = store;
+    }
+    
+    /**
+     * Returns the blob store used by newly created packages.
+     * 
+     * @return the blob store, or {@code null} if every extracted file is written.
+     */
+    public static BlobStore getDefaultBlobStore() {
+        return defaultBlobStore;
+    }
+    
+    /**
+     * Sets the store this package's files are copied from when it is extracted, and added to when they are not
+     * already stored. Only packages read from a file, with a digest file, and not since modified use the store.
+     * Extracted files are copies, so scripts may modify them in place without changing the store.
+     * 
+     * @param store the blob store, or {@code null} to write every extracted file.
+     */
+    public void setBlobStore(final BlobStore store) {
+        this.blobStore = store;
+    }
+    
+    /**
+     * Returns the store this package's files are copied from when it is extracted.
+     * 
+     * @return the blob store, or {@code null} if every extracted file is written.
+     */
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+    
+    /**
+     * Sets the database of installed packages used by packages created after this call.
+     * 
+     * @param database the database, or {@code null} to not record installed packages.
+     */
+    public static void setDefaultDatabase(final PackageDatabase database) {
+        defaultDatabase = database;
+    }
+    
+    /**
+     * Returns the database of installed packages used by newly created packages.
+     * 
+     * @return the database, or {@code null} if installed packages are not recorded.
+     */
+    public static PackageDatabase getDefaultDatabase() {
+        return defaultDatabase;
+    }
+    
+    /**
+     * Sets the database this package is recorded in once it has been installed, and removed from once it has been
+     * un-installed. The paths recorded are those listed in its {@code install.targets} file, and the files and
+     * directories under them which were changed while it was installed. Only packages read from a file are
+     * recorded.
+     * 
+     * @param database the database, or {@code null} to not record this package.
+     */
+    public void setDatabase(final PackageDatabase database) {
+        this.database = database;
+    }
+    
+    /**
+     * Returns the database this package is recorded in once it has been installed.
+     * 
+     * @return the database, or {@code null} if this package is not recorded.
+     */
+    public PackageDatabase getDatabase() {
+        return database;
+    }
+    
+    /**
+     * Sets whether scripts are run with only the files they need extracted.
+     * A script's needs are listed in the package file of its name followed by {@code .needs}, one path within
+     * the {@code data} directory per line (a path ending with {@code /} needs the whole directory). Scripts
+     * without such a file have the whole package extracted.
+     * 
+     * @param lazyFlag whether to extract only the files scripts need.
+     */
+    public void setLazyExtraction(boolean lazyFlag) {
+        this.lazyFlag = lazyFlag;
+    }
+    
+    /**
+     * Returns whether scripts are run with only the files they need extracted.
+     * 
+     * @return whether only the files scripts need are extracted.
+     */
+    public boolean isLazyExtraction() {
+        return lazyFlag;
+    }
+    
+    /**
+     * Returns the algorithm of the package's digest file.
+     * 
+     * @return the hash algorithm used to check the files of the package.
+     */
+    public HashAlgorithm getDigestAlgorithm() {
+        return digest.getAlgorithm();
+    }
+    
+    /**
+     * Sets the algorithm of the package's digest file, which is used when the package is next written.
+     * 
+     * @param algorithm the hash algorithm used to check the files of the package.
+     */
+    public void setDigestAlgorithm(final HashAlgorithm algorithm) {
+        digest.setAlgorithm(algorithm);
     }
     
     /**
@@ -483,7 +1910,7 @@ public final class SPMPackage {
      * @param filename name of the new file.
      */
     public void newFile(final String filename) {
-        archive.newFile(FILE_PREFIX + filename);
+        getArchive().newFile(FILE_PREFIX + filename);
     }
     
     /**
@@ -492,7 +1919,7 @@ public final class SPMPackage {
      * @param pattern regex pattern to be matched.
      */
     public void deleteFile(final String pattern) {
-        archive.deleteFile(pattern);
+        getArchive().deleteFile(pattern);
     }
     
     /**
@@ -501,7 +1928,7 @@ public final class SPMPackage {
      * @param pattern regex pattern to be matched.
      */
     public void deleteFiles(final String pattern) {
-        archive.deleteFiles(pattern);
+        getArchive().deleteFiles(pattern);
     }
     
     /**
@@ -511,7 +1938,7 @@ public final class SPMPackage {
      * @param fileContents the contents of the file.
      */
     public void addFile(final String filename, final byte[] fileContents) {
-        archive.addFile(FILE_PREFIX + filename, fileContents);
+        getArchive().addFile(FILE_PREFIX + filename, fileContents);
     }
     
     /**
@@ -522,7 +1949,7 @@ public final class SPMPackage {
      * @throws FileNotFoundException upon failure to open the given file.
      */
     public void addFile(final File file) throws IOException, FileNotFoundException {
-        archive.addFile(FILE_PREFIX + file.getPath());
+        getArchive().addFile(FILE_PREFIX + file.getPath());
     }
     
     /**
@@ -533,7 +1960,7 @@ public final class SPMPackage {
      * @throws FileNotFoundException upon failure to open the given file.
      */
     public void addFile(final String filename) throws IOException, FileNotFoundException {
-        archive.addFile(FILE_PREFIX + filename);
+        getArchive().addFile(FILE_PREFIX + filename);
     }
     
     /**
@@ -543,7 +1970,7 @@ public final class SPMPackage {
      * @return the first file in the package which name matches the given pattern.
      */
     public byte[] getFile(final String pattern) {
-        return archive.getRecord(FILE_PREFIX + "(?:" + pattern + ")").getFileContents();
+        return getArchive().getRecord(FILE_PREFIX + "(?:" + pattern + ")").getFileContents();
     }
     
     /**
@@ -554,7 +1981,7 @@ public final class SPMPackage {
      */
     public byte[][] getFiles(final String pattern) {
         
-        TarRecord[] records = archive.getRecords(FILE_PREFIX + "(?:" + pattern + ")");
+        TarRecord[] records = getArchive().getRecords(FILE_PREFIX + "(?:" + pattern + ")");
         byte[][] files = new byte[records.length][];
         
         // get the contents of each of the files
@@ -616,21 +2043,22 @@ public final class SPMPackage {
         
     }
 
-    // sets one of the special files contens
+    // sets one of the special files contens, loading a package read lazily first (which reads the special files
+    // again), so the caller must set its field afterwards
     private void setSpecialFileContents(final String filename, final byte[] fileContents) {
         
         // put file contents in the files record
-        TarRecord record = archive.getRecord(filename);
+        TarRecord record = getArchive().getRecordByName(filename);
         if (record == null) {
             
             // create the file if it does not exist
-            archive.newFile(filename);
-            setLicense(fileContents);
+            getArchive().newFile(filename);
+            record = getArchive().getRecordByName(filename);
             
-        } else {
-            record.setFileContents(fileContents);
         }
         
+        record.setFileContents(fileContents);
+        
     }
     
     // attempt to convert a byte array to a string
@@ -674,8 +2102,8 @@ public final class SPMPackage {
     }
 
     public void setLicense(final byte[] license) {
+        setSpecialFileContents(LICENSE_NAME, license);
         this.license = license;
-        setSpecialFileContents(LICENSE_NAME, license); 
     }
     
     public void setLicenseString(final String license) {
@@ -691,8 +2119,8 @@ public final class SPMPackage {
     }
 
     public void setBuild(final byte[] build) {
+        setSpecialFileContents(BUILD_NAME, build);
         this.build = build;
-        setSpecialFileContents(BUILD_NAME, build); 
     }
     
     public void setBuildString(final String build) {
@@ -708,8 +2136,8 @@ public final class SPMPackage {
     }
 
     public void setInstall(final byte[] install) {
+        setSpecialFileContents(INSTALL_NAME, install);
         this.install = install;
-        setSpecialFileContents(INSTALL_NAME, install); 
     }
     
     public void setInstallString(final String install) {
@@ -725,8 +2153,8 @@ public final class SPMPackage {
     }
     
     public void setUninstall(final byte[] uninstall) {
+        setSpecialFileContents(UNINSTALL_NAME, uninstall);
         this.uninstall = uninstall;
-        setSpecialFileContents(UNINSTALL_NAME, uninstall); 
     }
     
     public void setUninstallString(final String uninstall) {
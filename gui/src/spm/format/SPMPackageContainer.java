@@ -19,6 +19,10 @@ import java.io.*;
 import java.util.zip.*;
 
 import spm.format.tar.*;
+import spm.util.ParallelGZIPInputStream;
+import spm.util.ParallelGZIPOutputStream;
+
+import static spm.format.tar.TarHeader.BLOCK_SIZE;
 
 
 /**
@@ -28,6 +32,20 @@ import spm.format.tar.*;
  */
 public final class SPMPackageContainer extends TarArchive {
     
+    // size of the buffers used to (de)compress the archive
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    // number of threads and size of the blocks used to compress the archive
+    private int compressionThreads = 1;
+    private int compressionBlockSize = ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE;
+    
+    /** Default amount of the tar archive held in each member of an indexed package (1 MiB). */
+    public static final int DEFAULT_MEMBER_SIZE = 1024 * 1024;
+    
+    // whether to write the package as indexed GZIP members, and their size
+    private boolean indexedFlag = false;
+    private int memberSize = DEFAULT_MEMBER_SIZE;
+    
     /**
      * Creates a new instance of {@code SPMPackageContainer}.
      * 
@@ -46,7 +64,13 @@ public final class SPMPackageContainer extends TarArchive {
     @Override
     public void read(final InputStream input) throws InvalidPackageException, IOException {
         
-        GZIPInputStream gzinput = new GZIPInputStream(input);
+        // read uncompressed packages as they are
+        if (!isCompressed(input)) {
+            super.read(input);
+            return;
+        }
+        
+        GZIPInputStream gzinput = new GZIPInputStream(input, BUFFER_SIZE);
         
         super.read(gzinput);
         
@@ -55,16 +79,288 @@ public final class SPMPackageContainer extends TarArchive {
     }
     
     /**
-     * Reads the given stream into this {@code SPMPackageContainer}.
+     * Returns whether the given stream starts with the GZIP magic number.
+     * Streams that do not support {@code mark()} are assumed to be compressed.
      * 
-     * @param output stream to write to.
-     * @throws InvalidPackageException if it is not a valid SPM package archive.
+     * @param input stream to check (is not advanced).
+     * @return whether the stream is GZIP compressed.
+     * @throws IOException upon failure to read from input stream.
+     */
+    public static boolean isCompressed(final InputStream input) throws IOException {
+        
+        if (!input.markSupported())
+            return true;
+        
+        input.mark(2);
+        int magic = input.read() | (input.read() << 8);
+        input.reset();
+        
+        return magic == GZIPInputStream.GZIP_MAGIC;
+        
+    }
+    
+    /**
+     * Returns whether the given file starts with the GZIP magic number.
+     * 
+     * @param file file to check.
+     * @return whether the file is GZIP compressed.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws IOException upon failure to read from the file.
+     */
+    public static boolean isCompressed(final File file) throws FileNotFoundException, IOException {
+        
+        InputStream input = new BufferedInputStream(new FileInputStream(file), 2);
+        
+        boolean compressedFlag = isCompressed(input);
+        
+        input.close();
+        
+        return compressedFlag;
+        
+    }
+    
+    /**
+     * Creates a {@code TarReader} to stream the records of the SPM package archive in {@code input}.
+     * Uncompressed archives are read as they are if {@code input} supports {@code mark()}.
+     * 
+     * @param input stream to read from.
+     * @return a reader over the decompressed archive; closing it closes {@code input}.
      * @throws IOException upon failure to read from input stream.
      */
+    public static TarReader newReader(final InputStream input) throws IOException {
+        
+        if (isCompressed(input)) {
+            return new TarReader(new GZIPInputStream(input, BUFFER_SIZE));
+        } else {
+            return new TarReader(input);
+        }
+        
+    }
+    
+    /**
+     * Creates a {@code TarReader} to stream the records of the SPM package archive in {@code file}.
+     * Indexed packages are decompressed by one thread per available processor.
+     * 
+     * @param file the package file.
+     * @return a reader over the decompressed archive.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws InvalidPackageException if the package has an index which is corrupted.
+     * @throws IOException upon failure to read from the file.
+     */
+    public static TarReader newReader(final File file) throws FileNotFoundException, 
+                                                             InvalidPackageException, 
+                                                             IOException {
+        return newReader(file, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Creates a {@code TarReader} to stream the records of the SPM package archive in {@code file}.
+     * If the package is indexed its members are decompressed in parallel.
+     * 
+     * @param file the package file.
+     * @param threads number of threads to decompress an indexed package with.
+     * @return a reader over the decompressed archive.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws InvalidPackageException if the package has an index which is corrupted.
+     * @throws IOException upon failure to read from the file.
+     */
+    public static TarReader newReader(final File file, int threads) throws FileNotFoundException, 
+                                                                          InvalidPackageException, 
+                                                                          IOException {
+        
+        PackageIndex index = threads > 1 ? PackageIndex.read(file) : null;
+        
+        if (index == null)
+            return newReader(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        
+        return new TarReader(new ParallelGZIPInputStream(file, index.getMemberBounds(), threads));
+        
+    }
+    
+    /**
+     * Creates a {@code TarReader} positioned at the first record named {@code filename} in the SPM package
+     * archive in {@code file}, so that {@code getHeader()} and {@code getInputStream()} return that record.
+     * Indexed packages are decompressed only from the member holding the record; others are read from the start.
+     * 
+     * @param file the package file.
+     * @param filename the name of the record.
+     * @return a reader positioned at the record, or {@code null} if the package has no such record.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws InvalidPackageException if the package is not a valid SPM package archive.
+     * @throws IOException upon failure to read from the file.
+     */
+    public static TarReader newReader(final File file, final String filename) throws FileNotFoundException, 
+                                                                                    InvalidPackageException, 
+                                                                                    IOException {
+        
+        PackageIndex index = PackageIndex.read(file);
+        TarReader reader;
+        
+        if (index == null) { // scan the package from the start
+            
+            reader = newReader(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            
+        } else {
+            
+            long entryOffset = index.getEntryOffset(filename);
+            if (entryOffset < 0)
+                return null;
+            
+            int member = index.findMember(entryOffset);
+            
+            FileInputStream fileInput = new FileInputStream(file);
+            fileInput.getChannel().position(index.getMemberOffset(member));
+            
+            InputStream input = new GZIPInputStream(new BufferedInputStream(fileInput, BUFFER_SIZE), BUFFER_SIZE);
+            
+            // skip to the record within the member
+            long remaining = entryOffset - index.getTarOffset(member);
+            while (remaining > 0) {
+                
+                long num = input.skip(remaining);
+                if (num <= 0) {
+                    input.close();
+                    throw new InvalidPackageException("The package index is corrupted!");
+                }
+                
+                remaining -= num;
+                
+            }
+            
+            reader = new TarReader(input);
+            
+        }
+        
+        TarHeader header;
+        while ((header = reader.next()) != null) {
+            
+            if (header.getFileName().equals(filename))
+                return reader;
+            
+        }
+        
+        reader.close();
+        
+        return null;
+        
+    }
+    
+    /**
+     * Sets the number of threads used to compress the archive when it is written.
+     * With more than one thread the archive is compressed in blocks in parallel (see
+     * {@code ParallelGZIPOutputStream}); the output is still a standard GZIP stream.
+     * 
+     * @param threads number of compression threads (1 compresses on the calling thread).
+     */
+    public void setCompressionThreads(int threads) {
+        
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one compression thread is required!");
+        
+        compressionThreads = threads;
+        
+    }
+    
+    /**
+     * Returns the number of threads used to compress the archive when it is written.
+     * 
+     * @return the number of compression threads.
+     */
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+    
+    /**
+     * Sets the size of the blocks the archive is split into when compressed by several threads.
+     * 
+     * @param blockSize size of each block in bytes.
+     */
+    public void setCompressionBlockSize(int blockSize) {
+        
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Block size must be positive!");
+        
+        compressionBlockSize = blockSize;
+        
+    }
+    
+    /**
+     * Returns the size of the blocks the archive is split into when compressed by several threads.
+     * 
+     * @return the size of each block in bytes.
+     */
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+    
+    /**
+     * Sets whether the archive is written as a series of independent GZIP members followed by an index (see
+     * {@code PackageIndex}), allowing it to be decompressed in parallel and read from any record.
+     * Indexed packages are still valid GZIP files.
+     * 
+     * @param indexedFlag whether to write an indexed package.
+     */
+    public void setIndexed(boolean indexedFlag) {
+        this.indexedFlag = indexedFlag;
+    }
+    
+    /**
+     * Returns whether the archive is written as an indexed package.
+     * 
+     * @return whether the archive is written as an indexed package.
+     */
+    public boolean isIndexed() {
+        return indexedFlag;
+    }
+    
+    /**
+     * Sets the amount of the tar archive held in each member of an indexed package.
+     * Members always start at a record, so a member may hold more if a record is large.
+     * 
+     * @param memberSize size of each member in bytes (before compression).
+     */
+    public void setMemberSize(int memberSize) {
+        
+        if (memberSize < 1)
+            throw new IllegalArgumentException("Member size must be positive!");
+        
+        this.memberSize = memberSize;
+        
+    }
+    
+    /**
+     * Returns the amount of the tar archive held in each member of an indexed package.
+     * 
+     * @return size of each member in bytes (before compression).
+     */
+    public int getMemberSize() {
+        return memberSize;
+    }
+    
+    /**
+     * Writes this {@code SPMPackageContainer} GZIP compressed to the given stream.
+     * 
+     * @param output stream to write to.
+     * @throws IOException upon failure to write to output stream.
+     */
     @Override
     public void write(final OutputStream output) throws IOException {
         
-        GZIPOutputStream gzoutput = new GZIPOutputStream(output);
+        if (indexedFlag) {
+            writeIndexed(output);
+            return;
+        }
+        
+        OutputStream gzoutput;
+        
+        if (compressionThreads > 1) {
+            gzoutput = new ParallelGZIPOutputStream(new BufferedOutputStream(output, BUFFER_SIZE),
+                                                    compressionThreads,
+                                                    compressionBlockSize,
+                                                    Deflater.DEFAULT_COMPRESSION);
+        } else {
+            gzoutput = new GZIPOutputStream(output, BUFFER_SIZE);
+        }
         
         super.write(gzoutput);
         
@@ -72,6 +368,83 @@ public final class SPMPackageContainer extends TarArchive {
         
     }
     
+    // writes the archive as a series of GZIP members followed by their index
+    private void writeIndexed(final OutputStream output) throws IOException {
+        
+        CountingOutputStream counter = new CountingOutputStream(output);
+        PackageIndex index = new PackageIndex();
+        
+        GZIPOutputStream member = null;
+        long tarOffset = 0;
+        long memberTarOffset = 0;
+        
+        for (TarRecord record : this) {
+            
+            // start a new member at this record once the current one is full
+            if (member == null || tarOffset - memberTarOffset >= memberSize) {
+                
+                if (member != null)
+                    member.finish();
+                
+                index.addMember(counter.count, tarOffset);
+                member = new GZIPOutputStream(counter, BUFFER_SIZE);
+                memberTarOffset = tarOffset;
+                
+            }
+            
+            index.addEntry(record.getHeader().getFileName(), tarOffset);
+            record.write(member);
+            
+            long size = record.getHeader().getFileSize();
+            tarOffset += BLOCK_SIZE + (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            
+        }
+        
+        // an empty archive still needs a member to be a valid GZIP file
+        if (member == null) {
+            index.addMember(counter.count, tarOffset);
+            member = new GZIPOutputStream(counter, BUFFER_SIZE);
+        }
+        
+        member.finish();
+        
+        index.write(counter, counter.count);
+        
+        counter.close();
+        
+    }
+    
+    /**
+     * Counts the bytes written to a stream.
+     * 
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        
+        // number of bytes written
+        long count = 0;
+        
+        CountingOutputStream(final OutputStream output) {
+            super(output);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            
+            out.write(b);
+            count++;
+            
+        }
+        
+        @Override
+        public void write(final byte[] buffer, int offset, int length) throws IOException {
+            
+            out.write(buffer, offset, length);
+            count += length;
+            
+        }
+        
+    }
+    
 }
 
 // EOF
@@ -0,0 +1,375 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Installs many packages at once.
+ * The packages are read and verified in parallel, then built in parallel, each extracting the files its scripts
+ * need while other packages build. Install scripts run as soon as their package has built, except that packages
+ * whose install scripts write to the same paths (see {@code SPMPackage.getInstallTargets()}) are installed one
+ * at a time, in the order they were added. Packages which do not list their targets are installed alone.
+ * At most {@code getThreads()} packages are read, and at most that many steps run, at any one time.
+ * Licenses are not shown, so the caller must have accepted them.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class SPMScheduler {
+    
+    private final static Logger logger = Logger.getLogger(SPMScheduler.class.getName());
+    
+    private int threads = Runtime.getRuntime().availableProcessors();
+    
+    // package files in the order they were added
+    private final ArrayList<File> files = new ArrayList<File>();
+    
+    // packages which were read, and the failures of those which were not
+    private final LinkedHashMap<File, SPMPackage> packages = new LinkedHashMap<File, SPMPackage>();
+    private final LinkedHashMap<File, Exception> failures = new LinkedHashMap<File, Exception>();
+    
+    // step installing each package
+    private final HashMap<File, SPMStep> installSteps = new HashMap<File, SPMStep>();
+    
+    private SPMExecutor executor = null;
+    
+    // time taken to read the packages and total size of the package files
+    private long readTime = 0;
+    private long byteCount = 0;
+    
+    /**
+     * Creates a new instance of {@code SPMScheduler}.
+     * 
+     */
+    public SPMScheduler() {
+    }
+    
+    /**
+     * Sets the most packages read, and steps run, at once.
+     * 
+     * @param threads number of threads.
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+    
+    /**
+     * Returns the most packages read, and steps run, at once.
+     * 
+     * @return the number of threads.
+     */
+    public int getThreads() {
+        return threads;
+    }
+    
+    /**
+     * Adds a package to be installed.
+     * 
+     * @param file the package file.
+     */
+    public void add(final File file) {
+        files.add(file);
+    }
+    
+    /**
+     * Returns the package files which have been added.
+     * 
+     * @return the package files.
+     */
+    public List<File> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+    
+    /**
+     * Reads and verifies every package, waiting until they have all been read, then starts building and
+     * installing those which could be read. Packages which could not be read are left out (see
+     * {@code getFailures()}).
+     * 
+     * @return the executor building and installing the packages.
+     * @throws InterruptedException if interrupted while reading the packages.
+     */
+    public SPMExecutor start() throws InterruptedException {
+        
+        packages.clear();
+        failures.clear();
+        installSteps.clear();
+        byteCount = 0;
+        
+        long start = System.nanoTime();
+        
+        readPackages();
+        
+        readTime = System.nanoTime() - start;
+        
+        // build every package at once, then install each after the earlier packages it shares targets with have been
+        // installed and recorded (so that the files each one changed are told apart)
+        ArrayList<SPMStep> steps = new ArrayList<SPMStep>();
+        ArrayList<List<String>> installedTargets = new ArrayList<List<String>>();
+        ArrayList<SPMStep> earlierSteps = new ArrayList<SPMStep>();
+        
+        for (Map.Entry<File, SPMPackage> entry : packages.entrySet()) {
+            
+            SPMPackage packageArchive = entry.getValue();
+            
+            SPMStep installStep;
+            try {
+                installStep = packageArchive.addInstallSteps(steps);
+            } catch (FileNotFoundException ex) {
+                
+                failures.put(entry.getKey(), ex);
+                
+                continue;
+                
+            }
+            
+            List<String> targets = packageArchive.getInstallTargets();
+            
+            for (int i = 0; i < earlierSteps.size(); i++) {
+                
+                if (overlaps(targets, installedTargets.get(i)))
+                    installStep.runAfter(earlierSteps.get(i));
+                
+            }
+            
+            installedTargets.add(targets);
+            earlierSteps.add(steps.get(steps.size() - 1)); // the last step of the install
+            installSteps.put(entry.getKey(), installStep);
+            
+            byteCount += entry.getKey().length();
+            
+        }
+        
+        executor = new SPMExecutor(threads, steps.toArray(new SPMStep[steps.size()]));
+        
+        return executor;
+        
+    }
+    
+    // reads each of the package files on a pool of threads
+    private void readPackages() throws InterruptedException {
+        
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        
+        try {
+            
+            LinkedHashMap<File, Future<SPMPackage>> reads = new LinkedHashMap<File, Future<SPMPackage>>();
+            for (final File file : files) {
+                
+                reads.put(file, pool.submit(new Callable<SPMPackage>() {
+                    
+                    @Override
+                    public SPMPackage call() throws Exception {
+                        
+                        SPMPackage packageArchive = new SPMPackage();
+                        packageArchive.read(file);
+                        
+                        return packageArchive;
+                        
+                    }
+                    
+                }));
+                
+            }
+            
+            for (Map.Entry<File, Future<SPMPackage>> entry : reads.entrySet()) {
+                
+                try {
+                    packages.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException ex) {
+                    
+                    Throwable cause = ex.getCause();
+                    failures.put(entry.getKey(), cause instanceof Exception ? (Exception) cause : ex);
+                    
+                }
+                
+            }
+            
+        } finally {
+            pool.shutdownNow();
+        }
+        
+    }
+    
+    // returns whether two lists of install targets share a path (either being null shares every path)
+    static boolean overlaps(final List<String> targets, final List<String> otherTargets) {
+        
+        if (targets == null || otherTargets == null)
+            return true;
+        
+        for (String target : targets) {
+            
+            String path = PackageDatabase.normalizePath(target);
+            
+            for (String otherTarget : otherTargets) {
+                
+                String otherPath = PackageDatabase.normalizePath(otherTarget);
+                
+                // the same path, or one inside the other (as the database finds owners)
+                if (isWithin(path, otherPath) || isWithin(otherPath, path))
+                    return true;
+                
+            }
+            
+        }
+        
+        return false;
+        
+    }
+    
+    // returns whether a normalised path is the given normalised directory or inside it
+    private static boolean isWithin(final String path, final String dir) {
+        return path.equals(dir) || path.startsWith(dir.equals("/") ? dir : dir + "/");
+    }
+    
+    /**
+     * Installs every package, waiting for them all to finish.
+     * 
+     * @return whether every package was installed.
+     * @throws InterruptedException if interrupted while reading the packages.
+     */
+    public boolean run() throws InterruptedException {
+        
+        start();
+        
+        boolean failedFlag = executor.failed() || !failures.isEmpty();
+        
+        if (logger.isLoggable(Level.INFO)) {
+            
+            StringBuilder msg = new StringBuilder();
+            
+            msg.append("Installed ");
+            msg.append(getInstalledCount());
+            msg.append(" of ");
+            msg.append(files.size());
+            msg.append(" packages in ");
+            msg.append(getElapsedTime() / 1000000);
+            msg.append(" ms (");
+            msg.append(String.format("%.1f", getPackagesPerSecond()));
+            msg.append(" packages/s, ");
+            msg.append(String.format("%.1f", getMegabytesPerSecond()));
+            msg.append(" MB/s).");
+            
+            logger.info(msg.toString());
+            
+        }
+        
+        return !failedFlag;
+        
+    }
+    
+    /**
+     * Returns the executor building and installing the packages.
+     * 
+     * @return the executor, or {@code null} if the packages have not been started.
+     */
+    public SPMExecutor getExecutor() {
+        return executor;
+    }
+    
+    /**
+     * Returns the packages which could be read, by file.
+     * 
+     * @return the packages which were read.
+     */
+    public Map<File, SPMPackage> getPackages() {
+        return Collections.unmodifiableMap(packages);
+    }
+    
+    /**
+     * Returns why each of the packages which could not be read or installed was left out.
+     * 
+     * @return the failure of each package which was left out, by file.
+     */
+    public Map<File, Exception> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+    
+    /**
+     * Returns the step installing the given package.
+     * 
+     * @param file the package file.
+     * @return the step installing the package, or {@code null} if the package was left out.
+     */
+    public SPMStep getInstallStep(final File file) {
+        return installSteps.get(file);
+    }
+    
+    /**
+     * Returns the number of packages which have been installed.
+     * 
+     * @return the number of installed packages.
+     */
+    public int getInstalledCount() {
+        
+        int count = 0;
+        for (SPMStep step : installSteps.values()) {
+            
+            if (step.getState() == SPMStep.State.SUCCEEDED)
+                count++;
+            
+        }
+        
+        return count;
+        
+    }
+    
+    /**
+     * Returns the time taken to read the packages and then build and install them.
+     * 
+     * @return the time taken in nanoseconds, or {@code -1} if the packages are not done.
+     */
+    public long getElapsedTime() {
+        
+        if (executor == null || executor.getElapsedTime() < 0)
+            return -1;
+        
+        return readTime + executor.getElapsedTime();
+        
+    }
+    
+    /**
+     * Returns the number of packages installed per second.
+     * 
+     * @return the number of packages installed per second, or {@code 0} if the packages are not done.
+     */
+    public double getPackagesPerSecond() {
+        
+        long time = getElapsedTime();
+        
+        return time <= 0 ? 0 : getInstalledCount() * 1e9 / time;
+        
+    }
+    
+    /**
+     * Returns the size of the package files which were read and started, in megabytes per second.
+     * 
+     * @return the number of megabytes of packages handled per second, or {@code 0} if the packages are not done.
+     */
+    public double getMegabytesPerSecond() {
+        
+        long time = getElapsedTime();
+        
+        return time <= 0 ? 0 : byteCount / (1024.0 * 1024.0) * 1e9 / time;
+        
+    }
+    
+}
+
+// EOF
@@ -0,0 +1,218 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A step run by an {@code SPMExecutor}, such as extracting the files a script needs or running the script.
+ * A step starts once every step it depends on has succeeded, and is skipped if any of them failed. A step can
+ * also be ordered after other steps without depending on them, in which case it starts once they have finished
+ * however they did.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class SPMStep {
+    
+    /**
+     * The states a step passes through.
+     * 
+     */
+    public enum State {
+        
+        /** Waiting for the steps it depends on. */
+        WAITING,
+        
+        /** Running. */
+        RUNNING,
+        
+        /** Finished with an exit value of {@code 0}. */
+        SUCCEEDED,
+        
+        /** Finished with another exit value, or could not be started. */
+        FAILED,
+        
+        /** Not run as a step it depends on did not succeed. */
+        SKIPPED
+        
+    }
+    
+    private final String name;
+    private final Action action;
+    private final List<SPMStep> dependencies;
+    
+    // steps which must finish before this step starts, whether or not they succeed
+    private final List<SPMStep> predecessors = new ArrayList<SPMStep>();
+    
+    private volatile State state = State.WAITING;
+    
+    // when the step started running and how long it ran for (-1 until known)
+    private volatile long startTime = -1;
+    private volatile long elapsedTime = -1;
+    
+    // exit value of the step (set when it is scheduled by an executor)
+    private Future<Integer> exitValue = null;
+    
+    /**
+     * Creates a new instance of {@code SPMStep}.
+     * 
+     * @param name name of the step.
+     * @param action what the step does.
+     * @param dependencies steps which must succeed before this step starts.
+     */
+    SPMStep(final String name, final Action action, final SPMStep... dependencies) {
+        
+        this.name = name;
+        this.action = action;
+        this.dependencies = Collections.unmodifiableList(Arrays.asList(dependencies.clone()));
+        
+    }
+    
+    /**
+     * Returns the name of this step.
+     * 
+     * @return the name of this step.
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Returns the steps which must succeed before this step starts.
+     * 
+     * @return the steps this step depends on.
+     */
+    public List<SPMStep> getDependencies() {
+        return dependencies;
+    }
+    
+    /**
+     * Returns the steps which must finish before this step starts, whether or not they succeed.
+     * 
+     * @return the steps this step is ordered after.
+     */
+    public synchronized List<SPMStep> getPredecessors() {
+        return Collections.unmodifiableList(new ArrayList<SPMStep>(predecessors));
+    }
+    
+    // orders this step after the given step, which must be run by the same executor
+    synchronized void runAfter(final SPMStep step) {
+        
+        if (exitValue != null)
+            throw new IllegalStateException("A step cannot be reordered once it has been scheduled!");
+        
+        predecessors.add(step);
+        
+    }
+    
+    /**
+     * Returns the state of this step.
+     * 
+     * @return the state of this step.
+     */
+    public State getState() {
+        return state;
+    }
+    
+    /**
+     * Returns the exit value of this step, which is available once it has finished or been skipped.
+     * Steps which could not be started or were skipped have an exit value of {@code -1}.
+     * 
+     * @return the exit value of this step.
+     */
+    public synchronized Future<Integer> getExitValue() {
+        return exitValue;
+    }
+    
+    /**
+     * Returns how long this step ran for.
+     * 
+     * @return the time this step ran for in nanoseconds, or {@code -1} if it has not finished or did not run.
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+    
+    Action getAction() {
+        return action;
+    }
+    
+    synchronized void setExitValue(final Future<Integer> exitValue) {
+        
+        if (this.exitValue != null) {
+            
+            StringBuilder msg = new StringBuilder();
+            
+            msg.append("The step \"");
+            msg.append(name);
+            msg.append("\" has already been scheduled!");
+            
+            throw new IllegalStateException(msg.toString());
+            
+        }
+        
+        this.exitValue = exitValue;
+        
+    }
+    
+    void started() {
+        
+        startTime = System.nanoTime();
+        state = State.RUNNING;
+        
+    }
+    
+    void finished(int value) {
+        
+        elapsedTime = System.nanoTime() - startTime;
+        state = value == 0 ? State.SUCCEEDED : State.FAILED;
+        
+    }
+    
+    void skipped() {
+        state = State.SKIPPED;
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+    
+    /**
+     * What a step does.
+     * 
+     */
+    interface Action {
+        
+        /**
+         * Runs the step, either in full or by starting a process.
+         * 
+         * @return the process running the step, or {@code null} if the step has already succeeded.
+         * @throws InvalidPackageException if the package is not valid.
+         * @throws IOException upon failure to run the step.
+         */
+        Process start() throws InvalidPackageException, IOException;
+        
+    }
+    
+}
+
+// EOF
@@ -0,0 +1,843 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An inverted index of the packages in a repository, for searching them by name, license text and the names of
+ * the files they hold.
+ * Names are indexed by their trigrams (every three consecutive characters), so any part of a name can be
+ * searched for. Licenses and file names are split into tokens (runs of letters and digits), so they are searched
+ * by the start of their words. Each term maps to the sorted list of the packages containing it, stored as
+ * variable length deltas, and a search intersects the lists of the terms of the query.
+ *
+ * <p>Packages are numbered in the order they are added, so updating the index only appends to the lists of the
+ * terms of new packages. Packages which are removed or replaced are left in the lists and skipped, until they
+ * outnumber the others and the lists are rebuilt without them.</p>
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class SearchIndex {
+
+    private final static Logger logger = Logger.getLogger(SearchIndex.class.getName());
+
+    /** Name of the search index file at the root of a repository. */
+    public static final String INDEX_NAME = "search.index";
+
+    /**
+     * What part of the packages to search.
+     *
+     */
+    public enum Field {
+
+        /** Names of the packages, matched anywhere. */
+        NAME,
+
+        /** License texts, matched by the start of their words. */
+        LICENSE,
+
+        /** Names of the files in the {@code data} directory, matched by the start of their words. */
+        FILES
+
+    }
+
+    // identifies a search index and the version of its format
+    private static final int MAGIC = 0x53504d53; // "SPMS"
+    private static final int VERSION = 1;
+
+    // length of the terms names are indexed by
+    private static final int GRAM_SIZE = 3;
+
+    // longest token indexed
+    private static final int MAX_TOKEN_SIZE = 64;
+
+    // directory holding the files of the package
+    private static final String DATA_PREFIX = "data/";
+
+    // indexed packages by number (null once removed), and the number of each by path
+    private final ArrayList<Document> documents = new ArrayList<Document>();
+    private final HashMap<String, Integer> numbers = new HashMap<String, Integer>();
+    private int removedCount = 0;
+
+    // packages containing each term of each field
+    private final EnumMap<Field, TreeMap<String, Postings>> terms =
+            new EnumMap<Field, TreeMap<String, Postings>>(Field.class);
+
+    /**
+     * Creates a new, empty instance of {@code SearchIndex}.
+     *
+     */
+    public SearchIndex() {
+
+        for (Field field : Field.values())
+            terms.put(field, new TreeMap<String, Postings>());
+
+    }
+
+    /**
+     * Returns the number of packages in the index.
+     *
+     * @return the number of packages.
+     */
+    public synchronized int size() {
+        return numbers.size();
+    }
+
+    /**
+     * Returns the number of terms indexed in the given field.
+     *
+     * @param field the field.
+     * @return the number of terms.
+     */
+    public synchronized int getTermCount(final Field field) {
+        return terms.get(field).size();
+    }
+
+    /**
+     * Adds a package to the index, replacing the package of the same path.
+     *
+     * @param path location of the package relative to the root of the repository.
+     * @param size size of the package file, used to tell when it has changed.
+     * @param modified last modification time of the package file, used to tell when it has changed.
+     * @param name name of the package.
+     * @param license license text of the package (can be {@code null}).
+     * @param fileNames names of the files in the package.
+     */
+    public synchronized void add(final String path,
+                                 long size,
+                                 long modified,
+                                 final String name,
+                                 final String license,
+                                 final Collection<String> fileNames) {
+
+        remove(path);
+
+        int number = documents.size();
+        documents.add(new Document(path, name, size, modified));
+        numbers.put(path, number);
+
+        // index each distinct term once
+        addTerms(Field.NAME, getGrams(name), number);
+
+        if (license != null)
+            addTerms(Field.LICENSE, getTokens(license), number);
+
+        HashSet<String> fileTokens = new HashSet<String>();
+        for (String fileName : fileNames) {
+
+            if (fileName.startsWith(DATA_PREFIX))
+                fileTokens.addAll(getTokens(fileName.substring(DATA_PREFIX.length())));
+
+        }
+        addTerms(Field.FILES, fileTokens, number);
+
+    }
+
+    /**
+     * Removes a package from the index.
+     *
+     * @param path location of the package relative to the root of the repository.
+     * @return whether the package was in the index.
+     */
+    public synchronized boolean remove(final String path) {
+
+        Integer number = numbers.remove(path);
+
+        if (number == null)
+            return false;
+
+        documents.set(number, null);
+        removedCount++;
+
+        if (removedCount > numbers.size())
+            compact();
+
+        return true;
+
+    }
+
+    /**
+     * Returns the package at the given path.
+     *
+     * @param path location of the package relative to the root of the repository.
+     * @return the package, or {@code null} if it is not in the index.
+     */
+    public synchronized Document get(final String path) {
+
+        Integer number = numbers.get(path);
+
+        return number == null ? null : documents.get(number);
+
+    }
+
+    /**
+     * Returns the packages matching every word of the given text in the given field.
+     * Names match when they contain the text (ignoring case); licenses and file names match when each word of the
+     * text starts a word of theirs.
+     *
+     * @param field the field to search.
+     * @param text the text to search for.
+     * @return the matching packages, in the order they were added.
+     */
+    public synchronized List<Document> search(final Field field, final String text) {
+
+        ArrayList<Document> results = new ArrayList<Document>();
+
+        if (field == Field.NAME) {
+
+            String lowerText = text.toLowerCase(Locale.ROOT);
+            Set<String> grams = getGrams(lowerText);
+
+            if (lowerText.length() < GRAM_SIZE) { // too short to have a trigram
+
+                for (Document document : documents) {
+
+                    if (document != null && document.name.toLowerCase(Locale.ROOT).contains(lowerText))
+                        results.add(document);
+
+                }
+
+                return results;
+
+            }
+
+            // the trigrams only narrow down the packages, which must still contain the whole text
+            for (int number : intersect(field, grams, false)) {
+
+                Document document = documents.get(number);
+
+                if (document.name.toLowerCase(Locale.ROOT).contains(lowerText))
+                    results.add(document);
+
+            }
+
+        } else {
+
+            for (int number : intersect(field, getTokens(text), true))
+                results.add(documents.get(number));
+
+        }
+
+        return results;
+
+    }
+
+    /**
+     * Returns the packages matching the given text in any field.
+     *
+     * @param text the text to search for.
+     * @return the matching packages, in the order they were added.
+     */
+    public synchronized List<Document> search(final String text) {
+
+        TreeMap<Integer, Document> results = new TreeMap<Integer, Document>();
+
+        for (Field field : Field.values()) {
+
+            for (Document document : search(field, text))
+                results.put(numbers.get(document.path), document);
+
+        }
+
+        return new ArrayList<Document>(results.values());
+
+    }
+
+    /**
+     * Brings the index up to date with the packages under the given directory, indexing the packages which are
+     * new or have changed and removing those which are gone. Packages which cannot be read are logged and left
+     * out.
+     *
+     * @param root root directory of the repository.
+     * @return the number of packages added, replaced or removed.
+     * @throws IOException upon failure to list the directory.
+     */
+    public synchronized int update(final File root) throws IOException {
+
+        final Path rootPath = root.toPath();
+        final HashSet<String> found = new HashSet<String>();
+        final int[] changes = new int[1];
+
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+
+                String filename = file.getFileName().toString();
+
+                if (!attributes.isRegularFile() || !filename.endsWith(RepositoryIndex.PACKAGE_SUFFIX))
+                    return FileVisitResult.CONTINUE;
+
+                String path = getPath(rootPath, file);
+                found.add(path);
+
+                long size = attributes.size();
+                long modified = attributes.lastModifiedTime().toMillis();
+
+                Document document = get(path);
+                if (document != null && document.size == size && document.modified == modified)
+                    return FileVisitResult.CONTINUE;
+
+                changes[0]++;
+
+                try {
+
+                    SPMPackage packageArchive = new SPMPackage();
+                    packageArchive.read(file.toFile());
+
+                    add(path, 
+                        size, 
+                        modified, 
+                        filename.substring(0, filename.length() - RepositoryIndex.PACKAGE_SUFFIX.length()), 
+                        packageArchive.getLicenseString(), 
+                        packageArchive.getFileNames());
+
+                } catch (IOException | InvalidPackageException | SPMDigestException ex) {
+
+                    remove(path);
+
+                    StringBuilder msg = new StringBuilder();
+
+                    msg.append("Cannot index the package \"");
+                    msg.append(file);
+                    msg.append("\".");
+
+                    logger.log(Level.WARNING, msg.toString(), ex);
+
+                }
+
+                return FileVisitResult.CONTINUE;
+
+            }
+
+        });
+
+        for (String path : new ArrayList<String>(numbers.keySet())) {
+
+            if (!found.contains(path)) {
+
+                remove(path);
+                changes[0]++;
+
+            }
+
+        }
+
+        return changes[0];
+
+    }
+
+    // returns the location of a package relative to the root of the repository, separated by /
+    private static String getPath(final Path root, final Path file) {
+
+        StringBuilder path = new StringBuilder();
+        for (Path part : root.relativize(file)) {
+
+            if (path.length() > 0)
+                path.append('/');
+
+            path.append(part.toString());
+
+        }
+
+        return path.toString();
+
+    }
+
+    // adds a package to the lists of the given terms
+    private void addTerms(final Field field, final Collection<String> fieldTerms, int number) {
+
+        TreeMap<String, Postings> fieldPostings = terms.get(field);
+
+        for (String term : fieldTerms) {
+
+            Postings postings = fieldPostings.get(term);
+            if (postings == null) {
+
+                postings = new Postings();
+                fieldPostings.put(term, postings);
+
+            }
+
+            postings.add(number);
+
+        }
+
+    }
+
+    // returns the packages which have every one of the given terms (or a term starting with it if prefixFlag is set)
+    private int[] intersect(final Field field, final Collection<String> queryTerms, boolean prefixFlag) {
+
+        TreeMap<String, Postings> fieldPostings = terms.get(field);
+
+        // decode the list of each term, merging those of every term it starts if need be
+        ArrayList<int[]> lists = new ArrayList<int[]>();
+        for (String term : queryTerms) {
+
+            int[] list;
+            if (prefixFlag) {
+
+                TreeSet<Integer> union = new TreeSet<Integer>();
+                for (Postings postings : fieldPostings.subMap(term, true, term + Character.MAX_VALUE, true).values()) {
+
+                    for (int number : postings.decode())
+                        union.add(number);
+
+                }
+
+                list = new int[union.size()];
+                int i = 0;
+                for (int number : union)
+                    list[i++] = number;
+
+            } else {
+
+                Postings postings = fieldPostings.get(term);
+                list = postings == null ? new int[0] : postings.decode();
+
+            }
+
+            lists.add(list);
+
+        }
+
+        if (lists.isEmpty())
+            return new int[0];
+
+        // start with the shortest list, which bounds the result
+        Collections.sort(lists, new Comparator<int[]>() {
+
+            @Override
+            public int compare(final int[] a, final int[] b) {
+                return a.length - b.length;
+            }
+
+        });
+
+        int[] result = lists.get(0);
+        int resultLength = result.length;
+
+        for (int i = 1; i < lists.size() && resultLength > 0; i++) {
+
+            int[] list = lists.get(i);
+            int length = 0;
+
+            int j = 0;
+            for (int k = 0; k < resultLength; k++) {
+
+                while (j < list.length && list[j] < result[k])
+                    j++;
+
+                if (j < list.length && list[j] == result[k])
+                    result[length++] = result[k];
+
+            }
+
+            resultLength = length;
+
+        }
+
+        // skip removed packages
+        int length = 0;
+        for (int k = 0; k < resultLength; k++) {
+
+            if (documents.get(result[k]) != null)
+                result[length++] = result[k];
+
+        }
+
+        return Arrays.copyOf(result, length);
+
+    }
+
+    // renumbers the packages without the removed ones, rebuilding the lists of each term
+    private void compact() {
+
+        int[] renumbering = new int[documents.size()];
+
+        ArrayList<Document> kept = new ArrayList<Document>(numbers.size());
+        for (int i = 0; i < documents.size(); i++) {
+
+            Document document = documents.get(i);
+
+            if (document == null) {
+                renumbering[i] = -1;
+            } else {
+
+                renumbering[i] = kept.size();
+                numbers.put(document.path, kept.size());
+                kept.add(document);
+
+            }
+
+        }
+
+        for (TreeMap<String, Postings> fieldPostings : terms.values()) {
+
+            Iterator<Postings> iterator = fieldPostings.values().iterator();
+            while (iterator.hasNext()) {
+
+                Postings postings = iterator.next();
+                int[] list = postings.decode();
+
+                postings.clear();
+                for (int number : list) {
+
+                    if (renumbering[number] >= 0)
+                        postings.add(renumbering[number]);
+
+                }
+
+                if (postings.count == 0)
+                    iterator.remove();
+
+            }
+
+        }
+
+        documents.clear();
+        documents.addAll(kept);
+        removedCount = 0;
+
+    }
+
+    // returns the distinct trigrams of the given name, ignoring case
+    private static Set<String> getGrams(final String name) {
+
+        String lowerName = name.toLowerCase(Locale.ROOT);
+
+        HashSet<String> grams = new HashSet<String>();
+        for (int i = 0; i + GRAM_SIZE <= lowerName.length(); i++)
+            grams.add(lowerName.substring(i, i + GRAM_SIZE));
+
+        return grams;
+
+    }
+
+    // returns the distinct words of the given text, ignoring case
+    private static Set<String> getTokens(final String text) {
+
+        LinkedHashSet<String> tokens = new LinkedHashSet<String>();
+
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+
+            boolean letterFlag = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if (letterFlag && start < 0) {
+                start = i;
+            } else if (!letterFlag && start >= 0) {
+
+                if (i - start <= MAX_TOKEN_SIZE)
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+
+                start = -1;
+
+            }
+
+        }
+
+        return tokens;
+
+    }
+
+    /**
+     * Reads a search index written by {@code write()}.
+     *
+     * @param file the index file.
+     * @return the index, or an empty index if the file does not exist.
+     * @throws IOException if the file is not a search index, or upon failure to read it.
+     */
+    public static SearchIndex read(final File file) throws IOException {
+
+        SearchIndex index = new SearchIndex();
+
+        if (!file.exists())
+            return index;
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("\"");
+                msg.append(file);
+                msg.append("\" is not a search index!");
+
+                throw new IOException(msg.toString());
+
+            }
+
+            int documentCount = input.readInt();
+            for (int i = 0; i < documentCount; i++) {
+
+                Document document = new Document(input.readUTF(), 
+                                                 input.readUTF(), 
+                                                 input.readLong(), 
+                                                 input.readLong());
+
+                index.numbers.put(document.path, index.documents.size());
+                index.documents.add(document);
+
+            }
+
+            for (Field field : Field.values()) {
+
+                TreeMap<String, Postings> fieldPostings = index.terms.get(field);
+
+                int termCount = input.readInt();
+                for (int i = 0; i < termCount; i++) {
+
+                    String term = input.readUTF();
+
+                    Postings postings = new Postings();
+                    postings.count = input.readInt();
+                    postings.last = input.readInt();
+                    postings.length = input.readInt();
+                    postings.data = new byte[postings.length];
+                    input.readFully(postings.data);
+
+                    fieldPostings.put(term, postings);
+
+                }
+
+            }
+
+        } finally {
+            input.close();
+        }
+
+        return index;
+
+    }
+
+    /**
+     * Writes the index to the given file, compacting it first.
+     * The index is written next to {@code file} and then moved into place, so readers never see part of it.
+     *
+     * @param file the index file.
+     * @throws IOException upon failure to write the index.
+     */
+    public synchronized void write(final File file) throws IOException {
+
+        if (removedCount > 0)
+            compact();
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        Path temp = Files.createTempFile(dir.toPath(), file.getName(), null);
+
+        try {
+
+            FileOutputStream fileOutput = new FileOutputStream(temp.toFile());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+
+            try {
+
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+
+                output.writeInt(documents.size());
+                for (Document document : documents) {
+
+                    output.writeUTF(document.path);
+                    output.writeUTF(document.name);
+                    output.writeLong(document.size);
+                    output.writeLong(document.modified);
+
+                }
+
+                for (Field field : Field.values()) {
+
+                    TreeMap<String, Postings> fieldPostings = terms.get(field);
+
+                    output.writeInt(fieldPostings.size());
+                    for (Map.Entry<String, Postings> entry : fieldPostings.entrySet()) {
+
+                        Postings postings = entry.getValue();
+
+                        output.writeUTF(entry.getKey());
+                        output.writeInt(postings.count);
+                        output.writeInt(postings.last);
+                        output.writeInt(postings.length);
+                        output.write(postings.data, 0, postings.length);
+
+                    }
+
+                }
+
+                output.flush();
+                fileOutput.getFD().sync();
+
+            } finally {
+                output.close();
+            }
+
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+    }
+
+    /**
+     * Sorted list of the numbers of the packages containing a term, stored as the variable length differences
+     * between consecutive numbers (seven bits per byte, the high bit set on all but the last byte of a number).
+     *
+     */
+    private static final class Postings {
+
+        private byte[] data = new byte[4];
+        private int length = 0;
+
+        // number of packages in the list, and the last of them
+        private int count = 0;
+        private int last = -1;
+
+        // appends a package, which must have a higher number than those already in the list
+        void add(int number) {
+
+            int delta = number - last;
+
+            if (length + 5 > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+
+            while (delta >= 0x80) {
+
+                data[length++] = (byte) (delta | 0x80);
+                delta >>>= 7;
+
+            }
+
+            data[length++] = (byte) delta;
+
+            last = number;
+            count++;
+
+        }
+
+        // returns the numbers in the list
+        int[] decode() {
+
+            int[] numbers = new int[count];
+
+            int number = -1;
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+
+                int delta = 0;
+                int shift = 0;
+
+                byte b;
+                do {
+
+                    b = data[position++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+
+                } while (b < 0);
+
+                number += delta;
+                numbers[i] = number;
+
+            }
+
+            return numbers;
+
+        }
+
+        // empties the list
+        void clear() {
+
+            length = 0;
+            count = 0;
+            last = -1;
+
+        }
+
+    }
+
+    /**
+     * A package in the index.
+     *
+     */
+    public static final class Document {
+
+        private final String path;
+        private final String name;
+        private final long size;
+        private final long modified;
+
+        private Document(final String path, final String name, long size, long modified) {
+
+            this.path = path;
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+
+        }
+
+        /**
+         * Returns the location of the package relative to the root of the repository.
+         *
+         * @return the path of the package, separated by {@code /}.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the name of the package.
+         *
+         * @return the name of the package.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the size of the package file when it was indexed.
+         *
+         * @return the size of the package in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the last modification time of the package file when it was indexed.
+         *
+         * @return the modification time, in milliseconds since the epoch.
+         */
+        public long getModified() {
+            return modified;
+        }
+
+    }
+
+}
+
+// EOF
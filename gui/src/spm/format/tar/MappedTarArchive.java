@@ -0,0 +1,443 @@
+package spm.format.tar;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+import static spm.format.tar.TarHeader.BLOCK_SIZE;
+import spm.format.InvalidPackageException;
+
+/**
+ * A read-only, memory mapped view of an uncompressed TAR archive on disk.
+ * The headers are scanned once when the archive is opened, building an index of where the contents of each
+ * record are in the file. File contents are then served straight from the mapping, so only the records that are
+ * looked up are ever read from disk.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class MappedTarArchive implements TarLookup {
+
+    // size of each mapped segment of the archive (a multiple of BLOCK_SIZE)
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    // the archive file
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    // mapped segments of the archive
+    private final MappedByteBuffer[] segments;
+
+    // records in the order they appear in the archive
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+    // first record of each name
+    private final HashMap<String, Entry> index = new HashMap<String, Entry>();
+
+    /**
+     * Opens and indexes the given uncompressed tar archive.
+     *
+     * @param file the archive file.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws InvalidPackageException if the file is not a valid tar archive.
+     * @throws IOException upon failure to map or read the file.
+     */
+    public MappedTarArchive(final File file) throws FileNotFoundException, InvalidPackageException, IOException {
+
+        this.file = new RandomAccessFile(file, "r");
+        channel = this.file.getChannel();
+
+        long length = channel.size();
+
+        // map the archive
+        segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int i = 0; i < segments.length; i++) {
+
+            long position = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                      position,
+                                      Math.min(SEGMENT_SIZE, length - position));
+
+        }
+
+        scan(length);
+
+    }
+
+    /**
+     * Opens and indexes the uncompressed tar archive named {@code filename}.
+     *
+     * @param filename the name of the archive file.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     * @throws InvalidPackageException if the file is not a valid tar archive.
+     * @throws IOException upon failure to map or read the file.
+     */
+    public MappedTarArchive(final String filename) throws FileNotFoundException, InvalidPackageException, IOException {
+        this(new File(filename));
+    }
+
+    // reads each header in the archive and records where its contents are
+    private void scan(long length) throws InvalidPackageException {
+
+        byte[] block = new byte[BLOCK_SIZE];
+
+        long offset = 0;
+        while (offset < length) {
+
+            // catch mis-aligned archive
+            if (length - offset < BLOCK_SIZE) {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("Archive is not aligned to ");
+                msg.append(BLOCK_SIZE);
+                msg.append(" bytes!");
+
+                throw new InvalidPackageException(msg.toString());
+
+            }
+
+            // headers never cross a segment boundary as segments are block aligned
+            ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+            ((Buffer) segment).position((int) (offset % SEGMENT_SIZE));
+            segment.get(block);
+
+            TarHeader header = new TarHeader();
+            header.decode(block);
+
+            // catch end of archive marker
+            if (header.isEmpty())
+                break;
+
+            long size = header.getFileSize();
+            long dataOffset = offset + BLOCK_SIZE;
+
+            if (dataOffset + size > length)
+                throw new InvalidPackageException("Unexpected end of archive!");
+
+            Entry entry = new Entry(header, offset, dataOffset, size);
+            entries.add(entry);
+
+            String filename = header.getFileName();
+            if (!index.containsKey(filename))
+                index.put(filename, entry);
+
+            // move to the next header
+            offset = dataOffset + (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+
+        }
+
+    }
+
+    // returns a read-only buffer over the contents of the given entry
+    private ByteBuffer getBuffer(final Entry entry) throws IOException {
+
+        if (entry.size == 0)
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+        if (entry.size > Integer.MAX_VALUE) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("The file \"");
+            msg.append(entry.header.getFileName());
+            msg.append("\" is too large to be held in a single buffer!");
+
+            throw new IOException(msg.toString());
+
+        }
+
+        int segmentIndex = (int) (entry.dataOffset / SEGMENT_SIZE);
+        long segmentOffset = entry.dataOffset % SEGMENT_SIZE;
+
+        // map contents that cross a segment boundary separately
+        if (segmentOffset + entry.size > segments[segmentIndex].capacity())
+            return channel.map(FileChannel.MapMode.READ_ONLY, entry.dataOffset, entry.size);
+
+        ByteBuffer buffer = segments[segmentIndex].duplicate();
+        ((Buffer) buffer).position((int) segmentOffset);
+        ((Buffer) buffer).limit((int) (segmentOffset + entry.size));
+
+        return buffer.slice().asReadOnlyBuffer();
+
+    }
+
+    // copies the contents of the given entry onto the heap
+    private byte[] getContents(final Entry entry) {
+
+        if (entry.size == 0)
+            return null;
+
+        try {
+
+            ByteBuffer buffer = getBuffer(entry);
+
+            byte[] fileContents = new byte[buffer.remaining()];
+            buffer.get(fileContents);
+
+            return fileContents;
+
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+
+    }
+
+    /**
+     * Returns the number of records in the archive.
+     *
+     * @return the number of records in the archive.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the header of the record at the given position in the archive.
+     *
+     * @param i position of the record.
+     * @return the header of the record.
+     */
+    public TarHeader getHeader(int i) {
+        return entries.get(i).header;
+    }
+
+    /**
+     * Returns the contents of the record at the given position in the archive without copying them.
+     *
+     * @param i position of the record.
+     * @return a read-only buffer of the contents of the record.
+     * @throws IOException if the contents are too large to be held in a single buffer.
+     */
+    public ByteBuffer getFileBuffer(int i) throws IOException {
+        return getBuffer(entries.get(i));
+    }
+
+    /**
+     * Copies the contents of the record at the given position to the given channel, letting the operating system
+     * move them straight from the archive file without passing through the heap.
+     * Can be called from several threads at once.
+     *
+     * @param i position of the record.
+     * @param target channel to copy the contents to.
+     * @return the number of bytes copied.
+     * @throws IOException upon failure to read the archive or write to {@code target}.
+     */
+    public long transferTo(int i, final WritableByteChannel target) throws IOException {
+
+        Entry entry = entries.get(i);
+
+        long transferred = 0;
+        while (transferred < entry.size) {
+
+            long num = channel.transferTo(entry.dataOffset + transferred, entry.size - transferred, target);
+            if (num <= 0)
+                throw new EOFException("Unexpected end of archive!");
+
+            transferred += num;
+
+        }
+
+        return transferred;
+
+    }
+
+    /**
+     * Extracts this archive to the given directory (see {@code TarExtractor}).
+     *
+     * @param dir directory to extract the archive to.
+     * @param deleteFlag whether or not to delete the extracted files when the program finishes.
+     * @throws InvalidPackageException if a record has an invalid header.
+     * @throws IOException upon failure to read the archive or write to the directory.
+     */
+    public void extract(final File dir, boolean deleteFlag) throws InvalidPackageException, IOException {
+
+        TarExtractor extractor = new TarExtractor(dir);
+        extractor.setDeleteOnExit(deleteFlag);
+
+        extractor.extract(this);
+
+    }
+
+    /**
+     * Returns the first record which name matches the given pattern.
+     * The contents of the returned record are copied from the archive.
+     *
+     * @param pattern regex pattern to be matched.
+     * @return the first record which name matches the given pattern, or {@code null} if it does not exist.
+     */
+    public TarRecord getRecord(final String pattern) {
+
+        if (TarArchive.isLiteral(pattern)) {
+
+            Entry entry = index.get(pattern);
+
+            if (entry == null) {
+                return null;
+            } else {
+                return new TarRecord(entry.header, getContents(entry));
+            }
+
+        } else {
+            return getRecord(Pattern.compile(pattern));
+        }
+
+    }
+
+    /**
+     * Returns the first record which name matches the given pattern.
+     * The contents of the returned record are copied from the archive.
+     *
+     * @param pattern compiled regex pattern to be matched.
+     * @return the first record which name matches the given pattern, or {@code null} if it does not exist.
+     */
+    public TarRecord getRecord(final Pattern pattern) {
+
+        // find first record matching the given pattern
+        for (Entry entry : entries) {
+
+            if (pattern.matcher(entry.header.getFileName()).matches())
+                return new TarRecord(entry.header, getContents(entry));
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Returns the all records which name matches the given pattern.
+     * The contents of the returned records are copied from the archive.
+     *
+     * @param pattern regex pattern to be matched.
+     * @return the all records which name matches the given pattern, or {@code null} if none match.
+     */
+    public TarRecord[] getRecords(final String pattern) {
+        return getRecords(Pattern.compile(pattern));
+    }
+
+    /**
+     * Returns the all records which name matches the given pattern.
+     * The contents of the returned records are copied from the archive.
+     *
+     * @param pattern compiled regex pattern to be matched.
+     * @return the all records which name matches the given pattern, or {@code null} if none match.
+     */
+    public TarRecord[] getRecords(final Pattern pattern) {
+
+        ArrayList<TarRecord> records = new ArrayList<TarRecord>();
+
+        // find all records matching the given pattern
+        for (Entry entry : entries) {
+
+            if (pattern.matcher(entry.header.getFileName()).matches())
+                records.add(new TarRecord(entry.header, getContents(entry)));
+
+        }
+
+        if (records.isEmpty())
+            return null;
+
+        return records.toArray(new TarRecord[records.size()]);
+
+    }
+
+    /**
+     * Returns a copy of the contents of the file named {@code filename}.
+     *
+     * @param filename the name of the file to get.
+     * @return the contents of the file named {@code filename}, or {@code null} if it doesn't exist.
+     */
+    public byte[] getFileContents(final String filename) {
+
+        Entry entry = index.get(filename);
+
+        if (entry == null) {
+            return null;
+        } else {
+            return getContents(entry);
+        }
+
+    }
+
+    /**
+     * Returns the contents of the file named {@code filename} as a slice of the mapped archive.
+     *
+     * @param filename the name of the file to get.
+     * @return a read-only buffer of the contents of the file named {@code filename}, or {@code null} if it doesn't
+     *         exist.
+     */
+    public ByteBuffer getFileBuffer(final String filename) {
+
+        Entry entry = index.get(filename);
+
+        if (entry == null)
+            return null;
+
+        try {
+            return getBuffer(entry);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+
+    }
+
+    /**
+     * Closes the archive file.
+     * Buffers that have already been returned remain valid until they are garbage collected.
+     *
+     * @throws IOException upon failure to close the file.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Location of a record in the archive.
+     *
+     */
+    private static final class Entry {
+
+        final TarHeader header;
+
+        // offsets of the header and contents in the archive
+        final long headerOffset;
+        final long dataOffset;
+
+        // size of the contents
+        final long size;
+
+        Entry(final TarHeader header, long headerOffset, long dataOffset, long size) {
+
+            this.header = header;
+            this.headerOffset = headerOffset;
+            this.dataOffset = dataOffset;
+            this.size = size;
+
+        }
+
+    }
+
+}
+
+// EOF
@@ -16,18 +16,31 @@ package spm.format.tar;
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import spm.format.InvalidPackageException;
 
 /**
  * Represents a TAR archive.
+ * Records are indexed by name, so looking up a file by its exact name does not scan the archive. Records must not
+ * be renamed while they are in the archive.
  * 
  * @author Zachary Scott <cthug.zs@gmail.com>
  */
-public class TarArchive extends ArrayList<TarRecord> {
+public class TarArchive extends ArrayList<TarRecord> implements TarLookup {
+    
+    // characters that have a special meaning in a regex pattern
+    private static final String REGEX_CHARS = "\\[](){}.*+?^$|";
+    
+    // first record of each name, valid while indexModCount matches modCount
+    private transient HashMap<String, TarRecord> index = null;
+    private transient int indexModCount;
     
     /**
      * Creates a new instance of {@code TarArchive}.
@@ -37,6 +50,92 @@ public class TarArchive extends ArrayList<TarRecord> {
         
     }
     
+    /**
+     * Returns whether the given pattern only matches the string it contains.
+     * 
+     * @param pattern regex pattern to check.
+     * @return whether {@code pattern} contains no regex special characters.
+     */
+    static boolean isLiteral(final String pattern) {
+        
+        for (int i = 0; i < pattern.length(); i++) {
+            
+            if (REGEX_CHARS.indexOf(pattern.charAt(i)) != -1)
+                return false;
+            
+        }
+        
+        return true;
+        
+    }
+    
+    // returns the name index, rebuilding it if the archive has been modified
+    private HashMap<String, TarRecord> getIndex() {
+        
+        if (index == null || indexModCount != modCount) {
+            
+            index = new HashMap<String, TarRecord>(size() * 2);
+            
+            for (TarRecord record : this) {
+                
+                String filename = record.getHeader().getFileName();
+                if (!index.containsKey(filename))
+                    index.put(filename, record);
+                
+            }
+            
+            indexModCount = modCount;
+            
+        }
+        
+        return index;
+        
+    }
+    
+    /**
+     * Appends the given record to the end of this {@code TarArchive}, updating the name index.
+     * 
+     * @param record the record to add.
+     * @return {@code true}.
+     */
+    @Override
+    public boolean add(final TarRecord record) {
+        
+        boolean currentFlag = index != null && indexModCount == modCount;
+        
+        super.add(record);
+        
+        // keep the index up to date rather than rebuilding it on the next lookup
+        if (currentFlag) {
+            
+            String filename = record.getHeader().getFileName();
+            if (!index.containsKey(filename))
+                index.put(filename, record);
+            
+            indexModCount = modCount;
+            
+        }
+        
+        return true;
+        
+    }
+    
+    /**
+     * Replaces the record at the given position in this {@code TarArchive}.
+     * 
+     * @param i position of the record to replace.
+     * @param record the new record.
+     * @return the record previously at the given position.
+     */
+    @Override
+    public TarRecord set(int i, final TarRecord record) {
+        
+        index = null;
+        
+        return super.set(i, record);
+        
+    }
+    
     /**
      * Reads a tar archive from the given input stream.
      * 
@@ -46,19 +145,29 @@ public class TarArchive extends ArrayList<TarRecord> {
      */
     public void read(final InputStream input) throws InvalidPackageException, IOException {
         
-        TarRecord record;
+        TarReader reader = new TarReader(input);
         
         clear();
         
-        do {
+        TarHeader header;
+        while ((header = reader.next()) != null) {
             
-            record = new TarRecord();
-            record.read(input);
+            // read file contents
+            byte[] fileContents = null;
             
-            if (!record.isEmpty())
-                add(record);
+            long size = header.getFileSize();
+            if (size > 0) {
+                
+                fileContents = new byte[(int) size];
+                
+                if (TarRecord.readInput(reader.getInputStream(), fileContents) != size)
+                    throw new InvalidPackageException("Unexpected end of archive!");
+                
+            }
             
-        } while (!record.isEmpty());
+            add(new TarRecord(header, fileContents));
+            
+        }
         
     }
     
@@ -137,24 +246,6 @@ public class TarArchive extends ArrayList<TarRecord> {
         write(new File(file));
     }
     
-    // sets the unix file permissions for the given File
-    private void setMode(final File file, int mode) {
-        
-        int userMode = mode & 7;
-        int ownerMode = (mode >> 6) & 7;
-        
-        // set user permissions
-        file.setReadable(((userMode >> 2) & 1) == 1, false);
-        file.setWritable(((userMode >> 1) & 1) == 1, false);
-        file.setExecutable((userMode >> 1 & 1) == 1, false);
-        
-        // set owner permissions
-        file.setReadable(((ownerMode >> 2) & 1) == 1, true);
-        file.setWritable(((ownerMode >> 1) & 1) == 1, true);
-        file.setExecutable((ownerMode >> 1 & 1) == 1, true);
-        
-    }
-    
     /**
      * Extracts this {@code TarArchive} to the given directory.
      * 
@@ -165,49 +256,10 @@ public class TarArchive extends ArrayList<TarRecord> {
                                                                    InvalidPackageException, 
                                                                    IOException {
         
-        // extract each file
-        for (TarRecord record : this) {
-            
-            TarHeader header = record.getHeader();
-            
-            File file = new File(dir, header.getFileName());
-            
-            // create files parent directories
-            File parent = file.getParentFile();
-            if (!parent.exists())
-                parent.mkdirs();
-            
-            // create file
-            if (record.isDirectory()) {
-                file.mkdir();
-            } else {
-                file.createNewFile();
-            }
-            
-            // write file contents to disk
-            if (!record.isDirectory()) {
-            
-                OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
-
-                // write file contents to disk
-                byte[] fileContents = record.getFileContents();
-                if (fileContents != null) {
-                    for (byte b : fileContents) {
-                        output.write(b);
-                    }
-                }
-                
-                output.close();
-            
-            }
-            
-            // set file permissions
-            setMode(file, (int) header.getMode());
-            
-            if (deleteFlag)
-                file.deleteOnExit();
-            
-        }
+        TarExtractor extractor = new TarExtractor(dir);
+        extractor.setDeleteOnExit(deleteFlag);
+        
+        extractor.extract(this);
         
     }
     
@@ -246,15 +298,10 @@ public class TarArchive extends ArrayList<TarRecord> {
      */
     public final void deleteFile(final String pattern) {
         
-        // find and delete first record matching the given pattern
-        for (TarRecord record : this) {
-            
-            if (record.getHeader().getFileName().matches(pattern)) {
-                remove(record);
-                return;
-            }
-            
-        }
+        TarRecord record = getRecord(pattern);
+        
+        if (record != null)
+            remove(record);
         
     }
     
@@ -264,12 +311,21 @@ public class TarArchive extends ArrayList<TarRecord> {
      * @param pattern regex pattern to match.
      */
     public final void deleteFiles(final String pattern) {
+        deleteFiles(Pattern.compile(pattern));
+    }
+    
+    /**
+     * Deletes all of the records which name matches the given pattern.
+     * 
+     * @param pattern compiled regex pattern to match.
+     */
+    public final void deleteFiles(final Pattern pattern) {
         
         // find and delete all records matching the given pattern
-        for (TarRecord record : this) {
+        for (Iterator<TarRecord> i = iterator(); i.hasNext(); ) {
             
-            if (record.getHeader().getFileName().matches(pattern))
-                remove(record);
+            if (pattern.matcher(i.next().getHeader().getFileName()).matches())
+                i.remove();
             
         }
         
@@ -288,6 +344,8 @@ public class TarArchive extends ArrayList<TarRecord> {
         record.getHeader().setFileName(filename);
         record.setFileContents(fileContents);
         
+        add(record);
+        
     }
     
     /**
@@ -299,14 +357,12 @@ public class TarArchive extends ArrayList<TarRecord> {
      */
     public void addFile(final File file) throws FileNotFoundException, IOException {
         
-        BufferedInputStream input = new BufferedInputStream(new FileInputStream(file));
+        InputStream input = new FileInputStream(file);
         
         byte[] buffer = new byte[(int) file.length()];
         
         // read in the file
-        int b;
-        for (int i = 0; (b = input.read()) != -1; i++)
-            buffer[i] = (byte) b;
+        TarRecord.readInput(input, buffer);
         
         addFile(file.getName(), buffer);
         
@@ -327,17 +383,33 @@ public class TarArchive extends ArrayList<TarRecord> {
     
     /**
      * Returns the first record which name matches the given pattern.
-     * Equivalent to {@code getAllRecords(pattern)[0]}.
+     * Patterns without any regex special characters are looked up by name without scanning the archive.
      * 
      * @param pattern regex pattern to be matched.
      * @return the first record which name matches the given pattern, or {@code null} if it does not exist.
      */
     public final TarRecord getRecord(final String pattern) {
         
+        if (isLiteral(pattern)) {
+            return getIndex().get(pattern);
+        } else {
+            return getRecord(Pattern.compile(pattern));
+        }
+        
+    }
+    
+    /**
+     * Returns the first record which name matches the given pattern.
+     * 
+     * @param pattern compiled regex pattern to be matched.
+     * @return the first record which name matches the given pattern, or {@code null} if it does not exist.
+     */
+    public final TarRecord getRecord(final Pattern pattern) {
+        
         // find first record matching the given pattern
         for (TarRecord record : this) {
             
-            if (record.getHeader().getFileName().matches(pattern))
+            if (pattern.matcher(record.getHeader().getFileName()).matches())
                 return record;
             
         }
@@ -346,6 +418,16 @@ public class TarArchive extends ArrayList<TarRecord> {
         
     }
     
+    /**
+     * Returns the first record named {@code filename}.
+     * 
+     * @param filename name of the record.
+     * @return the first record named {@code filename}, or {@code null} if it does not exist.
+     */
+    public final TarRecord getRecordByName(final String filename) {
+        return getIndex().get(filename);
+    }
+    
     /**
      * Returns the all records which name matches the given pattern.
      * 
@@ -353,13 +435,23 @@ public class TarArchive extends ArrayList<TarRecord> {
      * @return the all records which name matches the given pattern, or {@code null} if none match.
      */
     public final TarRecord[] getRecords(final String pattern) {
+        return getRecords(Pattern.compile(pattern));
+    }
+    
+    /**
+     * Returns the all records which name matches the given pattern.
+     * 
+     * @param pattern compiled regex pattern to be matched.
+     * @return the all records which name matches the given pattern, or {@code null} if none match.
+     */
+    public final TarRecord[] getRecords(final Pattern pattern) {
         
         ArrayList<TarRecord> records = new ArrayList<TarRecord>();
         
         // find all records matching the given pattern
         for (TarRecord record : this) {
             
-            if (record.getHeader().getFileName().matches(pattern))
+            if (pattern.matcher(record.getHeader().getFileName()).matches())
                 records.add(record);
             
         }
@@ -367,7 +459,7 @@ public class TarArchive extends ArrayList<TarRecord> {
         if (records.isEmpty())
             return null;
         
-        return (TarRecord[]) records.toArray();
+        return records.toArray(new TarRecord[records.size()]);
         
     }
     
@@ -379,7 +471,7 @@ public class TarArchive extends ArrayList<TarRecord> {
      */
     public final byte[] getFileContents(final String filename) {
         
-        TarRecord record = getRecord(filename);
+        TarRecord record = getRecordByName(filename);
         
         if (record == null) {
             return null;
@@ -389,6 +481,27 @@ public class TarArchive extends ArrayList<TarRecord> {
             
     }
     
+    /**
+     * Returns the contents of the file named {@code filename} without copying them.
+     * 
+     * @param filename the name of the file to get.
+     * @return a read-only buffer of the contents of the file named {@code filename}, or {@code null} if it doesn't
+     *         exist.
+     */
+    public final ByteBuffer getFileBuffer(final String filename) {
+        
+        TarRecord record = getRecordByName(filename);
+        
+        if (record == null) {
+            return null;
+        } else if (record.getFileContents() == null) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        } else {
+            return ByteBuffer.wrap(record.getFileContents()).asReadOnlyBuffer();
+        }
+        
+    }
+    
     /**
      * Sets the contents of the file named {@code filename} to {@code fileContents}.
      * If {@code filename} is {@code null}, nothing is done.
@@ -398,7 +511,7 @@ public class TarArchive extends ArrayList<TarRecord> {
      */
     public final void setFileContents(final String filename, final byte[] fileContents) {
         
-        TarRecord record = getRecord(filename);
+        TarRecord record = getRecordByName(filename);
         
         if (record == null)
             return;
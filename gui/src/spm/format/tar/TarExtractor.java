@@ -0,0 +1,1120 @@
+package spm.format.tar;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spm.format.InvalidPackageException;
+import spm.util.BlobStore;
+import spm.util.Hash;
+import spm.util.Hasher;
+
+/**
+ * Extracts the records of a TAR archive to a directory.
+ * The directories are created once, before the files that go in them, and the file contents are written with
+ * bulk {@code FileChannel} writes on a bounded pool of threads. Contents are never copied onto the heap as a whole:
+ * streamed archives are copied through a fixed size buffer and mapped archives are transferred from file to file
+ * by the operating system. Permissions are applied in a single call where the file system supports POSIX
+ * permissions. Records with the same name are extracted in archive order, so the last one is left on disk.
+ * Given the hashes of the records, each file is hashed as it is written and the extraction fails, deleting what it
+ * wrote, if any file does not match.
+ * Every file is extracted inside the directory: records with absolute names, with {@code ..} in their names or
+ * linking outside the directory are rejected, no directory is created outside it through a symbolic link, and no
+ * file is written through a symbolic link.
+ * Given a {@code BlobStore} and the hashes of the records, files already in the store are hard linked from it
+ * instead of being decompressed, and written files are added to it only if they were hashed as written to the
+ * expected hash. Files linked from or added to the store are sealed by it, so they are read-only.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class TarExtractor {
+
+    private final static Logger logger = Logger.getLogger(TarExtractor.class.getName());
+
+    // size of the buffer used to copy streamed files to disk
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    // number of files that may be waiting to be written for each thread
+    private static final int QUEUED_FILES_PER_THREAD = 4;
+
+    private static final boolean POSIX_FLAG = 
+        FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    // permissions of each mode, created as they are needed
+    private static final Set<?>[] permissions = new Set<?>[01000];
+
+    private static final PosixFilePermission[] PERMISSION_BITS = {
+        PosixFilePermission.OTHERS_EXECUTE, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_READ, 
+        PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_READ, 
+        PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_READ
+    };
+
+    // directory to extract to
+    private final File dir;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean deleteFlag = false;
+
+    // names of the records to extract, and prefixes of the directories to extract (null to extract everything)
+    private Set<String> includedNames = null;
+    private List<String> includedPrefixes = null;
+
+    // names of the records to skip, and prefixes of the directories to skip (null to skip nothing)
+    private Set<String> excludedNames = null;
+    private List<String> excludedPrefixes = null;
+
+    // directories which have been created by this extractor, and the real path of the directory extracted to
+    private final Set<String> createdDirs = new HashSet<String>();
+    private Path rootPath = null;
+
+    // store of file contents shared between extractions, and the hashes of the records by name (null if none)
+    private BlobStore blobStore = null;
+    private Map<String, ? extends Hash> hashes = null;
+
+    // hashes the extracted files are checked against by name (null to not check them)
+    private Map<String, ? extends Hash> checkedHashes = null;
+
+    // buffer used to copy streamed files to disk (created when first needed)
+    private ByteBuffer copyBuffer = null;
+
+    // statistics of the last extraction
+    private int fileCount = 0;
+    private long byteCount = 0;
+    private int linkedCount = 0;
+    private long elapsedTime = 0;
+
+    // state of the current extraction
+    private ExecutorService pool = null;
+    private Semaphore queue = null;
+    private int queueSize = 0;
+    private IOException failure = null;
+
+    // hashes of the checked files which have been written by name, and the files written
+    private final Map<String, Hash> writtenHashes = Collections.synchronizedMap(new HashMap<String, Hash>());
+    private final List<Path> writtenPaths = Collections.synchronizedList(new ArrayList<Path>());
+
+    /**
+     * Creates a new instance of {@code TarExtractor}.
+     *
+     * @param dir directory to extract to.
+     */
+    public TarExtractor(final File dir) {
+
+        this.dir = dir;
+
+    }
+
+    /**
+     * Sets the number of threads which write files.
+     *
+     * @param threads number of threads (1 writes the files on the calling thread).
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns the number of threads which write files.
+     *
+     * @return the number of threads.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets whether the extracted files are deleted when the program finishes.
+     *
+     * @param deleteFlag whether or not to delete the extracted files.
+     */
+    public void setDeleteOnExit(boolean deleteFlag) {
+        this.deleteFlag = deleteFlag;
+    }
+
+    /**
+     * Returns whether the extracted files are deleted when the program finishes.
+     *
+     * @return whether or not the extracted files are deleted.
+     */
+    public boolean isDeleteOnExit() {
+        return deleteFlag;
+    }
+
+    /**
+     * Sets the hashes the extracted files are checked against.
+     * Each file is hashed as it is written, and once every file has been written the last file of each name must
+     * match the hash given for it, or the extraction fails and the files it wrote are deleted. Files without a
+     * hash are not checked.
+     *
+     * @param hashes hashes of the records' contents by name, or {@code null} to not check the files.
+     */
+    public void setCheckedHashes(final Map<String, ? extends Hash> hashes) {
+        checkedHashes = hashes;
+    }
+
+    /**
+     * Returns the hashes the extracted files are checked against.
+     *
+     * @return the hashes of the records' contents by name, or {@code null} if the files are not checked.
+     */
+    public Map<String, ? extends Hash> getCheckedHashes() {
+        return checkedHashes;
+    }
+
+    /**
+     * Sets the store which extracted files are linked from and added to.
+     * The hashes MUST be those of the records' contents, and each name MUST occur only once in the archive, as
+     * files are stored under the hash given for their name.
+     *
+     * @param blobStore store of file contents, or {@code null} to write every file.
+     * @param hashes hashes of the records' contents by name.
+     */
+    public void setBlobStore(final BlobStore blobStore, final Map<String, ? extends Hash> hashes) {
+
+        this.blobStore = blobStore;
+        this.hashes = blobStore == null ? null : hashes;
+
+    }
+
+    /**
+     * Returns the store which extracted files are linked from and added to.
+     *
+     * @return the store of file contents, or {@code null} if every file is written.
+     */
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * Limits extraction to the given records.
+     * Names ending with {@code /} include everything in that directory; other names include only the records of
+     * exactly that name.
+     *
+     * @param names names of the records to extract, or {@code null} to extract every record.
+     */
+    public void setIncludes(final Collection<String> names) {
+
+        if (names == null) {
+
+            includedNames = null;
+            includedPrefixes = null;
+
+            return;
+
+        }
+
+        includedNames = new HashSet<String>();
+        includedPrefixes = new ArrayList<String>();
+
+        split(names, includedNames, includedPrefixes);
+
+    }
+
+    /**
+     * Skips the given records, even if they are included.
+     * Names ending with {@code /} exclude everything in that directory; other names exclude only the records of
+     * exactly that name.
+     *
+     * @param names names of the records to skip, or {@code null} to skip none.
+     */
+    public void setExcludes(final Collection<String> names) {
+
+        if (names == null) {
+
+            excludedNames = null;
+            excludedPrefixes = null;
+
+            return;
+
+        }
+
+        excludedNames = new HashSet<String>();
+        excludedPrefixes = new ArrayList<String>();
+
+        split(names, excludedNames, excludedPrefixes);
+
+    }
+
+    // splits names into those of records and prefixes of directories
+    private static void split(final Collection<String> names, final Set<String> filenames, final List<String> prefixes) {
+
+        for (String name : names) {
+
+            if (name.endsWith("/"))
+                prefixes.add(name);
+            else
+                filenames.add(name);
+
+        }
+
+    }
+
+    /**
+     * Returns whether a record of the given name is extracted.
+     *
+     * @param filename name of the record.
+     * @return whether the record is extracted.
+     */
+    public boolean isIncluded(final String filename) {
+
+        if (excludedNames != null && matches(filename, excludedNames, excludedPrefixes))
+            return false;
+
+        return includedNames == null || matches(filename, includedNames, includedPrefixes);
+
+    }
+
+    // returns whether a record of the given name is one of the given records or in one of the given directories
+    private static boolean matches(final String filename, final Set<String> filenames, final List<String> prefixes) {
+
+        if (filenames.contains(filename))
+            return true;
+
+        for (String prefix : prefixes) {
+
+            // the directory record itself is included with or without its trailing slash
+            if (filename.startsWith(prefix) || prefix.regionMatches(0, filename, 0, prefix.length() - 1) && 
+                filename.length() == prefix.length() - 1)
+                return true;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Extracts every record of the given archive.
+     *
+     * @param archive archive to extract.
+     * @throws InvalidPackageException if a record has an invalid header.
+     * @throws IOException upon failure to write to the directory.
+     */
+    public void extract(final TarArchive archive) throws InvalidPackageException, IOException {
+
+        long start = begin(true);
+
+        try {
+
+            TarHeader[] headers = new TarHeader[archive.size()];
+            for (int i = 0; i < headers.length; i++) {
+
+                headers[i] = archive.get(i).getHeader();
+                checkName(headers[i]);
+
+            }
+
+            createDirectories(headers);
+
+            // write the files, waiting for an earlier record of the same name to be written first
+            ArrayList<TarHeader> dirHeaders = new ArrayList<TarHeader>();
+            HashSet<String> filenames = new HashSet<String>();
+            for (TarRecord record : archive) {
+
+                TarHeader header = record.getHeader();
+
+                if (!isIncluded(header.getFileName()))
+                    continue;
+
+                if (header.getType() == TarFileType.DIR) {
+                    dirHeaders.add(header);
+                    continue;
+                }
+
+                if (!filenames.add(header.getFileName()))
+                    drain();
+
+                final byte[] fileContents = record.getFileContents();
+
+                submit(header, new Contents() {
+
+                    @Override
+                    long write(final FileChannel channel, final Hasher hasher) throws IOException {
+
+                        if (fileContents == null)
+                            return 0;
+
+                        if (hasher != null)
+                            hasher.update(fileContents, 0, fileContents.length);
+
+                        ByteBuffer buffer = ByteBuffer.wrap(fileContents);
+                        while (buffer.hasRemaining())
+                            channel.write(buffer);
+
+                        return fileContents.length;
+
+                    }
+
+                });
+
+            }
+
+            finish();
+            check();
+            setModes(dirHeaders);
+
+        } finally {
+            end(start);
+        }
+
+    }
+
+    /**
+     * Extracts every record of the given mapped archive.
+     * The contents of each file are transferred straight from the archive file to the extracted file by the
+     * operating system, on the pool.
+     *
+     * @param archive archive to extract.
+     * @throws InvalidPackageException if a record has an invalid header.
+     * @throws IOException upon failure to read the archive or write to the directory.
+     */
+    public void extract(final MappedTarArchive archive) throws InvalidPackageException, IOException {
+
+        long start = begin(true);
+
+        try {
+
+            TarHeader[] headers = new TarHeader[archive.size()];
+            for (int i = 0; i < headers.length; i++) {
+
+                headers[i] = archive.getHeader(i);
+                checkName(headers[i]);
+
+            }
+
+            createDirectories(headers);
+
+            // write the files, waiting for an earlier record of the same name to be written first
+            ArrayList<TarHeader> dirHeaders = new ArrayList<TarHeader>();
+            HashSet<String> filenames = new HashSet<String>();
+            for (int i = 0; i < headers.length; i++) {
+
+                TarHeader header = headers[i];
+
+                if (!isIncluded(header.getFileName()))
+                    continue;
+
+                if (header.getType() == TarFileType.DIR) {
+                    dirHeaders.add(header);
+                    continue;
+                }
+
+                if (!filenames.add(header.getFileName()))
+                    drain();
+
+                final int index = i;
+
+                submit(header, new Contents() {
+
+                    @Override
+                    long write(final FileChannel channel, final Hasher hasher) throws IOException {
+
+                        // checked files are hashed from the mapped archive, then transferred as the rest are
+                        if (hasher != null)
+                            hasher.update(archive.getFileBuffer(index));
+
+                        return archive.transferTo(index, channel);
+
+                    }
+
+                });
+
+            }
+
+            finish();
+            check();
+            setModes(dirHeaders);
+
+        } finally {
+            end(start);
+        }
+
+    }
+
+    /**
+     * Extracts each of the remaining records of the given reader.
+     * The contents of each file are copied from the archive stream to disk through a single fixed size buffer as
+     * they are read, so only the decompression of the stream (see {@code ParallelGZIPInputStream}) runs in
+     * parallel.
+     *
+     * @param reader reader of the archive to extract.
+     * @throws InvalidPackageException if the archive is not in a valid tar format.
+     * @throws IOException upon failure to read the archive or write to the directory.
+     */
+    public void extract(final TarReader reader) throws InvalidPackageException, IOException {
+        extract(reader, null);
+    }
+
+    /**
+     * Extracts each of the remaining records of the given reader, telling the given listener about each record
+     * once its contents have been written (see {@code extract(TarReader)}).
+     * The hash of each record is available from the reader when the listener is told about it.
+     *
+     * @param reader reader of the archive to extract.
+     * @param listener listener to tell about each record, or {@code null}.
+     * @throws InvalidPackageException if the archive is not in a valid tar format, or the listener rejects a record.
+     * @throws IOException upon failure to read the archive or write to the directory.
+     */
+    public void extract(final TarReader reader, final Listener listener) throws InvalidPackageException, 
+                                                                               IOException {
+
+        long start = begin(false); // streamed files are written as they are read
+
+        try {
+
+            createDirectory("");
+
+            ArrayList<TarHeader> dirHeaders = new ArrayList<TarHeader>();
+            TarHeader header;
+            while ((header = reader.next()) != null) {
+
+                checkName(header);
+
+                String filename = header.getFileName();
+
+                if (!isIncluded(filename)) {
+
+                    if (listener != null)
+                        listener.extracted(header, null);
+
+                    continue;
+
+                }
+
+                if (header.getType() == TarFileType.DIR) {
+
+                    createDirectory(filename);
+                    dirHeaders.add(header);
+
+                } else {
+
+                    createParent(filename);
+
+                    final InputStream input = reader.getInputStream();
+
+                    writeFile(header, new Contents() {
+
+                        @Override
+                        long write(final FileChannel channel, final Hasher hasher) throws IOException {
+                            return copy(input, channel, hasher);
+                        }
+
+                    });
+
+                }
+
+                if (listener != null)
+                    listener.extracted(header, fileFor(filename));
+
+            }
+
+            finish();
+            check();
+            setModes(dirHeaders);
+
+        } finally {
+            end(start);
+        }
+
+    }
+
+    // resets the statistics and starts the pool if the files are written on it, returning the start time
+    private long begin(boolean poolFlag) {
+
+        createdDirs.clear();
+        rootPath = null;
+
+        fileCount = 0;
+        byteCount = 0;
+        linkedCount = 0;
+        elapsedTime = 0;
+        failure = null;
+
+        writtenHashes.clear();
+        writtenPaths.clear();
+
+        if (poolFlag && threads > 1) {
+
+            queueSize = threads * QUEUED_FILES_PER_THREAD;
+            queue = new Semaphore(queueSize);
+            pool = Executors.newFixedThreadPool(threads);
+
+        }
+
+        return System.nanoTime();
+
+    }
+
+    // stops the pool and records the statistics of the extraction
+    private void end(long start) {
+
+        if (pool != null) {
+
+            pool.shutdownNow();
+            pool = null;
+            queue = null;
+
+        }
+
+        elapsedTime = System.nanoTime() - start;
+
+        if (logger.isLoggable(Level.FINE)) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("Extracted ");
+            msg.append(fileCount);
+            msg.append(" files (");
+            msg.append(String.format("%.1f", byteCount / 1048576.0));
+            msg.append(" MiB) to \"");
+            msg.append(dir.getPath());
+            msg.append("\" with ");
+            msg.append(threads);
+            msg.append(" threads at ");
+            msg.append(String.format("%.0f", getFilesPerSecond()));
+            msg.append(" files/s, ");
+            msg.append(String.format("%.1f", getMegabytesPerSecond()));
+            msg.append(" MiB/s.");
+
+            logger.fine(msg.toString());
+
+        }
+
+    }
+
+    // waits for the queued files to be written and reports the first failure
+    private void finish() throws IOException {
+
+        drain();
+
+        if (failure != null)
+            throw failure;
+
+    }
+
+    // checks the written files against their hashes, deleting every file written if any does not match
+    private void check() throws InvalidPackageException, IOException {
+
+        if (checkedHashes == null)
+            return;
+
+        for (Map.Entry<String, Hash> entry : writtenHashes.entrySet()) {
+
+            if (entry.getValue().equals(checkedHashes.get(entry.getKey())))
+                continue;
+
+            for (Path path : writtenPaths)
+                Files.deleteIfExists(path);
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("The extracted file \"");
+            msg.append(entry.getKey());
+            msg.append("\" does not match its digest!");
+
+            throw new InvalidPackageException(msg.toString());
+
+        }
+
+    }
+
+    // waits until no files are queued
+    private void drain() {
+
+        if (queue != null) {
+
+            queue.acquireUninterruptibly(queueSize);
+            queue.release(queueSize);
+
+        }
+
+    }
+
+    // writes a file with the given contents, on the pool if there is one
+    private void submit(final TarHeader header, final Contents contents) throws IOException {
+
+        if (pool == null) {
+
+            writeFile(header, contents);
+
+            return;
+
+        }
+
+        if (getFailure() != null)
+            throw getFailure();
+
+        queue.acquireUninterruptibly();
+
+        pool.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    writeFile(header, contents);
+
+                } catch (IOException ex) {
+                    fail(ex);
+                } catch (RuntimeException ex) {
+                    fail(new IOException(ex));
+                } finally {
+                    queue.release();
+                }
+
+            }
+
+        });
+
+    }
+
+    // applies the modes of directories once their contents have been written, as they may not be writable
+    private void setModes(final List<TarHeader> dirHeaders) throws IOException {
+
+        for (TarHeader header : dirHeaders)
+            setMode(fileFor(header.getFileName()), header.getMode());
+
+    }
+
+    // records the first failure of the pool
+    private synchronized void fail(final IOException ex) {
+
+        if (failure == null)
+            failure = ex;
+
+    }
+
+    private synchronized IOException getFailure() {
+        return failure;
+    }
+
+    private synchronized void count(long bytes) {
+
+        fileCount++;
+        byteCount += bytes;
+
+    }
+
+    private synchronized void countLinked() {
+
+        fileCount++;
+        linkedCount++;
+
+    }
+
+    // creates every directory needed by the given records up front, parents first
+    private void createDirectories(final TarHeader[] headers) throws InvalidPackageException, IOException {
+
+        TreeSet<String> dirnames = new TreeSet<String>();
+        dirnames.add("");
+
+        for (TarHeader header : headers) {
+
+            String filename = header.getFileName();
+
+            if (!isIncluded(filename))
+                continue;
+
+            if (header.getType() == TarFileType.DIR) {
+                dirnames.add(filename);
+            } else {
+
+                int slash = filename.lastIndexOf('/');
+                dirnames.add(slash < 0 ? "" : filename.substring(0, slash));
+
+            }
+
+        }
+
+        for (String dirname : dirnames)
+            createDirectory(dirname);
+
+    }
+
+    // creates the parent directory of the given record name if it has not already been created
+    private void createParent(final String filename) throws InvalidPackageException, IOException {
+
+        int slash = filename.lastIndexOf('/');
+        createDirectory(slash < 0 ? "" : filename.substring(0, slash));
+
+    }
+
+    // creates the directory of the given name (and its parents) if it has not already been created, checking that
+    // it is inside the directory extracted to rather than reached through a symbolic link leading outside it
+    private void createDirectory(final String name) throws InvalidPackageException, IOException {
+
+        String dirname = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+
+        if (createdDirs.contains(dirname))
+            return;
+
+        File directory = fileFor(dirname);
+
+        if (dirname.length() == 0) {
+
+            Files.createDirectories(dir.toPath());
+            rootPath = dir.toPath().toRealPath();
+
+        } else {
+
+            // parents first, so that each is checked before anything is created in it (and deleted after its
+            // contents)
+            int slash = dirname.lastIndexOf('/');
+            createDirectory(slash < 0 ? "" : dirname.substring(0, slash));
+
+            try {
+                Files.createDirectory(directory.toPath());
+            } catch (FileAlreadyExistsException ex) { // a directory, or a symbolic link to one, is checked below
+
+                if (!Files.isDirectory(directory.toPath()))
+                    throw ex;
+
+            }
+
+            if (!directory.toPath().toRealPath().startsWith(rootPath)) {
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("The directory \"");
+                msg.append(dirname);
+                msg.append("\" leads outside the directory it is extracted to!");
+
+                throw new InvalidPackageException(msg.toString());
+
+            }
+
+        }
+
+        if (deleteFlag)
+            directory.deleteOnExit();
+
+        createdDirs.add(dirname);
+
+    }
+
+    // checks that a record is extracted inside the directory, and that a link points inside it
+    private static void checkName(final TarHeader header) throws InvalidPackageException {
+
+        String filename = header.getFileName();
+        String linkName = header.getLinkName();
+
+        String outsideName = null;
+        if (filename.startsWith("/") || Arrays.asList(filename.split("/")).contains("..")) {
+            outsideName = filename;
+        } else if (header.getType() == TarFileType.SYM_LINK && linkName != null) {
+
+            // symbolic links are relative to the directory of the link
+            int slash = filename.lastIndexOf('/');
+            if (linkName.startsWith("/") || leavesRoot(slash < 0 ? "" : filename.substring(0, slash), linkName))
+                outsideName = filename;
+
+        } else if (header.getType() == TarFileType.HARD_LINK && linkName != null) {
+
+            if (linkName.startsWith("/") || leavesRoot("", linkName))
+                outsideName = filename;
+
+        }
+
+        if (outsideName != null) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("The record \"");
+            msg.append(outsideName);
+            msg.append("\" is not inside the directory it is extracted to!");
+
+            throw new InvalidPackageException(msg.toString());
+
+        }
+
+    }
+
+    // returns whether the given relative path, taken from the given directory, leads above the directory extracted to
+    private static boolean leavesRoot(final String dirname, final String path) {
+
+        int depth = 0;
+
+        for (String name : (dirname + "/" + path).split("/")) {
+
+            if (name.length() == 0 || name.equals(".")) {
+                continue;
+            } else if (name.equals("..")) {
+
+                if (--depth < 0)
+                    return true;
+
+            } else {
+                depth++;
+            }
+
+        }
+
+        return false;
+
+    }
+
+    // returns the file a record of the given name is extracted to
+    private File fileFor(final String filename) {
+        return filename.length() == 0 ? dir : new File(dir, filename);
+    }
+
+    // writes a file with the given contents
+    private void writeFile(final TarHeader header, final Contents contents) throws IOException {
+
+        Path path = fileFor(header.getFileName()).toPath();
+
+        // link files which are already stored (their mode is part of what is stored, and is not set on the link as
+        // that would change the stored file)
+        Hash hash = hashes == null || header.getFileSize() == 0 ? null : hashes.get(header.getFileName());
+        if (hash != null && blobStore.link(hash, header.getMode(), path)) {
+
+            if (deleteFlag)
+                path.toFile().deleteOnExit();
+
+            countLinked();
+
+            return;
+
+        }
+
+        // hash checked files, and files to be stored, as they are written
+        Hash checkedHash = checkedHashes == null ? null : checkedHashes.get(header.getFileName());
+        Hash expectedHash = checkedHash == null ? hash : checkedHash;
+        Hasher hasher = expectedHash == null ? null : expectedHash.getAlgorithm().newHasher();
+
+        // a file in the way is replaced rather than written through, as it may be a symbolic link or linked from the
+        // blob store
+        Files.deleteIfExists(path);
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+                                               StandardOpenOption.TRUNCATE_EXISTING, LinkOption.NOFOLLOW_LINKS);
+
+        long bytes;
+        try {
+
+            if (checkedHashes != null)
+                writtenPaths.add(path);
+
+            bytes = contents.write(channel, hasher);
+
+        } finally {
+            channel.close();
+        }
+
+        Hash writtenHash = hasher == null ? null : hasher.hash();
+
+        if (checkedHash != null)
+            writtenHashes.put(header.getFileName(), writtenHash);
+
+        finishFile(path, header);
+
+        // only what was written with the expected hash is stored
+        if (hash != null && hash.equals(writtenHash))
+            blobStore.put(hash, header.getMode(), path);
+
+        count(bytes);
+
+    }
+
+    // copies the remaining contents of a stream to the channel through the copy buffer, hashing them if given a
+    // hasher
+    private long copy(final InputStream input, final FileChannel channel, final Hasher hasher) throws IOException {
+
+        if (copyBuffer == null)
+            copyBuffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+
+        byte[] bytes = copyBuffer.array();
+        long total = 0;
+
+        int num;
+        while ((num = input.read(bytes)) != -1) {
+
+            if (hasher != null)
+                hasher.update(bytes, 0, num);
+
+            ((Buffer) copyBuffer).clear();
+            ((Buffer) copyBuffer).limit(num);
+            while (copyBuffer.hasRemaining())
+                channel.write(copyBuffer);
+
+            total += num;
+
+        }
+
+        return total;
+
+    }
+
+    // applies the mode of a written file
+    private void finishFile(final Path path, final TarHeader header) throws IOException {
+
+        setMode(path.toFile(), header.getMode());
+
+        if (deleteFlag)
+            path.toFile().deleteOnExit();
+
+    }
+
+    /**
+     * Sets the unix permissions of a file from the mode of its tar header.
+     * Where POSIX permissions are not supported, only the owner's and everyone else's permissions can be set.
+     *
+     * @param file file to set the permissions of.
+     * @param mode mode of the file.
+     * @throws IOException upon failure to set the permissions.
+     */
+    @SuppressWarnings("unchecked")
+    static void setMode(final File file, long mode) throws IOException {
+
+        int bits = (int) (mode & 0777);
+
+        if (POSIX_FLAG) {
+
+            Set<PosixFilePermission> modePermissions = (Set<PosixFilePermission>) permissions[bits];
+
+            if (modePermissions == null) {
+
+                modePermissions = EnumSet.noneOf(PosixFilePermission.class);
+                for (int i = 0; i < PERMISSION_BITS.length; i++) {
+
+                    if (((bits >> i) & 1) == 1)
+                        modePermissions.add(PERMISSION_BITS[i]);
+
+                }
+
+                modePermissions = Collections.unmodifiableSet(modePermissions);
+                permissions[bits] = modePermissions;
+
+            }
+
+            Files.setPosixFilePermissions(file.toPath(), modePermissions);
+
+        } else {
+
+            int otherMode = bits & 7;
+            int ownerMode = (bits >> 6) & 7;
+
+            // set everyone's permissions
+            file.setReadable(((otherMode >> 2) & 1) == 1, false);
+            file.setWritable(((otherMode >> 1) & 1) == 1, false);
+            file.setExecutable((otherMode & 1) == 1, false);
+
+            // set owner permissions
+            file.setReadable(((ownerMode >> 2) & 1) == 1, true);
+            file.setWritable(((ownerMode >> 1) & 1) == 1, true);
+            file.setExecutable((ownerMode & 1) == 1, true);
+
+        }
+
+    }
+
+    /**
+     * Returns the number of files written by the last extraction.
+     *
+     * @return the number of files.
+     */
+    public synchronized int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Returns the number of bytes written by the last extraction.
+     *
+     * @return the number of bytes.
+     */
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Returns the number of files linked from the blob store by the last extraction, rather than written.
+     *
+     * @return the number of linked files.
+     */
+    public synchronized int getLinkedCount() {
+        return linkedCount;
+    }
+
+    /**
+     * Returns how long the last extraction took.
+     *
+     * @return the elapsed time in nanoseconds.
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * Returns the rate at which the last extraction wrote files.
+     *
+     * @return files per second.
+     */
+    public double getFilesPerSecond() {
+        return elapsedTime == 0 ? 0 : getFileCount() / (elapsedTime / 1e9);
+    }
+
+    /**
+     * Returns the rate at which the last extraction wrote file contents.
+     *
+     * @return MiB per second.
+     */
+    public double getMegabytesPerSecond() {
+        return elapsedTime == 0 ? 0 : getByteCount() / 1048576.0 / (elapsedTime / 1e9);
+    }
+
+    /**
+     * Told about each record of a streamed archive as it is extracted.
+     *
+     */
+    public interface Listener {
+
+        /**
+         * Called once the given record has been extracted.
+         *
+         * @param header the header of the record.
+         * @param file the file the record was extracted to, or {@code null} if it was not extracted.
+         * @throws InvalidPackageException if the record is not valid, which stops the extraction.
+         * @throws IOException upon failure to handle the record, which stops the extraction.
+         */
+        void extracted(TarHeader header, File file) throws InvalidPackageException, IOException;
+
+    }
+
+    /**
+     * Writes the contents of a file.
+     *
+     */
+    private abstract static class Contents {
+
+        // writes the contents to the channel, hashing them if given a hasher, and returns the number of bytes
+        // written
+        abstract long write(FileChannel channel, Hasher hasher) throws IOException;
+
+    }
+
+}
+
+// EOF
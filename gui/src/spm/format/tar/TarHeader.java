@@ -1,9 +1,10 @@
 package spm.format.tar;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
 import spm.format.InvalidPackageException;
 
 /* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
@@ -96,61 +97,14 @@ public final class TarHeader {
     /** Size of a header block in bytes (512). */
     public static final int BLOCK_SIZE = 512;
     
-    // static user info
-    private static String USER_NAME, GROUP_NAME;
-    private static long UID, GUID;
-    
-    // get user information from OS
-    static {
-        
-        USER_NAME = System.getProperty("user.name");
-        
-        // a lovely hack to get the user id, group name and group id from the OS
-        try {
-            
-            InputStream input;
-            int ch;
-            
-            StringBuilder buffer;
-            
-            Runtime runtime = Runtime.getRuntime();
-            
-            // get group name
-            input = runtime.exec("id -gn " + USER_NAME).getInputStream();
-            buffer = new StringBuilder();
-            while ((ch = input.read()) != -1) 
-                buffer.append((char) ch);
-            GROUP_NAME = buffer.toString();
-            
-            // get user id
-            input = runtime.exec("id -u " + USER_NAME).getInputStream();
-            buffer = new StringBuilder();
-            while ((ch = input.read()) != -1) 
-                buffer.append((char) ch);
-            UID = Long.parseLong(buffer.toString());
-            
-            // get group id
-            input = runtime.exec("id -g " + USER_NAME).getInputStream();
-            buffer = new StringBuilder();
-            while ((ch = input.read()) != -1) 
-                buffer.append((char) ch);
-            GUID = Long.parseLong(buffer.toString());
-            
-            
-        } catch (Exception ex) { // ignore exceptions
-            
-            GROUP_NAME = null;
-            UID = 0;
-            GUID = 0;
-            
-        }
-        
-    }
+    // whether the owner fields still have to be filled in with the current user
+    private boolean defaultOwnerFlag;
     
     /**
      * Creates a new instance of {@code TarHeader}.
-     * sets default values for the header, automatically filling in the Uid, Guid, user name, group name and
-     * last modification time.
+     * sets default values for the header, filling in the last modification time. The Uid, Guid, user name and
+     * group name default to those of the current user, which are only looked up once the owner of a header is
+     * first read, set or encoded.
      * 
      */
     public TarHeader() {
@@ -158,17 +112,30 @@ public final class TarHeader {
         // set default values
         setFileName(null);
         setMode(0644); // rw-r--r--
-        setUid(UID);
-        setGuid(GUID);
         setFileSize(0);
         setModTime(System.currentTimeMillis() / 1000);
         setType(TarFileType.NORMAL);
         setLinkName(null);
-        setUserName(USER_NAME);
-        setGroupName(GROUP_NAME);
         setDevMajor(0);
         setDevMinor(0);
         
+        defaultOwnerFlag = true;
+        
+    }
+    
+    // fills in the owner fields with the current user if they have not been set yet
+    private void fillOwner() {
+        
+        if (!defaultOwnerFlag)
+            return;
+        
+        defaultOwnerFlag = false;
+        
+        setUid(Owner.UID);
+        setGuid(Owner.GUID);
+        setUserName(Owner.USER_NAME);
+        setGroupName(Owner.GROUP_NAME);
+        
     }
     
     // returns the size of the given c-style string
@@ -185,7 +152,8 @@ public final class TarHeader {
     
     // returns whether the header is of the USTAR format
     private boolean isUSTAR() {
-        return new String(magic, 0, strlen(magic)).equals("ustar");
+        return magic[0] == 'u' && magic[1] == 's' && magic[2] == 't' && magic[3] == 'a' && magic[4] == 'r' &&
+               magic[5] == 0;
     }
     
     // sets a field to all NUL characters
@@ -203,25 +171,40 @@ public final class TarHeader {
         
         if (isUSTAR() && ((((byte) field[0]) >> 7) & 1) == 1) { // use star's base 256 encoding
             
-            int shift = (field.length - 1) * 8;
-            
             // read number from field
-            num = (field[0] & 0x7F) << (shift--);
+            num = field[0] & 0x7F;
             for (int i = 1; i < field.length; i++) {
-                num |= (field[0] & 0xFF) << (shift--);
+                num = (num << 8) | (field[i] & 0xFF);
             }
             
         } else { // parse ASCII octal format
             
-            if (strlen(field) > 0) {
+            num = 0;
+            
+            // skip leading spaces
+            int i = 0;
+            while (i < field.length && field[i] == ' ')
+                i++;
+            
+            // read octal digits up to the terminating NUL or space
+            for (; i < field.length && field[i] != 0 && field[i] != ' '; i++) {
                 
-                String string = new String(field, 0, strlen(field));
-                string = string.replaceAll("(0*)([0-7]+)", "$2"); // remove preceeding 0's
+                char ch = field[i];
                 
-                num = Long.parseLong(string, 8);
+                if (ch < '0' || ch > '7') {
+                    
+                    StringBuilder msg = new StringBuilder();
+                    
+                    msg.append("Invalid octal number \"");
+                    msg.append(new String(field, 0, strlen(field)));
+                    msg.append("\" in tar header!");
+                    
+                    throw new NumberFormatException(msg.toString());
+                    
+                }
+                
+                num = (num << 3) | (ch - '0');
                 
-            } else {
-                num = 0;
             }
             
         }
@@ -233,7 +216,7 @@ public final class TarHeader {
     // sets the value in a number field in tar header
     private void setNumField(final char[] field, long value) {
         
-        char[] octal = Long.toOctalString((int) value).toCharArray();
+        char[] octal = Long.toOctalString(value).toCharArray();
         
         // ensure number is short enough for the field
         if (octal.length >= field.length)
@@ -271,6 +254,8 @@ public final class TarHeader {
      */
     public char[][] getFields() {
         
+        fillOwner();
+        
         char[][] field = {
             filename, 
             mode, 
@@ -345,6 +330,9 @@ public final class TarHeader {
         
         if (block.length == BLOCK_SIZE) {
             
+            // every field is about to be overwritten
+            defaultOwnerFlag = false;
+            
             // checksums
             int signedSum = 0, unsignedSum = 0;
             
@@ -491,7 +479,10 @@ public final class TarHeader {
      * @return the user ID of the files owner.
      */
     public long getUid() {
+        
+        fillOwner();
         return parseNumField(uid);
+        
     }
     
     /**
@@ -500,7 +491,10 @@ public final class TarHeader {
      * @param uid user ID of the owner of the file.
      */
     public void setUid(long uid) {
+        
+        fillOwner();
         setNumField(this.uid, uid);
+        
     }
     
     /**
@@ -510,7 +504,10 @@ public final class TarHeader {
      * @return the group ID of the files owner.
      */
     public long getGuid() {
+        
+        fillOwner();
         return parseNumField(guid);
+        
     }
     
     /**
@@ -519,7 +516,10 @@ public final class TarHeader {
      * @param guid group ID of the owner of the file.
      */
     public void setGuid(long guid) {
+        
+        fillOwner();
         setNumField(this.guid, guid);
+        
     }
     
     /**
@@ -682,7 +682,10 @@ public final class TarHeader {
      * @return the user name of the files owner.
      */
     public String getUserName() {
+        
+        fillOwner();
         return new String(userName, 0, strlen(userName));
+        
     }
     
     /**
@@ -692,12 +695,15 @@ public final class TarHeader {
      */
     public void setUserName(final String userName) {
         
+        fillOwner();
+        
         if (userName == null) {
             setNullField(this.userName);
             return;
         }
         
         char[] charArray = userName.toCharArray();
+        setNullField(this.userName);
         System.arraycopy(charArray, 0, this.userName, 0, charArray.length);
         
     }
@@ -709,7 +715,10 @@ public final class TarHeader {
      * @return the group name of the files owner.
      */
     public String getGroupName() {
+        
+        fillOwner();
         return new String(groupName, 0, strlen(groupName));
+        
     }
     
     /**
@@ -719,12 +728,15 @@ public final class TarHeader {
      */
     public void setGroupName(final String groupName) {
         
+        fillOwner();
+        
         if (groupName == null) {
             setNullField(this.groupName);
             return;
         }
         
         char[] charArray = groupName.toCharArray();
+        setNullField(this.groupName);
         System.arraycopy(charArray, 0, this.groupName, 0, charArray.length);
         
     }
@@ -814,6 +826,50 @@ public final class TarHeader {
         
     }
     
+    
+    /**
+     * Owner of the running process, looked up when first needed.
+     * The ids are read from the attributes of the process' own {@code /proc} entry, falling back to the user's home
+     * directory on systems without {@code /proc}, so no external process has to be run.
+     * 
+     */
+    private static final class Owner {
+        
+        static final String USER_NAME, GROUP_NAME;
+        static final long UID, GUID;
+        
+        static {
+            
+            String userName = System.getProperty("user.name");
+            String groupName = null;
+            long uid = 0, guid = 0;
+            
+            try {
+                
+                Path path = Paths.get("/proc/self");
+                if (!Files.exists(path))
+                    path = Paths.get(System.getProperty("user.home"));
+                
+                PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class);
+                
+                userName = attributes.owner().getName();
+                groupName = attributes.group().getName();
+                uid = ((Number) Files.getAttribute(path, "unix:uid")).longValue();
+                guid = ((Number) Files.getAttribute(path, "unix:gid")).longValue();
+                
+            } catch (IOException | UnsupportedOperationException | IllegalArgumentException ex) {
+                // ignore exceptions, keeping the defaults
+            }
+            
+            USER_NAME = userName;
+            GROUP_NAME = groupName;
+            UID = uid;
+            GUID = guid;
+            
+        }
+        
+    }
+
 }
 
 // EOF
@@ -0,0 +1,79 @@
+package spm.format.tar;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.regex.Pattern;
+
+/**
+ * Looks up the records of a TAR archive by name.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public interface TarLookup {
+
+    /**
+     * Returns the first record which name matches the given pattern.
+     *
+     * @param pattern regex pattern to be matched.
+     * @return the first record which name matches the given pattern, or {@code null} if it does not exist.
+     */
+    TarRecord getRecord(String pattern);
+
+    /**
+     * Returns the first record which name matches the given pattern.
+     *
+     * @param pattern compiled regex pattern to be matched.
+     * @return the first record which name matches the given pattern, or {@code null} if it does not exist.
+     */
+    TarRecord getRecord(Pattern pattern);
+
+    /**
+     * Returns the all records which name matches the given pattern.
+     *
+     * @param pattern regex pattern to be matched.
+     * @return the all records which name matches the given pattern, or {@code null} if none match.
+     */
+    TarRecord[] getRecords(String pattern);
+
+    /**
+     * Returns the all records which name matches the given pattern.
+     *
+     * @param pattern compiled regex pattern to be matched.
+     * @return the all records which name matches the given pattern, or {@code null} if none match.
+     */
+    TarRecord[] getRecords(Pattern pattern);
+
+    /**
+     * Returns the contents of the file named {@code filename}.
+     *
+     * @param filename the name of the file to get.
+     * @return the contents of the file named {@code filename}, or {@code null} if it doesn't exist.
+     */
+    byte[] getFileContents(String filename);
+
+    /**
+     * Returns the contents of the file named {@code filename} without copying them.
+     *
+     * @param filename the name of the file to get.
+     * @return a read-only buffer of the contents of the file named {@code filename}, or {@code null} if it doesn't
+     *         exist.
+     */
+    ByteBuffer getFileBuffer(String filename);
+
+}
+
+// EOF
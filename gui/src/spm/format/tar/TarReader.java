@@ -0,0 +1,395 @@
+package spm.format.tar;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+
+import static spm.format.tar.TarHeader.BLOCK_SIZE;
+import spm.format.InvalidPackageException;
+import spm.util.Hash;
+import spm.util.HashAlgorithm;
+import spm.util.Hasher;
+
+/**
+ * Reads a TAR archive one record at a time without holding the file contents in memory.
+ * Each call to {@code next()} returns the header of the next record, the contents of which can then be read
+ * from the stream returned by {@code getInputStream()}. Any unread contents are skipped by the following call
+ * to {@code next()}.
+ * If hashing is enabled, the hash of each record's contents is calculated as they are read or skipped, so a
+ * package can be verified in a single pass.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class TarReader {
+
+    // stream the archive is read from
+    private final InputStream input;
+
+    // header of the current record
+    private TarHeader header = null;
+
+    // contents of the current record
+    private EntryInputStream entry = null;
+
+    // whether the end of the archive has been reached
+    private boolean endFlag = false;
+
+    // header block buffer
+    private final byte[] block = new byte[BLOCK_SIZE];
+
+    // size of the buffer used to hash contents which are skipped
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    // hashes the contents of each record (null unless hashing is enabled)
+    private Hasher hasher = null;
+    private byte[] hashBuffer = null;
+
+    // hash of the contents of the current record, once they have all been read
+    private Hash hash = null;
+
+    /**
+     * Creates a new instance of {@code TarReader}.
+     *
+     * @param input stream to read the tar archive from.
+     */
+    public TarReader(final InputStream input) {
+
+        this.input = input;
+
+    }
+
+    /**
+     * Moves to the next record in the archive, skipping whatever is left of the current record's contents.
+     *
+     * @return the header of the next record, or {@code null} if the end of the archive has been reached.
+     * @throws InvalidPackageException if the input stream is not in a valid tar format.
+     * @throws IOException upon failure to read from the input stream.
+     */
+    public TarHeader next() throws InvalidPackageException, IOException {
+
+        if (endFlag)
+            return null;
+
+        // skip the remainder of the current record
+        if (entry != null) {
+
+            entry.skipRemaining();
+            entry = null;
+
+        }
+
+        header = null;
+
+        // read header block from stream
+        int num = TarRecord.readInput(input, block);
+
+        // catch EOF
+        if (num <= 0) {
+            endFlag = true;
+            return null;
+        }
+
+        // catch mis-aligned archive
+        if (num != BLOCK_SIZE) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("Archive is not aligned to ");
+            msg.append(BLOCK_SIZE);
+            msg.append(" bytes!");
+
+            throw new InvalidPackageException(msg.toString());
+
+        }
+
+        // decode the files tar header
+        TarHeader nextHeader = new TarHeader();
+        nextHeader.decode(block);
+
+        // catch end of archive marker
+        if (nextHeader.isEmpty()) {
+            endFlag = true;
+            return null;
+        }
+
+        header = nextHeader;
+        hash = null;
+        entry = new EntryInputStream(header.getFileSize());
+
+        return header;
+
+    }
+
+    /**
+     * Returns the header of the current record.
+     *
+     * @return the header of the current record, or {@code null} if {@code next()} has not been called or the end of
+     *         the archive has been reached.
+     */
+    public TarHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns a stream of the contents of the current record.
+     * The stream ends at the end of the record's contents and is invalidated by the next call to {@code next()}.
+     * Closing it does not close the underlying archive stream.
+     *
+     * @return the contents of the current record, or {@code null} if there is no current record.
+     */
+    public InputStream getInputStream() {
+        return entry;
+    }
+
+    /**
+     * Enables or disables hashing of the contents of each record.
+     * Takes effect from the record returned by the next call to {@code next()}.
+     *
+     * @param algorithm algorithm to hash each record's contents with, or {@code null} to disable hashing.
+     */
+    public void setHashing(final HashAlgorithm algorithm) {
+
+        if (algorithm == null) {
+
+            hasher = null;
+
+        } else {
+
+            if (hasher == null || hasher.getAlgorithm() != algorithm)
+                hasher = algorithm.newHasher();
+
+            if (hashBuffer == null)
+                hashBuffer = new byte[HASH_BUFFER_SIZE];
+
+        }
+
+    }
+
+    /**
+     * Returns the algorithm the contents of each record are hashed with.
+     *
+     * @return the hash algorithm, or {@code null} if hashing is disabled.
+     */
+    public HashAlgorithm getHashing() {
+        return hasher == null ? null : hasher.getAlgorithm();
+    }
+
+    /**
+     * Returns the hash of the contents of the current record.
+     * Any contents that have not yet been read are skipped (and hashed).
+     *
+     * @return the hash of the current record's contents, or {@code null} if there is no current record.
+     * @throws IllegalStateException if hashing has not been enabled.
+     * @throws InvalidPackageException if the archive ends before the record does.
+     * @throws IOException upon failure to read from the input stream.
+     */
+    public Hash getHash() throws InvalidPackageException, IOException {
+
+        if (entry == null)
+            return null;
+
+        if (entry.hasher == null)
+            throw new IllegalStateException("Hashing has not been enabled!");
+
+        entry.skipContents();
+
+        return hash;
+
+    }
+
+    /**
+     * Extracts each of the remaining records in the archive to the given directory.
+     *
+     * @param dir directory to extract the archive to.
+     * @param deleteFlag whether or not to delete the extracted files when the program finishes.
+     * @throws InvalidPackageException if the input stream is not in a valid tar format.
+     * @throws IOException upon failure to read from the input stream or write to the directory.
+     */
+    public void extract(final File dir, boolean deleteFlag) throws InvalidPackageException, IOException {
+
+        TarExtractor extractor = new TarExtractor(dir);
+        extractor.setDeleteOnExit(deleteFlag);
+
+        extractor.extract(this);
+
+    }
+
+    /**
+     * Closes the underlying archive stream.
+     *
+     * @throws IOException upon failure to close the stream.
+     */
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * Contents of a single record, bounded by the size given in its header.
+     *
+     */
+    private final class EntryInputStream extends InputStream {
+
+        // bytes of file contents left to be read
+        private long remaining;
+
+        // bytes of padding following the file contents
+        private final long padding;
+
+        // hashes the contents (null if hashing is disabled)
+        final Hasher hasher;
+
+        EntryInputStream(long size) {
+
+            remaining = size;
+
+            long partial = size % BLOCK_SIZE;
+            padding = partial == 0 ? 0 : BLOCK_SIZE - partial;
+
+            hasher = TarReader.this.hasher;
+
+            if (hasher != null) {
+
+                hasher.reset();
+
+                if (size == 0)
+                    hash = hasher.hash();
+
+            }
+
+        }
+
+        // hashes contents as they are read, finishing the hash at the end of the record
+        private void update(final byte[] buffer, int offset, int num) {
+
+            if (hasher == null)
+                return;
+
+            hasher.update(buffer, offset, num);
+
+            if (remaining == 0)
+                hash = hasher.hash();
+
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            if (remaining <= 0)
+                return -1;
+
+            int b = input.read();
+            if (b != -1) {
+
+                remaining--;
+
+                if (hasher != null) {
+
+                    hasher.update((byte) b);
+
+                    if (remaining == 0)
+                        hash = hasher.hash();
+
+                }
+
+            }
+
+            return b;
+
+        }
+
+        @Override
+        public int read(final byte[] buffer, int offset, int length) throws IOException {
+
+            if (length == 0)
+                return 0;
+
+            if (remaining <= 0)
+                return -1;
+
+            int num = input.read(buffer, offset, (int) Math.min(length, remaining));
+            if (num > 0) {
+                remaining -= num;
+                update(buffer, offset, num);
+            }
+
+            return num;
+
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+
+            // skipped contents must still be hashed
+            if (hasher != null) {
+
+                int num = read(hashBuffer, 0, (int) Math.min(n, hashBuffer.length));
+
+                return Math.max(num, 0);
+
+            }
+
+            long num = input.skip(Math.min(n, remaining));
+            if (num > 0)
+                remaining -= num;
+
+            return num;
+
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(input.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // the archive stream is owned by the TarReader
+        }
+
+        // skips over the unread contents of the record, hashing them if needed
+        void skipContents() throws InvalidPackageException, IOException {
+
+            if (hasher == null)
+                return;
+
+            while (remaining > 0) {
+
+                if (read(hashBuffer, 0, hashBuffer.length) == -1)
+                    throw new InvalidPackageException("Unexpected end of archive!");
+
+            }
+
+        }
+
+        // skips over the unread contents and padding of the record
+        void skipRemaining() throws InvalidPackageException, IOException {
+
+            skipContents();
+
+            long count = remaining + padding;
+
+            if (TarRecord.skipInput(input, count) != count)
+                throw new InvalidPackageException("Unexpected end of archive!");
+
+            remaining = 0;
+
+        }
+
+    }
+
+}
+
+// EOF
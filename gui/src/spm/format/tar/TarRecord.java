@@ -54,15 +54,53 @@ public final class TarRecord {
         
     }
     
-    // reads a block of input from a stream
-    private static int readInput(final InputStream input, final byte[] block) throws IOException {
+    // fills the given buffer from a stream, returning the number of bytes read (less than the size of the buffer
+    // only at the end of the stream)
+    static int readInput(final InputStream input, final byte[] buffer) throws IOException {
         
-        int i, b;
-        int size = block.length;
+        int i = 0;
         
-        // read block from input stream
-        for (i = 0; i < size && (b = input.read()) != -1; i++) 
-            block[i] = (byte) b;
+        // read buffer from input stream
+        while (i < buffer.length) {
+            
+            int num = input.read(buffer, i, buffer.length - i);
+            if (num == -1)
+                break;
+            
+            i += num;
+            
+        }
+        
+        return i;
+        
+    }
+    
+    // skips the given number of bytes in a stream, returning the number of bytes skipped (less than {@code count}
+    // only at the end of the stream)
+    static long skipInput(final InputStream input, long count) throws IOException {
+        
+        long i = 0;
+        byte[] buffer = null;
+        
+        while (i < count) {
+            
+            long num = input.skip(count - i);
+            
+            // skip() may legitimately skip nothing, so fall back to reading
+            if (num <= 0) {
+                
+                if (buffer == null)
+                    buffer = new byte[BLOCK_SIZE];
+                
+                num = input.read(buffer, 0, (int) Math.min(count - i, buffer.length));
+                if (num == -1)
+                    break;
+                
+            }
+            
+            i += num;
+            
+        }
         
         return i;
         
@@ -116,7 +154,7 @@ public final class TarRecord {
             // read remainer of block
             size %= BLOCK_SIZE;
             if (size != 0) {
-                num = (int) input.skip(BLOCK_SIZE - size);
+                skipInput(input, BLOCK_SIZE - size);
             }
             
         }
@@ -131,35 +169,19 @@ public final class TarRecord {
      */
     public void write(final OutputStream output) throws IOException {
         
-        byte[] block = header.encode();
+        // write header block
+        output.write(header.encode());
         
-        int fileIndex = 0;
+        if (fileContents == null)
+            return;
         
-        // get the size of the data to be written
-        int size;
-        if (fileContents == null) {
-            size = BLOCK_SIZE;
-        } else {
-            size = fileContents.length + BLOCK_SIZE;
-        }
+        // write file contents
+        output.write(fileContents);
         
-        do {
-            
-            // write block to output stream
-            output.write(block);
-            
-            size -= BLOCK_SIZE;
-            
-            // get next block to be read
-            int i = 0;
-            while (i < Math.min(size, BLOCK_SIZE))
-                block[i++] = fileContents[fileIndex++];
-            
-            // pad last block
-            while (i < BLOCK_SIZE)
-                block[i++] = 0;
-            
-        } while (size > 0);
+        // pad last block
+        int size = fileContents.length % BLOCK_SIZE;
+        if (size != 0)
+            output.write(new byte[BLOCK_SIZE - size]);
         
     }
     
@@ -194,8 +216,17 @@ public final class TarRecord {
         return fileContents;
     }
 
+    /**
+     * Sets the contents of the file, updating the file size in the header to match.
+     * 
+     * @param fileContents the contents of the file (can be {@code null}).
+     */
     public void setFileContents(final byte[] fileContents) {
+        
         this.fileContents = fileContents;
+        
+        header.setFileSize(fileContents == null ? 0 : fileContents.length);
+        
     }
     
 }
@@ -0,0 +1,113 @@
+package spm.logging;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.*;
+
+/**
+ * Log handler writing to a file which is only created once the first record is published.
+ * Any previous log file is replaced at that point, so starting the program does not touch the file system for
+ * logging until something is actually logged.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class LazyFileHandler extends Handler {
+    
+    private final static Logger logger = Logger.getLogger(LazyFileHandler.class.getName());
+    
+    // name of the log file
+    private final String filename;
+    
+    // handler of the log file, once created
+    private FileHandler handler = null;
+    
+    // whether the log file has been created or could not be created
+    private boolean openedFlag = false;
+    
+    /**
+     * Creates a new instance of {@code LazyFileHandler}.
+     * 
+     * @param filename name of the log file.
+     */
+    public LazyFileHandler(final String filename) {
+        this.filename = filename;
+    }
+    
+    // creates the log file, reporting failure once
+    private void open() {
+        
+        openedFlag = true;
+        
+        try {
+            
+            // remove log file if it already exists
+            File file = new File(filename);
+            if (file.exists())
+                file.delete();
+            
+            handler = new FileHandler(filename);
+            handler.setFormatter(getFormatter());
+            handler.setLevel(getLevel());
+            
+        } catch (IOException ex) {
+            
+            StringBuilder msg = new StringBuilder();
+            
+            msg.append("Cannot create log file \"");
+            msg.append(filename);
+            msg.append("\".");
+            
+            logger.log(Level.INFO, msg.toString(), ex);
+            
+        }
+        
+    }
+    
+    @Override
+    public synchronized void publish(final LogRecord record) {
+        
+        if (!isLoggable(record))
+            return;
+        
+        if (!openedFlag)
+            open();
+        
+        if (handler != null)
+            handler.publish(record);
+        
+    }
+    
+    @Override
+    public synchronized void flush() {
+        
+        if (handler != null)
+            handler.flush();
+        
+    }
+    
+    @Override
+    public synchronized void close() throws SecurityException {
+        
+        if (handler != null)
+            handler.close();
+        
+    }
+    
+}
+
+// EOF
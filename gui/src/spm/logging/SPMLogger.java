@@ -15,8 +15,6 @@ package spm.logging;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import java.io.File;
-import java.io.IOException;
 import java.util.logging.*;
 
 import spm.Config;
@@ -28,8 +26,6 @@ import spm.Config;
  */
 public final class SPMLogger {
     
-    private final static Logger logger = Logger.getLogger(SPMLogger.class.getName());
-    
     /**
      * Initializes the logger system.
      * 
@@ -49,29 +45,27 @@ public final class SPMLogger {
         consoleHandler.setFormatter(new SimpleFormatter());
         rootLogger.addHandler(consoleHandler);
         
-        try {
+        // setup XML log handler, creating the log file once something is logged
+        LazyFileHandler file = new LazyFileHandler(Config.XML_LOG_FILE);
+        file.setFormatter(new XMLFormatter());
+        rootLogger.addHandler(file);
+        
+    }
+    
+    /**
+     * Initializes the logger system for running without a GUI.
+     * Only warnings and errors are logged, to the standard error stream, so that standard output is left to the
+     * program.
+     * 
+     */
+    public static void initHeadless() {
         
-            // remove log file if it already exists
-            File xmlLog = new File(Config.XML_LOG_FILE);
-            if (xmlLog.exists())
-                xmlLog.delete();
-            
-            // setup XML log handler
-            FileHandler file = new FileHandler(Config.XML_LOG_FILE);
-            file.setFormatter(new XMLFormatter());
-            rootLogger.addHandler(file);
+        Logger rootLogger = Logger.getLogger("");
+        rootLogger.setLevel(Level.WARNING);
         
-        } catch (IOException ex) {
-            
-            StringBuilder msg = new StringBuilder();
-            
-            msg.append("Cannot create XML log file \"");
-            msg.append(Config.XML_LOG_FILE);
-            msg.append("\".");
-            
-            logger.log(Level.INFO, msg.toString(), ex);
-            
-        }
+        // the default console handler writes to the standard error stream
+        for (Handler handler : rootLogger.getHandlers())
+            handler.setLevel(Level.WARNING);
         
     }
     
@@ -0,0 +1,410 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content addressed store of files, each kept once however many packages contain it.
+ * Files are stored by their hash and mode, and are hard linked into the directories packages are extracted to,
+ * so a file that is already in the store costs no disk space or writes to extract again. A file is only stored if
+ * it can be linked into the store (which must be on the same file system as the directories extracted to), and
+ * is never copied into or out of it.
+ * Stored files are sealed: their write permissions are removed and their modification time is set to
+ * {@code SEALED_TIME}, so that linked files cannot be written to without the owner's permission being changed or
+ * the modification time moving on. A stored file which is no longer sealed was changed through a link to it, and
+ * is removed from the store rather than linked again. Linked files therefore MUST be replaced rather than
+ * modified in place.
+ * A stored file which is no longer linked from anywhere else is removed by {@code gc()}.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class BlobStore {
+
+    private final static Logger logger = Logger.getLogger(BlobStore.class.getName());
+
+    /** Modification time of sealed files. */
+    public static final FileTime SEALED_TIME = FileTime.fromMillis(0);
+
+    // prefix of files being linked into the store
+    private static final String TEMP_PREFIX = "tmp-";
+
+    // temporary files older than this were left by a process that did not finish
+    private static final long STALE_TEMP_AGE = 60 * 60 * 1000;
+
+    private static final boolean POSIX_FLAG = 
+        FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private static final boolean LINK_COUNT_FLAG = 
+        FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    private static final EnumSet<PosixFilePermission> WRITE_PERMISSIONS = 
+        EnumSet.of(PosixFilePermission.OWNER_WRITE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE);
+
+    // directory holding the store
+    private final File dir;
+
+    private final AtomicLong linkCount = new AtomicLong();
+    private final AtomicLong storeCount = new AtomicLong();
+    private final AtomicLong linkedBytes = new AtomicLong();
+
+    /**
+     * Creates a new instance of {@code BlobStore}.
+     *
+     * @param dir directory holding the store (created when first needed).
+     */
+    public BlobStore(final File dir) {
+
+        this.dir = dir.getAbsoluteFile();
+
+    }
+
+    /**
+     * Returns the directory holding the store.
+     *
+     * @return the store directory.
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Returns whether files can be stored by hashes of the given algorithm, which must be cryptographic so that
+     * different files do not share a hash.
+     *
+     * @param algorithm the hash algorithm.
+     * @return whether the algorithm can address the store.
+     */
+    public static boolean isContentAddressable(final HashAlgorithm algorithm) {
+        return algorithm == HashAlgorithm.SHA1 || algorithm == HashAlgorithm.SHA256;
+    }
+
+    /**
+     * Returns where a file with the given hash and mode is stored.
+     *
+     * @param hash hash of the file's contents.
+     * @param mode unix permissions of the file.
+     * @return the stored file (which may not exist).
+     */
+    public File getFile(final Hash hash, long mode) {
+
+        String hex = hash.toString();
+
+        StringBuilder path = new StringBuilder();
+
+        path.append(hash.getAlgorithm().getName().toLowerCase());
+        path.append(File.separatorChar);
+        path.append(hex, 0, 2);
+        path.append(File.separatorChar);
+        path.append(hex, 2, hex.length());
+        path.append('-');
+        path.append(Long.toOctalString(mode & 0777));
+
+        return new File(dir, path.toString());
+
+    }
+
+    /**
+     * Returns whether a file with the given hash and mode is stored.
+     *
+     * @param hash hash of the file's contents.
+     * @param mode unix permissions of the file.
+     * @return whether the file is stored.
+     */
+    public boolean contains(final Hash hash, long mode) {
+        return isContentAddressable(hash.getAlgorithm()) && getFile(hash, mode).isFile();
+    }
+
+    /**
+     * Creates {@code target} as a hard link to the stored file with the given hash and mode, replacing any existing
+     * file. The link is sealed like the stored file, so it is read-only whatever the mode.
+     *
+     * @param hash hash of the file's contents.
+     * @param mode unix permissions of the file.
+     * @param target file to create.
+     * @return whether the file was linked (if not, {@code target} may have been removed and is left for the caller
+     *         to write).
+     * @throws IOException upon failure to create {@code target}.
+     */
+    public boolean link(final Hash hash, long mode, final Path target) throws IOException {
+
+        if (!isContentAddressable(hash.getAlgorithm()))
+            return false;
+
+        Path blob = getFile(hash, mode).toPath();
+
+        try {
+
+            if (!isSealed(blob, mode)) { // changed through a link, so it no longer has the contents it is stored by
+
+                StringBuilder msg = new StringBuilder();
+
+                msg.append("Removing the changed file \"");
+                msg.append(blob);
+                msg.append("\" from the blob store.");
+
+                logger.warning(msg.toString());
+
+                Files.deleteIfExists(blob);
+
+                return false;
+
+            }
+
+            Files.deleteIfExists(target);
+            Files.createLink(target, blob);
+
+        } catch (NoSuchFileException ex) { // not stored, or removed by a concurrent gc()
+            return false;
+        } catch (UnsupportedOperationException | FileSystemException ex) { // not on the same file system
+
+            logger.log(Level.FINE, "Cannot link " + blob, ex);
+
+            return false;
+
+        }
+
+        linkCount.incrementAndGet();
+        linkedBytes.addAndGet(Files.size(target));
+
+        return true;
+
+    }
+
+    /**
+     * Adds a file to the store under the given hash and mode by hard linking it into the store, which seals it.
+     * Nothing is stored if the file cannot be linked.
+     * The caller is responsible for the hash being that of the file's contents, which should be hashed as they are
+     * written rather than read back from the file.
+     *
+     * @param hash hash of the file's contents.
+     * @param mode unix permissions of the file.
+     * @param source file to store.
+     * @throws IOException upon failure to store the file.
+     */
+    public void put(final Hash hash, long mode, final Path source) throws IOException {
+
+        if (!isContentAddressable(hash.getAlgorithm()))
+            return;
+
+        File blob = getFile(hash, mode);
+
+        if (blob.isFile())
+            return;
+
+        blob.getParentFile().mkdirs();
+
+        // link and seal next to the blob, then move it into place in one step, so that stored files are sealed
+        Path temp = Files.createTempFile(blob.getParentFile().toPath(), TEMP_PREFIX, null);
+
+        try {
+
+            Files.delete(temp);
+
+            try {
+                Files.createLink(temp, source);
+            } catch (UnsupportedOperationException | FileSystemException ex) { // not on the same file system
+
+                logger.log(Level.FINE, "Cannot link " + source + " into the blob store", ex);
+
+                return;
+
+            }
+
+            seal(temp);
+
+            Files.move(temp, blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        storeCount.incrementAndGet();
+
+    }
+
+    /**
+     * Seals a file: removes its write permissions and sets its modification time to {@code SEALED_TIME}.
+     *
+     * @param path file to seal.
+     * @throws IOException upon failure to change the file's attributes.
+     */
+    public static void seal(final Path path) throws IOException {
+
+        Files.setLastModifiedTime(path, SEALED_TIME);
+
+        if (POSIX_FLAG) {
+
+            Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+            permissions.addAll(Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS));
+
+            if (permissions.removeAll(WRITE_PERMISSIONS))
+                Files.setPosixFilePermissions(path, permissions);
+
+        } else {
+            path.toFile().setWritable(false, false);
+        }
+
+    }
+
+    /**
+     * Returns whether a file is still sealed: it is a regular file, has no write permissions and has not been
+     * modified since it was sealed.
+     *
+     * @param path file to check.
+     * @param mode unix permissions the file had when it was sealed, or -1 if they are not known.
+     * @return whether the file is sealed.
+     * @throws IOException upon failure to read the file's attributes (such as {@code NoSuchFileException}).
+     */
+    public static boolean isSealed(final Path path, long mode) throws IOException {
+
+        if (!POSIX_FLAG) {
+
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, 
+                                                                  LinkOption.NOFOLLOW_LINKS);
+
+            return attributes.isRegularFile() && attributes.lastModifiedTime().equals(SEALED_TIME) && 
+                   !path.toFile().canWrite();
+
+        }
+
+        PosixFileAttributes attributes = Files.getFileAttributeView(path, PosixFileAttributeView.class, 
+                                                                    LinkOption.NOFOLLOW_LINKS).readAttributes();
+
+        if (!attributes.isRegularFile() || !attributes.lastModifiedTime().equals(SEALED_TIME))
+            return false;
+
+        Set<PosixFilePermission> permissions = attributes.permissions();
+
+        if (mode < 0)
+            return Collections.disjoint(permissions, WRITE_PERMISSIONS);
+
+        // the values of PosixFilePermission run from the owner's read permission (0400) down
+        long bits = 0;
+        for (PosixFilePermission permission : permissions)
+            bits |= 0400 >> permission.ordinal();
+
+        return bits == (mode & 0555);
+
+    }
+
+    /**
+     * Removes each stored file which is no longer linked from outside the store, along with temporary files left by
+     * processes that did not finish. Does nothing where the number of links to a file cannot be found.
+     *
+     * @return the number of bytes freed.
+     * @throws IOException upon failure to search the store.
+     */
+    public long gc() throws IOException {
+
+        if (!LINK_COUNT_FLAG || !dir.isDirectory()) {
+
+            logger.fine("The blob store cannot be collected as the number of links to a file is unknown.");
+
+            return 0;
+
+        }
+
+        final long[] freed = {0, 0};
+
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(final Path path, final BasicFileAttributes attributes) 
+                    throws IOException {
+
+                boolean staleFlag;
+                if (path.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    staleFlag = attributes.lastModifiedTime().toMillis() < System.currentTimeMillis() - STALE_TEMP_AGE;
+                } else {
+                    staleFlag = ((Number) Files.getAttribute(path, "unix:nlink")).intValue() <= 1;
+                }
+
+                if (staleFlag && Files.deleteIfExists(path)) {
+
+                    freed[0] += attributes.size();
+                    freed[1]++;
+
+                }
+
+                return FileVisitResult.CONTINUE;
+
+            }
+
+        });
+
+        if (logger.isLoggable(Level.FINE)) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("Removed ");
+            msg.append(freed[1]);
+            msg.append(" unreferenced files (");
+            msg.append(freed[0]);
+            msg.append(" bytes) from the blob store \"");
+            msg.append(dir.getPath());
+            msg.append("\".");
+
+            logger.fine(msg.toString());
+
+        }
+
+        return freed[0];
+
+    }
+
+    /**
+     * Returns the number of files created as links to stored files.
+     *
+     * @return the number of links.
+     */
+    public long getLinkCount() {
+        return linkCount.get();
+    }
+
+    /**
+     * Returns the number of files added to the store.
+     *
+     * @return the number of files stored.
+     */
+    public long getStoreCount() {
+        return storeCount.get();
+    }
+
+    /**
+     * Returns the number of bytes linked from the store instead of being written.
+     *
+     * @return the number of bytes linked from the store.
+     */
+    public long getLinkedBytes() {
+        return linkedBytes.get();
+    }
+
+}
+
+// EOF
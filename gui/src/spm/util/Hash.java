@@ -0,0 +1,258 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A hash value calculated by one of the supported {@code HashAlgorithm}s.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class Hash {
+
+    private static final char[] HEX_TABLE = "0123456789abcdef".toCharArray();
+
+    private final HashAlgorithm algorithm;
+
+    // the hash value
+    final byte[] digest;
+
+    /**
+     * Creates a new instance of {@code Hash} with the given value.
+     *
+     * @param algorithm the algorithm which calculated the hash.
+     * @param digest digest array (must be {@code algorithm.getDigestSize()} bytes long).
+     * @throws IllegalArgumentException if {@code digest} is not the right length.
+     */
+    public Hash(final HashAlgorithm algorithm, final byte[] digest) {
+
+        if (digest.length != algorithm.getDigestSize()) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append(algorithm.getName());
+            msg.append(" message digest is supposed to be ");
+            msg.append(algorithm.getDigestSize());
+            msg.append(" bytes long but instead was ");
+            msg.append(digest.length);
+            msg.append("!");
+
+            throw new IllegalArgumentException(msg.toString());
+
+        }
+
+        this.algorithm = algorithm;
+        this.digest = digest;
+
+    }
+
+    /**
+     * Creates a new instance of {@code Hash} with the given value.
+     *
+     * @param algorithm the algorithm which calculated the hash.
+     * @param digest digest string (must be {@code algorithm.getHexSize()} hexadecimal characters long).
+     * @throws IllegalArgumentException if {@code digest} is not the right length.
+     * @throws NumberFormatException if {@code digest} is not hexadecimal.
+     */
+    public Hash(final HashAlgorithm algorithm, final CharSequence digest) {
+        this(algorithm, parseHex(algorithm, digest, 0, digest.length()));
+    }
+
+    /**
+     * Returns a {@code Hash} with the given value ({@code SHA1} for SHA1 hashes).
+     *
+     * @param algorithm the algorithm which calculated the hash.
+     * @param digest digest array (must be {@code algorithm.getDigestSize()} bytes long).
+     * @return the hash.
+     * @throws IllegalArgumentException if {@code digest} is not the right length.
+     */
+    public static Hash valueOf(final HashAlgorithm algorithm, final byte[] digest) {
+
+        if (algorithm == HashAlgorithm.SHA1) {
+            return new SHA1(digest);
+        } else {
+            return new Hash(algorithm, digest);
+        }
+
+    }
+
+    /**
+     * Decodes a hash from a range of hexadecimal characters.
+     *
+     * @param algorithm the algorithm which calculated the hash.
+     * @param chars characters holding the hash.
+     * @param start index of the first character of the hash.
+     * @param end index after the last character of the hash.
+     * @return the hash.
+     * @throws IllegalArgumentException if the range is not {@code algorithm.getHexSize()} characters long.
+     * @throws NumberFormatException if the range is not hexadecimal.
+     */
+    public static Hash parse(final HashAlgorithm algorithm, final CharSequence chars, int start, int end) {
+        return valueOf(algorithm, parseHex(algorithm, chars, start, end));
+    }
+
+    /**
+     * Decodes a hash from a range of hexadecimal ASCII characters in a buffer, without changing its position.
+     *
+     * @param algorithm the algorithm which calculated the hash.
+     * @param buffer buffer holding the hash.
+     * @param start index of the first character of the hash.
+     * @param end index after the last character of the hash.
+     * @return the hash.
+     * @throws IllegalArgumentException if the range is not {@code algorithm.getHexSize()} characters long.
+     * @throws NumberFormatException if the range is not hexadecimal.
+     */
+    public static Hash parse(final HashAlgorithm algorithm, final ByteBuffer buffer, int start, int end) {
+
+        checkHexSize(algorithm, end - start);
+
+        byte[] bytes = new byte[algorithm.getDigestSize()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((hexValue((char) (buffer.get(start + i * 2) & 0xff)) << 4) |
+                               hexValue((char) (buffer.get(start + i * 2 + 1) & 0xff)));
+        }
+
+        return valueOf(algorithm, bytes);
+
+    }
+
+    // decodes the hexadecimal digest in the given range of characters
+    static byte[] parseHex(final HashAlgorithm algorithm, final CharSequence chars, int start, int end) {
+
+        checkHexSize(algorithm, end - start);
+
+        byte[] bytes = new byte[algorithm.getDigestSize()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((hexValue(chars.charAt(start + i * 2)) << 4) |
+                               hexValue(chars.charAt(start + i * 2 + 1)));
+        }
+
+        return bytes;
+
+    }
+
+    // checks that a hexadecimal digest is the right length for the given algorithm
+    private static void checkHexSize(final HashAlgorithm algorithm, int hexSize) {
+
+        if (hexSize != algorithm.getHexSize()) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append(algorithm.getName());
+            msg.append(" message digest is supposed to be ");
+            msg.append(algorithm.getHexSize());
+            msg.append(" hexadecimal characters long but instead was ");
+            msg.append(hexSize);
+            msg.append("!");
+
+            throw new IllegalArgumentException(msg.toString());
+
+        }
+
+    }
+
+    // converts a hexadecimal character into its value
+    static int hexValue(char ch) {
+
+        if (ch >= '0' && ch <= '9') {
+            return ch - '0';
+        } else if (ch >= 'a' && ch <= 'f') {
+            return ch - 'a' + 10;
+        } else if (ch >= 'A' && ch <= 'F') {
+            return ch - 'A' + 10;
+        } else  {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("The character ");
+            msg.append(ch);
+            msg.append(" is not a valid hexadecimal character!");
+
+            throw new NumberFormatException(msg.toString());
+
+        }
+
+    }
+
+    /**
+     * Returns the algorithm which calculated this hash.
+     *
+     * @return the hash algorithm.
+     */
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the digest value of this {@code Hash}.
+     *
+     * @return the digest value of this {@code Hash}.
+     */
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * Appends this hash as hexadecimal digits to the given buffer.
+     *
+     * @param buffer buffer to append to.
+     * @return {@code buffer}.
+     */
+    public StringBuilder appendTo(final StringBuilder buffer) {
+
+        for (int i = 0; i < digest.length; i++) {
+            buffer.append(HEX_TABLE[(digest[i] & 0xf0) >> 4]);
+            buffer.append(HEX_TABLE[digest[i] & 0xf]);
+        }
+
+        return buffer;
+
+    }
+
+    /**
+     * Converts this hash into a hexadecimal string.
+     *
+     * @return this hash as a hexadecimal string.
+     */
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder(digest.length * 2)).toString();
+    }
+
+    @Override
+    public boolean equals(final Object object) {
+
+        if (object instanceof Hash) {
+
+            Hash hash = (Hash) object;
+            return hash.algorithm == algorithm && Arrays.equals(hash.digest, digest);
+
+        } else {
+            return false;
+        }
+
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(digest);
+    }
+
+}
+
+// EOF
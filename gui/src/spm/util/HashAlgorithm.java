@@ -0,0 +1,367 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.logging.*;
+
+/**
+ * The hash algorithms that can be used to check the files of a package.
+ * SHA-1 and SHA-256 come from {@code MessageDigest}, and are compiled to the processor's SHA instructions by
+ * the JVM where available. CRC32 is a fast, hardware accelerated checksum which only detects accidental
+ * corruption, so it is only suitable for checking local copies of files.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public enum HashAlgorithm {
+
+    /** SHA-1, the algorithm of the {@code sha1sum} utility. */
+    SHA1("SHA1", "SHA-1", 20),
+
+    /** SHA-256, the algorithm of the {@code sha256sum} utility. */
+    SHA256("SHA256", "SHA-256", 32),
+
+    /** CRC32 checksum (not cryptographic). */
+    CRC32("CRC32", null, 4) {
+
+        @Override
+        public Hasher newHasher() {
+            return new ChecksumHasher(this);
+        }
+
+    };
+
+    private final static Logger logger = Logger.getLogger(HashAlgorithm.class.getName());
+
+    // size of the buffer used when hashing streams
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // name used in digest files, and by MessageDigest
+    private final String name;
+    private final String messageDigestName;
+
+    private final int digestSize;
+
+    // hashers reused by each thread
+    private final ThreadLocal<Hasher> hashers = new ThreadLocal<Hasher>() {
+
+        @Override
+        protected Hasher initialValue() {
+            return newHasher();
+        }
+
+    };
+
+    private HashAlgorithm(final String name, final String messageDigestName, int digestSize) {
+
+        this.name = name;
+        this.messageDigestName = messageDigestName;
+        this.digestSize = digestSize;
+
+    }
+
+    /**
+     * Returns the name of this algorithm as used in digest files (as by {@code sha1sum --tag}).
+     *
+     * @return the name of this algorithm.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the size of a hash in bytes.
+     *
+     * @return the size of a hash.
+     */
+    public int getDigestSize() {
+        return digestSize;
+    }
+
+    /**
+     * Returns the size of a hash in hexadecimal digits.
+     *
+     * @return the size of a hash in hexadecimal.
+     */
+    public int getHexSize() {
+        return digestSize * 2;
+    }
+
+    /**
+     * Returns the algorithm with the given name.
+     *
+     * @param name name of the algorithm as returned by {@code getName()} (case is ignored).
+     * @return the algorithm, or {@code null} if there is none with that name.
+     */
+    public static HashAlgorithm forName(final CharSequence name) {
+
+        for (HashAlgorithm algorithm : values()) {
+
+            if (algorithm.name.length() == name.length() && algorithm.name.equalsIgnoreCase(name.toString()))
+                return algorithm;
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Returns the algorithm which hashes are the given number of hexadecimal digits long, for digest files that
+     * do not name their algorithm.
+     *
+     * @param hexSize length of the hashes.
+     * @return the algorithm, or {@code null} if none have hashes of that length.
+     */
+    public static HashAlgorithm forHexSize(int hexSize) {
+
+        for (HashAlgorithm algorithm : values()) {
+
+            if (algorithm.getHexSize() == hexSize)
+                return algorithm;
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Creates a new {@code Hasher} for this algorithm.
+     *
+     * @return a new hasher.
+     */
+    public Hasher newHasher() {
+
+        try {
+
+            return new MessageDigestHasher(this, MessageDigest.getInstance(messageDigestName));
+
+        } catch (NoSuchAlgorithmException ex) {
+
+            StringBuilder msg = new StringBuilder();
+
+            msg.append("Cannot calculate ");
+            msg.append(name);
+            msg.append(" because it is not supported by MessageDigest!");
+
+            logger.log(Level.SEVERE, msg.toString(), ex);
+
+            System.exit(1);
+
+        }
+
+        return null;
+
+    }
+
+    // returns this thread's hasher, ready to be used
+    private Hasher getHasher() {
+
+        Hasher hasher = hashers.get();
+        hasher.reset(); // in case a previous hash was interrupted
+
+        return hasher;
+
+    }
+
+    /**
+     * Calculates the hash of the given array.
+     *
+     * @param bytes array to be hashed ({@code null} is hashed as an empty array).
+     * @return the calculated hash.
+     */
+    public Hash hash(final byte[] bytes) {
+        return Hash.valueOf(this, digest(bytes));
+    }
+
+    /**
+     * Calculates the hash of the remaining contents of the given buffer.
+     * The position of {@code buffer} is not changed.
+     *
+     * @param buffer buffer to be hashed.
+     * @return the calculated hash.
+     */
+    public Hash hash(final ByteBuffer buffer) {
+        return Hash.valueOf(this, digest(buffer));
+    }
+
+    /**
+     * Calculates the hash of the remaining contents of the given stream.
+     * The stream is read to its end but is not closed.
+     *
+     * @param input stream to be hashed.
+     * @return the calculated hash.
+     * @throws IOException upon failure to read from the stream.
+     */
+    public Hash hash(final InputStream input) throws IOException {
+        return Hash.valueOf(this, digest(input));
+    }
+
+    // calculates the hash of the given array
+    byte[] digest(final byte[] bytes) {
+
+        Hasher hasher = getHasher();
+
+        if (bytes != null)
+            hasher.update(bytes, 0, bytes.length);
+
+        return hasher.digest();
+
+    }
+
+    // calculates the hash of the remaining contents of the given buffer
+    byte[] digest(final ByteBuffer buffer) {
+
+        Hasher hasher = getHasher();
+        hasher.update(buffer.duplicate());
+
+        return hasher.digest();
+
+    }
+
+    // calculates the hash of the remaining contents of the given stream
+    byte[] digest(final InputStream input) throws IOException {
+
+        Hasher hasher = getHasher();
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int num;
+        while ((num = input.read(buffer)) != -1)
+            hasher.update(buffer, 0, num);
+
+        return hasher.digest();
+
+    }
+
+    /**
+     * Hashes with a {@code MessageDigest}.
+     *
+     */
+    private static final class MessageDigestHasher extends Hasher {
+
+        private final MessageDigest md;
+
+        MessageDigestHasher(final HashAlgorithm algorithm, final MessageDigest md) {
+
+            super(algorithm);
+            this.md = md;
+
+        }
+
+        @Override
+        public void update(byte b) {
+            md.update(b);
+        }
+
+        @Override
+        public void update(final byte[] bytes, int offset, int length) {
+            md.update(bytes, offset, length);
+        }
+
+        @Override
+        public void update(final ByteBuffer buffer) {
+            md.update(buffer);
+        }
+
+        @Override
+        public byte[] digest() {
+            return md.digest();
+        }
+
+        @Override
+        public void reset() {
+            md.reset();
+        }
+
+    }
+
+    /**
+     * Hashes with a CRC32 checksum.
+     *
+     */
+    private static final class ChecksumHasher extends Hasher {
+
+        private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+
+        // used to copy buffers without an accessible array
+        private byte[] copyBuffer = null;
+
+        ChecksumHasher(final HashAlgorithm algorithm) {
+            super(algorithm);
+        }
+
+        @Override
+        public void update(byte b) {
+            crc.update(b);
+        }
+
+        @Override
+        public void update(final byte[] bytes, int offset, int length) {
+            crc.update(bytes, offset, length);
+        }
+
+        @Override
+        public void update(final ByteBuffer buffer) {
+
+            if (buffer.hasArray()) {
+
+                crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                ((Buffer) buffer).position(buffer.limit());
+
+            } else {
+
+                if (copyBuffer == null)
+                    copyBuffer = new byte[BUFFER_SIZE];
+
+                while (buffer.hasRemaining()) {
+
+                    int num = Math.min(buffer.remaining(), copyBuffer.length);
+                    buffer.get(copyBuffer, 0, num);
+                    crc.update(copyBuffer, 0, num);
+
+                }
+
+            }
+
+        }
+
+        @Override
+        public byte[] digest() {
+
+            long value = crc.getValue();
+            crc.reset();
+
+            return new byte[] {
+                (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value
+            };
+
+        }
+
+        @Override
+        public void reset() {
+            crc.reset();
+        }
+
+    }
+
+}
+
+// EOF
@@ -0,0 +1,95 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Calculates a hash incrementally as data is streamed through it.
+ * Instances are created by {@code HashAlgorithm.newHasher()} and are not thread-safe.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public abstract class Hasher {
+
+    private final HashAlgorithm algorithm;
+
+    /**
+     * Creates a new instance of {@code Hasher}.
+     *
+     * @param algorithm the algorithm this hasher calculates.
+     */
+    protected Hasher(final HashAlgorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Returns the algorithm this hasher calculates.
+     *
+     * @return the hash algorithm.
+     */
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Adds a single byte to the hash.
+     *
+     * @param b the byte to add.
+     */
+    public abstract void update(byte b);
+
+    /**
+     * Adds part of an array to the hash.
+     *
+     * @param bytes array holding the data.
+     * @param offset offset of the data in {@code bytes}.
+     * @param length number of bytes to add.
+     */
+    public abstract void update(byte[] bytes, int offset, int length);
+
+    /**
+     * Adds the remaining contents of a buffer to the hash, leaving the buffer at its limit.
+     *
+     * @param buffer buffer holding the data.
+     */
+    public abstract void update(ByteBuffer buffer);
+
+    /**
+     * Completes the hash and resets this hasher so that it can be reused.
+     *
+     * @return the calculated hash.
+     */
+    public Hash hash() {
+        return Hash.valueOf(algorithm, digest());
+    }
+
+    /**
+     * Completes the hash and resets this hasher so that it can be reused.
+     *
+     * @return the bytes of the calculated hash.
+     */
+    public abstract byte[] digest();
+
+    /**
+     * Discards any data added since the last hash was completed.
+     *
+     */
+    public abstract void reset();
+
+}
+
+// EOF
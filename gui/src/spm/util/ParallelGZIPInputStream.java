@@ -0,0 +1,232 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompresses a file made of independent GZIP members using several threads.
+ * The members, whose boundaries must be known in advance, are inflated concurrently on a {@code ForkJoinPool}
+ * and their contents are returned in order.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class ParallelGZIPInputStream extends InputStream {
+
+    // the compressed file
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    // pool decompressing the members
+    private final ForkJoinPool pool;
+
+    // member boundaries in the file
+    private final long[] bounds;
+    private int nextMember;
+
+    // decompressed members in the order they must be read
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private final int maxPending;
+
+    // contents of the current member
+    private byte[] buffer = new byte[0];
+    private int position = 0;
+
+    /**
+     * Creates a new instance of {@code ParallelGZIPInputStream}.
+     *
+     * @param file the compressed file.
+     * @param bounds offsets of each member in the file followed by the end of the last member, so that member
+     *        {@code i} spans {@code [bounds[i], bounds[i + 1])}.
+     * @param threads number of threads to decompress with.
+     * @throws FileNotFoundException if the file could not be opened for reading.
+     */
+    public ParallelGZIPInputStream(final File file, final long[] bounds, int threads) throws FileNotFoundException {
+
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one decompression thread is required!");
+
+        this.file = new RandomAccessFile(file, "r");
+        channel = this.file.getChannel();
+
+        this.bounds = bounds;
+        nextMember = 0;
+
+        pool = new ForkJoinPool(threads);
+        maxPending = threads * 2;
+
+    }
+
+    // submits members to the pool until enough are pending
+    private void fill() {
+
+        while (pending.size() < maxPending && nextMember < bounds.length - 1) {
+
+            pending.add(pool.submit(new MemberInflater(bounds[nextMember], bounds[nextMember + 1])));
+            nextMember++;
+
+        }
+
+    }
+
+    // moves to the next non-empty member, returning false at the end of the file
+    private boolean nextBuffer() throws IOException {
+
+        while (position == buffer.length) {
+
+            fill();
+
+            if (pending.isEmpty())
+                return false;
+
+            try {
+
+                buffer = pending.remove().get();
+                position = 0;
+
+            } catch (InterruptedException ex) {
+
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decompressing!");
+
+            } catch (ExecutionException ex) {
+
+                if (ex.getCause() instanceof IOException)
+                    throw (IOException) ex.getCause();
+
+                throw new IOException("Failed to decompress member!", ex.getCause());
+
+            }
+
+        }
+
+        return true;
+
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        if (!nextBuffer())
+            return -1;
+
+        return buffer[position++] & 0xff;
+
+    }
+
+    @Override
+    public int read(final byte[] b, int offset, int length) throws IOException {
+
+        if (length == 0)
+            return 0;
+
+        if (!nextBuffer())
+            return -1;
+
+        int num = Math.min(length, buffer.length - position);
+        System.arraycopy(buffer, position, b, offset, num);
+        position += num;
+
+        return num;
+
+    }
+
+    @Override
+    public int available() {
+        return buffer.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        pool.shutdownNow();
+        file.close();
+
+    }
+
+    /**
+     * Reads and inflates a single member.
+     *
+     */
+    private final class MemberInflater implements Callable<byte[]> {
+
+        private final long start;
+        private final long end;
+
+        MemberInflater(long start, long end) {
+
+            this.start = start;
+            this.end = end;
+
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+
+            if (end - start > Integer.MAX_VALUE)
+                throw new IOException("Member is too large to be decompressed!");
+
+            // read the compressed member (positional reads may be shared between threads)
+            ByteBuffer compressed = ByteBuffer.allocate((int) (end - start));
+            while (compressed.hasRemaining()) {
+
+                if (channel.read(compressed, start + compressed.position()) == -1)
+                    throw new EOFException("Unexpected end of file!");
+
+            }
+
+            byte[] bytes = compressed.array();
+
+            // the uncompressed size is in the member's trailer
+            int size = (bytes[bytes.length - 4] & 0xff) |
+                       ((bytes[bytes.length - 3] & 0xff) << 8) |
+                       ((bytes[bytes.length - 2] & 0xff) << 16) |
+                       ((bytes[bytes.length - 1] & 0xff) << 24);
+
+            if (size < 0)
+                throw new IOException("Member is too large to be decompressed!");
+
+            byte[] contents = new byte[size];
+
+            GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(bytes), 64 * 1024);
+
+            int i = 0;
+            while (i < size) {
+
+                int num = input.read(contents, i, size - i);
+                if (num == -1)
+                    throw new EOFException("Unexpected end of member!");
+
+                i += num;
+
+            }
+
+            input.close();
+
+            return contents;
+
+        }
+
+    }
+
+}
+
+// EOF
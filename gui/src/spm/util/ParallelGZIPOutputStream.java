@@ -0,0 +1,301 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream in the GZIP format using several threads (in the same way as pigz).
+ * The input is split into blocks which are deflated independently on a {@code ForkJoinPool}, each primed with the
+ * end of the previous block as its dictionary, and flushed to a byte boundary so the compressed blocks can simply
+ * be concatenated. The result is a single ordinary GZIP member that any GZIP reader can decompress.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class ParallelGZIPOutputStream extends OutputStream {
+
+    /** Default size of the blocks the input is split into (128 KiB). */
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    // size of the deflate window, used as the dictionary for each block
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    // GZIP header: magic, deflate method, no flags, no modification time, no extra flags, unknown OS
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    // stream the compressed data is written to
+    private final OutputStream output;
+
+    // pool compressing the blocks
+    private final ForkJoinPool pool;
+
+    // compressed blocks in the order they must be written
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private final int maxPending;
+
+    private final int blockSize;
+    private final int level;
+
+    // block currently being filled and the last block submitted
+    private byte[] block;
+    private int blockLength = 0;
+    private byte[] previousBlock = null;
+
+    // checksum and size of the uncompressed data
+    private final CRC32 crc = new CRC32();
+    private long totalSize = 0;
+
+    private boolean finishedFlag = false;
+
+    /**
+     * Creates a new instance of {@code ParallelGZIPOutputStream} and writes the GZIP header.
+     *
+     * @param output stream to write the compressed data to.
+     * @param threads number of threads to compress with.
+     * @param blockSize size of the blocks the input is split into (at least 32 KiB is recommended).
+     * @param level compression level (0-9, or {@code Deflater.DEFAULT_COMPRESSION}).
+     * @throws IOException upon failure to write to {@code output}.
+     */
+    public ParallelGZIPOutputStream(final OutputStream output, int threads, int blockSize, int level)
+                                    throws IOException {
+
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one compression thread is required!");
+
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Block size must be positive!");
+
+        this.output = output;
+        this.blockSize = blockSize;
+        this.level = level;
+
+        pool = new ForkJoinPool(threads);
+        maxPending = threads * 2;
+
+        block = new byte[blockSize];
+
+        output.write(HEADER);
+
+    }
+
+    /**
+     * Creates a new instance of {@code ParallelGZIPOutputStream} with the default block size and compression level.
+     *
+     * @param output stream to write the compressed data to.
+     * @param threads number of threads to compress with.
+     * @throws IOException upon failure to write to {@code output}.
+     */
+    public ParallelGZIPOutputStream(final OutputStream output, int threads) throws IOException {
+        this(output, threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+
+        block[blockLength++] = (byte) b;
+
+        if (blockLength == blockSize)
+            submit(false);
+
+    }
+
+    @Override
+    public void write(final byte[] buffer, int offset, int length) throws IOException {
+
+        if (finishedFlag)
+            throw new IOException("Stream has already been finished!");
+
+        while (length > 0) {
+
+            int num = Math.min(length, blockSize - blockLength);
+            System.arraycopy(buffer, offset, block, blockLength, num);
+
+            blockLength += num;
+            offset += num;
+            length -= num;
+
+            if (blockLength == blockSize)
+                submit(false);
+
+        }
+
+    }
+
+    // hands the current block to the pool to be compressed
+    private void submit(boolean lastFlag) throws IOException {
+
+        crc.update(block, 0, blockLength);
+        totalSize += blockLength;
+
+        pending.add(pool.submit(new BlockCompressor(block, blockLength, previousBlock, lastFlag)));
+
+        previousBlock = block;
+        block = lastFlag ? null : new byte[blockSize];
+        blockLength = 0;
+
+        // bound the memory used by blocks waiting to be written
+        while (pending.size() > maxPending)
+            writeNext();
+
+    }
+
+    // waits for the oldest pending block and writes it out
+    private void writeNext() throws IOException {
+
+        try {
+
+            output.write(pending.remove().get());
+
+        } catch (InterruptedException ex) {
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing!");
+
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to compress block!", ex.getCause());
+        }
+
+    }
+
+    // writes a little-endian 32-bit integer
+    private void writeInt(long value) throws IOException {
+
+        output.write((int) (value & 0xff));
+        output.write((int) ((value >> 8) & 0xff));
+        output.write((int) ((value >> 16) & 0xff));
+        output.write((int) ((value >> 24) & 0xff));
+
+    }
+
+    /**
+     * Compresses the remaining input and writes the GZIP trailer, without closing the underlying stream.
+     *
+     * @throws IOException upon failure to write to the underlying stream.
+     */
+    public void finish() throws IOException {
+
+        if (finishedFlag)
+            return;
+
+        finishedFlag = true;
+
+        try {
+
+            submit(true);
+
+            while (!pending.isEmpty())
+                writeNext();
+
+        } finally {
+            pool.shutdown();
+        }
+
+        writeInt(crc.getValue());
+        writeInt(totalSize);
+
+        output.flush();
+
+    }
+
+    @Override
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        finish();
+        output.close();
+
+    }
+
+    /**
+     * Deflates a single block.
+     *
+     */
+    private final class BlockCompressor implements Callable<byte[]> {
+
+        private final byte[] block;
+        private final int length;
+        private final byte[] dictionary;
+        private final boolean lastFlag;
+
+        BlockCompressor(final byte[] block, int length, final byte[] dictionary, boolean lastFlag) {
+
+            this.block = block;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.lastFlag = lastFlag;
+
+        }
+
+        @Override
+        public byte[] call() {
+
+            Deflater deflater = new Deflater(level, true);
+
+            try {
+
+                // prime the window with the end of the previous block
+                if (dictionary != null) {
+                    int size = Math.min(DICTIONARY_SIZE, dictionary.length);
+                    deflater.setDictionary(dictionary, dictionary.length - size, size);
+                }
+
+                deflater.setInput(block, 0, length);
+
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+                byte[] buffer = new byte[Math.max(length / 2, 512) + 64];
+
+                if (lastFlag) {
+
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int num = deflater.deflate(buffer);
+                        compressed.write(buffer, 0, num);
+                    }
+
+                } else {
+
+                    // a sync flush ends the block on a byte boundary so the next block can follow it directly
+                    int num;
+                    do {
+                        num = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        compressed.write(buffer, 0, num);
+                    } while (num == buffer.length);
+
+                }
+
+                return compressed.toByteArray();
+
+            } finally {
+                deflater.end();
+            }
+
+        }
+
+    }
+
+}
+
+// EOF
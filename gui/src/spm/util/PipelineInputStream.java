@@ -0,0 +1,259 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads ahead of its reader on a thread of its own, so that whatever produces the wrapped stream (a download, or
+ * a decompressor) runs alongside whatever consumes this one.
+ * Bytes are passed between the threads in a fixed number of buffers which are reused. Once every buffer is full
+ * the reading thread waits for the reader to catch up, so a slow consumer holds back its producer instead of
+ * letting the bytes pile up in memory. Stages can be chained by wrapping one pipeline stream in another. The
+ * wrapped stream is closed when this stream is.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public final class PipelineInputStream extends InputStream {
+
+    /** Default size of each buffer. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** Default number of buffers. */
+    public static final int DEFAULT_BUFFER_COUNT = 16;
+
+    // the wrapped stream, read by the pipeline thread
+    private final InputStream input;
+
+    // buffers waiting to be filled, and filled buffers waiting to be read
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> full;
+
+    // the buffer being read, and the position in it
+    private Chunk chunk = null;
+    private int position = 0;
+
+    // whether the end of the stream has been read
+    private boolean endFlag = false;
+
+    // failure of the pipeline thread, thrown once the bytes read before it have been
+    private volatile IOException failure = null;
+
+    private volatile boolean closedFlag = false;
+
+    private final Thread thread;
+
+    /**
+     * Creates a new instance of {@code PipelineInputStream} with the default buffers, and starts reading the given
+     * stream.
+     *
+     * @param input stream to read ahead of the reader.
+     * @param name name of the thread reading the stream.
+     */
+    public PipelineInputStream(final InputStream input, final String name) {
+        this(input, name, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates a new instance of {@code PipelineInputStream}, and starts reading the given stream.
+     *
+     * @param input stream to read ahead of the reader.
+     * @param name name of the thread reading the stream.
+     * @param bufferSize size of each buffer.
+     * @param bufferCount number of buffers, which bounds how far ahead of the reader the stream is read.
+     */
+    public PipelineInputStream(final InputStream input, final String name, int bufferSize, int bufferCount) {
+
+        if (bufferSize < 1 || bufferCount < 1)
+            throw new IllegalArgumentException("At least one non-empty buffer is required!");
+
+        this.input = input;
+
+        free = new ArrayBlockingQueue<Chunk>(bufferCount);
+        full = new ArrayBlockingQueue<Chunk>(bufferCount + 1); // room for the end marker
+
+        for (int i = 0; i < bufferCount; i++)
+            free.add(new Chunk(new byte[bufferSize]));
+
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                pump();
+            }
+
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+    // reads the wrapped stream into the free buffers until its end, a failure or this stream is closed
+    private void pump() {
+
+        try {
+
+            while (!closedFlag) {
+
+                Chunk next = free.take();
+                next.length = input.read(next.bytes);
+
+                if (next.length == -1) {
+
+                    full.put(next);
+                    break;
+
+                }
+
+                full.put(next);
+
+            }
+
+        } catch (InterruptedException ex) {
+            // closed
+        } catch (IOException ex) {
+            fail(ex);
+        } catch (RuntimeException ex) {
+            fail(new IOException(ex));
+        }
+
+    }
+
+    // records the failure of the pipeline thread and wakes the reader
+    private void fail(final IOException ex) {
+
+        if (closedFlag)
+            return;
+
+        failure = ex;
+
+        Chunk end = new Chunk(null);
+        end.length = -1;
+        full.offer(end);
+
+    }
+
+    // moves to the next buffer that has bytes left, returning false at the end of the stream
+    private boolean nextChunk() throws IOException {
+
+        if (closedFlag)
+            throw new IOException("Stream closed");
+
+        while (!endFlag && (chunk == null || position == chunk.length)) {
+
+            if (chunk != null)
+                free.add(chunk);
+
+            try {
+                chunk = full.take();
+            } catch (InterruptedException ex) {
+
+                chunk = null;
+
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the pipeline!");
+
+            }
+
+            position = 0;
+
+            if (chunk.length == -1) {
+
+                chunk = null;
+                endFlag = true;
+
+            }
+
+        }
+
+        if (endFlag && failure != null)
+            throw failure;
+
+        return !endFlag;
+
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        if (!nextChunk())
+            return -1;
+
+        return chunk.bytes[position++] & 0xff;
+
+    }
+
+    @Override
+    public int read(final byte[] b, int offset, int length) throws IOException {
+
+        if (length == 0)
+            return 0;
+
+        if (!nextChunk())
+            return -1;
+
+        int num = Math.min(length, chunk.length - position);
+        System.arraycopy(chunk.bytes, position, b, offset, num);
+        position += num;
+
+        return num;
+
+    }
+
+    @Override
+    public int available() {
+        return chunk == null ? 0 : chunk.length - position;
+    }
+
+    /**
+     * Stops reading ahead and closes the wrapped stream.
+     *
+     * @throws IOException upon failure to close the wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (closedFlag)
+            return;
+
+        closedFlag = true;
+        thread.interrupt();
+
+        // also wakes the thread if it is blocked reading the wrapped stream
+        input.close();
+
+    }
+
+    /**
+     * A buffer and the number of bytes in it ({@code -1} at the end of the stream).
+     *
+     */
+    private static final class Chunk {
+
+        final byte[] bytes;
+        int length = 0;
+
+        Chunk(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+    }
+
+}
+
+// EOF
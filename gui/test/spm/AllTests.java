@@ -33,8 +33,25 @@ import spm.format.tar.*;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({TarHeaderTest.class, // FIXME create subclass of Suite
                      TarArchiveTest.class, 
+                     TarReaderTest.class, 
+                     MappedTarArchiveTest.class, 
                      SPMPackageTest.class,
+                     SPMSchedulerTest.class, 
+                     SPMExecutorTest.class, 
+                     HeadlessTest.class, 
+                     ExtractionCacheTest.class, 
+                     PackageDatabaseTest.class, 
+                     RepositoryIndexTest.class, 
+                     SearchIndexTest.class, 
+                     PackageDownloaderTest.class, 
+                     TarExtractorTest.class, 
+                     DigestReaderTest.class, 
+                     SPMPackageContainerTest.class, 
                      SHA1Test.class,
+                     BlobStoreTest.class, 
+                     HashAlgorithmTest.class, 
+                     PipelineInputStreamTest.class, 
+                     ParallelGZIPOutputStreamTest.class,
                      SPMDigestTest.class
                     })
 public class AllTests {
@@ -42,8 +59,25 @@ public class AllTests {
     public static final Class[] classes = {
         TarHeaderTest.class, 
         TarArchiveTest.class, 
+        TarReaderTest.class, 
+        MappedTarArchiveTest.class, 
         SPMPackageTest.class,
+        SPMSchedulerTest.class, 
+        SPMExecutorTest.class, 
+        HeadlessTest.class, 
+        ExtractionCacheTest.class, 
+        PackageDatabaseTest.class, 
+        RepositoryIndexTest.class, 
+        SearchIndexTest.class, 
+        PackageDownloaderTest.class, 
+        TarExtractorTest.class, 
+        DigestReaderTest.class, 
+        SPMPackageContainerTest.class, 
         SHA1Test.class,
+        BlobStoreTest.class, 
+        HashAlgorithmTest.class, 
+        PipelineInputStreamTest.class, 
+        ParallelGZIPOutputStreamTest.class,
         SPMDigestTest.class
     };
     
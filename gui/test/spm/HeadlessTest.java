@@ -0,0 +1,83 @@
+package spm;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code Headless}.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class HeadlessTest {
+
+    private static final String TEST_PACKAGE = "test/test.spm";
+
+    public HeadlessTest() {
+    }
+
+    // runs the action on the given packages, returning the progress written
+    private static String run(final Headless.Action action, int exitValue, final File... files) throws Exception {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output, false, "UTF-8");
+
+        assertEquals(exitValue, Headless.run(action, Arrays.asList(files), out));
+
+        return output.toString("UTF-8");
+
+    }
+
+    @Test
+    public void testInstall() throws Exception {
+
+        String progress = run(Headless.Action.INSTALL, Headless.EXIT_SUCCESS, new File(TEST_PACKAGE));
+
+        assertTrue(progress.startsWith("read\t" + TEST_PACKAGE + "\tok\n"));
+        assertTrue(progress.contains("start\ttest.spm: build\n"));
+        assertTrue(progress.contains("output\ttest.spm: install\tout\tInstall script executed!\n"));
+        assertTrue(progress.contains("finish\ttest.spm: install\tSUCCEEDED\t0\t"));
+        assertTrue(progress.contains("\ndone\t1\t1\t"));
+
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+
+        String progress = run(Headless.Action.UNINSTALL, Headless.EXIT_FAILURE, new File("test/tmp-missing.spm"));
+
+        assertTrue(progress.startsWith("read\ttest/tmp-missing.spm\tfailed\t"));
+        assertTrue(progress.contains("\ndone\t0\t1\t"));
+
+    }
+
+    @Test
+    public void testUsage() throws Exception {
+
+        assertEquals(Headless.EXIT_USAGE, 
+                     Headless.run(null, Arrays.asList(new File(TEST_PACKAGE)), System.out));
+        assertEquals(Headless.EXIT_USAGE, 
+                     Headless.run(Headless.Action.INSTALL, Collections.<File>emptyList(), System.out));
+
+    }
+
+}
+
+// EOF
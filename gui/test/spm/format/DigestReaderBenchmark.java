@@ -0,0 +1,67 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+
+import spm.util.HashAlgorithm;
+
+/**
+ * Measures how quickly a digest file of 200,000 entries is written and read.
+ * Not part of the test suite; run its {@code main} method directly.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class DigestReaderBenchmark {
+
+    private static final int ENTRIES = 200000;
+    private static final int ROUNDS = 10;
+
+    public static void main(final String[] args) throws Exception {
+
+        SPMDigest digest = new SPMDigest();
+        for (int i = 0; i < ENTRIES; i++) {
+
+            String filename = "usr/share/dir" + (i % 1000) + "/file" + i + ".dat";
+            digest.put(filename, HashAlgorithm.SHA1.hash(filename.getBytes("UTF-8")));
+
+        }
+
+        byte[] bytes = digest.toByteArray();
+
+        System.out.println(String.format("%d entries, %.1f MiB:", ENTRIES, bytes.length / 1048576.0));
+
+        for (int round = 0; round < ROUNDS; round++) {
+
+            long start = System.nanoTime();
+            bytes = digest.toByteArray();
+            double writeSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            SPMDigest readDigest = new SPMDigest();
+            readDigest.read(new ByteArrayInputStream(bytes));
+            double readSeconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(String.format("write %10.0f lines/s   read %10.0f lines/s", 
+                                             ENTRIES / writeSeconds, ENTRIES / readSeconds));
+
+        }
+
+    }
+
+}
+
+// EOF
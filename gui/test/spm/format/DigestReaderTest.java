@@ -0,0 +1,160 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import spm.util.Hash;
+import spm.util.HashAlgorithm;
+
+/**
+ * Test for {@code DigestReader} and {@code DigestWriter}.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class DigestReaderTest {
+    
+    private static final String SHA1_HASH = "2aae6c35c94fcfb415dbe95f408b9ce91ee846ed";
+    private static final String SHA256_HASH = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9";
+    
+    public DigestReaderTest() {
+    }
+    
+    // reads every entry of the given reader into a new SPMDigest
+    private static SPMDigest readAll(final DigestReader reader) throws Exception {
+        
+        SPMDigest digest = new SPMDigest();
+        
+        while (reader.next())
+            digest.put(reader.getFileName(), reader.getHash());
+        
+        return digest;
+        
+    }
+    
+    @Test
+    public void testFormats() throws Exception {
+        
+        String contents = SHA1_HASH + " *data/file.1\n" + 
+                          "\r\n" + 
+                          SHA1_HASH.toUpperCase() + "  ./data/file 2\r\n" + 
+                          "sha256 (data/(file) = 3) = " + SHA256_HASH;
+        
+        DigestReader reader = new DigestReader(ByteBuffer.wrap(contents.getBytes("UTF-8")));
+        
+        assertTrue(reader.next());
+        assertEquals("data/file.1", reader.getFileName());
+        assertEquals(new Hash(HashAlgorithm.SHA1, SHA1_HASH), reader.getHash());
+        assertEquals(1, reader.getLineNumber());
+        
+        assertTrue(reader.next());
+        assertEquals("data/file 2", reader.getFileName());
+        assertEquals(new Hash(HashAlgorithm.SHA1, SHA1_HASH), reader.getHash());
+        assertEquals(3, reader.getLineNumber());
+        
+        assertTrue(reader.next());
+        assertEquals("data/(file) = 3", reader.getFileName());
+        assertEquals(new Hash(HashAlgorithm.SHA256, SHA256_HASH), reader.getHash());
+        
+        assertFalse(reader.next());
+        assertNull(reader.getFileName());
+        
+    }
+    
+    @Test
+    public void testInvalid() throws Exception {
+        
+        String[] lines = {
+            "not a digest", 
+            SHA1_HASH + " ", 
+            SHA1_HASH.replace('a', 'g') + " *file", 
+            "SHA256 (file) " + SHA256_HASH
+        };
+        
+        for (String line : lines) {
+            
+            DigestReader reader = new DigestReader(ByteBuffer.wrap(("\n" + line).getBytes("UTF-8")));
+            
+            try {
+                
+                reader.next();
+                fail("Invalid line was read: " + line);
+                
+            } catch (SPMDigestException ex) { // expected
+                assertTrue(ex.getMessage(), ex.getMessage().contains("line 2"));
+            }
+            
+        }
+        
+    }
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        
+        // names which are not ASCII, and longer than the reader's buffer
+        StringBuilder longName = new StringBuilder("data/");
+        while (longName.length() < 200000)
+            longName.append("long/");
+        
+        String[] names = {"data/café", "data/日本", "data/😀", longName.toString()};
+        
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            
+            SPMDigest digest = new SPMDigest(algorithm);
+            for (int i = 0; i < 5000; i++)
+                digest.put("data/file." + i, algorithm.hash(("contents of " + i).getBytes("UTF-8")));
+            for (String name : names)
+                digest.put(name, algorithm.hash(name.getBytes("UTF-8")));
+            
+            // the same bytes as encoding the text
+            byte[] bytes = digest.toByteArray();
+            assertArrayEquals(digest.toString().getBytes("UTF-8"), bytes);
+            
+            // streamed in small reads
+            InputStream input = new FilterInputStream(new ByteArrayInputStream(bytes)) {
+                
+                @Override
+                public int read(final byte[] b, int offset, int length) throws IOException {
+                    return super.read(b, offset, Math.min(length, 1000));
+                }
+                
+            };
+            
+            SPMDigest streamDigest = readAll(new DigestReader(input));
+            assertEquals(digest.size(), streamDigest.size());
+            assertTrue(digest.check(streamDigest));
+            
+            // from a direct buffer
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes).flip();
+            
+            SPMDigest bufferDigest = new SPMDigest();
+            bufferDigest.read(direct);
+            assertEquals(algorithm, bufferDigest.getAlgorithm());
+            assertEquals(digest.size(), bufferDigest.size());
+            assertTrue(digest.check(bufferDigest));
+            assertEquals(0, direct.position());
+            
+        }
+        
+    }
+    
+}
+
+// EOF
@@ -0,0 +1,144 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code ExtractionCache}.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class ExtractionCacheTest {
+    
+    private static final String TEMP_CACHE = "test/tmp-cache";
+    
+    private final ExtractionCache cache = new ExtractionCache(new File(TEMP_CACHE));
+    
+    // number of times an entry was extracted
+    private int extractions = 0;
+    
+    public ExtractionCacheTest() {
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        
+        cache.clear();
+        new File(TEMP_CACHE).delete();
+        
+    }
+    
+    // returns an extraction that writes a single file of the given size
+    private ExtractionCache.Extraction newExtraction(final int size) {
+        
+        return new ExtractionCache.Extraction() {
+            
+            @Override
+            public long extractTo(final File root) throws IOException {
+                
+                extractions++;
+                
+                root.mkdirs();
+                Files.write(new File(root, "file").toPath(), new byte[size]);
+                
+                return size;
+                
+            }
+            
+        };
+        
+    }
+    
+    @Test
+    public void testHit() throws Exception {
+        
+        File root = cache.extract("0a1b", newExtraction(10));
+        
+        assertTrue(cache.contains("0a1b"));
+        assertEquals(root, cache.extract("0a1b", newExtraction(10)));
+        assertEquals(10, new File(root, "file").length());
+        
+        assertEquals(1, extractions);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRate(), 0);
+        
+        // nothing is left staged
+        assertEquals(1, new File(TEMP_CACHE).list().length);
+        
+    }
+    
+    @Test
+    public void testFailure() throws Exception {
+        
+        try {
+            
+            cache.extract("0a1b", new ExtractionCache.Extraction() {
+                
+                @Override
+                public long extractTo(final File root) throws InvalidPackageException {
+                    
+                    root.mkdirs();
+                    throw new InvalidPackageException("Invalid package");
+                    
+                }
+                
+            });
+            
+            fail("Failed extraction was cached");
+            
+        } catch (InvalidPackageException ex) { // expected
+        }
+        
+        assertFalse(cache.contains("0a1b"));
+        assertEquals(0, new File(TEMP_CACHE).list().length);
+        
+    }
+    
+    @Test
+    public void testEviction() throws Exception {
+        
+        cache.setMaxSize(250);
+        
+        cache.extract("01", newExtraction(100));
+        cache.extract("02", newExtraction(100));
+        
+        // make the first entry the most recently used
+        new File(TEMP_CACHE, "02").setLastModified(System.currentTimeMillis() - 60000);
+        cache.extract("01", newExtraction(100));
+        
+        cache.extract("03", newExtraction(100));
+        
+        assertTrue(cache.contains("01"));
+        assertFalse(cache.contains("02"));
+        assertTrue(cache.contains("03"));
+        assertEquals(1, cache.getEvictions());
+        
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidKey() throws Exception {
+        cache.extract("../escape", newExtraction(1));
+    }
+    
+}
+
+// EOF
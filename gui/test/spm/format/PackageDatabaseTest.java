@@ -0,0 +1,260 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code PackageDatabase}.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class PackageDatabaseTest {
+    
+    private static final String TEMP_DATABASE = "test/tmp-installed.db";
+    
+    private final File file = new File(TEMP_DATABASE);
+    
+    private PackageDatabase database = new PackageDatabase(file);
+    
+    public PackageDatabaseTest() {
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        
+        database.close();
+        file.delete();
+        new File(TEMP_DATABASE + ".lock").delete();
+        
+    }
+    
+    // closes the database and opens it again from its log
+    private void reopen() throws Exception {
+        
+        database.close();
+        database = new PackageDatabase(file);
+        
+    }
+    
+    @Test
+    public void testOwner() throws Exception {
+        
+        database.add("foo", "1.0", "0a1b", Arrays.asList("/usr/lib/foo.so", "/usr/bin/foo"));
+        database.add("bar", null, null, Arrays.asList("/usr/bin/bar"));
+        
+        PackageDatabase.Entry owner = database.getOwner("/usr/lib/foo.so");
+        assertEquals("foo", owner.getName());
+        assertEquals("1.0", owner.getVersion());
+        assertEquals("0a1b", owner.getDigest());
+        assertEquals(Arrays.asList("/usr/bin/foo", "/usr/lib/foo.so"), owner.getPaths());
+        
+        assertNull(database.getOwner("/usr/lib/missing.so"));
+        assertEquals(3, database.getPathCount());
+        
+        // the records survive reopening the database
+        reopen();
+        
+        assertEquals(2, database.getInstalled().size());
+        assertEquals("foo", database.getOwner("/usr/bin/foo").getName());
+        assertEquals("bar", database.getOwner("/usr/bin/bar").getName());
+        assertNull(database.getOwner("/usr/bin/bar").getVersion());
+        assertNull(database.getOwner("/usr/bin/bar").getDigest());
+        
+    }
+    
+    @Test
+    public void testNormalizedPaths() throws Exception {
+        
+        assertEquals("/usr/lib", PackageDatabase.normalizePath("usr/lib/"));
+        assertEquals("/usr/lib", PackageDatabase.normalizePath("/usr//./lib"));
+        assertEquals("/usr/lib", PackageDatabase.normalizePath("/usr/share/../lib"));
+        assertEquals("/", PackageDatabase.normalizePath("/.."));
+        
+        database.add("foo", "1.0", null, Arrays.asList("/opt/foo/", "usr/bin//foo"));
+        database.add("bar", "1.0", null, Arrays.asList("/opt/foo/bin/bar"));
+        
+        // paths are looked up in the form they are recorded in
+        assertEquals(Arrays.asList("/opt/foo", "/usr/bin/foo"), database.get("foo", "1.0").getPaths());
+        assertEquals("foo", database.getOwner("/usr/bin/foo/").getName());
+        assertEquals("foo", database.getOwner("/usr/./bin/foo").getName());
+        
+        // a path inside an installed directory is owned by the closest package
+        assertEquals("foo", database.getOwner("/opt/foo/share/doc").getName());
+        assertEquals("bar", database.getOwner("/opt/foo/bin/bar").getName());
+        assertEquals("foo", database.getOwner("/opt/foo/bin/baz").getName());
+        assertNull(database.getOwner("/opt/foobar"));
+        assertNull(database.getOwner("/"));
+        
+    }
+    
+    @Test
+    public void testRemove() throws Exception {
+        
+        database.add("foo", "1.0", null, Arrays.asList("/usr/bin/foo", "/usr/share/foo/1"));
+        database.add("foo", "2.0", null, Arrays.asList("/usr/bin/foo", "/usr/share/foo/2"));
+        
+        // the last installed version owns the shared path
+        assertEquals("2.0", database.getOwner("/usr/bin/foo").getVersion());
+        assertEquals(2, database.getInstalled("foo").size());
+        
+        assertTrue(database.remove("foo", "1.0"));
+        assertFalse(database.remove("foo", "1.0"));
+        
+        assertNull(database.getOwner("/usr/share/foo/1"));
+        assertEquals("2.0", database.getOwner("/usr/bin/foo").getVersion());
+        
+        assertTrue(database.remove("foo"));
+        assertFalse(database.remove("foo"));
+        
+        reopen();
+        
+        assertTrue(database.getInstalled().isEmpty());
+        assertEquals(0, database.getPathCount());
+        
+    }
+    
+    @Test
+    public void testUnfinishedRecord() throws Exception {
+        
+        database.add("foo", "1.0", null, Arrays.asList("/usr/bin/foo"));
+        database.add("bar", "1.0", null, Arrays.asList("/usr/bin/bar"));
+        database.close();
+        
+        // cut the last record short, as if the program stopped while writing it
+        RandomAccessFile log = new RandomAccessFile(file, "rw");
+        log.setLength(log.length() - 3);
+        log.close();
+        
+        reopen();
+        
+        assertEquals("foo", database.getOwner("/usr/bin/foo").getName());
+        assertNull(database.getOwner("/usr/bin/bar"));
+        
+        // the rest of the record is dropped, so new records are read back
+        database.add("baz", "1.0", null, Arrays.asList("/usr/bin/baz"));
+        reopen();
+        
+        assertEquals(2, database.getInstalled().size());
+        assertEquals("baz", database.getOwner("/usr/bin/baz").getName());
+        
+    }
+    
+    @Test
+    public void testShared() throws Exception {
+        
+        PackageDatabase other = new PackageDatabase(file);
+        
+        try {
+            
+            database.add("foo", "1.0", null, Arrays.asList("/usr/bin/foo"));
+            assertEquals("foo", other.getOwner("/usr/bin/foo").getName());
+            
+            // what one appends is read by the other before it appends, rather than being written over
+            database.add("bar", "1.0", null, Arrays.asList("/usr/bin/bar"));
+            other.add("baz", "1.0", null, Arrays.asList("/usr/bin/baz"));
+            
+            assertEquals("bar", other.getOwner("/usr/bin/bar").getName());
+            
+            // a log compacted by one is read again by the other
+            database.remove("foo");
+            database.compact();
+            other.add("qux", "1.0", null, Arrays.asList("/usr/bin/qux"));
+            
+            assertNull(other.getOwner("/usr/bin/foo"));
+            
+        } finally {
+            other.close();
+        }
+        
+        reopen();
+        
+        assertEquals(3, database.getInstalled().size());
+        assertEquals("bar", database.getOwner("/usr/bin/bar").getName());
+        assertEquals("baz", database.getOwner("/usr/bin/baz").getName());
+        assertEquals("qux", database.getOwner("/usr/bin/qux").getName());
+        
+    }
+    
+    @Test
+    public void testCompaction() throws Exception {
+        
+        ArrayList<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++)
+            paths.add("/usr/share/doc/foo/file-" + i);
+        
+        // replace the same package until enough of the log is no longer needed to compact it
+        database.add("foo", "1.0", null, paths);
+        long recordSize = database.getLogSize();
+        
+        for (int i = 0; recordSize * i < 4 * 1024 * 1024; i++)
+            database.add("foo", "1.0", null, paths);
+        
+        // at most the compaction threshold is left over since the last compaction
+        assertTrue(database.getLogSize() < 2 * 1024 * 1024);
+        
+        reopen();
+        
+        assertEquals(1, database.getInstalled().size());
+        assertEquals(paths.size(), database.getPathCount());
+        
+    }
+    
+    /**
+     * Tracks 100000 paths and looks up the owner of each, which must not be slowed down by how many there are.
+     * 
+     */
+    @Test
+    public void testManyPaths() throws Exception {
+        
+        for (int i = 0; i < 100; i++) {
+            
+            List<String> paths = new ArrayList<String>();
+            for (int j = 0; j < 1000; j++)
+                paths.add("/usr/lib/package-" + i + "/lib-" + j + ".so");
+            
+            database.add("package-" + i, "1.0", null, paths);
+            
+        }
+        
+        reopen();
+        
+        long start = System.nanoTime();
+        
+        for (int i = 0; i < 100; i++) {
+            
+            for (int j = 0; j < 1000; j++)
+                assertEquals("package-" + i, database.getOwner("/usr/lib/package-" + i + "/lib-" + j + ".so").getName());
+            
+        }
+        
+        assertEquals(100000, database.getPathCount());
+        assertEquals(100, database.getInstalled().size());
+        
+        // a few microseconds each at most, where scanning would take milliseconds
+        assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+        
+    }
+    
+}
+
+// EOF
@@ -0,0 +1,462 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import spm.util.HashAlgorithm;
+
+/**
+ * Test for {@code PackageDownloader}, against a local HTTP server.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class PackageDownloaderTest {
+    
+    private static final String TEMP_DIR = "test/tmp-downloader";
+    
+    private static final int PACKAGE_SIZE = 200 * 1024;
+    
+    private final File remote = new File(TEMP_DIR, "remote");
+    private final File local = new File(TEMP_DIR, "local");
+    
+    private HttpServer server;
+    private URL location;
+    
+    // whether the server answers range requests
+    private volatile boolean rangeFlag = true;
+    
+    // number of bytes after which the server drops the next response, or -1
+    private final AtomicLong dropAfter = new AtomicLong(-1);
+    
+    // number of requests the server has answered
+    private final AtomicInteger requestCount = new AtomicInteger();
+    
+    public PackageDownloaderTest() {
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        
+        remote.mkdirs();
+        
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+                
+            }
+            
+        });
+        server.start();
+        
+        location = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/repo/");
+        
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        
+        server.stop(0);
+        delete(new File(TEMP_DIR));
+        
+    }
+    
+    // serves the files in the remote directory, answering range requests if rangeFlag is set
+    private void serve(final HttpExchange exchange) throws IOException {
+        
+        requestCount.incrementAndGet();
+        
+        File file = new File(remote, exchange.getRequestURI().getPath().substring("/repo/".length()));
+        if (!file.isFile()) {
+            
+            exchange.sendResponseHeaders(404, -1);
+            return;
+            
+        }
+        
+        byte[] contents = Files.readAllBytes(file.toPath());
+        
+        int offset = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (rangeFlag && range != null) {
+            
+            offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            
+            if (offset >= contents.length) {
+                
+                exchange.sendResponseHeaders(416, -1);
+                return;
+                
+            }
+            
+            exchange.getResponseHeaders().set("Content-Range", 
+                    "bytes " + offset + "-" + (contents.length - 1) + "/" + contents.length);
+            exchange.sendResponseHeaders(206, contents.length - offset);
+            
+        } else {
+            exchange.sendResponseHeaders(200, contents.length);
+        }
+        
+        int length = contents.length - offset;
+        
+        long drop = dropAfter.getAndSet(-1);
+        if (drop >= 0)
+            length = (int) Math.min(length, drop);
+        
+        OutputStream output = exchange.getResponseBody();
+        output.write(contents, offset, length);
+        output.flush();
+        
+    }
+    
+    // deletes the given file or directory tree
+    private static void delete(final File file) {
+        
+        File[] children = file.listFiles();
+        if (children != null) {
+            
+            for (File child : children)
+                delete(child);
+            
+        }
+        
+        file.delete();
+        
+    }
+    
+    // adds a package of random contents to the remote repository, returning its index entry
+    private RepositoryIndex.Entry addPackage(final String name, long seed) throws IOException {
+        
+        byte[] contents = new byte[PACKAGE_SIZE];
+        new Random(seed).nextBytes(contents);
+        
+        File file = new File(remote, "packages/" + name + ".spm");
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents);
+        
+        return new RepositoryIndex.Entry(name, "1.0", 
+                                         contents.length, 
+                                         HashAlgorithm.SHA256.hash(contents).toString(), 
+                                         "packages/" + name + ".spm");
+        
+    }
+    
+    @Test
+    public void testDownload() throws Exception {
+        
+        RepositoryIndex.write(Arrays.asList(addPackage("spm", 1)), new File(remote, RepositoryIndex.INDEX_NAME));
+        
+        PackageDownloader downloader = new PackageDownloader(location, local);
+        
+        RepositoryIndex index = new RepositoryIndex(downloader.downloadIndex());
+        
+        try {
+            
+            RepositoryIndex.Entry entry = index.find("spm").get(0);
+            
+            File file = downloader.download(entry).get();
+            
+            assertEquals(new File(local, "packages/spm.spm").getAbsoluteFile(), file);
+            assertArrayEquals(Files.readAllBytes(new File(remote, "packages/spm.spm").toPath()), 
+                              Files.readAllBytes(file.toPath()));
+            assertEquals(PACKAGE_SIZE, downloader.getDownloadedBytes());
+            assertFalse(new File(file.getPath() + ".part").exists());
+            
+            // a verified package is not downloaded again
+            int requests = requestCount.get();
+            assertEquals(file, downloader.downloadNow(entry));
+            assertEquals(requests, requestCount.get());
+            
+        } finally {
+            
+            index.close();
+            downloader.shutdown();
+            
+        }
+        
+    }
+    
+    @Test
+    public void testResume() throws Exception {
+        
+        RepositoryIndex.Entry entry = addPackage("spm", 2);
+        byte[] contents = Files.readAllBytes(new File(remote, entry.getPath()).toPath());
+        
+        // half of the package was downloaded before
+        File partial = new File(local, entry.getPath() + ".part");
+        partial.getParentFile().mkdirs();
+        Files.write(partial.toPath(), Arrays.copyOf(contents, PACKAGE_SIZE / 2));
+        
+        PackageDownloader downloader = new PackageDownloader(location, local);
+        File file = downloader.downloadNow(entry);
+        
+        assertArrayEquals(contents, Files.readAllBytes(file.toPath()));
+        assertEquals(1, downloader.getResumedCount());
+        assertEquals(PACKAGE_SIZE - PACKAGE_SIZE / 2, downloader.getDownloadedBytes());
+        
+    }
+    
+    @Test
+    public void testRetry() throws Exception {
+        
+        RepositoryIndex.Entry entry = addPackage("spm", 3);
+        
+        // the first response is cut short, so the download is resumed from where it stopped
+        dropAfter.set(50000);
+        
+        PackageDownloader downloader = new PackageDownloader(location, local);
+        File file = downloader.downloadNow(entry);
+        
+        assertArrayEquals(Files.readAllBytes(new File(remote, entry.getPath()).toPath()), 
+                          Files.readAllBytes(file.toPath()));
+        assertEquals(1, downloader.getResumedCount());
+        assertEquals(PACKAGE_SIZE, downloader.getDownloadedBytes());
+        
+    }
+    
+    @Test
+    public void testNoRange() throws Exception {
+        
+        rangeFlag = false;
+        
+        RepositoryIndex.Entry entry = addPackage("spm", 4);
+        
+        File partial = new File(local, entry.getPath() + ".part");
+        partial.getParentFile().mkdirs();
+        Files.write(partial.toPath(), new byte[1000]);
+        
+        // the server sends the whole package, which replaces the partial file
+        PackageDownloader downloader = new PackageDownloader(location, local);
+        File file = downloader.downloadNow(entry);
+        
+        assertArrayEquals(Files.readAllBytes(new File(remote, entry.getPath()).toPath()), 
+                          Files.readAllBytes(file.toPath()));
+        assertEquals(0, downloader.getResumedCount());
+        
+    }
+    
+    @Test
+    public void testDigestMismatch() throws Exception {
+        
+        RepositoryIndex.Entry entry = addPackage("spm", 5);
+        RepositoryIndex.Entry wrong = new RepositoryIndex.Entry("spm", "1.0", 
+                                                                entry.getSize(), 
+                                                                HashAlgorithm.SHA256.hash(new byte[1]).toString(), 
+                                                                entry.getPath());
+        
+        PackageDownloader downloader = new PackageDownloader(location, local);
+        
+        try {
+            
+            downloader.downloadNow(wrong);
+            fail("A package which does not match its digest was accepted");
+            
+        } catch (SPMDigestException ex) {
+            // expected
+        }
+        
+        assertFalse(downloader.getFile(wrong).exists());
+        assertFalse(new File(downloader.getFile(wrong).getPath() + ".part").exists());
+        
+    }
+    
+    @Test
+    public void testMissing() throws Exception {
+        
+        RepositoryIndex.Entry entry = new RepositoryIndex.Entry("spm", "1.0", 10, null, "packages/missing.spm");
+        
+        PackageDownloader downloader = new PackageDownloader(location, local);
+        downloader.setRetries(0);
+        
+        try {
+            
+            downloader.downloadNow(entry);
+            fail("A missing package was downloaded");
+            
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("404"));
+        }
+        
+        try {
+            
+            downloader.getFile(new RepositoryIndex.Entry("spm", "1.0", 10, null, "../spm.spm"));
+            fail("A package outside the repository was accepted");
+            
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        
+    }
+    
+    // reads the rest of the given stream
+    private static byte[] readAll(final InputStream input) throws IOException {
+        
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        
+        byte[] buffer = new byte[1000];
+        int num;
+        while ((num = input.read(buffer)) != -1)
+            output.write(buffer, 0, num);
+        
+        return output.toByteArray();
+        
+    }
+    
+    @Test
+    public void testStream() throws Exception {
+        
+        RepositoryIndex.Entry entry = addPackage("spm", 6);
+        byte[] contents = Files.readAllBytes(new File(remote, entry.getPath()).toPath());
+        
+        // a partial download is read back before the rest is downloaded, which is resumed when it is cut short
+        File partial = new File(local, entry.getPath() + ".part");
+        partial.getParentFile().mkdirs();
+        Files.write(partial.toPath(), Arrays.copyOf(contents, 1000));
+        
+        dropAfter.set(50000);
+        
+        PackageDownloader downloader = new PackageDownloader(location, local);
+        InputStream input = downloader.openStream(entry);
+        
+        try {
+            assertArrayEquals(contents, readAll(input));
+        } finally {
+            input.close();
+        }
+        
+        assertEquals(2, downloader.getResumedCount());
+        assertEquals(PACKAGE_SIZE - 1000, downloader.getDownloadedBytes());
+        assertArrayEquals(contents, Files.readAllBytes(downloader.getFile(entry).toPath()));
+        assertFalse(partial.exists());
+        
+        // a stream whose package does not match the index fails at its end
+        RepositoryIndex.Entry wrong = new RepositoryIndex.Entry("other", "1.0", 
+                                                                entry.getSize(), 
+                                                                HashAlgorithm.SHA256.hash(new byte[1]).toString(), 
+                                                                entry.getPath().replace("spm", "other"));
+        Files.copy(new File(remote, entry.getPath()).toPath(), new File(remote, wrong.getPath()).toPath());
+        
+        input = downloader.openStream(wrong);
+        
+        try {
+            
+            readAll(input);
+            fail("A package which does not match its digest was accepted");
+            
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof SPMDigestException);
+        } finally {
+            input.close();
+        }
+        
+        assertFalse(downloader.getFile(wrong).exists());
+        
+    }
+    
+    /**
+     * Streams a package from the server into {@code SPMPackage}, which extracts it as it downloads.
+     * 
+     */
+    @Test
+    public void testStreamPackage() throws Exception {
+        
+        File file = new File(remote, "packages/test.spm");
+        file.getParentFile().mkdirs();
+        Files.copy(new File("test/test.spm").toPath(), file.toPath());
+        
+        byte[] contents = Files.readAllBytes(file.toPath());
+        RepositoryIndex.Entry entry = new RepositoryIndex.Entry("test", null, 
+                                                                contents.length, 
+                                                                HashAlgorithm.SHA256.hash(contents).toString(), 
+                                                                "packages/test.spm");
+        
+        dropAfter.set(contents.length / 2);
+        
+        PackageDownloader downloader = new PackageDownloader(location, local);
+        
+        SPMPackage packageArchive = new SPMPackage();
+        packageArchive.stream(downloader.openStream(entry), downloader.getFile(entry));
+        
+        assertEquals("test.spm", packageArchive.getName());
+        assertTrue(new File(packageArchive.tempDir, "data/file.1").exists());
+        assertEquals(1, downloader.getResumedCount());
+        assertArrayEquals(contents, Files.readAllBytes(downloader.getFile(entry).toPath()));
+        
+    }
+    
+    @Test
+    public void testConcurrent() throws Exception {
+        
+        PackageDownloader downloader = new PackageDownloader(location, local);
+        downloader.setThreads(4);
+        
+        ArrayList<RepositoryIndex.Entry> entries = new ArrayList<RepositoryIndex.Entry>();
+        ArrayList<Future<File>> downloads = new ArrayList<Future<File>>();
+        
+        try {
+            
+            for (int i = 0; i < 12; i++)
+                entries.add(addPackage("package-" + i, 10 + i));
+            
+            for (RepositoryIndex.Entry entry : entries)
+                downloads.add(downloader.download(entry));
+            
+            for (int i = 0; i < entries.size(); i++) {
+                
+                File file = downloads.get(i).get();
+                
+                assertEquals(downloader.getFile(entries.get(i)), file);
+                assertArrayEquals(Files.readAllBytes(new File(remote, entries.get(i).getPath()).toPath()), 
+                                  Files.readAllBytes(file.toPath()));
+                
+            }
+            
+            assertEquals(12L * PACKAGE_SIZE, downloader.getDownloadedBytes());
+            
+        } finally {
+            downloader.shutdown();
+        }
+        
+    }
+    
+}
+
+// EOF
@@ -0,0 +1,220 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import spm.util.HashAlgorithm;
+
+/**
+ * Test for {@code RepositoryIndex}.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class RepositoryIndexTest {
+    
+    private static final String TEST_PACKAGE = "test/test.spm";
+    private static final String TEMP_REPOSITORY = "test/tmp-repository";
+    
+    private final File repository = new File(TEMP_REPOSITORY);
+    private final File indexFile = new File(repository, RepositoryIndex.INDEX_NAME);
+    
+    public RepositoryIndexTest() {
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        delete(repository);
+    }
+    
+    // deletes the given file or directory tree
+    private static void delete(final File file) {
+        
+        File[] children = file.listFiles();
+        if (children != null) {
+            
+            for (File child : children)
+                delete(child);
+            
+        }
+        
+        file.delete();
+        
+    }
+    
+    // returns the names of the given entries
+    private static List<String> getNames(final List<RepositoryIndex.Entry> entries) {
+        
+        ArrayList<String> names = new ArrayList<String>();
+        for (RepositoryIndex.Entry entry : entries)
+            names.add(entry.getName());
+        
+        return names;
+        
+    }
+    
+    @Test
+    public void testFind() throws Exception {
+        
+        List<RepositoryIndex.Entry> entries = Arrays.asList(
+                new RepositoryIndex.Entry("spm", "0.1.1", 10, "00", "spm-0.1.1.spm"),
+                new RepositoryIndex.Entry("gcc", "4.6", 20, null, "devel/gcc.spm"),
+                new RepositoryIndex.Entry("spm", "0.2", 30, "01", "spm-0.2.spm"),
+                new RepositoryIndex.Entry("spm-gui", null, 40, "02", "spm-gui.spm"),
+                new RepositoryIndex.Entry("éditeur", "1", 50, "03", "editeur.spm"));
+        
+        RepositoryIndex.write(entries, indexFile);
+        
+        RepositoryIndex index = new RepositoryIndex(indexFile);
+        
+        try {
+            
+            assertEquals(5, index.size());
+            assertEquals(Arrays.asList("gcc", "spm", "spm", "spm-gui", "éditeur"), 
+                         getNames(index.findPrefix("", 10)));
+            
+            // every version of a package, in the order they were given
+            List<RepositoryIndex.Entry> versions = index.find("spm");
+            assertEquals(2, versions.size());
+            assertEquals("0.1.1", versions.get(0).getVersion());
+            assertEquals("0.2", versions.get(1).getVersion());
+            assertEquals(30, versions.get(1).getSize());
+            assertEquals("01", versions.get(1).getDigest());
+            assertEquals("spm-0.2.spm", versions.get(1).getPath());
+            
+            RepositoryIndex.Entry gcc = index.find("gcc").get(0);
+            assertEquals("devel/gcc.spm", gcc.getPath());
+            assertNull(gcc.getDigest());
+            
+            assertNull(index.find("spm-gui").get(0).getVersion());
+            assertEquals(1, index.find("éditeur").size());
+            
+            assertTrue(index.find("sp").isEmpty());
+            assertTrue(index.find("zzz").isEmpty());
+            
+            assertEquals(Arrays.asList("spm", "spm", "spm-gui"), getNames(index.findPrefix("sp", 10)));
+            assertEquals(Arrays.asList("spm"), getNames(index.findPrefix("sp", 1)));
+            assertTrue(index.findPrefix("a", 10).isEmpty());
+            
+        } finally {
+            index.close();
+        }
+        
+    }
+    
+    @Test
+    public void testInvalid() throws Exception {
+        
+        repository.mkdirs();
+        Files.write(indexFile.toPath(), "not an index".getBytes("UTF-8"));
+        
+        try {
+            
+            new RepositoryIndex(indexFile);
+            fail("An invalid index was opened");
+            
+        } catch (IOException ex) {
+            // expected
+        }
+        
+    }
+    
+    @Test
+    public void testBuild() throws Exception {
+        
+        File packages = new File(repository, "packages");
+        packages.mkdirs();
+        
+        Files.copy(new File(TEST_PACKAGE).toPath(), new File(packages, "test.spm").toPath());
+        Files.write(new File(packages, "broken.spm").toPath(), new byte[100]);
+        Files.write(new File(repository, "README").toPath(), new byte[10]);
+        
+        // the broken package is left out
+        assertEquals(1, RepositoryIndex.build(repository));
+        
+        RepositoryIndex index = new RepositoryIndex(indexFile);
+        
+        try {
+            
+            RepositoryIndex.Entry entry = index.find("test").get(0);
+            
+            assertEquals("packages/test.spm", entry.getPath());
+            assertEquals(new File(TEST_PACKAGE).length(), entry.getSize());
+            
+            InputStream input = new FileInputStream(TEST_PACKAGE);
+            try {
+                assertEquals(HashAlgorithm.SHA256.hash(input).toString(), entry.getDigest());
+            } finally {
+                input.close();
+            }
+            
+        } finally {
+            index.close();
+        }
+        
+    }
+    
+    /**
+     * Indexes a million packages and looks up a thousand names and prefixes, which must not need more than a binary
+     * search each.
+     * 
+     */
+    @Test
+    public void testManyPackages() throws Exception {
+        
+        int count = 1000000;
+        
+        ArrayList<RepositoryIndex.Entry> entries = new ArrayList<RepositoryIndex.Entry>(count);
+        for (int i = 0; i < count; i++)
+            entries.add(new RepositoryIndex.Entry("package-" + i, "1.0", i, null, "package-" + i + ".spm"));
+        
+        RepositoryIndex.write(entries, indexFile);
+        entries = null;
+        
+        RepositoryIndex index = new RepositoryIndex(indexFile);
+        
+        try {
+            
+            assertEquals(count, index.size());
+            
+            long start = System.nanoTime();
+            
+            for (int i = 0; i < count; i += 1000) {
+                
+                assertEquals(i, index.find("package-" + i).get(0).getSize());
+                assertEquals(10, index.findPrefix("package-" + (i / 1000 + 1), 10).size());
+                
+            }
+            
+            // microseconds each, where reading the whole index would take far longer
+            assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+            
+        } finally {
+            index.close();
+        }
+        
+    }
+    
+}
+
+// EOF
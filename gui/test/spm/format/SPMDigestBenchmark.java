@@ -0,0 +1,78 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Random;
+
+/**
+ * Measures the throughput of {@code SPMDigest.update()} on a package of many small files with 1, 2, 4 and 8
+ * threads. Not part of the test suite; run its {@code main} method directly.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class SPMDigestBenchmark {
+
+    private static final int RECORDS = 50000;
+    private static final int MAX_FILE_SIZE = 8 * 1024;
+
+    private static final int[] THREADS = {1, 2, 4, 8};
+    private static final int ROUNDS = 5;
+
+    public static void main(final String[] args) {
+
+        // package of small files of random sizes
+        Random random = new Random(1);
+        SPMPackageContainer archive = new SPMPackageContainer();
+
+        long bytes = 0;
+        for (int i = 0; i < RECORDS; i++) {
+
+            byte[] fileContents = new byte[random.nextInt(MAX_FILE_SIZE)];
+            random.nextBytes(fileContents);
+
+            archive.addFile("data/dir" + (i % 100) + "/file" + i, fileContents);
+            bytes += fileContents.length;
+
+        }
+
+        System.out.println(String.format("%d records, %.1f MiB (%d processors):", 
+                                         RECORDS, bytes / 1048576.0, Runtime.getRuntime().availableProcessors()));
+
+        for (int round = 0; round < ROUNDS; round++) {
+
+            for (int threads : THREADS) {
+
+                long start = System.nanoTime();
+
+                SPMDigest digest = new SPMDigest();
+                digest.update(archive, threads);
+
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                System.out.println(String.format("%d thread(s) %10.0f files/s %10.1f MiB/s", 
+                                                 threads, RECORDS / seconds, bytes / 1048576.0 / seconds));
+
+            }
+
+            System.out.println();
+
+        }
+
+    }
+
+}
+
+// EOF
@@ -16,6 +16,7 @@ package spm.format;
  */
 
 import java.io.File;
+import spm.util.HashAlgorithm;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -61,6 +62,56 @@ public class SPMDigestTest {
         
     }
     
+    @Test
+    public void testParallelUpdate() throws Exception {
+        
+        SPMPackageContainer archive = new SPMPackageContainer();
+        for (int i = 0; i < 1000; i++)
+            archive.addFile("data/file." + (i % 900), ("contents of " + i).getBytes("UTF-8"));
+        
+        SPMDigest serialDigest = new SPMDigest(archive);
+        
+        SPMDigest parallelDigest = new SPMDigest();
+        parallelDigest.update(archive, 4);
+        
+        // the same hashes, keeping the last file of each name
+        assertEquals(serialDigest.size(), parallelDigest.size());
+        assertTrue(serialDigest.check(parallelDigest));
+        assertEquals(serialDigest.get("data/file.5"), parallelDigest.get("data/file.5"));
+        
+    }
+    
+    @Test
+    public void testTagged() throws Exception {
+        
+        SPMPackageContainer archive = new SPMPackageContainer();
+        archive.read(TEST_PACKAGE);
+        
+        SPMDigest archiveDigest = new SPMDigest(HashAlgorithm.SHA256);
+        archiveDigest.update(archive);
+        
+        // the algorithm is recorded in each line
+        String contents = archiveDigest.toString();
+        assertTrue(contents.startsWith("SHA256 ("));
+        
+        SPMDigest readDigest = new SPMDigest();
+        readDigest.read(new StringBuffer(contents));
+        
+        assertEquals(HashAlgorithm.SHA256, readDigest.getAlgorithm());
+        assertEquals(archiveDigest.size(), readDigest.size());
+        assertTrue(readDigest.check(archive));
+        
+        // digests of different algorithms cannot be mixed
+        try {
+            
+            readDigest.read(new StringBuffer(contents + new SPMDigest(archive).toString()));
+            fail("Digest file mixing algorithms was read");
+            
+        } catch (SPMDigestException ex) { // expected
+        }
+        
+    }
+    
     @Test
     public void testWrite() throws Exception {
         
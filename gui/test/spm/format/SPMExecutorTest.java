@@ -0,0 +1,207 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code SPMExecutor}.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class SPMExecutorTest {
+    
+    public SPMExecutorTest() {
+    }
+    
+    // returns a step running the given shell command
+    private static SPMStep step(final String command, final SPMStep... dependencies) {
+        
+        return new SPMStep(command, new SPMStep.Action() {
+            
+            @Override
+            public Process start() throws IOException {
+                return new ProcessBuilder("sh", "-c", command).start();
+            }
+            
+        }, dependencies);
+        
+    }
+    
+    @Test
+    public void testOutput() throws Exception {
+        
+        final ArrayList<String> errorLines = new ArrayList<String>();
+        
+        SPMExecutor executor = new SPMExecutor(step("echo out; echo err >&2"));
+        executor.addOutputListener(new SPMExecutor.OutputListener() {
+            
+            @Override
+            public void lineRead(final SPMExecutor executor, 
+                                 final SPMStep step, 
+                                 final String line, 
+                                 boolean errorFlag) {
+                
+                if (errorFlag) {
+                    synchronized (errorLines) {
+                        errorLines.add(line);
+                    }
+                }
+                
+            }
+            
+        });
+        
+        String output = executor.getOutput();
+        
+        assertTrue(output.contains("out"));
+        assertTrue(output.contains("err"));
+        assertEquals(1, errorLines.size());
+        assertEquals("err", errorLines.get(0));
+        
+        assertFalse(executor.failed());
+        assertTrue(executor.isDone());
+        assertTrue(executor.getElapsedTime() >= 0);
+        
+    }
+    
+    @Test
+    public void testExitValue() throws Exception {
+        
+        SPMExecutor executor = new SPMExecutor(step("exit 0"), step("exit 3"), step("exit 4"));
+        
+        assertEquals(3, executor.getExitValue().get(30, TimeUnit.SECONDS).intValue());
+        assertTrue(executor.failed());
+        
+    }
+    
+    @Test
+    public void testDependencies() throws Exception {
+        
+        // the second step can only see the first step's file if it runs after it
+        File file = new File("test/tmp-step");
+        file.delete();
+        
+        SPMStep first = step("sleep 1; touch " + file.getPath());
+        SPMStep second = step("test -f " + file.getPath(), first);
+        SPMStep failed = step("exit 1");
+        SPMStep skipped = step("touch test/tmp-skipped", second, failed);
+        
+        SPMExecutor executor = new SPMExecutor(first, second, failed, skipped);
+        
+        assertEquals(1, executor.getExitValue().get(30, TimeUnit.SECONDS).intValue());
+        
+        assertEquals(SPMStep.State.SUCCEEDED, second.getState());
+        assertEquals(SPMStep.State.FAILED, failed.getState());
+        assertEquals(SPMStep.State.SKIPPED, skipped.getState());
+        assertFalse(new File("test/tmp-skipped").exists());
+        
+        assertTrue(first.getElapsedTime() >= TimeUnit.SECONDS.toNanos(1));
+        assertEquals(-1, skipped.getElapsedTime());
+        assertEquals(4, executor.getSteps().size());
+        
+        file.delete();
+        
+    }
+    
+    @Test
+    public void testRuntimeException() throws Exception {
+        
+        final ArrayList<SPMStep> finished = new ArrayList<SPMStep>();
+        
+        SPMStep thrown = new SPMStep("thrown", new SPMStep.Action() {
+            
+            @Override
+            public Process start() {
+                throw new IllegalStateException("thrown by the action");
+            }
+            
+        });
+        SPMStep skipped = step("true", thrown);
+        
+        SPMExecutor executor = new SPMExecutor(thrown, skipped);
+        executor.addStepListener(new SPMExecutor.StepListener() {
+            
+            @Override
+            public void stepStarted(final SPMExecutor executor, final SPMStep step) {
+            }
+            
+            @Override
+            public void stepFinished(final SPMExecutor executor, final SPMStep step) {
+                
+                synchronized (finished) {
+                    finished.add(step);
+                }
+                
+            }
+            
+        });
+        
+        assertEquals(-1, executor.getExitValue().get(30, TimeUnit.SECONDS).intValue());
+        
+        assertEquals(SPMStep.State.FAILED, thrown.getState());
+        assertEquals(SPMStep.State.SKIPPED, skipped.getState());
+        assertTrue(finished.contains(thrown));
+        
+        try {
+            
+            executor.getOutput();
+            fail("The exception thrown by the action was not reported.");
+            
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfOrder() throws Exception {
+        
+        SPMStep first = step("true");
+        
+        new SPMExecutor(step("true", first), first);
+        
+    }
+    
+    /**
+     * Writes far more to the standard error stream than a pipe holds before writing to the standard output stream,
+     * which would never finish if the streams were read one after the other.
+     * 
+     */
+    @Test
+    public void testFullErrorPipe() throws Exception {
+        
+        SPMStep step = step("i=0; while [ $i -lt 20000 ]; do echo \"error line $i\" >&2; i=$((i+1)); done; " +
+                                "echo done");
+        
+        SPMExecutor executor = new SPMExecutor(step);
+        
+        assertEquals(0, executor.getExitValue().get(60, TimeUnit.SECONDS).intValue());
+        
+        String output = executor.getOutput();
+        assertTrue(output.contains("error line 19999"));
+        assertTrue(output.contains("done"));
+        
+    }
+    
+}
+
+// EOF
@@ -0,0 +1,201 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import spm.format.tar.*;
+
+/**
+ * Test for {@code SPMPackageContainer}.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class SPMPackageContainerTest {
+
+    private static final String TEST_PACKAGE = "test/test.spm";
+    private static final String TEMP_PACKAGE = "test/temp-indexed.spm";
+
+    private static final int RECORDS = 200;
+
+    public SPMPackageContainerTest() {
+    }
+
+    // creates an archive of files with distinct contents
+    private static SPMPackageContainer newArchive() {
+
+        SPMPackageContainer archive = new SPMPackageContainer();
+
+        for (int i = 0; i < RECORDS; i++) {
+
+            StringBuilder contents = new StringBuilder();
+            for (int j = 0; j < i * 37; j++)
+                contents.append((char) ('a' + (i + j) % 26));
+
+            archive.addFile("data/file." + i, contents.toString().getBytes());
+
+        }
+
+        return archive;
+
+    }
+
+    // reads all records with the given reader
+    private static TarArchive readAll(final TarReader reader) throws Exception {
+
+        TarArchive archive = new TarArchive();
+
+        while (reader.next() != null)
+            archive.add(new TarRecord(reader.getHeader(), readContents(reader)));
+
+        reader.close();
+
+        return archive;
+
+    }
+
+    // reads the contents of the current record of the given reader
+    private static byte[] readContents(final TarReader reader) throws Exception {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream input = reader.getInputStream();
+
+        byte[] buffer = new byte[4096];
+        int num;
+        while ((num = input.read(buffer)) != -1)
+            output.write(buffer, 0, num);
+
+        return output.toByteArray();
+
+    }
+
+    // returns the contents of the given record, treating empty files as having no contents
+    private static byte[] contents(final TarRecord record) {
+
+        byte[] fileContents = record.getFileContents();
+
+        return fileContents == null ? new byte[0] : fileContents;
+
+    }
+
+    // checks that both archives hold the same records
+    private static void assertSameRecords(final TarArchive expected, final TarArchive actual) {
+
+        assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++) {
+
+            assertEquals(expected.get(i).getHeader().getFileName(), actual.get(i).getHeader().getFileName());
+            assertArrayEquals(contents(expected.get(i)), contents(actual.get(i)));
+
+        }
+
+    }
+
+    @Test
+    public void testIndexed() throws Exception {
+
+        File temp = new File(TEMP_PACKAGE);
+
+        SPMPackageContainer archive = newArchive();
+        archive.setIndexed(true);
+        archive.setMemberSize(16 * 1024);
+        archive.write(temp);
+
+        PackageIndex index = PackageIndex.read(temp);
+        assertNotNull(index);
+        assertTrue(index.getMemberCount() > 1);
+
+        // still a plain GZIP file to readers that ignore the index
+        SPMPackageContainer plainArchive = new SPMPackageContainer();
+        plainArchive.read(new BufferedInputStream(new GZIPInputStream(new FileInputStream(temp))));
+        assertSameRecords(archive, plainArchive);
+
+        SPMPackageContainer gzipArchive = new SPMPackageContainer();
+        gzipArchive.read(temp);
+        assertSameRecords(archive, gzipArchive);
+
+        // members decompressed in parallel
+        assertSameRecords(archive, readAll(SPMPackageContainer.newReader(temp, 4)));
+
+        // seek straight to records
+        for (int i = 0; i < RECORDS; i += 13) {
+
+            String filename = "data/file." + i;
+
+            TarReader reader = SPMPackageContainer.newReader(temp, filename);
+            assertNotNull(filename, reader);
+            assertEquals(filename, reader.getHeader().getFileName());
+            assertArrayEquals(filename, contents(archive.getRecord(filename)), readContents(reader));
+            reader.close();
+
+        }
+
+        assertNull(SPMPackageContainer.newReader(temp, "missing.file"));
+
+        temp.delete();
+
+    }
+
+    @Test
+    public void testNotIndexed() throws Exception {
+
+        File file = new File(TEST_PACKAGE);
+
+        assertNull(PackageIndex.read(file));
+
+        // readers fall back to a single GZIP stream
+        SPMPackageContainer archive = new SPMPackageContainer();
+        archive.read(file);
+        assertSameRecords(archive, readAll(SPMPackageContainer.newReader(file, 4)));
+
+        TarReader reader = SPMPackageContainer.newReader(file, "build");
+        assertNotNull(reader);
+        assertArrayEquals(contents(archive.getRecord("build")), readContents(reader));
+        reader.close();
+
+    }
+
+    @Test
+    public void testIndexedPackage() throws Exception {
+
+        File temp = new File(TEMP_PACKAGE);
+
+        SPMPackageContainer archive = new SPMPackageContainer();
+        archive.read(new File(TEST_PACKAGE));
+        archive.setIndexed(true);
+        archive.setMemberSize(512);
+        archive.write(temp);
+
+        SPMPackage packageArchive = new SPMPackage();
+        packageArchive.read(temp);
+
+        SPMPackage expectedPackage = new SPMPackage();
+        expectedPackage.read(TEST_PACKAGE);
+
+        assertEquals(expectedPackage.getBuildString(), packageArchive.getBuildString());
+        assertEquals(expectedPackage.getLicenseString(), packageArchive.getLicenseString());
+
+        temp.delete();
+
+    }
+
+}
+
+// EOF
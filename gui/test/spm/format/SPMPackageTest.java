@@ -18,6 +18,11 @@ package spm.format;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+import spm.util.HashAlgorithm;
 
 /**
  * Test for {@code SPMPackage}, abstract SPM package class.
@@ -58,6 +63,424 @@ public class SPMPackageTest {
         testRead(new File(TEST_PACKAGE));
     }
     
+    @Test
+    public void testReadUncompressed() throws Exception {
+        
+        File temp = new File("test/temp.tar");
+        
+        // decompress the test package
+        InputStream input = new GZIPInputStream(new FileInputStream(TEST_PACKAGE));
+        OutputStream output = new FileOutputStream(temp);
+        
+        byte[] buffer = new byte[512];
+        int num;
+        while ((num = input.read(buffer)) != -1)
+            output.write(buffer, 0, num);
+        
+        input.close();
+        output.close();
+        
+        // uncompressed packages are read through a mapped archive
+        testRead(temp);
+        
+        temp.delete();
+        
+    }
+    
+    @Test(expected = SPMDigestException.class)
+    public void testReadCorrupted() throws Exception {
+        
+        File temp = new File("test/temp-corrupted.spm");
+        
+        // change a file without updating the digest
+        SPMPackageContainer container = new SPMPackageContainer();
+        container.read(TEST_PACKAGE);
+        container.setFileContents("data/file.1", "corrupted".getBytes("UTF-8"));
+        container.write(temp);
+        
+        try {
+            new SPMPackage().read(temp);
+        } finally {
+            temp.delete();
+        }
+        
+    }
+    
+    @Test
+    public void testReadSHA256() throws Exception {
+        
+        File temp = new File("test/temp-sha256.spm");
+        
+        // replace the digest file (which follows the other files) with SHA256 digests
+        SPMPackageContainer container = new SPMPackageContainer();
+        container.read(TEST_PACKAGE);
+        
+        SPMDigest digest = new SPMDigest(HashAlgorithm.SHA256);
+        digest.update(container);
+        digest.remove("digest");
+        
+        container.setFileContents("digest", digest.toString().getBytes("UTF-8"));
+        container.write(temp);
+        
+        SPMPackage packageArchive = new SPMPackage();
+        packageArchive.read(temp);
+        
+        assertEquals(HashAlgorithm.SHA256, packageArchive.getDigestAlgorithm());
+        assertEquals(BUILD_CONTENTS, packageArchive.getBuildString());
+        
+        // corruption is still found
+        container.setFileContents("data/file.1", "corrupted".getBytes("UTF-8"));
+        container.write(temp);
+        
+        try {
+            
+            new SPMPackage().read(temp);
+            fail("Corrupted package was read");
+            
+        } catch (SPMDigestException ex) { // expected
+        } finally {
+            temp.delete();
+        }
+        
+    }
+    
+    @Test
+    public void testLazyExtraction() throws Exception {
+        
+        File temp = new File("test/temp-lazy.spm");
+        
+        // uninstall only needs one data file, install does not say
+        SPMPackageContainer container = new SPMPackageContainer();
+        container.read(TEST_PACKAGE);
+        container.addFile("uninstall.needs", "# files removed by uninstall\nfile.1\n".getBytes("UTF-8"));
+        
+        SPMDigest digest = new SPMDigest(container);
+        digest.remove("digest");
+        container.setFileContents("digest", digest.toByteArray());
+        container.write(temp);
+        
+        try {
+            
+            SPMPackage packageArchive = new SPMPackage();
+            packageArchive.read(temp);
+            
+            assertEquals("Uninstall script executed!\n", packageArchive.getUninstallExecutor().getOutput());
+            
+            assertTrue(new File(packageArchive.tempDir, "data/file.1").exists());
+            assertFalse(new File(packageArchive.tempDir, "data/file.2").exists());
+            assertFalse(new File(packageArchive.tempDir, "build").exists());
+            
+            // falls back to extracting everything
+            assertTrue(packageArchive.getInstallExecutor().getOutput().contains("Install script executed!"));
+            
+            assertTrue(new File(packageArchive.tempDir, "data/file.2").exists());
+            
+        } finally {
+            temp.delete();
+        }
+        
+    }
+    
+    @Test
+    public void testExtractionCache() throws Exception {
+        
+        ExtractionCache cache = new ExtractionCache(new File("test/tmp-cache"));
+        
+        try {
+            
+            // both packages share the same extracted files, linked into a directory of their own
+            for (int i = 0; i < 2; i++) {
+                
+                SPMPackage packageArchive = new SPMPackage();
+                packageArchive.setExtractionCache(cache);
+                packageArchive.read(TEST_PACKAGE);
+                
+                assertEquals("Uninstall script executed!\n", packageArchive.getUninstallExecutor().getOutput());
+                
+                File linked = new File(packageArchive.tempDir, "data/file.1");
+                File cached = new File(getCachedDir(cache), "data/file.1");
+                if (Files.getFileStore(linked.toPath()).equals(Files.getFileStore(cached.toPath())))
+                    assertTrue(Files.isSameFile(linked.toPath(), cached.toPath()));
+                
+                File written = new File(packageArchive.tempDir, "data/written");
+                assertTrue(packageArchive.tempDir.isDirectory());
+                assertFalse(written.exists());
+                
+                // what a run writes is not seen by the next one
+                assertTrue(written.createNewFile());
+                written.deleteOnExit();
+                
+            }
+            
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+            
+            // an entry changed through a link is removed and extracted again
+            File cached = new File(getCachedDir(cache), "data/file.1");
+            byte[] contents = Files.readAllBytes(cached.toPath());
+            cached.setWritable(true);
+            Files.write(cached.toPath(), "changed".getBytes("UTF-8"));
+            
+            SPMPackage packageArchive = new SPMPackage();
+            packageArchive.setExtractionCache(cache);
+            packageArchive.read(TEST_PACKAGE);
+            
+            assertEquals("Uninstall script executed!\n", packageArchive.getUninstallExecutor().getOutput());
+            assertArrayEquals(contents, Files.readAllBytes(new File(packageArchive.tempDir, "data/file.1").toPath()));
+            assertNull(getCachedDir(cache));
+            
+        } finally {
+            
+            cache.clear();
+            cache.getDirectory().delete();
+            
+        }
+        
+    }
+    
+    @Test
+    public void testCachedLazyExtraction() throws Exception {
+        
+        File temp = new File("test/temp-lazy.spm");
+        ExtractionCache cache = new ExtractionCache(new File("test/tmp-cache"));
+        
+        SPMPackageContainer container = new SPMPackageContainer();
+        container.read(TEST_PACKAGE);
+        container.addFile("uninstall.needs", "file.1\n".getBytes("UTF-8"));
+        
+        SPMDigest digest = new SPMDigest(container);
+        digest.remove("digest");
+        container.setFileContents("digest", digest.toByteArray());
+        container.write(temp);
+        
+        try {
+            
+            // a script with needs does not fill the cache
+            SPMPackage packageArchive = new SPMPackage();
+            packageArchive.setExtractionCache(cache);
+            packageArchive.read(temp);
+            
+            assertFalse(packageArchive.getUninstallExecutor().failed());
+            assertEquals(0, cache.getMisses());
+            
+            assertFalse(packageArchive.getInstallExecutor().failed());
+            assertEquals(1, cache.getMisses());
+            
+            // but only what it needs is taken from the cache once it is there
+            packageArchive = new SPMPackage();
+            packageArchive.setExtractionCache(cache);
+            packageArchive.read(temp);
+            
+            assertEquals("Uninstall script executed!\n", packageArchive.getUninstallExecutor().getOutput());
+            assertEquals(1, cache.getHits());
+            
+            assertTrue(new File(packageArchive.tempDir, "data/file.1").exists());
+            assertFalse(new File(packageArchive.tempDir, "data/file.2").exists());
+            assertFalse(new File(packageArchive.tempDir, "build").exists());
+            
+        } finally {
+            
+            temp.delete();
+            cache.clear();
+            cache.getDirectory().delete();
+            
+        }
+        
+    }
+    
+    @Test
+    public void testBuildChanges() throws Exception {
+        
+        File temp = new File("test/temp-built.spm");
+        ExtractionCache cache = new ExtractionCache(new File("test/tmp-cache"));
+        
+        // the build script only needs the file it changes, and the install script needs everything
+        SPMPackageContainer container = new SPMPackageContainer();
+        container.read(TEST_PACKAGE);
+        container.addFile("build.needs", "file.1\n".getBytes("UTF-8"));
+        container.setFileContents("build", "echo built > file.1\n".getBytes("UTF-8"));
+        container.setFileContents("install", "cat file.1\n".getBytes("UTF-8"));
+        
+        SPMDigest digest = new SPMDigest(container);
+        digest.remove("digest");
+        container.setFileContents("digest", digest.toByteArray());
+        container.write(temp);
+        
+        try {
+            
+            // the install script sees what the build script changed, with or without the extraction cache
+            for (int i = 0; i < 2; i++) {
+                
+                SPMPackage packageArchive = new SPMPackage();
+                if (i == 1)
+                    packageArchive.setExtractionCache(cache);
+                packageArchive.read(temp);
+                
+                assertEquals("built\n", packageArchive.getInstallExecutor().getOutput());
+                assertTrue(new File(packageArchive.tempDir, "data/file.2").exists());
+                
+            }
+            
+            assertEquals(1, cache.getMisses());
+            
+        } finally {
+            
+            temp.delete();
+            cache.clear();
+            cache.getDirectory().delete();
+            
+        }
+        
+    }
+    
+    // returns the directory of the only entry of the cache, or null if it is empty
+    private static File getCachedDir(final ExtractionCache cache) {
+        
+        File[] entries = cache.getDirectory().listFiles();
+        
+        for (File entry : entries == null ? new File[0] : entries) {
+            
+            if (new File(entry, "root").isDirectory())
+                return new File(entry, "root");
+            
+        }
+        
+        return null;
+        
+    }
+    
+    @Test
+    public void testDatabase() throws Exception {
+        
+        PackageDatabase database = new PackageDatabase(new File("test/tmp-installed.db"));
+        
+        try {
+            
+            SPMPackage packageArchive = new SPMPackage();
+            packageArchive.setDatabase(database);
+            packageArchive.read(TEST_PACKAGE);
+            
+            assertFalse(packageArchive.getInstallExecutor().failed());
+            
+            List<PackageDatabase.Entry> installed = database.getInstalled();
+            assertEquals(1, installed.size());
+            assertEquals("test.spm", installed.get(0).getName());
+            assertNull(installed.get(0).getVersion());
+            
+            // updating replaces the record, and un-installing removes it
+            assertFalse(packageArchive.getUpdateExecutor().failed());
+            assertEquals(1, database.getInstalled().size());
+            
+            assertFalse(packageArchive.getUninstallExecutor().failed());
+            assertTrue(database.getInstalled().isEmpty());
+            
+        } finally {
+            
+            database.close();
+            database.getFile().delete();
+            new File(database.getFile().getPath() + ".lock").delete();
+            
+        }
+        
+    }
+    
+    @Test
+    public void testSetters() throws Exception {
+        
+        // a package read lazily is loaded by the first setter, which must not read back the old contents
+        SPMPackage packageArchive = new SPMPackage();
+        packageArchive.read(TEST_PACKAGE);
+        
+        packageArchive.setLicenseString("license");
+        packageArchive.setBuildString("build");
+        packageArchive.setInstallString("install");
+        packageArchive.setUninstallString("uninstall");
+        
+        assertEquals("license", packageArchive.getLicenseString());
+        assertEquals("build", packageArchive.getBuildString());
+        assertEquals("install", packageArchive.getInstallString());
+        assertEquals("uninstall", packageArchive.getUninstallString());
+        
+    }
+    
+    // writes a package installing one file to the given directory, which it lists as its install target
+    private static File newTargetsPackage(final String name, final File target) throws Exception {
+        
+        File file = new File("test/temp-" + name + ".spm");
+        
+        SPMPackageContainer container = new SPMPackageContainer();
+        container.read(TEST_PACKAGE);
+        container.setFileContents("install", ("mkdir -p " + target + "/lib\n" + 
+                                              "cp file.1 " + target + "/lib/" + name + "\n").getBytes("UTF-8"));
+        container.addFile("install.targets", (target + "/\n").getBytes("UTF-8"));
+        
+        SPMDigest digest = new SPMDigest(container);
+        digest.remove("digest");
+        container.setFileContents("digest", digest.toByteArray());
+        container.write(file);
+        
+        return file;
+        
+    }
+    
+    @Test
+    public void testDatabaseTargets() throws Exception {
+        
+        File target = new File("test/tmp-target").getAbsoluteFile();
+        PackageDatabase database = new PackageDatabase(new File("test/tmp-installed.db"));
+        
+        // a file which was in the target directory before the packages were installed
+        File old = new File(target, "old");
+        target.mkdirs();
+        assertTrue(old.createNewFile());
+        
+        // two packages installing to the same directory, one after the other
+        File first = newTargetsPackage("first", target);
+        File second = newTargetsPackage("second", target);
+        
+        SPMPackage.setDefaultDatabase(database);
+        
+        try {
+            
+            SPMScheduler scheduler = new SPMScheduler();
+            scheduler.add(first);
+            scheduler.add(second);
+            
+            assertTrue(scheduler.run());
+            
+            // the second package is installed once the first has been recorded
+            assertEquals("record temp-first.spm", 
+                         scheduler.getInstallStep(second).getPredecessors().get(0).getName());
+            
+            // each package is recorded with the files it installed, not those which were already there
+            String targetPath = target.getPath();
+            assertEquals(Arrays.asList(targetPath, targetPath + "/lib", targetPath + "/lib/first"), 
+                         database.get("temp-first.spm", null).getPaths());
+            assertEquals(Arrays.asList(targetPath, targetPath + "/lib", targetPath + "/lib/second"), 
+                         database.get("temp-second.spm", null).getPaths());
+            assertEquals("temp-first.spm", database.getOwner(targetPath + "/lib/first").getName());
+            assertEquals("temp-second.spm", database.getOwner(targetPath + "/lib/second").getName());
+            
+        } finally {
+            
+            SPMPackage.setDefaultDatabase(null);
+            
+            database.close();
+            database.getFile().delete();
+            new File(database.getFile().getPath() + ".lock").delete();
+            
+            new File(target, "lib/first").delete();
+            new File(target, "lib/second").delete();
+            new File(target, "lib").delete();
+            old.delete();
+            target.delete();
+            first.delete();
+            second.delete();
+            
+        }
+        
+    }
+    
     // FIXME writing of package fails
     //@Test
     public void testWrite() throws Exception {
@@ -82,6 +505,110 @@ public class SPMPackageTest {
         
     }
     
+    /**
+     * A package which changes on disk after it has been read is checked again as it is extracted.
+     * 
+     */
+    @Test
+    public void testExtractChanged() throws Exception {
+        
+        File temp = new File("test/temp-changed.spm");
+        Files.copy(new File(TEST_PACKAGE).toPath(), temp.toPath());
+        
+        try {
+            
+            SPMPackage packageArchive = new SPMPackage();
+            packageArchive.setLazyExtraction(false);
+            packageArchive.read(temp);
+            
+            // change a file without updating the digest
+            SPMPackageContainer container = new SPMPackageContainer();
+            container.read(TEST_PACKAGE);
+            container.setFileContents("data/file.1", "corrupted".getBytes("UTF-8"));
+            container.write(temp);
+            
+            try {
+                
+                packageArchive.build();
+                fail("A package which changed after it was read was extracted");
+                
+            } catch (InvalidPackageException ex) {
+                // expected
+            }
+            
+            assertFalse(new File(packageArchive.tempDir, "data/file.1").exists());
+            
+        } finally {
+            temp.delete();
+        }
+        
+    }
+    
+    @Test
+    public void testStream() throws Exception {
+        
+        SPMPackage packageArchive = new SPMPackage();
+        packageArchive.stream(new FileInputStream(TEST_PACKAGE), new File(TEST_PACKAGE));
+        
+        assertEquals(BUILD_CONTENTS, packageArchive.getBuildString());
+        assertEquals(INSTALL_CONTENTS, packageArchive.getInstallString());
+        assertEquals(LICENSE_CONTENTS, packageArchive.getLicenseString());
+        assertEquals(archive.getFileNames(), packageArchive.getFileNames());
+        
+        // the whole package is extracted as it is read, and the scripts run from there
+        assertTrue(new File(packageArchive.tempDir, "build").exists());
+        assertTrue(new File(packageArchive.tempDir, "data/file.2").exists());
+        
+        assertTrue(packageArchive.getBuildExecutor().getOutput().contains("Build script executed!"));
+        
+    }
+    
+    @Test
+    public void testStreamCorrupted() throws Exception {
+        
+        File temp = new File("test/temp-stream.spm");
+        
+        // SHA256 digests are found after the other files, which must be hashed again
+        SPMPackageContainer container = new SPMPackageContainer();
+        container.read(TEST_PACKAGE);
+        
+        SPMDigest digest = new SPMDigest(HashAlgorithm.SHA256);
+        digest.update(container);
+        digest.remove("digest");
+        
+        container.setFileContents("digest", digest.toString().getBytes("UTF-8"));
+        container.write(temp);
+        
+        try {
+            
+            SPMPackage packageArchive = new SPMPackage();
+            packageArchive.stream(new FileInputStream(temp), temp);
+            
+            assertEquals(HashAlgorithm.SHA256, packageArchive.getDigestAlgorithm());
+            
+            // nothing is left extracted from a corrupted package
+            container.setFileContents("data/file.1", "corrupted".getBytes("UTF-8"));
+            container.write(temp);
+            
+            packageArchive = new SPMPackage();
+            
+            try {
+                
+                packageArchive.stream(new FileInputStream(temp), temp);
+                fail("Corrupted package was read");
+                
+            } catch (SPMDigestException ex) {
+                // expected
+            }
+            
+            assertFalse(packageArchive.tempDir.exists());
+            
+        } finally {
+            temp.delete();
+        }
+        
+    }
+    
     @Test
     public void testBuild() throws Exception {
         System.out.println(archive.getBuildExecutor().getOutput());
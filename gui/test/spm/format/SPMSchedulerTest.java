@@ -0,0 +1,130 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code SPMScheduler}.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class SPMSchedulerTest {
+    
+    private static final String TEST_PACKAGE = "test/test.spm";
+    private static final String TEMP_LOG = "test/tmp-scheduler.log";
+    
+    public SPMSchedulerTest() {
+    }
+    
+    // writes a copy of the test package which logs when it is installed and lists the given install targets
+    private static File newPackage(final String name, final String targets) throws Exception {
+        
+        File file = new File("test/tmp-" + name + ".spm");
+        String log = new File(TEMP_LOG).getAbsolutePath();
+        
+        SPMPackageContainer container = new SPMPackageContainer();
+        container.read(TEST_PACKAGE);
+        container.setFileContents("install", ("echo \"start " + name + "\" >> " + log + "\n" + 
+                                              "sleep 1\n" + 
+                                              "echo \"end " + name + "\" >> " + log + "\n").getBytes("UTF-8"));
+        if (targets != null)
+            container.addFile("install.targets", targets.getBytes("UTF-8"));
+        
+        SPMDigest digest = new SPMDigest(container);
+        digest.remove("digest");
+        container.setFileContents("digest", digest.toByteArray());
+        container.write(file);
+        
+        return file;
+        
+    }
+    
+    @Test
+    public void testOverlaps() {
+        
+        List<String> lib = Arrays.asList("/usr/lib/");
+        
+        assertTrue(SPMScheduler.overlaps(lib, Arrays.asList("/usr/lib/foo.so")));
+        assertTrue(SPMScheduler.overlaps(Arrays.asList("/usr/lib/foo.so"), lib));
+        assertTrue(SPMScheduler.overlaps(lib, Arrays.asList("/usr/lib")));
+        assertTrue(SPMScheduler.overlaps(lib, null));
+        assertFalse(SPMScheduler.overlaps(lib, Arrays.asList("/usr/libexec/foo")));
+        assertFalse(SPMScheduler.overlaps(lib, Arrays.<String>asList()));
+        
+        // targets are compared in the form the database records them in
+        assertTrue(SPMScheduler.overlaps(lib, Arrays.asList("usr//lib/./foo.so")));
+        assertTrue(SPMScheduler.overlaps(lib, Arrays.asList("/")));
+        assertFalse(SPMScheduler.overlaps(lib, Arrays.asList("/usr/share/../libexec")));
+        
+    }
+    
+    @Test
+    public void testRun() throws Exception {
+        
+        File log = new File(TEMP_LOG);
+        log.delete();
+        
+        File first = newPackage("first", "/opt/shared/\n");
+        File second = newPackage("second", "# the same directory\n/opt/shared/lib/libsecond.so\n");
+        File other = newPackage("other", "/opt/other\n");
+        File missing = new File("test/tmp-missing.spm");
+        
+        SPMScheduler scheduler = new SPMScheduler();
+        scheduler.setThreads(4);
+        scheduler.add(first);
+        scheduler.add(second);
+        scheduler.add(other);
+        scheduler.add(missing);
+        
+        try {
+            
+            assertFalse("A package is missing", scheduler.run());
+            
+            assertEquals(3, scheduler.getInstalledCount());
+            assertEquals(1, scheduler.getFailures().size());
+            assertTrue(scheduler.getFailures().containsKey(missing));
+            assertTrue(scheduler.getPackagesPerSecond() > 0);
+            
+            // only the packages sharing targets are installed one after the other
+            SPMStep firstStep = scheduler.getInstallStep(first);
+            assertEquals(Arrays.asList(firstStep), scheduler.getInstallStep(second).getPredecessors());
+            assertTrue(scheduler.getInstallStep(other).getPredecessors().isEmpty());
+            
+            List<String> lines = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8);
+            assertTrue(lines.indexOf("end first") < lines.indexOf("start second"));
+            assertEquals(6, lines.size());
+            
+        } finally {
+            
+            first.delete();
+            second.delete();
+            other.delete();
+            log.delete();
+            
+        }
+        
+    }
+    
+}
+
+// EOF
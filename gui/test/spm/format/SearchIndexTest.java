@@ -0,0 +1,229 @@
+package spm.format;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code SearchIndex}.
+ * 
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class SearchIndexTest {
+    
+    private static final String TEST_PACKAGE = "test/test.spm";
+    private static final String TEMP_REPOSITORY = "test/tmp-repository";
+    
+    private final File repository = new File(TEMP_REPOSITORY);
+    
+    private final SearchIndex index = new SearchIndex();
+    
+    public SearchIndexTest() {
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        delete(repository);
+    }
+    
+    // deletes the given file or directory tree
+    private static void delete(final File file) {
+        
+        File[] children = file.listFiles();
+        if (children != null) {
+            
+            for (File child : children)
+                delete(child);
+            
+        }
+        
+        file.delete();
+        
+    }
+    
+    // returns the names of the given packages
+    private static List<String> getNames(final List<SearchIndex.Document> documents) {
+        
+        ArrayList<String> names = new ArrayList<String>();
+        for (SearchIndex.Document document : documents)
+            names.add(document.getName());
+        
+        return names;
+        
+    }
+    
+    // adds the test packages to the index
+    private void addPackages(final SearchIndex index) {
+        
+        index.add("openssl.spm", 1, 1, "openssl", "Apache License", 
+                  Arrays.asList("install", "data/usr/lib/libssl.so.1.0", "data/usr/lib/libcrypto.so.1.0"));
+        index.add("curl.spm", 1, 1, "curl", "MIT/X derivate license", 
+                  Arrays.asList("data/usr/bin/curl", "data/usr/lib/libcurl.so"));
+        index.add("spm-gui.spm", 1, 1, "spm-gui", "GNU GENERAL PUBLIC LICENSE\nVersion 3 (GPLv3)", 
+                  Arrays.asList("data/usr/share/spm/spm-gui.jar"));
+        
+    }
+    
+    @Test
+    public void testSearch() throws Exception {
+        
+        addPackages(index);
+        
+        // any part of a name, ignoring case
+        assertEquals(Arrays.asList("openssl"), getNames(index.search(SearchIndex.Field.NAME, "SSL")));
+        assertEquals(Arrays.asList("spm-gui"), getNames(index.search(SearchIndex.Field.NAME, "m-g")));
+        assertEquals(Arrays.asList("curl"), getNames(index.search(SearchIndex.Field.NAME, "rl")));
+        assertTrue(index.search(SearchIndex.Field.NAME, "sslx").isEmpty());
+        
+        // the trigrams of a name may all be there without the name containing the text
+        assertTrue(index.search(SearchIndex.Field.NAME, "opensslope").isEmpty());
+        
+        // the start of words of the licenses and file names
+        assertEquals(Arrays.asList("spm-gui"), getNames(index.search(SearchIndex.Field.LICENSE, "gpl")));
+        assertEquals(Arrays.asList("spm-gui"), getNames(index.search(SearchIndex.Field.LICENSE, "general public")));
+        assertTrue(index.search(SearchIndex.Field.LICENSE, "general apache").isEmpty());
+        assertEquals(Arrays.asList("openssl"), getNames(index.search(SearchIndex.Field.FILES, "libssl")));
+        assertEquals(Arrays.asList("openssl", "curl"), getNames(index.search(SearchIndex.Field.FILES, "lib")));
+        
+        // files outside the data directory are not indexed
+        assertTrue(index.search(SearchIndex.Field.FILES, "install").isEmpty());
+        
+        // any field
+        assertEquals(Arrays.asList("openssl", "curl", "spm-gui"), getNames(index.search("license")));
+        assertEquals(Arrays.asList("curl"), getNames(index.search("curl")));
+        
+    }
+    
+    @Test
+    public void testRemove() throws Exception {
+        
+        addPackages(index);
+        
+        assertTrue(index.remove("curl.spm"));
+        assertFalse(index.remove("curl.spm"));
+        assertEquals(2, index.size());
+        
+        assertTrue(index.search("curl").isEmpty());
+        assertEquals(Arrays.asList("openssl"), getNames(index.search(SearchIndex.Field.FILES, "lib")));
+        
+        // replacing a package moves it to the end
+        index.add("openssl.spm", 2, 2, "openssl", null, Collections.<String>emptyList());
+        
+        assertEquals(2, index.size());
+        assertTrue(index.search(SearchIndex.Field.FILES, "libssl").isEmpty());
+        assertEquals(Arrays.asList("spm-gui", "openssl"), getNames(index.search("s")));
+        
+        // the removed packages outnumbered the rest, so the lists were rebuilt with only the words of spm-gui's
+        // files: usr, share, spm, gui and jar
+        assertEquals(5, index.getTermCount(SearchIndex.Field.FILES));
+        assertEquals(Arrays.asList("spm-gui"), getNames(index.search(SearchIndex.Field.FILES, "share")));
+        
+    }
+    
+    @Test
+    public void testWrite() throws Exception {
+        
+        addPackages(index);
+        index.remove("curl.spm");
+        
+        File file = new File(repository, SearchIndex.INDEX_NAME);
+        index.write(file);
+        
+        SearchIndex readIndex = SearchIndex.read(file);
+        
+        assertEquals(2, readIndex.size());
+        assertEquals(Arrays.asList("openssl"), getNames(readIndex.search("libcrypto")));
+        assertEquals(Arrays.asList("spm-gui"), getNames(readIndex.search("gpl")));
+        assertTrue(readIndex.search("curl").isEmpty());
+        
+        // the read index can be added to
+        readIndex.add("curl.spm", 1, 1, "curl", null, Arrays.asList("data/usr/bin/curl"));
+        assertEquals(Arrays.asList("curl"), getNames(readIndex.search("curl")));
+        
+        assertEquals(0, SearchIndex.read(new File(repository, "missing")).size());
+        
+    }
+    
+    @Test
+    public void testUpdate() throws Exception {
+        
+        repository.mkdirs();
+        
+        File first = new File(repository, "first.spm");
+        Files.copy(new File(TEST_PACKAGE).toPath(), first.toPath());
+        
+        assertEquals(1, index.update(repository));
+        assertEquals(Arrays.asList("first"), getNames(index.search(SearchIndex.Field.LICENSE, "license text")));
+        
+        // only new, changed or removed packages are read again
+        assertEquals(0, index.update(repository));
+        
+        File nested = new File(repository, "nested");
+        nested.mkdirs();
+        Files.copy(new File(TEST_PACKAGE).toPath(), new File(nested, "second.spm").toPath());
+        
+        assertEquals(1, index.update(repository));
+        assertEquals("nested/second.spm", index.search(SearchIndex.Field.NAME, "second").get(0).getPath());
+        
+        first.delete();
+        
+        assertEquals(1, index.update(repository));
+        assertEquals(Arrays.asList("second"), getNames(index.search("license")));
+        
+    }
+    
+    /**
+     * Searches an index of a hundred thousand packages, which must only decode the lists of the terms searched
+     * for.
+     * 
+     */
+    @Test
+    public void testManyPackages() throws Exception {
+        
+        for (int i = 0; i < 100000; i++) {
+            
+            index.add("package-" + i + ".spm", 1, 1, "package-" + i, "License " + (i % 10), 
+                      Arrays.asList("data/usr/lib/lib" + i + ".so"));
+            
+        }
+        
+        long start = System.nanoTime();
+        
+        // five digit numbers, which start no other number
+        for (int i = 0; i < 100; i++) {
+            
+            int number = i * 900 + 10007;
+            
+            assertEquals(1, index.search(SearchIndex.Field.FILES, "lib" + number).size());
+            assertEquals(1, index.search(SearchIndex.Field.NAME, "package-" + number).size());
+            
+        }
+        
+        assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+        
+    }
+    
+}
+
+// EOF
@@ -0,0 +1,111 @@
+package spm.format.tar;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code spm.format.tar.MappedTarArchive}.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class MappedTarArchiveTest {
+
+    private static final String TEST_ARCHIVE = "test/test.tar"; // SHOULD be in project root
+    private static final String TEST_PACKAGE = "test/test.spm";
+    private static final String TEMP_ARCHIVE = "test/temp-mapped.tar";
+    private static final String TEST_FILENAME = "test.file";
+    private static final String TEST_STRING = "TEST-STRING";
+
+    public MappedTarArchiveTest() {
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+
+        MappedTarArchive archive = new MappedTarArchive(TEST_ARCHIVE);
+
+        assertEquals(1, archive.size());
+        assertEquals(TEST_FILENAME, archive.getHeader(0).getFileName());
+
+        // check the zero-copy buffer
+        ByteBuffer buffer = archive.getFileBuffer(TEST_FILENAME);
+        assertTrue(buffer.isReadOnly());
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertEquals(TEST_STRING, new String(bytes, "UTF-8"));
+
+        // check the copying lookups
+        assertEquals(TEST_STRING, new String(archive.getFileContents(TEST_FILENAME), "UTF-8"));
+
+        TarRecord record = archive.getRecord("test\\..*");
+        assertNotNull(record);
+        assertEquals(TEST_FILENAME, record.getHeader().getFileName());
+        assertEquals(TEST_STRING, new String(record.getFileContents(), "UTF-8"));
+
+        assertNull(archive.getFileBuffer("missing.file"));
+        assertNull(archive.getRecords("missing.*"));
+
+        archive.close();
+
+    }
+
+    @Test
+    public void testMatchesTarArchive() throws Exception {
+
+        File temp = new File(TEMP_ARCHIVE);
+
+        // decompress the test package
+        InputStream input = new GZIPInputStream(new FileInputStream(TEST_PACKAGE));
+        OutputStream output = new FileOutputStream(temp);
+
+        byte[] buffer = new byte[TarHeader.BLOCK_SIZE];
+        int num;
+        while ((num = input.read(buffer)) != -1)
+            output.write(buffer, 0, num);
+
+        input.close();
+        output.close();
+
+        TarArchive archive = new TarArchive();
+        archive.read(temp);
+
+        MappedTarArchive mappedArchive = new MappedTarArchive(temp);
+
+        // every record must be found with the same contents
+        assertEquals(archive.size(), mappedArchive.size());
+        for (TarRecord record : archive) {
+
+            String filename = record.getHeader().getFileName();
+            ByteBuffer expected = archive.getFileBuffer(filename);
+
+            assertEquals(filename, expected, mappedArchive.getFileBuffer(filename));
+
+        }
+
+        mappedArchive.close();
+
+        temp.delete();
+
+    }
+
+}
+
+// EOF
@@ -0,0 +1,110 @@
+package spm.format.tar;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.regex.Pattern;
+
+/**
+ * Measures the cost of looking up records in a large {@code TarArchive}.
+ * Not part of the test suite; run its {@code main} method directly.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class TarArchiveBenchmark {
+
+    private static final int RECORDS = 100000;
+
+    // number of lookups that scan the archive and that use the index
+    private static final int SCAN_LOOKUPS = 20;
+    private static final int INDEX_LOOKUPS = 100000;
+
+    // prevents the lookups from being optimised away
+    private static int sink = 0;
+
+    // returns the name of the i'th record
+    private static String name(int i) {
+        return "data/dir" + (i % 100) + "/file" + i;
+    }
+
+    // prints the average time of the given number of operations
+    private static void report(final String label, long start, int count) {
+
+        double nanos = (double) (System.nanoTime() - start) / count;
+
+        System.out.println(String.format("%-40s %12.0f ns/lookup", label, nanos));
+
+    }
+
+    public static void main(final String[] args) {
+
+        TarArchive archive = new TarArchive();
+        for (int i = 0; i < RECORDS; i++)
+            archive.newFile(name(i));
+
+        System.out.println(RECORDS + " records:");
+
+        for (int round = 0; round < 3; round++) {
+
+            long start;
+
+            // linear scan calling String.matches() on every record (the previous implementation)
+            start = System.nanoTime();
+            for (int i = 0; i < SCAN_LOOKUPS; i++) {
+
+                String pattern = name((i * 97) % RECORDS);
+                for (TarRecord record : archive) {
+
+                    if (record.getHeader().getFileName().matches(pattern)) {
+                        sink++;
+                        break;
+                    }
+
+                }
+
+            }
+            report("String.matches() scan", start, SCAN_LOOKUPS);
+
+            // linear scan with a precompiled pattern
+            start = System.nanoTime();
+            for (int i = 0; i < SCAN_LOOKUPS; i++) {
+
+                if (archive.getRecord(Pattern.compile(Pattern.quote(name((i * 97) % RECORDS)))) != null)
+                    sink++;
+
+            }
+            report("getRecord(Pattern)", start, SCAN_LOOKUPS);
+
+            // exact name through the index
+            start = System.nanoTime();
+            for (int i = 0; i < INDEX_LOOKUPS; i++) {
+
+                if (archive.getRecord(name((i * 97) % RECORDS)) != null)
+                    sink++;
+
+            }
+            report("getRecord(String) exact name", start, INDEX_LOOKUPS);
+
+            System.out.println();
+
+        }
+
+        System.out.println(sink);
+
+    }
+
+}
+
+// EOF
@@ -16,6 +16,10 @@ package spm.format.tar;
  */
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import org.junit.Assume;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -101,6 +105,83 @@ public class TarArchiveTest {
         
     }
     
+    @Test
+    public void testLookup() throws Exception {
+        
+        TarArchive archive = new TarArchive();
+        for (int i = 0; i < 10; i++)
+            archive.addFile("data/file." + i, TEST_STRING.getBytes("UTF-8"));
+        archive.newFile("data/file-1");
+        
+        // exact names use the index, patterns scan the archive
+        assertSame(archive.get(1), archive.getRecord("data/file.1"));
+        assertSame(archive.get(1), archive.getRecordByName("data/file.1"));
+        assertSame(archive.get(10), archive.getRecordByName("data/file-1"));
+        assertEquals(2, archive.getRecords("data/file.1").length);
+        assertEquals(10, archive.getRecords("data/file\\.[0-9]").length);
+        assertEquals(TEST_STRING.length(), archive.getRecord("data/file.2").getHeader().getFileSize());
+        
+        // the index must follow changes to the archive
+        archive.deleteFile("data/file.1");
+        assertNull(archive.getRecordByName("data/file.1"));
+        assertSame(archive.get(9), archive.getRecord("data/file-1"));
+        
+        archive.deleteFiles("data/file\\.[0-4]");
+        assertEquals(6, archive.size());
+        assertNull(archive.getRecord("data/file.0"));
+        
+        archive.set(0, new TarRecord(getHeader(), null));
+        assertNull(archive.getRecord("data/file.5"));
+        assertSame(archive.get(0), archive.getRecord("test.file"));
+        
+        archive.clear();
+        assertNull(archive.getRecord("test.file"));
+        
+    }
+    
+    @Test
+    public void testOwner() throws Exception {
+        
+        // a file created by this process is owned by the current user
+        File temp = File.createTempFile("spm-owner", null);
+        
+        try {
+            
+            Path path = temp.toPath();
+            Assume.assumeTrue(path.getFileSystem().supportedFileAttributeViews().contains("unix"));
+            
+            PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class);
+            
+            // a default header reports the current user
+            TarHeader header = new TarHeader();
+            
+            assertEquals(((Number) Files.getAttribute(path, "unix:uid")).longValue(), header.getUid());
+            assertEquals(((Number) Files.getAttribute(path, "unix:gid")).longValue(), header.getGuid());
+            assertEquals(attributes.owner().getName(), header.getUserName());
+            assertEquals(attributes.group().getName(), header.getGroupName());
+            
+        } finally {
+            temp.delete();
+        }
+        
+        // a decoded header keeps the owner in its own fields, even before they are read
+        TarHeader decoded = new TarHeader();
+        decoded.decode(getHeader().encode());
+        
+        assertEquals(1234, decoded.getUid());
+        assertEquals(1234, decoded.getGuid());
+        assertEquals("test-user", decoded.getUserName());
+        assertEquals("group-name", decoded.getGroupName());
+        
+        // setting one of the owner fields of a default header keeps the current user in the others
+        TarHeader changed = new TarHeader();
+        changed.setUid(4321);
+        
+        assertEquals(4321, changed.getUid());
+        assertEquals(new TarHeader().getUserName(), changed.getUserName());
+        
+    }
+    
     @Test
     public void testWrite() throws Exception {
         
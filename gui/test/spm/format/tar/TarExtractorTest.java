@@ -0,0 +1,510 @@
+package spm.format.tar;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import spm.format.InvalidPackageException;
+import spm.util.BlobStore;
+import spm.util.Hash;
+import spm.util.HashAlgorithm;
+
+/**
+ * Test for {@code spm.format.tar.TarExtractor}.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class TarExtractorTest {
+
+    private static final String TEMP_DIR = "test/tmp-extract";
+    private static final String TEMP_ARCHIVE = "test/tmp-extract.tar";
+    private static final String TEMP_BLOBS = "test/tmp-blobs";
+
+    // larger than the files the extractor reads into memory
+    private static final int LARGE_FILE_SIZE = 3 * 1024 * 1024 + 17;
+
+    public TarExtractorTest() {
+    }
+
+    // creates an archive with nested directories, modes, a repeated name and a large file
+    private static TarArchive newArchive() {
+
+        TarArchive archive = new TarArchive();
+
+        archive.newFile("bin/");
+        archive.getRecordByName("bin/").getHeader().setType(TarFileType.DIR);
+        archive.getRecordByName("bin/").getHeader().setMode(0555);
+
+        archive.addFile("bin/script", "#!/bin/sh\n".getBytes());
+        archive.getRecordByName("bin/script").getHeader().setMode(0751);
+
+        for (int i = 0; i < 500; i++)
+            archive.addFile("data/dir" + (i % 7) + "/sub/file" + i, ("contents of " + i).getBytes());
+
+        archive.newFile("empty");
+
+        archive.addFile("data/same", "first".getBytes());
+        archive.addFile("data/same", "second".getBytes());
+
+        byte[] large = new byte[LARGE_FILE_SIZE];
+        for (int i = 0; i < large.length; i++)
+            large[i] = (byte) (i * 31);
+        archive.addFile("data/large", large);
+
+        return archive;
+
+    }
+
+    // reads a file's contents
+    private static byte[] read(final File dir, final String filename) throws Exception {
+        return Files.readAllBytes(new File(dir, filename).toPath());
+    }
+
+    // checks the extracted files against the archive
+    private static void checkExtracted(final File dir, final TarExtractor extractor) throws Exception {
+
+        for (int i = 0; i < 500; i += 37)
+            assertArrayEquals(("contents of " + i).getBytes(), read(dir, "data/dir" + (i % 7) + "/sub/file" + i));
+
+        assertEquals(0, read(dir, "empty").length);
+        assertEquals("second", new String(read(dir, "data/same")));
+        assertEquals(LARGE_FILE_SIZE, read(dir, "data/large").length);
+        assertEquals((byte) ((LARGE_FILE_SIZE - 1) * 31), read(dir, "data/large")[LARGE_FILE_SIZE - 1]);
+
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+
+            assertEquals("rwxr-x--x", 
+                         PosixFilePermissions.toString(Files.getPosixFilePermissions(new File(dir, "bin/script").toPath())));
+            assertEquals("r-xr-xr-x", 
+                         PosixFilePermissions.toString(Files.getPosixFilePermissions(new File(dir, "bin").toPath())));
+            assertEquals("rw-r--r--", 
+                         PosixFilePermissions.toString(Files.getPosixFilePermissions(new File(dir, "empty").toPath())));
+
+        } else {
+            assertTrue(new File(dir, "bin/script").canExecute());
+        }
+
+        assertEquals(505, extractor.getFileCount());
+        assertTrue(extractor.getByteCount() > LARGE_FILE_SIZE);
+        assertTrue(extractor.getFilesPerSecond() > 0);
+
+    }
+
+    // deletes a directory and its contents
+    private static void delete(final File file) {
+
+        file.setWritable(true);
+
+        File[] files = file.listFiles();
+        if (files != null) {
+
+            for (File child : files)
+                delete(child);
+
+        }
+
+        file.delete();
+
+    }
+
+    @Test
+    public void testExtractArchive() throws Exception {
+
+        File dir = new File(TEMP_DIR);
+
+        for (int threads : Arrays.asList(1, 4)) {
+
+            TarExtractor extractor = new TarExtractor(dir);
+            extractor.setThreads(threads);
+
+            try {
+
+                extractor.extract(newArchive());
+                checkExtracted(dir, extractor);
+
+            } finally {
+                delete(dir);
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testExtractReader() throws Exception {
+
+        File dir = new File(TEMP_DIR);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        newArchive().write(output);
+
+        TarExtractor extractor = new TarExtractor(dir);
+        extractor.setThreads(4);
+
+        try {
+
+            extractor.extract(new TarReader(new ByteArrayInputStream(output.toByteArray())));
+            checkExtracted(dir, extractor);
+
+        } finally {
+            delete(dir);
+        }
+
+    }
+
+    @Test
+    public void testIncludes() throws Exception {
+
+        File dir = new File(TEMP_DIR);
+
+        TarExtractor extractor = new TarExtractor(dir);
+        extractor.setIncludes(Arrays.asList("bin/", "data/dir3/", "empty"));
+
+        assertTrue(extractor.isIncluded("bin"));
+        assertTrue(extractor.isIncluded("data/dir3/sub/file3"));
+        assertFalse(extractor.isIncluded("data/dir30"));
+        assertFalse(extractor.isIncluded("data/same"));
+
+        try {
+
+            extractor.extract(newArchive());
+
+            assertTrue(new File(dir, "bin/script").exists());
+            assertTrue(new File(dir, "empty").exists());
+            assertTrue(new File(dir, "data/dir3/sub/file3").exists());
+            assertFalse(new File(dir, "data/dir4").exists());
+            assertFalse(new File(dir, "data/large").exists());
+
+        } finally {
+            delete(dir);
+        }
+
+    }
+
+    @Test
+    public void testExcludes() throws Exception {
+
+        File dir = new File(TEMP_DIR);
+
+        // excluded records are skipped even where they are included
+        TarExtractor extractor = new TarExtractor(dir);
+        extractor.setIncludes(Arrays.asList("bin/", "data/dir3/"));
+        extractor.setExcludes(Arrays.asList("bin/script", "data/dir3/sub/"));
+
+        assertTrue(extractor.isIncluded("bin"));
+        assertFalse(extractor.isIncluded("bin/script"));
+        assertTrue(extractor.isIncluded("data/dir3"));
+        assertFalse(extractor.isIncluded("data/dir3/sub"));
+        assertFalse(extractor.isIncluded("data/dir3/sub/file3"));
+        assertFalse(extractor.isIncluded("data/same"));
+
+        try {
+
+            extractor.extract(newArchive());
+
+            assertTrue(new File(dir, "bin").isDirectory());
+            assertFalse(new File(dir, "bin/script").exists());
+            assertFalse(new File(dir, "data/dir3/sub/file3").exists());
+
+        } finally {
+            delete(dir);
+        }
+
+    }
+
+    @Test
+    public void testExtractMapped() throws Exception {
+
+        File dir = new File(TEMP_DIR);
+        File temp = new File(TEMP_ARCHIVE);
+
+        newArchive().write(temp);
+        MappedTarArchive archive = new MappedTarArchive(temp);
+
+        for (int threads : Arrays.asList(1, 4)) {
+
+            TarExtractor extractor = new TarExtractor(dir);
+            extractor.setThreads(threads);
+
+            try {
+
+                extractor.extract(archive);
+                checkExtracted(dir, extractor);
+
+            } finally {
+                delete(dir);
+            }
+
+        }
+
+        archive.close();
+        temp.delete();
+
+    }
+
+    // extracts the archive, failing unless it is rejected as leading outside the directory
+    private static void extractOutside(final TarExtractor extractor, final TarArchive archive) throws Exception {
+
+        try {
+
+            extractor.extract(archive);
+            fail("A record outside the directory was extracted");
+
+        } catch (InvalidPackageException ex) {
+            // expected
+        }
+
+    }
+
+    // returns an archive of one record of the given type and names
+    private static TarArchive newArchive(final String filename, final TarFileType type, final String linkName) {
+
+        TarHeader header = new TarHeader();
+        header.setFileName(filename);
+        header.setType(type);
+        header.setLinkName(linkName);
+
+        TarArchive archive = new TarArchive();
+        archive.add(new TarRecord(header, null));
+
+        return archive;
+
+    }
+
+    @Test
+    public void testOutside() throws Exception {
+
+        File dir = new File(TEMP_DIR);
+        File outside = new File(TEMP_DIR + "-outside");
+        File link = new File(dir, "data");
+
+        TarExtractor extractor = new TarExtractor(dir);
+
+        try {
+
+            // names which leave the directory
+            extractOutside(extractor, newArchive("../escaped", TarFileType.NORMAL, null));
+            extractOutside(extractor, newArchive("data/../../escaped", TarFileType.NORMAL, null));
+            extractOutside(extractor, newArchive("/tmp/escaped", TarFileType.NORMAL, null));
+            assertFalse(new File(dir.getParentFile(), "escaped").exists());
+
+            // links which point outside the directory, while those inside it are allowed
+            extractOutside(extractor, newArchive("data/link", TarFileType.SYM_LINK, "../../escaped"));
+            extractOutside(extractor, newArchive("data/link", TarFileType.SYM_LINK, "/etc/passwd"));
+            extractOutside(extractor, newArchive("data/link", TarFileType.HARD_LINK, "../escaped"));
+            extractor.extract(newArchive("data/link", TarFileType.SYM_LINK, "../data/file"));
+            delete(dir);
+
+            // a directory which is a symbolic link leading outside is not extracted into
+            assertTrue(outside.mkdirs());
+            dir.mkdirs();
+            Files.createSymbolicLink(link.toPath(), outside.getAbsoluteFile().toPath());
+
+            TarArchive archive = new TarArchive();
+            archive.addFile("data/file", "contents".getBytes());
+
+            extractOutside(extractor, archive);
+            extractOutside(extractor, newArchive("data/sub/file", TarFileType.NORMAL, null));
+            assertFalse(new File(outside, "file").exists());
+            assertFalse(new File(outside, "sub").exists());
+            Files.delete(link.toPath());
+
+            // a file which is a symbolic link is replaced rather than written through
+            File target = new File(outside, "target");
+            Files.write(target.toPath(), "target".getBytes());
+            Files.createDirectories(link.toPath());
+            Files.createSymbolicLink(new File(link, "file").toPath(), target.getAbsoluteFile().toPath());
+
+            extractor.extract(archive);
+
+            assertArrayEquals("target".getBytes(), Files.readAllBytes(target.toPath()));
+            assertArrayEquals("contents".getBytes(), read(dir, "data/file"));
+            assertFalse(Files.isSymbolicLink(new File(link, "file").toPath()));
+
+        } finally {
+
+            // a symbolic link is deleted first, so that what it points to is not
+            if (Files.isSymbolicLink(link.toPath()))
+                Files.delete(link.toPath());
+
+            delete(dir);
+            delete(outside);
+
+        }
+
+    }
+
+    @Test
+    public void testCheckedHashes() throws Exception {
+
+        File dir = new File(TEMP_DIR);
+        File temp = new File(TEMP_ARCHIVE);
+
+        TarArchive archive = newArchive();
+        archive.write(temp);
+
+        // the hash of the last record of each name
+        HashMap<String, Hash> hashes = new HashMap<String, Hash>();
+        for (TarRecord record : archive) {
+
+            byte[] contents = record.getFileContents();
+            hashes.put(record.getHeader().getFileName(), 
+                       HashAlgorithm.SHA256.hash(contents == null ? new byte[0] : contents));
+
+        }
+
+        MappedTarArchive mappedArchive = new MappedTarArchive(temp);
+
+        try {
+
+            TarExtractor extractor = new TarExtractor(dir);
+            extractor.setCheckedHashes(hashes);
+            extractor.extract(mappedArchive);
+            checkExtracted(dir, extractor);
+            delete(dir);
+
+            // a file which does not match fails the extraction, and nothing written is left behind
+            hashes.put("data/large", HashAlgorithm.SHA256.hash(new byte[1]));
+
+            for (int threads : Arrays.asList(1, 4)) {
+
+                extractor = new TarExtractor(dir);
+                extractor.setThreads(threads);
+                extractor.setCheckedHashes(hashes);
+
+                try {
+
+                    extractor.extract(mappedArchive);
+                    fail("A file which does not match its hash was extracted");
+
+                } catch (InvalidPackageException ex) {
+                    // expected
+                }
+
+                assertFalse(new File(dir, "data/large").exists());
+                assertFalse(new File(dir, "bin/script").exists());
+
+                delete(dir);
+
+            }
+
+            // the same from a stream
+            extractor = new TarExtractor(dir);
+            extractor.setCheckedHashes(hashes);
+
+            try {
+
+                extractor.extract(new TarReader(new FileInputStream(temp)));
+                fail("A file which does not match its hash was extracted");
+
+            } catch (InvalidPackageException ex) {
+                // expected
+            }
+
+            assertFalse(new File(dir, "data/large").exists());
+
+        } finally {
+
+            mappedArchive.close();
+            temp.delete();
+            delete(dir);
+
+        }
+
+    }
+
+    @Test
+    public void testBlobStore() throws Exception {
+
+        File dir = new File(TEMP_DIR);
+        File otherDir = new File(TEMP_DIR + "-other");
+        BlobStore blobStore = new BlobStore(new File(TEMP_BLOBS));
+
+        // the same files under the names of two packages
+        TarArchive archive = new TarArchive();
+        HashMap<String, Hash> hashes = new HashMap<String, Hash>();
+        for (int i = 0; i < 20; i++) {
+
+            byte[] contents = ("contents of " + i).getBytes();
+
+            archive.addFile("data/file" + i, contents);
+            hashes.put("data/file" + i, HashAlgorithm.SHA256.hash(contents));
+
+        }
+
+        // a file which does not have the hash it is listed under
+        Hash wrongHash = HashAlgorithm.SHA256.hash("other contents".getBytes());
+        archive.addFile("data/wrong", "contents".getBytes());
+        hashes.put("data/wrong", wrongHash);
+
+        try {
+
+            TarExtractor extractor = new TarExtractor(dir);
+            extractor.setBlobStore(blobStore, hashes);
+            extractor.extract(archive);
+
+            assertEquals(0, extractor.getLinkedCount());
+            assertEquals(20, blobStore.getStoreCount());
+            assertFalse(blobStore.contains(wrongHash, 0644));
+
+            // stored files are linked into the other directory, except one changed through the first
+            File changed = new File(dir, "data/file0");
+            changed.setWritable(true);
+            Files.write(changed.toPath(), "changed".getBytes());
+
+            extractor = new TarExtractor(otherDir);
+            extractor.setBlobStore(blobStore, hashes);
+            extractor.extract(archive);
+
+            assertEquals(19, extractor.getLinkedCount());
+            assertEquals(19, blobStore.getLinkCount());
+            assertEquals(("contents of 0" + "contents").length(), extractor.getByteCount());
+            assertFalse(Files.isSameFile(changed.toPath(), new File(otherDir, "data/file0").toPath()));
+
+            for (int i = 0; i < 20; i++) {
+
+                assertArrayEquals(("contents of " + i).getBytes(), read(otherDir, "data/file" + i));
+
+                if (i > 0)
+                    assertTrue(Files.isSameFile(new File(dir, "data/file" + i).toPath(), 
+                                                new File(otherDir, "data/file" + i).toPath()));
+
+            }
+
+            // the changed file was written again and stored in place of the changed one
+            assertEquals(21, blobStore.getStoreCount());
+            assertTrue(Files.isSameFile(new File(otherDir, "data/file0").toPath(), 
+                                        blobStore.getFile(hashes.get("data/file0"), 0644).toPath()));
+
+        } finally {
+
+            delete(dir);
+            delete(otherDir);
+            delete(new File(TEMP_BLOBS));
+
+        }
+
+    }
+
+}
+
+// EOF
@@ -0,0 +1,247 @@
+package spm.format.tar;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import static spm.format.tar.TarHeader.BLOCK_SIZE;
+import spm.util.HashAlgorithm;
+import spm.util.SHA1;
+
+/**
+ * Test for {@code spm.format.tar.TarReader}.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class TarReaderTest {
+
+    private static final String TEST_ARCHIVE = "test/test.tar"; // SHOULD be in project root
+    private static final String TEST_FILENAME = "test.file";
+    private static final String TEST_STRING = "TEST-STRING";
+
+    // largest size that fits in the 11 octal digits of a header's size field
+    private static final long MAX_FILE_SIZE = 077777777777L;
+
+    public TarReaderTest() {
+    }
+
+    // reads the remaining contents of a stream into a string
+    private String readString(final InputStream input) throws Exception {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        byte[] buffer = new byte[BLOCK_SIZE];
+        int num;
+        while ((num = input.read(buffer)) != -1)
+            output.write(buffer, 0, num);
+
+        return new String(output.toByteArray(), "UTF-8");
+
+    }
+
+    @Test
+    public void testRead() throws Exception {
+
+        TarReader reader = new TarReader(new BufferedInputStream(new FileInputStream(TEST_ARCHIVE)));
+
+        TarHeader header = reader.next();
+        assertNotNull("Test archive has no records", header);
+        assertEquals(TEST_FILENAME, header.getFileName());
+        assertEquals(TEST_STRING, readString(reader.getInputStream()));
+
+        assertNull("Test archive should only contain one record", reader.next());
+
+        reader.close();
+
+    }
+
+    @Test
+    public void testHashing() throws Exception {
+
+        TarArchive archive = new TarArchive();
+        archive.addFile("empty.file", new byte[0]);
+        archive.addFile("partial.file", new byte[3 * BLOCK_SIZE + 7]);
+        archive.addFile("skipped.file", TEST_STRING.getBytes("UTF-8"));
+        archive.addFile("read.file", TEST_STRING.getBytes("UTF-8"));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        archive.write(output);
+
+        TarReader reader = new TarReader(new ByteArrayInputStream(output.toByteArray()));
+        reader.setHashing(HashAlgorithm.SHA1);
+
+        // read some of each file's contents, none of it, or all of it
+        assertNotNull(reader.next());
+        assertEquals(SHA1.hash(new byte[0]), reader.getHash());
+
+        assertNotNull(reader.next());
+        reader.getInputStream().read(new byte[BLOCK_SIZE + 1]);
+        assertEquals(SHA1.hash(new byte[3 * BLOCK_SIZE + 7]), reader.getHash());
+
+        assertNotNull(reader.next());
+        assertEquals(SHA1.hash(TEST_STRING), reader.getHash());
+
+        assertNotNull(reader.next());
+        assertEquals(TEST_STRING, readString(reader.getInputStream()));
+        assertEquals(SHA1.hash(TEST_STRING), reader.getHash());
+
+        assertNull(reader.next());
+
+        reader.close();
+
+    }
+
+    /**
+     * Streams an archive containing a file larger than the maximum heap size (and at least 3 GiB), followed by a
+     * small file. Reading it can only succeed if the contents of the large file are never held in memory.
+     *
+     */
+    @Test
+    public void testReadLargeArchive() throws Exception {
+
+        long size = Math.min(Math.max(Runtime.getRuntime().maxMemory(), 3L << 30) + 1, MAX_FILE_SIZE);
+
+        TarHeader largeHeader = new TarHeader();
+        largeHeader.setFileName("large.file");
+        largeHeader.setFileSize(size);
+
+        TarHeader smallHeader = new TarHeader();
+        smallHeader.setFileName(TEST_FILENAME);
+        smallHeader.setFileSize(TEST_STRING.length());
+
+        byte[] smallBlock = Arrays.copyOf(TEST_STRING.getBytes("UTF-8"), BLOCK_SIZE);
+
+        TarReader reader = new TarReader(new SyntheticInputStream(largeHeader.encode(),
+                                                                  size,
+                                                                  smallHeader.encode(),
+                                                                  smallBlock));
+
+        // read the large file through the reader
+        TarHeader header = reader.next();
+        assertEquals("large.file", header.getFileName());
+        assertEquals(size, header.getFileSize());
+
+        InputStream input = reader.getInputStream();
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int num;
+        while ((num = input.read(buffer)) != -1)
+            total += num;
+        assertEquals(size, total);
+
+        // the small file must still be aligned correctly after the large file's padding
+        header = reader.next();
+        assertEquals(TEST_FILENAME, header.getFileName());
+        assertEquals(TEST_STRING, readString(reader.getInputStream()));
+
+        assertNull(reader.next());
+
+    }
+
+    /**
+     * Generates a tar archive of one large zero filled file followed by one small file, without allocating the
+     * contents of the large file.
+     *
+     */
+    private static final class SyntheticInputStream extends InputStream {
+
+        private final byte[] largeHeader;
+        private final long largeSize;
+        private final byte[] smallHeader;
+        private final byte[] smallBlock;
+
+        // total length of the archive and the current position in it
+        private final long length;
+        private long position = 0;
+
+        SyntheticInputStream(final byte[] largeHeader,
+                             long largeSize,
+                             final byte[] smallHeader,
+                             final byte[] smallBlock) {
+
+            this.largeHeader = largeHeader;
+            this.largeSize = (largeSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE; // padded
+            this.smallHeader = smallHeader;
+            this.smallBlock = smallBlock;
+
+            length = BLOCK_SIZE + this.largeSize + 2 * BLOCK_SIZE + 2 * BLOCK_SIZE;
+
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+
+        }
+
+        @Override
+        public int read(final byte[] buffer, int offset, int len) throws IOException {
+
+            if (position >= length)
+                return -1;
+
+            long smallStart = BLOCK_SIZE + largeSize;
+
+            int num;
+            if (position < BLOCK_SIZE) { // large file header
+
+                num = (int) Math.min(len, BLOCK_SIZE - position);
+                System.arraycopy(largeHeader, (int) position, buffer, offset, num);
+
+            } else if (position < smallStart) { // large file contents
+
+                num = (int) Math.min(len, smallStart - position);
+                Arrays.fill(buffer, offset, offset + num, (byte) 0);
+
+            } else if (position < smallStart + 2 * BLOCK_SIZE) { // small file header and contents
+
+                int blockOffset = (int) (position - smallStart);
+                num = Math.min(len, 2 * BLOCK_SIZE - blockOffset);
+
+                for (int i = 0; i < num; i++) {
+
+                    int index = blockOffset + i;
+                    if (index < BLOCK_SIZE) {
+                        buffer[offset + i] = smallHeader[index];
+                    } else {
+                        buffer[offset + i] = smallBlock[index - BLOCK_SIZE];
+                    }
+
+                }
+
+            } else { // end of archive blocks
+
+                num = (int) Math.min(len, length - position);
+                Arrays.fill(buffer, offset, offset + num, (byte) 0);
+
+            }
+
+            position += num;
+
+            return num;
+
+        }
+
+    }
+
+}
+
+// EOF
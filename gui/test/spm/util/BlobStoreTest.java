@@ -0,0 +1,175 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code spm.util.BlobStore}.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class BlobStoreTest {
+
+    private static final String TEMP_DIR = "test/tmp-blobs";
+
+    private static final byte[] CONTENTS = "TEST-STRING".getBytes();
+
+    private final BlobStore store = new BlobStore(new File(TEMP_DIR));
+
+    public BlobStoreTest() {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(new File(TEMP_DIR));
+    }
+
+    // deletes a directory and its contents
+    private static void delete(final File file) {
+
+        File[] files = file.listFiles();
+        if (files != null) {
+
+            for (File child : files)
+                delete(child);
+
+        }
+
+        file.delete();
+
+    }
+
+    // writes a file to the test directory
+    private static Path write(final String filename, final byte[] contents) throws Exception {
+
+        Path path = new File(TEMP_DIR, filename).toPath();
+
+        Files.createDirectories(path.getParent());
+        Files.write(path, contents);
+
+        return path;
+
+    }
+
+    @Test
+    public void testLink() throws Exception {
+
+        Hash hash = HashAlgorithm.SHA256.hash(CONTENTS);
+
+        assertFalse(store.contains(hash, 0644));
+        assertFalse(store.link(hash, 0644, new File(TEMP_DIR, "missing").toPath()));
+
+        Path source = write("source", CONTENTS);
+        store.put(hash, 0644, source);
+
+        assertTrue(store.contains(hash, 0644));
+        assertFalse(store.contains(hash, 0755));
+        assertEquals(1, store.getStoreCount());
+
+        // the stored file is the source, sealed
+        Path blob = store.getFile(hash, 0644).toPath();
+        assertTrue(Files.isSameFile(source, blob));
+        assertTrue(BlobStore.isSealed(blob, 0644));
+        assertEquals(BlobStore.SEALED_TIME, Files.getLastModifiedTime(source));
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            assertFalse(Files.getPosixFilePermissions(source).contains(PosixFilePermission.OWNER_WRITE));
+
+        // an existing file is replaced by the link
+        Path target = write("target", new byte[0]);
+        assertTrue(store.link(hash, 0644, target));
+
+        assertTrue(Files.isSameFile(blob, target));
+        assertArrayEquals(CONTENTS, Files.readAllBytes(target));
+        assertEquals(1, store.getLinkCount());
+        assertEquals(CONTENTS.length, store.getLinkedBytes());
+
+    }
+
+    @Test
+    public void testChanged() throws Exception {
+
+        Hash hash = HashAlgorithm.SHA256.hash(CONTENTS);
+
+        Path source = write("source", CONTENTS);
+        store.put(hash, 0644, source);
+
+        // a file written through a link is no longer sealed, so it is removed rather than linked again
+        source.toFile().setWritable(true);
+        Files.write(source, "CHANGED".getBytes());
+        source.toFile().setWritable(false, false);
+
+        assertFalse(BlobStore.isSealed(source, 0644));
+        assertFalse(store.link(hash, 0644, new File(TEMP_DIR, "target").toPath()));
+        assertFalse(store.contains(hash, 0644));
+        assertEquals(0, store.getLinkCount());
+
+        // as is a file whose permissions were changed through a link
+        source = write("other", CONTENTS);
+        store.put(hash, 0644, source);
+        source.toFile().setExecutable(true);
+
+        assertFalse(store.link(hash, 0644, new File(TEMP_DIR, "target").toPath()));
+        assertFalse(store.contains(hash, 0644));
+
+    }
+
+    @Test
+    public void testNotAddressable() throws Exception {
+
+        Hash hash = HashAlgorithm.CRC32.hash(CONTENTS);
+
+        assertFalse(BlobStore.isContentAddressable(HashAlgorithm.CRC32));
+
+        store.put(hash, 0644, write("source", CONTENTS));
+
+        assertFalse(store.contains(hash, 0644));
+        assertEquals(0, store.getStoreCount());
+
+    }
+
+    @Test
+    public void testGc() throws Exception {
+
+        Hash kept = HashAlgorithm.SHA1.hash(CONTENTS);
+        Hash removed = HashAlgorithm.SHA1.hash(new byte[1]);
+
+        store.put(kept, 0644, write("kept", CONTENTS));
+        store.put(removed, 0644, write("removed", new byte[1]));
+
+        Files.delete(new File(TEMP_DIR, "removed").toPath());
+
+        // only the file which is not linked from outside the store is removed
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("unix")) {
+
+            assertEquals(1, store.gc());
+            assertTrue(store.contains(kept, 0644));
+            assertFalse(store.contains(removed, 0644));
+
+        }
+
+    }
+
+}
+
+// EOF
@@ -0,0 +1,64 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Measures the throughput of each {@code HashAlgorithm} on arrays and direct buffers.
+ * Not part of the test suite; run its {@code main} method directly.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class HashAlgorithmBenchmark {
+
+    private static final int SIZE = 64 * 1024 * 1024;
+    private static final int ROUNDS = 5;
+
+    public static void main(final String[] args) {
+
+        byte[] bytes = new byte[SIZE];
+        new Random(1).nextBytes(bytes);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(SIZE);
+        direct.put(bytes).flip();
+
+        for (int round = 0; round < ROUNDS; round++) {
+
+            for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+
+                long start = System.nanoTime();
+                algorithm.hash(bytes);
+                double arraySeconds = (System.nanoTime() - start) / 1e9;
+
+                start = System.nanoTime();
+                algorithm.hash(direct);
+                double directSeconds = (System.nanoTime() - start) / 1e9;
+
+                System.out.println(String.format("%-6s array %8.1f MiB/s   direct %8.1f MiB/s", algorithm.getName(),
+                                                 SIZE / 1048576.0 / arraySeconds, SIZE / 1048576.0 / directSeconds));
+
+            }
+
+            System.out.println();
+
+        }
+
+    }
+
+}
+
+// EOF
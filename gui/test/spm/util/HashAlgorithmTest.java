@@ -0,0 +1,80 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code spm.util.HashAlgorithm}.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class HashAlgorithmTest {
+
+    // generated using sha1sum, sha256sum and crc32
+    private static final String TEST_STRING = "hello world";
+    private static final String[] testVectors = {
+        "SHA1",   "2aae6c35c94fcfb415dbe95f408b9ce91ee846ed",
+        "SHA256", "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9",
+        "CRC32",  "0d4a1185"
+    };
+
+    public HashAlgorithmTest() {
+    }
+
+    @Test
+    public void testVectors() throws Exception {
+
+        byte[] bytes = TEST_STRING.getBytes("UTF-8");
+
+        for (int i = 0; i < testVectors.length; i += 2) {
+
+            HashAlgorithm algorithm = HashAlgorithm.forName(testVectors[i]);
+            assertNotNull(testVectors[i], algorithm);
+
+            Hash expected = new Hash(algorithm, testVectors[i + 1]);
+            assertEquals(testVectors[i + 1], expected.toString());
+
+            // every way of hashing must agree
+            assertEquals(expected, algorithm.hash(bytes));
+            assertEquals(expected, algorithm.hash(new ByteArrayInputStream(bytes)));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes).flip();
+            assertEquals(expected, algorithm.hash(direct));
+            assertEquals(bytes.length, direct.remaining());
+
+            Hasher hasher = algorithm.newHasher();
+            hasher.update(bytes[0]);
+            hasher.update(bytes, 1, bytes.length - 1);
+            assertEquals(expected, hasher.hash());
+
+            assertEquals(algorithm, HashAlgorithm.forHexSize(testVectors[i + 1].length()));
+
+        }
+
+        // SHA1 hashes are interchangeable with the SHA1 class
+        assertEquals(SHA1.hash(TEST_STRING), HashAlgorithm.SHA1.hash(bytes));
+        assertTrue(HashAlgorithm.SHA1.hash(bytes) instanceof SHA1);
+
+    }
+
+}
+
+// EOF
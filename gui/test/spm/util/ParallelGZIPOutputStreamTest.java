@@ -0,0 +1,103 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code spm.util.ParallelGZIPOutputStream}.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class ParallelGZIPOutputStreamTest {
+
+    public ParallelGZIPOutputStreamTest() {
+    }
+
+    // compresses the given data with several threads
+    private static byte[] compress(final byte[] data, int threads, int blockSize) throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        OutputStream gzoutput = new ParallelGZIPOutputStream(output, threads, blockSize,
+                                                             Deflater.DEFAULT_COMPRESSION);
+
+        // write in uneven chunks so blocks are filled across calls
+        int offset = 0;
+        while (offset < data.length) {
+
+            int num = Math.min(data.length - offset, 1000 + offset % 7777);
+            gzoutput.write(data, offset, num);
+            offset += num;
+
+        }
+
+        gzoutput.close();
+
+        return output.toByteArray();
+
+    }
+
+    // decompresses the given data with the standard GZIP reader
+    private static byte[] decompress(final byte[] data) throws IOException {
+
+        InputStream input = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        byte[] buffer = new byte[8192];
+        int num;
+        while ((num = input.read(buffer)) != -1)
+            output.write(buffer, 0, num);
+
+        input.close();
+
+        return output.toByteArray();
+
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        // compressible data with some noise
+        Random random = new Random(42);
+        byte[] data = new byte[1024 * 1024 + 123];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt() : 'a' + (i / 64) % 26);
+
+        for (int threads = 1; threads <= 4; threads++) {
+
+            byte[] compressed = compress(data, threads, 64 * 1024);
+
+            assertTrue(compressed.length < data.length);
+            assertArrayEquals(data, decompress(compressed));
+
+        }
+
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertEquals(0, decompress(compress(new byte[0], 2, 64 * 1024)).length);
+    }
+
+}
+
+// EOF
@@ -0,0 +1,174 @@
+package spm.util;
+/* Copyright (C) 2011, Zachary Scott <cthug.zs@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@code spm.util.PipelineInputStream}.
+ *
+ * @author Zachary Scott <cthug.zs@gmail.com>
+ */
+public class PipelineInputStreamTest {
+
+    public PipelineInputStreamTest() {
+    }
+
+    // reads the rest of the given stream
+    private static byte[] readAll(final InputStream input) throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        byte[] buffer = new byte[1000];
+        int num;
+        while ((num = input.read(buffer)) != -1)
+            output.write(buffer, 0, num);
+
+        return output.toByteArray();
+
+    }
+
+    @Test
+    public void testRead() throws Exception {
+
+        byte[] contents = new byte[1000000];
+        new Random(1).nextBytes(contents);
+
+        // stages chained through buffers smaller than the reads
+        InputStream input = new PipelineInputStream(
+                new PipelineInputStream(new ByteArrayInputStream(contents), "test-1", 333, 2), "test-2", 4096, 3);
+
+        try {
+
+            assertEquals(contents[0] & 0xff, input.read());
+            assertArrayEquals(Arrays.copyOfRange(contents, 1, contents.length), readAll(input));
+            assertEquals(-1, input.read());
+
+        } finally {
+            input.close();
+        }
+
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+
+        // fails after the first 100 bytes
+        InputStream failing = new InputStream() {
+
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException {
+
+                if (count++ == 100)
+                    throw new IOException("Test failure");
+
+                return 'a';
+
+            }
+
+            @Override
+            public int read(final byte[] b, int offset, int length) throws IOException {
+                return super.read(b, offset, Math.min(length, 10));
+            }
+
+        };
+
+        InputStream input = new PipelineInputStream(failing, "test", 10, 4);
+
+        byte[] buffer = new byte[10];
+        int total = 0;
+
+        try {
+
+            int num;
+            while ((num = input.read(buffer)) != -1)
+                total += num;
+
+            fail("The failure of the wrapped stream was not passed on");
+
+        } catch (IOException ex) {
+            assertEquals("Test failure", ex.getMessage());
+        } finally {
+            input.close();
+        }
+
+        assertEquals(100, total);
+
+    }
+
+    /**
+     * Reading ahead stops once every buffer is full, until the reader catches up.
+     *
+     */
+    @Test
+    public void testBackpressure() throws Exception {
+
+        final AtomicLong produced = new AtomicLong();
+
+        // never ends
+        InputStream endless = new InputStream() {
+
+            @Override
+            public int read() {
+
+                produced.incrementAndGet();
+
+                return 0;
+
+            }
+
+            @Override
+            public int read(final byte[] b, int offset, int length) {
+
+                produced.addAndGet(length);
+
+                return length;
+
+            }
+
+        };
+
+        InputStream input = new PipelineInputStream(endless, "test", 1024, 4);
+
+        try {
+
+            Thread.sleep(200);
+            assertEquals(4 * 1024, produced.get());
+
+            // reading a buffer frees it to be filled again
+            byte[] buffer = new byte[1024];
+            assertEquals(1024, input.read(buffer));
+            assertEquals(1024, input.read(buffer));
+
+            Thread.sleep(200);
+            assertEquals(5 * 1024, produced.get());
+
+        } finally {
+            input.close();
+        }
+
+    }
+
+}
+
+// EOF